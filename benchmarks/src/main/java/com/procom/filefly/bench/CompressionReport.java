@@ -0,0 +1,144 @@
+package com.procom.filefly.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+
+import com.procom.filefly.util.ContentDigest;
+import com.procom.filefly.util.PayloadCompressor;
+import com.procom.filefly.util.TransferEngine;
+import com.procom.filefly.util.TransferEnvelope;
+
+/**
+ * Bytes on the wire and end-to-end time of a Beam send of typical office documents and logs,
+ * with and without the compression stage of <code>SendFragment</code>.
+ * <p>
+ * A file that {@link com.procom.filefly.util.PayloadCompressor#shouldCompress} accepts is staged
+ * as a compressed {@link com.procom.filefly.util.TransferEnvelope} and unwrapped by the receiver;
+ * any other file is hashed for its sidecar on both ends and sent as it is. The end-to-end time
+ * adds the measured staging and restoring to the time the bytes take over a link of the given
+ * speed, as the Bluetooth handover of Android Beam cannot be run on a plain JVM.
+ * <p>
+ * Run with <code>java -cp target/benchmarks.jar com.procom.filefly.bench.CompressionReport [MiB] [link KB/s]</code>.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+public final class CompressionReport
+{
+	/** The runs of each step before the measured ones */
+	private static final int sWarmupRuns = 3;
+
+	/** The measured runs of each step, of which the median is reported */
+	private static final int sRuns = 5;
+
+	/**
+	 * Not instantiable; run {@link #main}.
+	 *
+	 * @author Peter Piech
+	 */
+	private CompressionReport() {}
+
+	public static void main(String[] args) throws IOException
+	{
+		long size = (args.length > 0 ? Long.parseLong(args[0]) : 4) * 1024 * 1024;
+		double linkBytesPerMilli = (args.length > 1 ? Double.parseDouble(args[1]) : 300) * 1024 / 1000;
+		File directory = new File("target/bench/compression");
+		FileUtils.deleteDirectory(directory);
+		if (!directory.mkdirs())
+		{
+			throw new IOException("Could not create " + directory);
+		}
+
+		System.out.printf("Samples of %d MiB before any zip compression, link at %.0f KB/s, median of %d runs%n%n",
+				size / 1024 / 1024, linkBytesPerMilli * 1000 / 1024, sRuns);
+		System.out.printf("%-13s %-10s %11s %11s %6s %9s %9s %10s %10s %7s%n", "file", "stage", "size", "wire", "ratio",
+				"stage ms", "restore ms", "plain ms", "staged ms", "speedup");
+		try
+		{
+			for (int i = 0; i < Samples.NAMES.length; i++)
+			{
+				final File source = Samples.write(new File(directory, Samples.NAMES[i]), size, i);
+				final File envelope = new File(directory, "Piech_Peter_" + source.getName() + TransferEnvelope.EXTENSION);
+				final File restored = new File(directory, "restored");
+				final TransferEnvelope.Header header = new TransferEnvelope.Header();
+				boolean compress = PayloadCompressor.shouldCompress(source);
+				long sidecar = TransferEnvelope.encodeDetachedHeader("Piech", "Peter", source.getName(), null, new ContentDigest()).length;
+
+				// sent as it is: hashed for the sidecar, then hashed again by the receiver to verify it
+				double hash = time(new TransferEngine.TransferJob()
+				{
+					@Override
+					public File run(TransferEngine.TransferHandle handle) throws IOException
+					{
+						ContentDigest.of(source, handle);
+						return source;
+					}
+				});
+				long plainWire = source.length() + sidecar;
+				double plain = 2 * hash + plainWire / linkBytesPerMilli;
+
+				long wire = plainWire;
+				double stage = hash;
+				double restore = hash;
+				if (compress)
+				{
+					stage = time(new TransferEngine.TransferJob()
+					{
+						@Override
+						public File run(TransferEngine.TransferHandle handle) throws IOException
+						{
+							TransferEnvelope.wrap(source, envelope, "Piech", "Peter", source.getName(), null, true, handle);
+							return envelope;
+						}
+					});
+					TransferEnvelope.readHeader(envelope, header);
+					restore = time(new TransferEngine.TransferJob()
+					{
+						@Override
+						public File run(TransferEngine.TransferHandle handle) throws IOException
+						{
+							TransferEnvelope.unwrap(envelope, header, restored, handle);
+							return restored;
+						}
+					});
+					wire = envelope.length();
+				}
+				double staged = stage + wire / linkBytesPerMilli + restore;
+				System.out.printf("%-13s %-10s %11d %11d %6.2f %9.1f %9.1f %10.0f %10.0f %6.2fx%n", source.getName(),
+						compress ? "envelope" : "as it is", source.length(), wire, (double) wire / plainWire, stage, restore,
+						plain, staged, plain / staged);
+			}
+		}
+		finally
+		{
+			FileUtils.deleteDirectory(directory);
+		}
+	}
+
+	/**
+	 * Runs a job through the {@link com.procom.filefly.util.TransferEngine} repeatedly.
+	 *
+	 * @return The median time of the measured runs in milliseconds
+	 * @author Peter Piech
+	 */
+	private static double time(TransferEngine.TransferJob job) throws IOException
+	{
+		for (int i = 0; i < sWarmupRuns; i++)
+		{
+			Jobs.run(job);
+		}
+		double[] millis = new double[sRuns];
+		for (int i = 0; i < sRuns; i++)
+		{
+			long start = System.nanoTime();
+			Jobs.run(job);
+			millis[i] = (System.nanoTime() - start) / 1e6;
+		}
+		Arrays.sort(millis);
+		return millis[sRuns / 2];
+	}
+}
@@ -0,0 +1,142 @@
+package com.procom.filefly.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.procom.filefly.util.ChunkedTransfer;
+import com.procom.filefly.util.TransferEngine;
+
+/**
+ * The copies of a staged send: the chunked, resumable {@link com.procom.filefly.util.ChunkedTransfer}
+ * run by the {@link com.procom.filefly.util.TransferEngine}, against the channel
+ * <code>transferFrom</code> of the original staging and the commons-io <code>FileUtils.copyFile</code>
+ * of the original receive. The files are written below <code>target/bench</code> of the working
+ * directory, so the numbers are those of the disk the module is checked out on.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyBenchmark
+{
+	/** The size of the copied file in MiB */
+	@Param({ "1", "32" })
+	public int mSizeMiB;
+
+	/** The file that is copied */
+	private File mSource;
+
+	/** The copy */
+	private File mDest;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		File directory = new File("target/bench/copy");
+		FileUtils.deleteDirectory(directory);
+		if (!directory.mkdirs())
+		{
+			throw new IOException("Could not create " + directory);
+		}
+		mSource = new File(directory, "source.bin");
+		mDest = new File(directory, "dest.bin");
+		writeRandom(mSource, mSizeMiB * 1024L * 1024L, 42);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		FileUtils.deleteDirectory(mSource.getParentFile());
+	}
+
+	@Benchmark
+	public File chunkedTransfer() throws IOException
+	{
+		return Jobs.run(new TransferEngine.TransferJob()
+		{
+			@Override
+			public File run(TransferEngine.TransferHandle handle) throws IOException
+			{
+				ChunkedTransfer.copy(mSource, mDest, handle, null);
+				return mDest;
+			}
+		});
+	}
+
+	@Benchmark
+	public long legacyTransferFrom() throws IOException
+	{
+		FileInputStream in = null;
+		FileOutputStream out = null;
+		try
+		{
+			in = new FileInputStream(mSource);
+			out = new FileOutputStream(mDest);
+			FileChannel src = in.getChannel();
+			return out.getChannel().transferFrom(src, 0, src.size());
+		}
+		finally
+		{
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	@Benchmark
+	public File legacyCopyFile() throws IOException
+	{
+		FileUtils.copyFile(mSource, mDest);
+		return mDest;
+	}
+
+	/**
+	 * Writes a file of pseudo-random, incompressible bytes.
+	 *
+	 * @author Peter Piech
+	 */
+	static void writeRandom(File file, long size, long seed) throws IOException
+	{
+		Random random = new Random(seed);
+		byte[] buffer = new byte[64 * 1024];
+		FileOutputStream out = new FileOutputStream(file);
+		try
+		{
+			for (long written = 0; written < size; written += buffer.length)
+			{
+				random.nextBytes(buffer);
+				out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
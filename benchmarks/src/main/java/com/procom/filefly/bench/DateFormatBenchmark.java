@@ -0,0 +1,86 @@
+package com.procom.filefly.bench;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.procom.filefly.model.Document;
+
+/**
+ * The date handling of the transfer history: formatting the date of a
+ * {@link com.procom.filefly.model.Document} for the list, the first time and again on a rebind,
+ * and parsing the text column that <code>SqliteController</code> migrates from databases older
+ * than version 5. The shared static formatter that every call went through before is measured
+ * alongside.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DateFormatBenchmark
+{
+	/** The pattern of <code>Document</code> and of the dates stored before version 5 */
+	private static final String sPattern = "MM/dd/yyyy HH:mm:ss:SS zzz";
+
+	/** The shared formatter the original code used from every thread */
+	private static final SimpleDateFormat sSharedFormat = new SimpleDateFormat(sPattern);
+
+	/** The date of transfer of every document, milliseconds since the epoch */
+	private final long mMillis = 1417430100250L;
+
+	/** A document whose date was formatted once already */
+	private Document mBound;
+
+	/** A date as stored before version 5 */
+	private String mStored;
+
+	@Setup
+	public void setUp()
+	{
+		mBound = new Document(1, "Doe_Jane_report.pdf", "Jane", "Doe", mMillis, -1, null, 1024, null);
+		mBound.getDateTransferredString();
+		mStored = sSharedFormat.format(new Date(mMillis));
+	}
+
+	@Benchmark
+	public String legacySharedFormat()
+	{
+		return sSharedFormat.format(new Date(mMillis));
+	}
+
+	@Benchmark
+	public String documentFirstFormat()
+	{
+		return new Document(1, "Doe_Jane_report.pdf", "Jane", "Doe", mMillis, -1, null, 1024, null).getDateTransferredString();
+	}
+
+	@Benchmark
+	public String documentRebind()
+	{
+		return mBound.getDateTransferredString();
+	}
+
+	@Benchmark
+	public long parseStoredDate() throws ParseException
+	{
+		return sSharedFormat.parse(mStored).getTime();
+	}
+}
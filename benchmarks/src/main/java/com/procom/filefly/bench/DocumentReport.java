@@ -0,0 +1,178 @@
+package com.procom.filefly.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.procom.filefly.model.Document;
+
+/**
+ * Heap held by and allocated for {@link #sDocuments} documents of the received history, with the
+ * current {@link com.procom.filefly.model.Document} and with the {@link LegacyDocument} it replaced.
+ * <p>
+ * The documents are built the way <code>SqliteController</code> reads them: every row brings its own
+ * strings, as a cursor returns a new {@link java.lang.String} per column, and the legacy rows parse
+ * their date from text as the original controller did. Each document is then bound once and once
+ * more, calling the getters <code>DocumentListAdapter.getView</code> calls.
+ * <p>
+ * Run with <code>java -cp target/benchmarks.jar com.procom.filefly.bench.DocumentReport</code>.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+public final class DocumentReport
+{
+	/** The number of documents */
+	private static final int sDocuments = 100000;
+
+	/** The format the original controller stored dates in */
+	private static final String sStoredDateFormat = "MM/dd/yyyy HH:mm:ss:SS zzz";
+
+	/**
+	 * Not instantiable; run {@link #main}.
+	 *
+	 * @author Peter Piech
+	 */
+	private DocumentReport() {}
+
+	public static void main(String[] args) throws ParseException
+	{
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		for (int round = 0; round < 3; round++) // the last round is reported, once everything is compiled
+		{
+			StringBuilder report = new StringBuilder();
+			report.append(String.format("%-9s %16s %16s %16s %16s%n", "model", "held bytes", "held when shown", "first bind", "next bind"));
+			for (boolean legacy : new boolean[] { true, false })
+			{
+				long heldBefore = held();
+				List<Object> documents = legacy ? loadLegacy() : load();
+				long held = held() - heldBefore;
+
+				long allocated = threads.getThreadAllocatedBytes(thread);
+				long sum = bind(documents);
+				long firstBind = threads.getThreadAllocatedBytes(thread) - allocated;
+				long heldShown = held() - heldBefore;
+				allocated = threads.getThreadAllocatedBytes(thread);
+				sum += bind(documents);
+				long nextBind = threads.getThreadAllocatedBytes(thread) - allocated;
+
+				report.append(String.format("%-9s %16d %16d %16d %16d%n", legacy ? "legacy" : "current", held, heldShown, firstBind, nextBind));
+				if (sum == 42 || documents.size() != sDocuments)
+				{
+					throw new IllegalStateException(); // keeps the documents and the bound values alive
+				}
+			}
+			if (round == 2)
+			{
+				System.out.printf("%d documents; bytes held after a full GC, and bytes allocated binding every document%n%n%s",
+						sDocuments, report);
+			}
+		}
+	}
+
+	/**
+	 * Reads the documents as the current controller does.
+	 *
+	 * @author Peter Piech
+	 */
+	private static List<Object> load()
+	{
+		List<Object> documents = new ArrayList<Object>(sDocuments);
+		for (int n = 0; n < sDocuments; n++)
+		{
+			String[] sender = Schema.SENDERS[n % Schema.SENDERS.length];
+			documents.add(new Document(n, fileName(n), new String(sender[0]), new String(sender[1]), date(n), -1,
+					"/storage/emulated/0/FileFly/store/" + n, 1024L * (n % 4096), null));
+		}
+		return documents;
+	}
+
+	/**
+	 * Reads the documents as the original controller did.
+	 *
+	 * @author Peter Piech
+	 */
+	private static List<Object> loadLegacy() throws ParseException
+	{
+		SimpleDateFormat format = new SimpleDateFormat(sStoredDateFormat);
+		List<Object> documents = new ArrayList<Object>(sDocuments);
+		for (int n = 0; n < sDocuments; n++)
+		{
+			String[] sender = Schema.SENDERS[n % Schema.SENDERS.length];
+			Date date = format.parse(format.format(new Date(date(n)))); // the stored text, parsed per row
+			documents.add(new LegacyDocument(n, fileName(n), new String(sender[0]), new String(sender[1]), date, -1,
+					"/storage/emulated/0/FileFly/store/" + n, 1024L * (n % 4096)));
+		}
+		return documents;
+	}
+
+	/**
+	 * Calls the getters of every document that binding its row calls.
+	 *
+	 * @return A sum of the lengths of the bound values, so the calls are not eliminated
+	 * @author Peter Piech
+	 */
+	private static long bind(List<Object> documents)
+	{
+		long sum = 0;
+		for (Object object : documents)
+		{
+			if (object instanceof Document)
+			{
+				Document document = (Document) object;
+				sum += document.getFilename().length();
+				sum += document.getOwnerFirstName().length() + document.getOwnerLastName().length();
+				sum += document.getDateTransferredString().length();
+				sum += document.getFileSize();
+			}
+			else
+			{
+				LegacyDocument document = (LegacyDocument) object;
+				sum += document.getFilename().length();
+				sum += document.getOwnerFirstName().length() + document.getOwnerLastName().length();
+				sum += document.getDateTransferredString().length();
+				sum += document.getFileSize();
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * @return The name of a generated document
+	 * @author Peter Piech
+	 */
+	private static String fileName(int n)
+	{
+		String[] sender = Schema.SENDERS[n % Schema.SENDERS.length];
+		return sender[1] + "_" + sender[0] + "_" + Schema.KINDS[n % Schema.KINDS.length] + " " + n + Schema.EXTENSIONS[(n / 7) % Schema.EXTENSIONS.length];
+	}
+
+	/**
+	 * @return The date of a generated document in milliseconds since the epoch
+	 * @author Peter Piech
+	 */
+	private static long date(int n)
+	{
+		return 1417430100000L + n * 60000L;
+	}
+
+	/**
+	 * @return The bytes of heap in use after a full garbage collection
+	 * @author Peter Piech
+	 */
+	private static long held()
+	{
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		for (int i = 0; i < 3; i++)
+		{
+			System.gc();
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+}
@@ -0,0 +1,79 @@
+package com.procom.filefly.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.procom.filefly.util.ContentDigest;
+import com.procom.filefly.util.TransferEnvelope;
+
+/**
+ * Reading the sender of a received file from its {@link com.procom.filefly.util.TransferEnvelope}
+ * header. Compare with {@link NameParsingBenchmark}, which parses the same senders out of names;
+ * run with <code>-prof gc</code> to see that parsing a header allocates nothing.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvelopeBenchmark
+{
+	/** Detached headers of the files named in {@link NameParsingBenchmark} */
+	private byte[][] mHeaders;
+
+	/** Reused for every header, as the receiver does for a batch */
+	private final TransferEnvelope.Header mHeader = new TransferEnvelope.Header();
+
+	@Setup
+	public void encode() throws IOException
+	{
+		ContentDigest digest = new ContentDigest();
+		mHeaders = new byte[][] {
+				TransferEnvelope.encodeDetachedHeader("Doe", "Jane", "quarterly report.docx", null, digest),
+				TransferEnvelope.encodeDetachedHeader("Doe", "Jane", "IMG_20141201_101500.jpg", "image/jpeg", digest),
+				TransferEnvelope.encodeDetachedHeader("Piech", "Peter", "notes.txt", "text/plain", digest),
+				TransferEnvelope.encodeDetachedHeader("Sharma", "Saurabh", "logcat 2014-12-01.log", null, digest),
+				new byte[] { 'G', 'I', 'F', '8', '9', 'a' }, // not sent by FileFly
+		};
+	}
+
+	@Benchmark
+	public void parse(Blackhole blackhole)
+	{
+		for (byte[] header : mHeaders)
+		{
+			blackhole.consume(mHeader.parse(header, 0, header.length));
+		}
+	}
+
+	@Benchmark
+	public void parseAndDecodeNames(Blackhole blackhole)
+	{
+		for (byte[] header : mHeaders)
+		{
+			if (mHeader.parse(header, 0, header.length))
+			{
+				blackhole.consume(mHeader.getLastName());
+				blackhole.consume(mHeader.getFirstName());
+				blackhole.consume(mHeader.getFileName());
+			}
+		}
+	}
+}
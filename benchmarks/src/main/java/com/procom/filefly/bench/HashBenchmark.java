@@ -0,0 +1,117 @@
+package com.procom.filefly.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.procom.filefly.util.ChunkedTransfer;
+import com.procom.filefly.util.ContentDigest;
+import com.procom.filefly.util.TransferEngine;
+
+/**
+ * The cost of the integrity hash of a copy: the {@link com.procom.filefly.util.ChunkedTransfer}
+ * copy without a digest, feeding a {@link com.procom.filefly.util.ContentDigest} from its buffer,
+ * and followed by a separate pass that reads the copy again to hash it, as a naive check would.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashBenchmark
+{
+	/** The size of the copied file in MiB */
+	@Param({ "1", "32" })
+	public int mSizeMiB;
+
+	/** The file that is copied */
+	private File mSource;
+
+	/** The copy */
+	private File mDest;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		File directory = new File("target/bench/hash");
+		FileUtils.deleteDirectory(directory);
+		if (!directory.mkdirs())
+		{
+			throw new IOException("Could not create " + directory);
+		}
+		mSource = new File(directory, "source.bin");
+		mDest = new File(directory, "dest.bin");
+		CopyBenchmark.writeRandom(mSource, mSizeMiB * 1024L * 1024L, 24);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		FileUtils.deleteDirectory(mSource.getParentFile());
+	}
+
+	@Benchmark
+	public File copy() throws IOException
+	{
+		return Jobs.run(new TransferEngine.TransferJob()
+		{
+			@Override
+			public File run(TransferEngine.TransferHandle handle) throws IOException
+			{
+				ChunkedTransfer.copy(mSource, mDest, handle, null);
+				return mDest;
+			}
+		});
+	}
+
+	@Benchmark
+	public File hashingCopy() throws IOException
+	{
+		return Jobs.run(new TransferEngine.TransferJob()
+		{
+			@Override
+			public File run(TransferEngine.TransferHandle handle) throws IOException
+			{
+				ContentDigest digest = new ContentDigest();
+				ChunkedTransfer.copy(mSource, mDest, handle, digest);
+				digest.getSha256();
+				return mDest;
+			}
+		});
+	}
+
+	@Benchmark
+	public File copyThenHash() throws IOException
+	{
+		return Jobs.run(new TransferEngine.TransferJob()
+		{
+			@Override
+			public File run(TransferEngine.TransferHandle handle) throws IOException
+			{
+				ChunkedTransfer.copy(mSource, mDest, handle, null);
+				ContentDigest.of(mDest, handle).getSha256();
+				return mDest;
+			}
+		});
+	}
+}
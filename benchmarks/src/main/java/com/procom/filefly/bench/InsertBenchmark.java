@@ -0,0 +1,162 @@
+package com.procom.filefly.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.procom.filefly.model.Document;
+
+/**
+ * Recording {@link #sDocuments} received documents in a database file, as
+ * <code>SqliteController.insertData</code> does:
+ * <ul>
+ * <li>{@link #legacyInsert}: the original controller, which opened the database, compiled an
+ * <code>INSERT</code> with the values concatenated in and closed the database again for every document</li>
+ * <li>{@link #insertEach}: the shared connection and cached, bound statements, one transaction per
+ * document as when files arrive one at a time</li>
+ * <li>{@link #insertBatch}: the same, all documents in one transaction as the batch API does</li>
+ * </ul>
+ * The current controller also keeps the FTS index of every document, which the original did not have.
+ * Each iteration starts from an empty database file below <code>target/bench</code>.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InsertBenchmark
+{
+	/** The number of documents recorded by each operation */
+	private static final int sDocuments = 10000;
+
+	/** The table document of the original controller, which stored dates as text */
+	private static final String sLegacyDocumentCreate =
+			"CREATE TABLE 'document'( '_id' integer primary key autoincrement, '_fileName' text not null, " +
+			"'_ownerFirstName' text, '_ownerLastName' text, '_dateTransferred' text not null );";
+
+	/** The directory of the database files */
+	private final File mDirectory = new File("target/bench/insert");
+
+	/** The documents to record */
+	private List<Document> mDocuments;
+
+	/** The JDBC URL of the database of the original controller */
+	private String mLegacyUrl;
+
+	/** The shared connection of the current controller */
+	private Connection mConnection;
+
+	@Setup(Level.Iteration)
+	public void setUp() throws IOException, SQLException
+	{
+		FileUtils.deleteDirectory(mDirectory);
+		if (!mDirectory.mkdirs())
+		{
+			throw new IOException("Could not create " + mDirectory);
+		}
+		mDocuments = Schema.newDocuments(0, sDocuments);
+		mLegacyUrl = "jdbc:sqlite:" + new File(mDirectory, "legacy.db").getPath();
+		Connection legacy = DriverManager.getConnection(mLegacyUrl);
+		try
+		{
+			Statement statement = legacy.createStatement();
+			statement.execute(sLegacyDocumentCreate);
+			statement.close();
+		}
+		finally
+		{
+			legacy.close();
+		}
+		mConnection = Schema.open("jdbc:sqlite:" + new File(mDirectory, "datastore.db").getPath());
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException, SQLException
+	{
+		mConnection.close();
+		FileUtils.deleteDirectory(mDirectory);
+	}
+
+	@Benchmark
+	public int legacyInsert() throws SQLException
+	{
+		SimpleDateFormat format = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss:SS zzz");
+		for (Document doc : mDocuments)
+		{
+			Connection database = DriverManager.getConnection(mLegacyUrl); // getWritableDatabase() after the last close()
+			try
+			{
+				Statement stmt = database.createStatement();
+				stmt.execute("insert into document(_filename, _ownerFirstName, _ownerLastName, _dateTransferred)" +
+						" values " + "( " + "'" +
+						doc.getFilename() + "', '" +
+						doc.getOwnerFirstName() + "', '" +
+						doc.getOwnerLastName() + "', '" +
+						format.format(doc.getDateTransferred()) + "'" +
+						" );");
+				stmt.close();
+			}
+			finally
+			{
+				database.close();
+			}
+		}
+		return mDocuments.size();
+	}
+
+	@Benchmark
+	public int insertEach() throws SQLException
+	{
+		PreparedStatement insertDocument = mConnection.prepareStatement(Schema.INSERT_DOCUMENT); // compiled once, as the controller caches them
+		PreparedStatement insertFts = mConnection.prepareStatement(Schema.INSERT_FTS);
+		mConnection.setAutoCommit(false);
+		try
+		{
+			for (Document document : mDocuments)
+			{
+				Schema.insertDocument(mConnection, insertDocument, insertFts, document);
+				mConnection.commit();
+			}
+		}
+		finally
+		{
+			mConnection.setAutoCommit(true);
+			insertDocument.close();
+			insertFts.close();
+		}
+		return mDocuments.size();
+	}
+
+	@Benchmark
+	public int insertBatch() throws SQLException
+	{
+		Schema.insertDocuments(mConnection, mDocuments);
+		return mDocuments.size();
+	}
+}
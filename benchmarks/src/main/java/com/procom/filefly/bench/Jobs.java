@@ -0,0 +1,89 @@
+package com.procom.filefly.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+
+import com.procom.filefly.util.TransferEngine;
+
+/**
+ * Runs work that must be called from within a {@link com.procom.filefly.util.TransferEngine.TransferJob}
+ * through the real {@link com.procom.filefly.util.TransferEngine} and waits for its outcome, so
+ * benchmarks and tests exercise the same handles, progress and cancellation as the app.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+public final class Jobs
+{
+	/**
+	 * Not instantiable; all methods are static.
+	 *
+	 * @author Peter Piech
+	 */
+	private Jobs() {}
+
+	/**
+	 * Submits a job without a timeout and blocks until its listener was called on the "main" thread.
+	 *
+	 * @return The result of the job
+	 * @throws IOException The failure of the job, or an {@link java.io.InterruptedIOException} if it was cancelled
+	 * @author Peter Piech
+	 */
+	public static File run(TransferEngine.TransferJob job) throws IOException
+	{
+		return run(job, 0);
+	}
+
+	/**
+	 * Submits a job and blocks until its listener was called on the "main" thread.
+	 *
+	 * @param timeoutMillis The timeout of the job, or 0 for none
+	 * @return The result of the job
+	 * @throws IOException The failure of the job, or an {@link java.io.InterruptedIOException} if it was cancelled
+	 * @author Peter Piech
+	 */
+	public static File run(TransferEngine.TransferJob job, long timeoutMillis) throws IOException
+	{
+		final CountDownLatch done = new CountDownLatch(1);
+		final Object[] outcome = new Object[1];
+		TransferEngine.getInstance().submit(job, new TransferEngine.TransferListener()
+		{
+			@Override
+			public void onSuccess(File result)
+			{
+				outcome[0] = result;
+				done.countDown();
+			}
+
+			@Override
+			public void onFailure(IOException e)
+			{
+				outcome[0] = e;
+				done.countDown();
+			}
+
+			@Override
+			public void onCancelled()
+			{
+				outcome[0] = new InterruptedIOException("Cancelled");
+				done.countDown();
+			}
+		}, timeoutMillis);
+		try
+		{
+			done.await();
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException("Interrupted while waiting for the job");
+		}
+		if (outcome[0] instanceof IOException)
+		{
+			throw (IOException) outcome[0];
+		}
+		return (File) outcome[0];
+	}
+}
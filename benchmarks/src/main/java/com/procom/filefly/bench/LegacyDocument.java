@@ -0,0 +1,141 @@
+package com.procom.filefly.bench;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * The {@link com.procom.filefly.model.Document} as it was before it was made immutable, kept to
+ * measure the current one against: it holds a {@link java.util.Date}, copies its strings in every
+ * getter and formats through a shared {@link java.text.SimpleDateFormat}.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-10-12
+ */
+public class LegacyDocument
+{
+	/** The '_id' of the {@link LegacyDocument}'s row, or -1 if it has not been stored yet */
+	private long mId;
+	
+	/** Name and extension of the file */
+	private String mFilename;
+
+	/** Sender's first name */
+	private String mOwnerFirstName;
+	
+	/** Sender's last name */
+	private String mOwnerLastName;
+	
+	/** Date and time of transfer */
+	private Date mDateTransferred;
+	
+	/** The '_id' of the stored file in the content-addressed store, or -1 if the file predates it */
+	private long mBlobId;
+	
+	/** The absolute path of the stored file, or <code>null</code> if the file predates the content-addressed store */
+	private String mStoredPath;
+	
+	/** The size of the file in bytes, or -1 if unknown */
+	private long mFileSize;
+	
+	/** The {@link java.text.SimpleDateFormat} used to store {@link java.util.Date}s as {@link java.lang.String}s */
+	private static final SimpleDateFormat mSimpleDateFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss:SS zzz");
+	
+	/**
+	 * Constructs an instance of {@link LegacyDocument} as read from the database.
+	 * 
+	 * @author Peter Piech
+	 */
+	public LegacyDocument(long id, String filename, String ownerFirstName, String ownerLastName, Date dateTransferred, long blobId, String storedPath, long fileSize)
+	{	
+		mId = id;
+		mFilename = filename;
+		mOwnerFirstName = ownerFirstName;
+		mOwnerLastName = ownerLastName;
+		mDateTransferred = dateTransferred;
+		mBlobId = blobId;
+		mStoredPath = storedPath;
+		mFileSize = fileSize;
+	}
+	
+	/**
+	 * @return The '_id' of the row, or -1 if it has not been stored yet
+	 * @author Peter Piech
+	 */
+	public long getId()
+	{
+		return mId;
+	}
+	
+	/**
+	 * @return A copy of the file name
+	 * @author Peter Piech
+	 */
+	public String getFilename()
+	{
+		return new String(mFilename);
+	}
+	
+	/**
+	 * @return A copy of the sender's first name
+	 * @author Peter Piech
+	 */
+	public String getOwnerFirstName()
+	{
+		return new String(mOwnerFirstName);
+	}
+	
+	/**
+	 * @return A copy of the sender's last name
+	 * @author Peter Piech
+	 */
+	public String getOwnerLastName()
+	{
+		return new String(mOwnerLastName);
+	}
+	
+	/**
+	 * @return A copy of the date of reception
+	 * @author Peter Piech
+	 */
+	public Date getDateTransferred()
+	{
+		return new Date(mDateTransferred.getTime());
+	}
+	
+	/**
+	 * @return The '_id' of the stored file, or -1
+	 * @author Peter Piech
+	 */
+	public long getBlobId()
+	{
+		return mBlobId;
+	}
+	
+	/**
+	 * @return The absolute path of the stored file, or <code>null</code>
+	 * @author Peter Piech
+	 */
+	public String getStoredPath()
+	{
+		return mStoredPath;
+	}
+	
+	/**
+	 * @return The size of the file in bytes, or -1 if unknown
+	 * @author Peter Piech
+	 */
+	public long getFileSize()
+	{
+		return mFileSize;
+	}
+	
+	/**
+	 * @return The date of reception, formatted on every call
+	 * @author Peter Piech
+	 */
+	public String getDateTransferredString()
+	{
+		return mSimpleDateFormat.format(mDateTransferred);
+	}
+}
@@ -0,0 +1,85 @@
+package com.procom.filefly.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.procom.filefly.util.ReceivedName;
+
+/**
+ * Parsing the sender out of the name of a received file: {@link com.procom.filefly.util.ReceivedName}
+ * against the two <code>String.split</code> calls that <code>FilesIntentHandler.grabNameFile</code>
+ * used before it.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NameParsingBenchmark
+{
+	/** Paths as delivered by Android Beam and names of siblings looked at when grouping a batch */
+	private final String[] mPaths = {
+			"/storage/emulated/0/beam/filesDoe_Jane_quarterly report.docx",
+			"/storage/emulated/0/beam/Doe_Jane_IMG_20141201_101500.jpg",
+			"/storage/emulated/0/beam/filesPiech_Peter_notes.txt",
+			"/storage/emulated/0/beam/Sharma_Saurabh_logcat 2014-12-01.log",
+			"/storage/emulated/0/beam/holiday.jpg", // not sent by FileFly
+	};
+
+	@Benchmark
+	public void receivedName(Blackhole blackhole)
+	{
+		for (String path : mPaths)
+		{
+			blackhole.consume(ReceivedName.parse(path));
+		}
+	}
+
+	@Benchmark
+	public void legacySplit(Blackhole blackhole)
+	{
+		for (String path : mPaths)
+		{
+			blackhole.consume(grabNameFile(path, blackhole));
+		}
+	}
+
+	/**
+	 * The parser of the original <code>FilesIntentHandler.grabNameFile</code>, which throws on names
+	 * shorter than five characters; every name above is longer.
+	 *
+	 * @author Peter Piech
+	 */
+	private static String grabNameFile(String absPath, Blackhole blackhole)
+	{
+		String[] delimSlashes = absPath.split("/");
+		String fn = delimSlashes[delimSlashes.length - 1];
+		if (fn.substring(0, 5).equals("files"))
+		{
+			fn = fn.substring(5);
+		}
+		String[] result = fn.split("_");
+		if (result.length < 3)
+		{
+			return null;
+		}
+		blackhole.consume(result[1]); // the first name
+		blackhole.consume(result[0]); // the last name
+		return fn;
+	}
+}
@@ -0,0 +1,149 @@
+package com.procom.filefly.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.procom.filefly.util.ChunkedTransfer;
+import com.procom.filefly.util.ContentDigest;
+import com.procom.filefly.util.FileCopy;
+import com.procom.filefly.util.TransferEngine;
+
+/**
+ * Storing a file that Android Beam downloaded, as <code>ContentStore.store</code> does: an atomic
+ * rename into the store when both are on the same volume, else the one-pass
+ * {@link com.procom.filefly.util.FileCopy} it falls back to, against the commons-io
+ * <code>FileUtils.copyFile</code> of the original <code>FilesIntentHandler.saveFile</code>:
+ * <ul>
+ * <li>{@link #copy}: a download whose hash is known from its sidecar, copied by <code>transferTo</code></li>
+ * <li>{@link #hashingCopy}: a download without a sidecar, hashed from the buffer of the copy</li>
+ * <li>{@link #hashThenChunkedCopy}: the same as the store did before, hashing the download and then
+ * copying it with the resumable {@link com.procom.filefly.util.ChunkedTransfer}</li>
+ * </ul>
+ * Both directories are below <code>target/bench</code>, i.e. on the same local filesystem.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReceiveBenchmark
+{
+	/** The size of the received file in MiB */
+	@Param({ "1", "32" })
+	public int mSizeMiB;
+
+	/** The file as Android Beam left it */
+	private File mDownload;
+
+	/** The file in the store */
+	private File mStored;
+
+	/** Whether the last {@link #move} left the file in the store */
+	private boolean mMoved;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		File directory = new File("target/bench/receive");
+		FileUtils.deleteDirectory(directory);
+		File beam = new File(directory, "beam");
+		File store = new File(directory, "FileFly/received");
+		if (!beam.mkdirs() || !store.mkdirs())
+		{
+			throw new IOException("Could not create " + directory);
+		}
+		mDownload = new File(beam, "filesPiech_Peter_report.pdf");
+		mStored = new File(store, "Piech_Peter_report.pdf");
+		CopyBenchmark.writeRandom(mDownload, mSizeMiB * 1024L * 1024L, 7);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		FileUtils.deleteDirectory(new File("target/bench/receive"));
+	}
+
+	@Benchmark
+	public File move() throws IOException
+	{
+		File from = mMoved ? mStored : mDownload; // every other move takes the file back for the next receive
+		File to = mMoved ? mDownload : mStored;
+		if (!from.renameTo(to))
+		{
+			throw new IOException("Could not move " + from);
+		}
+		mMoved = !mMoved;
+		return to;
+	}
+
+	@Benchmark
+	public File copy() throws IOException
+	{
+		return Jobs.run(new TransferEngine.TransferJob()
+		{
+			@Override
+			public File run(TransferEngine.TransferHandle handle) throws IOException
+			{
+				FileCopy.copy(mDownload, mStored, handle, null);
+				return mStored;
+			}
+		});
+	}
+
+	@Benchmark
+	public File hashingCopy() throws IOException
+	{
+		return Jobs.run(new TransferEngine.TransferJob()
+		{
+			@Override
+			public File run(TransferEngine.TransferHandle handle) throws IOException
+			{
+				FileCopy.copy(mDownload, mStored, handle, new ContentDigest());
+				return mStored;
+			}
+		});
+	}
+
+	@Benchmark
+	public File hashThenChunkedCopy() throws IOException
+	{
+		return Jobs.run(new TransferEngine.TransferJob()
+		{
+			@Override
+			public File run(TransferEngine.TransferHandle handle) throws IOException
+			{
+				ContentDigest.of(mDownload, handle);
+				ChunkedTransfer.copy(mDownload, mStored, handle, null);
+				return mStored;
+			}
+		});
+	}
+
+	@Benchmark
+	public File legacyCopyFile() throws IOException
+	{
+		FileUtils.copyFile(mDownload, mStored);
+		return mStored;
+	}
+}
@@ -0,0 +1,140 @@
+package com.procom.filefly.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Writes the kinds of files people send each other with FileFly: logs, spreadsheet exports,
+ * plain text and office documents. The contents are generated from a seed, so every run
+ * measures the same bytes.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+public final class Samples
+{
+	/** The names of the sample files, one per kind */
+	public static final String[] NAMES = { "logcat.log", "expenses.csv", "minutes.txt", "report.docx" };
+
+	/** Words of the generated prose */
+	private static final String[] sWords = {
+			"the", "of", "and", "to", "a", "in", "for", "is", "on", "that", "by", "this", "with", "we",
+			"project", "meeting", "report", "budget", "quarter", "team", "review", "customer", "release",
+			"schedule", "decision", "action", "item", "owner", "deadline", "risk", "status", "update",
+			"transfer", "device", "phone", "file", "send", "receive", "Peter", "Saurabh", "Jane",
+			"December", "Monday", "agreed", "proposed", "pending", "approved", "next", "week", "results" };
+
+	/** Tags of the generated log lines */
+	private static final String[] sTags = {
+			"ActivityManager", "NfcService", "BluetoothAdapter", "WifiStateMachine", "dalvikvm",
+			"FileFly", "SqliteController", "PowerManagerService", "AudioFlinger", "ConnectivityService" };
+
+	/** Categories of the generated expenses */
+	private static final String[] sCategories = { "Travel", "Meals", "Hotel", "Office", "Software", "Training" };
+
+	/**
+	 * Not instantiable; all methods are static.
+	 *
+	 * @author Peter Piech
+	 */
+	private Samples() {}
+
+	/**
+	 * Writes a sample of about the given size.
+	 *
+	 * @param file The file to write; its name must be one of {@link #NAMES}
+	 * @param size The approximate size in bytes; a document is this large before its zip compression
+	 * @param seed The seed of the content
+	 * @author Peter Piech
+	 */
+	public static File write(File file, long size, long seed) throws IOException
+	{
+		Random random = new Random(seed);
+		String name = file.getName();
+		if (name.endsWith(".docx"))
+		{
+			ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+			try
+			{
+				zip.putNextEntry(new ZipEntry("word/document.xml"));
+				Writer out = new OutputStreamWriter(zip, "UTF-8");
+				out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?><w:document><w:body>");
+				for (long written = 0; written < size; )
+				{
+					String paragraph = "<w:p><w:r><w:t>" + sentence(random) + "</w:t></w:r></w:p>";
+					out.write(paragraph);
+					written += paragraph.length();
+				}
+				out.write("</w:body></w:document>");
+				out.flush();
+				zip.closeEntry();
+			}
+			finally
+			{
+				IOUtils.closeQuietly(zip);
+			}
+			return file;
+		}
+
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try
+		{
+			StringBuilder line = new StringBuilder(160);
+			for (long written = 0; written < size; written += line.length())
+			{
+				line.setLength(0);
+				if (name.endsWith(".log"))
+				{
+					line.append(String.format("12-%02d %02d:%02d:%02d.%03d %5d %5d %c %s: ", 1 + random.nextInt(30), random.nextInt(24),
+							random.nextInt(60), random.nextInt(60), random.nextInt(1000), 100 + random.nextInt(30000),
+							100 + random.nextInt(30000), "VDIWE".charAt(random.nextInt(5)), sTags[random.nextInt(sTags.length)]));
+					line.append(sentence(random)).append('\n');
+				}
+				else if (name.endsWith(".csv"))
+				{
+					line.append(String.format("2014-%02d-%02d,%s,%s,%d.%02d,EUR,%s\n", 1 + random.nextInt(12), 1 + random.nextInt(28),
+							sCategories[random.nextInt(sCategories.length)], sWords[38 + random.nextInt(3)], random.nextInt(2000),
+							random.nextInt(100), random.nextBoolean() ? "approved" : "pending"));
+				}
+				else
+				{
+					line.append(sentence(random)).append(random.nextInt(8) == 0 ? "\n\n" : " ");
+				}
+				out.write(line.toString());
+			}
+		}
+		finally
+		{
+			IOUtils.closeQuietly(out);
+		}
+		return file;
+	}
+
+	/**
+	 * @return A sentence of random words
+	 * @author Peter Piech
+	 */
+	private static String sentence(Random random)
+	{
+		StringBuilder sentence = new StringBuilder(96);
+		for (int i = 4 + random.nextInt(12); i > 0; i--)
+		{
+			if (sentence.length() > 0)
+			{
+				sentence.append(' ');
+			}
+			sentence.append(sWords[random.nextInt(sWords.length)]);
+		}
+		return sentence.append('.').toString();
+	}
+}
@@ -0,0 +1,219 @@
+package com.procom.filefly.bench;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.procom.filefly.model.Document;
+
+/**
+ * The schema and statements of <code>SqliteController</code> at database version 7, run against
+ * SQLite through JDBC, which stands in for the SQLite of the device. The SQL text is copied from
+ * <code>SqliteController</code> with the same table and column names; keep the two in step.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+public final class Schema
+{
+	/** Creates table document */
+	static final String DOCUMENT_CREATE =
+			"CREATE TABLE 'document'( '_id' integer primary key autoincrement, '_fileName' text not null, " +
+			"'_ownerFirstName' text, '_ownerLastName' text, '_dateTransferred' integer not null, " +
+			"'_fileSize' integer, '_blobId' integer, '_sha256' text );";
+
+	/** Creates the indexes of table document */
+	static final String[] DOCUMENT_INDEXES = {
+			"CREATE INDEX 'document_fileName' ON 'document'(_fileName);",
+			"CREATE INDEX 'document_owner' ON 'document'(_ownerLastName, _ownerFirstName);",
+			"CREATE INDEX 'document_dateTransferred' ON 'document'(_dateTransferred);"
+	};
+
+	/** Creates table blob_store */
+	static final String BLOB_CREATE =
+			"CREATE TABLE 'blob_store'( '_id' integer primary key autoincrement, '_hash' text not null unique, " +
+			"'_path' text not null, '_refCount' integer not null default 0 );";
+
+	/** Creates table document_fts */
+	static final String FTS_CREATE =
+			"CREATE VIRTUAL TABLE 'document_fts' USING fts4( _fileName, _ownerFirstName, _ownerLastName );";
+
+	/** The cached statement inserting a document */
+	static final String INSERT_DOCUMENT =
+			"INSERT INTO document (_fileName, _ownerFirstName, _ownerLastName, _dateTransferred, _fileSize, _blobId, _sha256) VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+	/** The cached statement indexing a document */
+	static final String INSERT_FTS =
+			"INSERT INTO document_fts (docid, _fileName, _ownerFirstName, _ownerLastName) VALUES (?, ?, ?, ?)";
+
+	/** One page of the history, newest first, as read by <code>queryDocumentsBefore</code> without a query */
+	static final String SELECT_PAGE =
+			"SELECT d._id, d._fileName, d._ownerFirstName, d._ownerLastName, d._dateTransferred, d._blobId, b._path, d._fileSize, d._sha256" +
+			" FROM document d LEFT JOIN blob_store b ON d._blobId = b._id WHERE d._id < ? ORDER BY d._id DESC LIMIT ?";
+
+	/** One page of a search, as read by <code>queryDocumentsBefore</code> with a MATCH expression */
+	static final String SELECT_MATCH_PAGE =
+			"SELECT d._id, d._fileName, d._ownerFirstName, d._ownerLastName, d._dateTransferred, d._blobId, b._path, d._fileSize, d._sha256" +
+			" FROM document d LEFT JOIN blob_store b ON d._blobId = b._id" +
+			" WHERE d._id IN (SELECT docid FROM document_fts WHERE document_fts MATCH ? AND docid < ? ORDER BY docid DESC LIMIT ?) ORDER BY d._id DESC";
+
+	/** The senders of the generated history; a few senders repeat across many rows */
+	static final String[][] SENDERS = {
+			{ "Jane", "Doe" }, { "Peter", "Piech" }, { "Saurabh", "Sharma" }, { "Jacob", "Abramson" }, { "Andy", "Kakkaramadam" }
+	};
+
+	/** The kinds of files in the generated history */
+	static final String[] KINDS = { "report", "IMG", "notes", "logcat", "slides", "invoice" };
+
+	/** The extensions of the generated files */
+	static final String[] EXTENSIONS = { ".pdf", ".jpg", ".txt", ".log", ".pptx", ".docx" };
+
+	/**
+	 * Not instantiable; all methods are static.
+	 *
+	 * @author Peter Piech
+	 */
+	private Schema() {}
+
+	/**
+	 * Opens a new in-memory database with the tables and indexes of version 7.
+	 *
+	 * @author Peter Piech
+	 */
+	static Connection open() throws SQLException
+	{
+		return open("jdbc:sqlite::memory:");
+	}
+
+	/**
+	 * Opens a database and creates the tables and indexes of version 7.
+	 *
+	 * @param url The JDBC URL of a database without tables
+	 * @author Peter Piech
+	 */
+	static Connection open(String url) throws SQLException
+	{
+		Connection connection = DriverManager.getConnection(url);
+		Statement statement = connection.createStatement();
+		try
+		{
+			statement.execute(DOCUMENT_CREATE);
+			for (String index : DOCUMENT_INDEXES)
+			{
+				statement.execute(index);
+			}
+			statement.execute(BLOB_CREATE);
+			statement.execute(FTS_CREATE);
+		}
+		finally
+		{
+			statement.close();
+		}
+		return connection;
+	}
+
+	/**
+	 * Inserts generated documents with their index rows in one transaction, as <code>insertData</code> does for a batch.
+	 *
+	 * @param first The number of the first document, which makes its name unique
+	 * @param count The number of documents to insert
+	 * @author Peter Piech
+	 */
+	static void insertDocuments(Connection connection, int first, int count) throws SQLException
+	{
+		insertDocuments(connection, newDocuments(first, count));
+	}
+
+	/**
+	 * Inserts documents with their index rows in one transaction, as <code>insertData</code> does for a batch.
+	 *
+	 * @author Peter Piech
+	 */
+	static void insertDocuments(Connection connection, List<Document> documents) throws SQLException
+	{
+		PreparedStatement insertDocument = connection.prepareStatement(INSERT_DOCUMENT, Statement.RETURN_GENERATED_KEYS);
+		PreparedStatement insertFts = connection.prepareStatement(INSERT_FTS);
+		boolean autoCommit = connection.getAutoCommit();
+		connection.setAutoCommit(false);
+		try
+		{
+			for (Document document : documents)
+			{
+				insertDocument(connection, insertDocument, insertFts, document);
+			}
+			connection.commit();
+		}
+		finally
+		{
+			connection.setAutoCommit(autoCommit);
+			insertDocument.close();
+			insertFts.close();
+		}
+	}
+
+	/**
+	 * Generates received documents as <code>FilesIntentHandler</code> records them.
+	 *
+	 * @param first The number of the first document, which makes its name unique
+	 * @param count The number of documents
+	 * @author Peter Piech
+	 */
+	static List<Document> newDocuments(int first, int count)
+	{
+		List<Document> documents = new ArrayList<Document>(count);
+		for (int n = first; n < first + count; n++)
+		{
+			String[] sender = SENDERS[n % SENDERS.length];
+			String fileName = sender[1] + "_" + sender[0] + "_" + KINDS[n % KINDS.length] + " " + n + EXTENSIONS[(n / 7) % EXTENSIONS.length];
+			documents.add(new Document(-1, fileName, sender[0], sender[1], 1417430100000L + n * 60000L, -1, null, 1024L * (n % 4096), null));
+		}
+		return documents;
+	}
+
+	/**
+	 * Binds and executes the cached statements for one document.
+	 *
+	 * @author Peter Piech
+	 */
+	static void insertDocument(Connection connection, PreparedStatement insertDocument, PreparedStatement insertFts, Document document) throws SQLException
+	{
+		insertDocument.setString(1, document.getFilename());
+		insertDocument.setString(2, document.getOwnerFirstName());
+		insertDocument.setString(3, document.getOwnerLastName());
+		insertDocument.setLong(4, document.getDateTransferredMillis());
+		insertDocument.setLong(5, document.getFileSize());
+		insertDocument.setNull(6, java.sql.Types.INTEGER);
+		insertDocument.setNull(7, java.sql.Types.VARCHAR);
+		insertDocument.executeUpdate();
+		long id = lastInsertRowId(connection);
+		insertFts.setLong(1, id);
+		insertFts.setString(2, document.getFilename());
+		insertFts.setString(3, document.getOwnerFirstName());
+		insertFts.setString(4, document.getOwnerLastName());
+		insertFts.executeUpdate();
+	}
+
+	/**
+	 * @return The '_id' of the last inserted row, as <code>SQLiteStatement.executeInsert</code> returns it
+	 * @author Peter Piech
+	 */
+	static long lastInsertRowId(Connection connection) throws SQLException
+	{
+		Statement statement = connection.createStatement();
+		try
+		{
+			java.sql.ResultSet resultSet = statement.executeQuery("SELECT last_insert_rowid()");
+			resultSet.next();
+			return resultSet.getLong(1);
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.procom.filefly.bench;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The first page of a search of a history of {@link #sRows} documents, as the received tab reads
+ * it while the user types: the FTS index of <code>SqliteController</code> against a
+ * <code>LIKE '%x%'</code> scan of the same three columns. Both require every typed word to match
+ * one of the columns; the FTS query matches words starting with it, <code>LIKE</code> any substring.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark
+{
+	/** The number of documents in the history */
+	private static final int sRows = 100000;
+
+	/** The number of documents on a page, as in <code>DocumentPager.PAGE_SIZE</code> */
+	private static final int sPageSize = 50;
+
+	/** The typed text: a common word, two words narrowing it down, and a word no document has */
+	@Param({ "rep", "piech rep", "zzz" })
+	public String mQuery;
+
+	/** The database */
+	private Connection mConnection;
+
+	/** The FTS search */
+	private PreparedStatement mMatch;
+
+	/** The scan */
+	private PreparedStatement mLike;
+
+	/** The typed words */
+	private String[] mWords;
+
+	@Setup(Level.Trial)
+	public void setUp() throws SQLException
+	{
+		mConnection = Schema.open();
+		Schema.insertDocuments(mConnection, 0, sRows);
+		mWords = mQuery.toLowerCase(Locale.US).split(" ");
+		mMatch = mConnection.prepareStatement(Schema.SELECT_MATCH_PAGE);
+		StringBuilder where = new StringBuilder();
+		for (int i = 0; i < mWords.length; i++)
+		{
+			where.append("(d._fileName LIKE ? OR d._ownerFirstName LIKE ? OR d._ownerLastName LIKE ?) AND ");
+		}
+		mLike = mConnection.prepareStatement(
+				"SELECT d._id, d._fileName, d._ownerFirstName, d._ownerLastName, d._dateTransferred, d._blobId, b._path, d._fileSize, d._sha256" +
+				" FROM document d LEFT JOIN blob_store b ON d._blobId = b._id WHERE " + where + "d._id < ? ORDER BY d._id DESC LIMIT ?");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws SQLException
+	{
+		mConnection.close();
+	}
+
+	@Benchmark
+	public long fts() throws SQLException
+	{
+		StringBuilder match = new StringBuilder();
+		for (String word : mWords)
+		{
+			match.append(match.length() > 0 ? " " : "").append(word).append('*'); // as toMatchExpression builds it
+		}
+		mMatch.setString(1, match.toString());
+		mMatch.setLong(2, Long.MAX_VALUE);
+		mMatch.setInt(3, sPageSize);
+		return SqlBenchmark.drain(mMatch.executeQuery());
+	}
+
+	@Benchmark
+	public long like() throws SQLException
+	{
+		int index = 1;
+		for (String word : mWords)
+		{
+			for (int column = 0; column < 3; column++)
+			{
+				mLike.setString(index++, "%" + word + "%");
+			}
+		}
+		mLike.setLong(index++, Long.MAX_VALUE);
+		mLike.setInt(index, sPageSize);
+		return SqlBenchmark.drain(mLike.executeQuery());
+	}
+}
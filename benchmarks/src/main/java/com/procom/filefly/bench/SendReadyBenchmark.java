@@ -0,0 +1,166 @@
+package com.procom.filefly.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.procom.filefly.util.ChunkedTransfer;
+import com.procom.filefly.util.ContentDigest;
+import com.procom.filefly.util.TransferEngine;
+import com.procom.filefly.util.TransferEnvelope;
+
+/**
+ * The time from tapping Send until a chosen file is ready to send, i.e. the job
+ * <code>SendFragment.stageFiles</code> runs for one file on the {@link com.procom.filefly.util.TransferEngine}:
+ * <ul>
+ * <li>{@link #legacyStagingCopy}: the original send, copying the file into the private data folder
+ * with the channel <code>transferFrom</code></li>
+ * <li>{@link #stagedCopy}: the staged send the user can opt back into, a hashing
+ * {@link com.procom.filefly.util.ChunkedTransfer} copy plus its sidecar</li>
+ * <li>{@link #hashThenPublish}: publishing the original file after hashing it for its sidecar, as
+ * the publish path did before the hash was moved behind the moment the file is ready</li>
+ * <li>{@link #publish}: publishing the original file with an unhashed header, which reads nothing</li>
+ * </ul>
+ * <code>SendFileProvider.publish</code> itself only records the name of the file and grants read
+ * access to it; it needs Android and reads no data, so it is left out of all of them alike.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendReadyBenchmark
+{
+	/** The size of the chosen file in MiB */
+	@Param({ "1", "32", "256" })
+	public int mSizeMiB;
+
+	/** The file chosen in the FileFly folder */
+	private File mChosen;
+
+	/** The copy in the private data folder */
+	private File mStaged;
+
+	/** The sidecar in the private data folder */
+	private File mSidecar;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		File directory = new File("target/bench/send");
+		FileUtils.deleteDirectory(directory);
+		File folder = new File(directory, "FileFly");
+		File data = new File(directory, "files");
+		if (!folder.mkdirs() || !data.mkdirs())
+		{
+			throw new IOException("Could not create " + directory);
+		}
+		mChosen = new File(folder, "VID_0001.mp4");
+		mStaged = new File(data, "Piech_Peter_VID_0001.mp4");
+		mSidecar = new File(data, "Piech_Peter_VID_0001.mp4" + TransferEnvelope.EXTENSION);
+		CopyBenchmark.writeRandom(mChosen, mSizeMiB * 1024L * 1024L, 1);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		FileUtils.deleteDirectory(mChosen.getParentFile().getParentFile());
+	}
+
+	@Benchmark
+	public File legacyStagingCopy() throws IOException
+	{
+		return Jobs.run(new TransferEngine.TransferJob()
+		{
+			@Override
+			public File run(TransferEngine.TransferHandle handle) throws IOException
+			{
+				FileInputStream in = null;
+				FileOutputStream out = null;
+				try
+				{
+					in = new FileInputStream(mChosen);
+					out = new FileOutputStream(mStaged);
+					FileChannel src = in.getChannel();
+					out.getChannel().transferFrom(src, 0, src.size());
+				}
+				finally
+				{
+					IOUtils.closeQuietly(in);
+					IOUtils.closeQuietly(out);
+				}
+				return mStaged;
+			}
+		});
+	}
+
+	@Benchmark
+	public File stagedCopy() throws IOException
+	{
+		return Jobs.run(new TransferEngine.TransferJob()
+		{
+			@Override
+			public File run(TransferEngine.TransferHandle handle) throws IOException
+			{
+				ContentDigest digest = new ContentDigest();
+				ChunkedTransfer.copy(mChosen, mStaged, handle, digest);
+				FileUtils.writeByteArrayToFile(mSidecar, TransferEnvelope.encodeDetachedHeader("Piech", "Peter", mChosen.getName(), "video/mp4", digest));
+				return mStaged;
+			}
+		});
+	}
+
+	@Benchmark
+	public File hashThenPublish() throws IOException
+	{
+		return Jobs.run(new TransferEngine.TransferJob()
+		{
+			@Override
+			public File run(TransferEngine.TransferHandle handle) throws IOException
+			{
+				ContentDigest digest = ContentDigest.of(mChosen, handle);
+				FileUtils.writeByteArrayToFile(mSidecar, TransferEnvelope.encodeDetachedHeader("Piech", "Peter", mChosen.getName(), "video/mp4", digest));
+				return mChosen;
+			}
+		});
+	}
+
+	@Benchmark
+	public File publish() throws IOException
+	{
+		return Jobs.run(new TransferEngine.TransferJob()
+		{
+			@Override
+			public File run(TransferEngine.TransferHandle handle) throws IOException
+			{
+				TransferEnvelope.encodeUnhashedHeader("Piech", "Peter", mChosen.getName(), "video/mp4", mChosen.length());
+				mSidecar.delete(); // the sidecar of an earlier send, written again once the file was hashed
+				return mChosen;
+			}
+		});
+	}
+}
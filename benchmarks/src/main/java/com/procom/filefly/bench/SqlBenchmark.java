@@ -0,0 +1,131 @@
+package com.procom.filefly.bench;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The statements of <code>SqliteController</code> on a history of {@link #sRows} documents:
+ * recording a batch of received files and reading the first page of the history and of a search,
+ * as the <code>DocumentPager</code> does. See {@link Schema} for the SQL.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SqlBenchmark
+{
+	/** The number of documents in the history before the measurement */
+	private static final int sRows = 10000;
+
+	/** The number of documents recorded by one batch */
+	private static final int sBatchSize = 34;
+
+	/** The number of documents on a page, as in <code>DocumentPager.PAGE_SIZE</code> */
+	private static final int sPageSize = 50;
+
+	/** The database */
+	private Connection mConnection;
+
+	/** The history page statement */
+	private PreparedStatement mSelectPage;
+
+	/** The search page statement */
+	private PreparedStatement mSelectMatchPage;
+
+	/** The number of the next inserted document */
+	private int mNext;
+
+	@Setup(Level.Trial)
+	public void setUp() throws SQLException
+	{
+		mConnection = Schema.open();
+		Schema.insertDocuments(mConnection, 0, sRows);
+		mNext = sRows;
+		mSelectPage = mConnection.prepareStatement(Schema.SELECT_PAGE);
+		mSelectMatchPage = mConnection.prepareStatement(Schema.SELECT_MATCH_PAGE);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws SQLException
+	{
+		mConnection.close();
+	}
+
+	@Benchmark
+	public int insertBatch() throws SQLException
+	{
+		Schema.insertDocuments(mConnection, mNext, sBatchSize);
+		mNext += sBatchSize;
+		return mNext;
+	}
+
+	@Benchmark
+	public long firstPage() throws SQLException
+	{
+		mSelectPage.setLong(1, Long.MAX_VALUE);
+		mSelectPage.setInt(2, sPageSize);
+		return drain(mSelectPage.executeQuery());
+	}
+
+	@Benchmark
+	public long firstSearchPage() throws SQLException
+	{
+		mSelectMatchPage.setString(1, "piech* report*");
+		mSelectMatchPage.setLong(2, Long.MAX_VALUE);
+		mSelectMatchPage.setInt(3, sPageSize);
+		return drain(mSelectMatchPage.executeQuery());
+	}
+
+	/**
+	 * Reads every column of every row, as <code>queryDocumentsBefore</code> does to build the documents.
+	 *
+	 * @return A sum of the ids, so the reads are not eliminated
+	 * @author Peter Piech
+	 */
+	static long drain(ResultSet resultSet) throws SQLException
+	{
+		long sum = 0;
+		try
+		{
+			while (resultSet.next())
+			{
+				sum += resultSet.getLong(1);
+				resultSet.getString(2);
+				resultSet.getString(3);
+				resultSet.getString(4);
+				sum += resultSet.getLong(5);
+				resultSet.getLong(6);
+				resultSet.getString(7);
+				sum += resultSet.getLong(8);
+				resultSet.getString(9);
+			}
+		}
+		finally
+		{
+			resultSet.close();
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,145 @@
+package com.procom.filefly.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.procom.filefly.util.ContentDigest;
+import com.procom.filefly.util.LoopbackTransport;
+import com.procom.filefly.util.StreamTransfer;
+import com.procom.filefly.util.TransferEngine;
+import com.procom.filefly.util.TransferEnvelope;
+import com.procom.filefly.util.Transport;
+
+/**
+ * A whole {@link com.procom.filefly.util.StreamTransfer} of one file on one machine: the offer
+ * serves it and a job of the {@link com.procom.filefly.util.TransferEngine} receives, verifies and
+ * stores it, over the {@link com.procom.filefly.util.LoopbackTransport}. The time of one operation
+ * is that of the receive; the throughput is the size of the file divided by it.
+ * <p>
+ * The throttled runs limit each connection to {@link #sStreamRate} with a {@link ThrottledTransport},
+ * once with a sender that refuses every connection but the first and once with one that accepts as
+ * many as the receiver opens, to show what the adaptive streams of the receive gain on a link where
+ * each stream is limited.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StreamBenchmark
+{
+	/** The bytes per second each throttled connection sends */
+	private static final long sStreamRate = 20L * 1024 * 1024;
+
+	/** The size of the sent file in MiB */
+	@Param({ "128" })
+	public int mSizeMiB;
+
+	/** The directory of the sent and the received file */
+	private final File mDirectory = new File("target/bench/stream");
+
+	/** The sent file */
+	private List<File> mFiles;
+
+	/** The detached header of the sent file */
+	private List<byte[]> mHeaders;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		FileUtils.deleteDirectory(mDirectory);
+		if (!mDirectory.mkdirs())
+		{
+			throw new IOException("Could not create " + mDirectory);
+		}
+		final File file = new File(mDirectory, "video.mp4");
+		CopyBenchmark.writeRandom(file, mSizeMiB * 1024L * 1024L, 22);
+		final ContentDigest[] digest = new ContentDigest[1];
+		Jobs.run(new TransferEngine.TransferJob()
+		{
+			@Override
+			public File run(TransferEngine.TransferHandle handle) throws IOException
+			{
+				digest[0] = ContentDigest.of(file, handle);
+				return file;
+			}
+		});
+		mFiles = Collections.singletonList(file);
+		mHeaders = Collections.singletonList(TransferEnvelope.encodeDetachedHeader("Piech", "Peter", file.getName(), "video/mp4", digest[0]));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		FileUtils.deleteDirectory(mDirectory);
+	}
+
+	@Benchmark
+	public File loopback() throws IOException
+	{
+		return receive(new LoopbackTransport(), new LoopbackTransport());
+	}
+
+	@Benchmark
+	public File throttledOneStream() throws IOException
+	{
+		return receive(new ThrottledTransport(new LoopbackTransport(), sStreamRate, 1), new LoopbackTransport());
+	}
+
+	@Benchmark
+	public File throttledStreams() throws IOException
+	{
+		return receive(new ThrottledTransport(new LoopbackTransport(), sStreamRate, Integer.MAX_VALUE), new LoopbackTransport());
+	}
+
+	/**
+	 * Offers the file over one transport and receives it over the other.
+	 *
+	 * @return The directory the file was received into
+	 * @author Peter Piech
+	 */
+	File receive(Transport sender, final Transport receiver) throws IOException
+	{
+		final File received = new File(mDirectory, "received");
+		final StreamTransfer.Offer offer = StreamTransfer.offer(sender, mFiles, mHeaders, 60000);
+		try
+		{
+			return Jobs.run(new TransferEngine.TransferJob()
+			{
+				@Override
+				public File run(TransferEngine.TransferHandle handle) throws IOException
+				{
+					StreamTransfer.receive(receiver, offer.getHandshake(), received, handle);
+					return received;
+				}
+			});
+		}
+		finally
+		{
+			offer.close();
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package com.procom.filefly.bench;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+import com.procom.filefly.util.Transport;
+
+/**
+ * A {@link com.procom.filefly.util.Transport} whose servers send at most a given rate per
+ * connection and accept at most a given number of connections at a time, standing in for a
+ * link where each stream is limited, e.g. by the congestion window of one TCP connection over
+ * Wi-Fi. Connections beyond the limit are closed as soon as they are accepted, as a sender
+ * refuses them.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+public class ThrottledTransport implements Transport
+{
+	/** The bytes written at once before the rate is checked */
+	private static final int sSliceSize = 16 * 1024;
+
+	/** The transport carrying the data */
+	private final Transport mTransport;
+
+	/** The largest number of bytes per second each connection sends */
+	private final long mBytesPerSecond;
+
+	/** The largest number of connections accepted at a time */
+	private final int mMaxConnections;
+
+	/**
+	 * Constructs a throttled transport.
+	 *
+	 * @param transport The transport carrying the data
+	 * @param bytesPerSecond The largest number of bytes per second each accepted connection sends
+	 * @param maxConnections The largest number of connections accepted at a time
+	 * @author Peter Piech
+	 */
+	public ThrottledTransport(Transport transport, long bytesPerSecond, int maxConnections)
+	{
+		mTransport = transport;
+		mBytesPerSecond = bytesPerSecond;
+		mMaxConnections = maxConnections;
+	}
+
+	@Override
+	public Server listen() throws IOException
+	{
+		final Server server = mTransport.listen();
+		return new Server()
+		{
+			/** The number of accepted connections that are open; guarded by this server */
+			private int mOpen;
+
+			@Override
+			public String getEndpoint()
+			{
+				return server.getEndpoint();
+			}
+
+			@Override
+			public Connection accept(int timeoutMillis) throws IOException
+			{
+				while (true)
+				{
+					final Connection connection = server.accept(timeoutMillis);
+					synchronized (this)
+					{
+						if (mOpen < mMaxConnections)
+						{
+							mOpen++;
+							return new ThrottledConnection(connection)
+							{
+								@Override
+								public void close() throws IOException
+								{
+									synchronized (this)
+									{
+										if (mClosed)
+										{
+											return;
+										}
+										mClosed = true;
+									}
+									decrement();
+									super.close();
+								}
+							};
+						}
+					}
+					IOUtils.closeQuietly(connection); // refused
+				}
+			}
+
+			/**
+			 * Counts a closed connection.
+			 *
+			 * @author Peter Piech
+			 */
+			private synchronized void decrement()
+			{
+				mOpen--;
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				server.close();
+			}
+		};
+	}
+
+	@Override
+	public Connection connect(String endpoint, int timeoutMillis) throws IOException
+	{
+		return mTransport.connect(endpoint, timeoutMillis);
+	}
+
+	/**
+	 * A connection whose output is throttled to {@link ThrottledTransport#mBytesPerSecond}.
+	 *
+	 * @author Peter Piech
+	 */
+	private class ThrottledConnection implements Connection
+	{
+		/** The connection carrying the data */
+		private final Connection mConnection;
+
+		/** Set once the connection was closed */
+		protected boolean mClosed;
+
+		/**
+		 * Wraps a connection.
+		 *
+		 * @author Peter Piech
+		 */
+		ThrottledConnection(Connection connection)
+		{
+			mConnection = connection;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException
+		{
+			return mConnection.getInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException
+		{
+			return new FilterOutputStream(mConnection.getOutputStream())
+			{
+				/** The time of the first write in nanoseconds */
+				private long mStart = -1;
+
+				/** The bytes written so far */
+				private long mWritten;
+
+				@Override
+				public void write(int b) throws IOException
+				{
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] bytes, int offset, int length) throws IOException
+				{
+					if (mStart < 0)
+					{
+						mStart = System.nanoTime();
+					}
+					while (length > 0)
+					{
+						int slice = Math.min(length, sSliceSize);
+						out.write(bytes, offset, slice);
+						offset += slice;
+						length -= slice;
+						mWritten += slice;
+						long ahead = mStart + mWritten * 1000000000L / mBytesPerSecond - System.nanoTime();
+						if (ahead > 0)
+						{
+							try
+							{
+								Thread.sleep(ahead / 1000000, (int) (ahead % 1000000));
+							}
+							catch (InterruptedException e)
+							{
+								throw new InterruptedIOException();
+							}
+						}
+					}
+				}
+			};
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			mConnection.close();
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package android.os;
+
+/**
+ * Plain-JVM stand-in for the Android class of the same name, posting to the thread of a {@link Looper}.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+public class Handler
+{
+	/** The looper the callbacks are posted to */
+	private final Looper mLooper;
+
+	/**
+	 * Constructs a handler posting to the given looper.
+	 *
+	 * @author Peter Piech
+	 */
+	public Handler(Looper looper)
+	{
+		mLooper = looper;
+	}
+
+	/**
+	 * Runs the callback on the thread of the looper, after the callbacks posted before it.
+	 *
+	 * @return Always <code>true</code>
+	 * @author Peter Piech
+	 */
+	public final boolean post(Runnable runnable)
+	{
+		mLooper.mQueue.execute(runnable);
+		return true;
+	}
+}
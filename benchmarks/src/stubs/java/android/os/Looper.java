@@ -0,0 +1,47 @@
+package android.os;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Plain-JVM stand-in for the Android class of the same name: the main looper is a single
+ * daemon thread named "main" that runs the posted callbacks in order.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+public final class Looper
+{
+	/** The only looper, standing in for the UI thread */
+	private static final Looper sMainLooper = new Looper();
+
+	/** Runs the callbacks posted to the {@link Handler}s of this looper */
+	final ExecutorService mQueue = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "main");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Not instantiable; see {@link #getMainLooper}.
+	 *
+	 * @author Peter Piech
+	 */
+	private Looper() {}
+
+	/**
+	 * @return The looper of the "main" thread
+	 * @author Peter Piech
+	 */
+	public static Looper getMainLooper()
+	{
+		return sMainLooper;
+	}
+}
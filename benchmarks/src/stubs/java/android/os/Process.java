@@ -0,0 +1,21 @@
+package android.os;
+
+/**
+ * Plain-JVM stand-in for the Android class of the same name. Thread priorities are left to the JVM.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+public class Process
+{
+	/** The priority of background threads, as on Android */
+	public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+	/**
+	 * Does nothing; the threads of a benchmark keep the priority the JVM gave them.
+	 *
+	 * @author Peter Piech
+	 */
+	public static void setThreadPriority(int priority) {}
+}
@@ -0,0 +1,36 @@
+package android.os;
+
+/**
+ * Plain-JVM stand-in for the Android class of the same name, backed by {@link java.lang.System#nanoTime}.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+public final class SystemClock
+{
+	/**
+	 * Not instantiable; all methods are static.
+	 *
+	 * @author Peter Piech
+	 */
+	private SystemClock() {}
+
+	/**
+	 * @return Milliseconds of a monotonic clock
+	 * @author Peter Piech
+	 */
+	public static long uptimeMillis()
+	{
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * @return Milliseconds of a monotonic clock
+	 * @author Peter Piech
+	 */
+	public static long elapsedRealtime()
+	{
+		return System.nanoTime() / 1000000;
+	}
+}
@@ -0,0 +1,51 @@
+package android.util;
+
+/**
+ * Plain-JVM stand-in for the Android class of the same name, writing to standard error.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+public final class Log
+{
+	/**
+	 * Not instantiable; all methods are static.
+	 *
+	 * @author Peter Piech
+	 */
+	private Log() {}
+
+	/**
+	 * Logs an informational message.
+	 *
+	 * @author Peter Piech
+	 */
+	public static int i(String tag, String msg)
+	{
+		System.err.println("I/" + tag + ": " + msg);
+		return 0;
+	}
+
+	/**
+	 * Logs a warning.
+	 *
+	 * @author Peter Piech
+	 */
+	public static int w(String tag, String msg)
+	{
+		System.err.println("W/" + tag + ": " + msg);
+		return 0;
+	}
+
+	/**
+	 * Logs a warning and its cause.
+	 *
+	 * @author Peter Piech
+	 */
+	public static int w(String tag, String msg, Throwable tr)
+	{
+		System.err.println("W/" + tag + ": " + msg + ": " + tr);
+		return 0;
+	}
+}
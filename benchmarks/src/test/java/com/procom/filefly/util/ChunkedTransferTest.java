@@ -0,0 +1,236 @@
+package com.procom.filefly.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.procom.filefly.bench.Jobs;
+
+/**
+ * Tests resuming a {@link com.procom.filefly.util.ChunkedTransfer} from the state an earlier attempt left behind.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+public class ChunkedTransferTest
+{
+	/** The size of the copied file: 5 full chunks and a partial one */
+	private static final long sSize = 5L * ChunkManifest.DEFAULT_CHUNK_SIZE + 12345;
+
+	private File mSource;
+
+	private File mDest;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		File directory = Fixtures.directory("chunked");
+		mSource = Fixtures.writeRandom(new File(directory, "source.bin"), sSize, 1);
+		mDest = new File(directory, "dest.bin");
+	}
+
+	@Test
+	public void resumeKeepsRecordedChunksAndDigestsThemFromThePartFile() throws IOException
+	{
+		leaveHalfCopied();
+
+		ContentDigest digest = new ContentDigest();
+		long written = copy(digest);
+
+		assertEquals(sSize - 3L * ChunkManifest.DEFAULT_CHUNK_SIZE, written);
+		assertEquals(Fixtures.sha256(mSource), digest.getSha256());
+		assertEquals(sSize, digest.getLength());
+		assertEquals(Fixtures.sha256(mSource), Fixtures.sha256(mDest));
+		assertFalse(ChunkedTransfer.getStateFile(mDest).exists());
+	}
+
+	@Test
+	public void resumeRewritesADamagedChunk() throws IOException
+	{
+		leaveHalfCopied();
+		RandomAccessFile part = new RandomAccessFile(ChunkedTransfer.getPartFile(mDest), "rw");
+		try
+		{
+			part.seek(ChunkManifest.DEFAULT_CHUNK_SIZE + 7);
+			part.write(~part.read());
+		}
+		finally
+		{
+			part.close();
+		}
+
+		ContentDigest digest = new ContentDigest();
+		long written = copy(digest);
+
+		assertEquals(sSize - 2L * ChunkManifest.DEFAULT_CHUNK_SIZE, written);
+		assertEquals(Fixtures.sha256(mSource), digest.getSha256());
+		assertEquals(Fixtures.sha256(mSource), Fixtures.sha256(mDest));
+	}
+
+	@Test
+	public void changedSourceRestartsTheCopy() throws IOException
+	{
+		leaveHalfCopied();
+		Fixtures.writeRandom(mSource, sSize, 2);
+		assertTrue(mSource.setLastModified(mSource.lastModified() + 2000)); // coarse file systems may keep the old time
+
+		long written = copy(null);
+
+		assertEquals(sSize, written);
+		assertEquals(Fixtures.sha256(mSource), Fixtures.sha256(mDest));
+	}
+
+	@Test
+	public void resumeAfterTheCopyingProcessWasKilled() throws Exception
+	{
+		File source = Fixtures.writeRandom(new File(mSource.getParentFile(), "large.bin"), 32L * ChunkManifest.DEFAULT_CHUNK_SIZE + 999, 6);
+		File stateFile = ChunkedTransfer.getStateFile(mDest);
+		Process child = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+				"-cp", System.getProperty("java.class.path"), SlowCopy.class.getName(), source.getPath(), mDest.getPath())
+				.redirectErrorStream(true).start();
+		try
+		{
+			long deadline = System.currentTimeMillis() + 30000;
+			while (!stateFile.isFile()) // saved after the first sStateInterval chunks
+			{
+				assertTrue("The copy never saved its state", System.currentTimeMillis() < deadline);
+				Thread.sleep(5);
+			}
+		}
+		finally
+		{
+			child.destroy(); // SIGTERM: the copy gets no chance to save its state
+		}
+		child.waitFor();
+		assertFalse(mDest.exists());
+
+		ChunkManifest state = ChunkManifest.read(stateFile);
+		int saved = state.getFirstMissingChunk();
+		assertTrue(saved > 1 && saved < state.getChunkCount());
+		RandomAccessFile file = new RandomAccessFile(stateFile, "rw");
+		try
+		{
+			file.seek(4 + 4 + 8 + 4 + 8 + 4 + 1); // the first byte of the hash of chunk 0
+			file.write(~file.read());
+		}
+		finally
+		{
+			file.close();
+		}
+
+		ContentDigest digest = new ContentDigest();
+		mSource = source;
+		long written = copy(digest);
+
+		assertEquals(source.length() - (saved - 1L) * ChunkManifest.DEFAULT_CHUNK_SIZE, written); // all but chunk 0 of the saved ones were kept
+		assertEquals(Fixtures.sha256(source), digest.getSha256());
+		assertEquals(Fixtures.sha256(source), Fixtures.sha256(mDest));
+	}
+
+	/**
+	 * Copies the first 3 chunks and saves their state, as an attempt that died after them would.
+	 *
+	 * @author Peter Piech
+	 */
+	private void leaveHalfCopied() throws IOException
+	{
+		long written = copy(null);
+		assertEquals(sSize, written);
+		ChunkManifest state = new ChunkManifest(sSize, ChunkManifest.DEFAULT_CHUNK_SIZE);
+		state.setSourceStamp(mSource.lastModified());
+		byte[] bytes = new byte[ChunkManifest.DEFAULT_CHUNK_SIZE];
+		RandomAccessFile in = new RandomAccessFile(mDest, "r");
+		try
+		{
+			for (int i = 0; i < 3; i++)
+			{
+				in.readFully(bytes);
+				state.setChunkHash(i, ChunkManifest.newDigest().digest(bytes));
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		RandomAccessFile part = new RandomAccessFile(mDest, "rw");
+		try
+		{
+			part.setLength(3L * ChunkManifest.DEFAULT_CHUNK_SIZE); // the rest was never written
+		}
+		finally
+		{
+			part.close();
+		}
+		assertTrue(mDest.renameTo(ChunkedTransfer.getPartFile(mDest)));
+		state.write(ChunkedTransfer.getStateFile(mDest));
+	}
+
+	/**
+	 * Runs {@link ChunkedTransfer#copy} through the {@link TransferEngine}.
+	 *
+	 * @return The number of bytes written
+	 * @author Peter Piech
+	 */
+	private long copy(final ContentDigest digest) throws IOException
+	{
+		final long[] written = new long[1];
+		Jobs.run(new TransferEngine.TransferJob()
+		{
+			@Override
+			public File run(TransferEngine.TransferHandle handle) throws IOException
+			{
+				written[0] = ChunkedTransfer.copy(mSource, mDest, handle, digest);
+				return mDest;
+			}
+		});
+		return written[0];
+	}
+
+	/**
+	 * Copies a file in a separate process, slowly enough to be killed in the middle of it.
+	 *
+	 * @author Peter Piech
+	 */
+	public static class SlowCopy
+	{
+		public static void main(String[] args) throws IOException
+		{
+			final File source = new File(args[0]);
+			final File dest = new File(args[1]);
+			final ContentDigest digest = new ContentDigest()
+			{
+				@Override
+				public void update(ByteBuffer buffer)
+				{
+					try
+					{
+						Thread.sleep(50); // between reading a chunk and writing it
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+					super.update(buffer);
+				}
+			};
+			Jobs.run(new TransferEngine.TransferJob()
+			{
+				@Override
+				public File run(TransferEngine.TransferHandle handle) throws IOException
+				{
+					ChunkedTransfer.copy(source, dest, handle, digest);
+					return dest;
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.procom.filefly.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import org.junit.Test;
+
+import com.procom.filefly.bench.Jobs;
+
+/**
+ * Tests the one-pass {@link com.procom.filefly.util.FileCopy} with and without a digest.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+public class FileCopyTest
+{
+	/** The size of the copied file: several buffers and a partial one */
+	private static final long sSize = 3L * 1024 * 1024 + 4321;
+
+	@Test
+	public void copiesAndHashesInOnePass() throws IOException
+	{
+		File directory = Fixtures.directory("file-copy");
+		final File source = Fixtures.writeRandom(new File(directory, "source.bin"), sSize, 11);
+		for (final boolean hashed : new boolean[] { true, false })
+		{
+			final File dest = new File(directory, "dest.bin");
+			final ContentDigest digest = hashed ? new ContentDigest() : null;
+			Jobs.run(new TransferEngine.TransferJob()
+			{
+				@Override
+				public File run(TransferEngine.TransferHandle handle) throws IOException
+				{
+					FileCopy.copy(source, dest, handle, digest);
+					return dest;
+				}
+			});
+			assertEquals(Fixtures.sha256(source), Fixtures.sha256(dest));
+			if (hashed)
+			{
+				assertEquals(Fixtures.sha256(source), digest.getSha256());
+				assertEquals(sSize, digest.getLength());
+			}
+		}
+	}
+
+	@Test
+	public void deletesACancelledCopy() throws IOException
+	{
+		File directory = Fixtures.directory("file-copy-cancelled");
+		final File source = Fixtures.writeRandom(new File(directory, "source.bin"), sSize, 12);
+		final File dest = new File(directory, "dest.bin");
+		try
+		{
+			Jobs.run(new TransferEngine.TransferJob()
+			{
+				@Override
+				public File run(TransferEngine.TransferHandle handle) throws IOException
+				{
+					handle.cancel();
+					FileCopy.copy(source, dest, handle, new ContentDigest());
+					return dest;
+				}
+			});
+			fail("The cancelled copy completed");
+		}
+		catch (InterruptedIOException e)
+		{
+			// cancelled
+		}
+		assertFalse(dest.exists());
+	}
+}
@@ -0,0 +1,101 @@
+package com.procom.filefly.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Files shared by the tests of this package.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+final class Fixtures
+{
+	/**
+	 * Not instantiable; all methods are static.
+	 *
+	 * @author Peter Piech
+	 */
+	private Fixtures() {}
+
+	/**
+	 * Creates an empty directory below <code>target/test-files</code> of the working directory.
+	 *
+	 * @author Peter Piech
+	 */
+	static File directory(String name) throws IOException
+	{
+		File directory = new File("target/test-files/" + name);
+		FileUtils.deleteDirectory(directory);
+		if (!directory.mkdirs())
+		{
+			throw new IOException("Could not create " + directory);
+		}
+		return directory;
+	}
+
+	/**
+	 * Writes a file of pseudo-random, incompressible bytes.
+	 *
+	 * @author Peter Piech
+	 */
+	static File writeRandom(File file, long size, long seed) throws IOException
+	{
+		Random random = new Random(seed);
+		byte[] buffer = new byte[64 * 1024];
+		FileOutputStream out = new FileOutputStream(file);
+		try
+		{
+			for (long written = 0; written < size; written += buffer.length)
+			{
+				random.nextBytes(buffer);
+				out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * @return The {@link ContentDigest} of the file
+	 * @author Peter Piech
+	 */
+	static ContentDigest digest(File file) throws IOException
+	{
+		ContentDigest digest = new ContentDigest();
+		FileInputStream in = new FileInputStream(file);
+		try
+		{
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) >= 0)
+			{
+				digest.update(buffer, 0, read);
+			}
+		}
+		finally
+		{
+			IOUtils.closeQuietly(in);
+		}
+		return digest;
+	}
+
+	/**
+	 * @return The SHA-256 of the file in lowercase hexadecimal
+	 * @author Peter Piech
+	 */
+	static String sha256(File file) throws IOException
+	{
+		return digest(file).getSha256();
+	}
+}
@@ -0,0 +1,421 @@
+package com.procom.filefly.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import com.procom.filefly.bench.Jobs;
+
+/**
+ * Tests a {@link com.procom.filefly.util.StreamTransfer} over the {@link com.procom.filefly.util.LoopbackTransport}.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+public class StreamTransferTest
+{
+	/** The size of the large file: enough ranges for every connection, so ranges arrive ahead of the hashed prefix */
+	private static final long sLargeSize = 41L * 1024 * 1024 + 333;
+
+	@Test
+	public void receivesEveryFileAsDescribedByItsHeader() throws IOException
+	{
+		File directory = Fixtures.directory("stream");
+		File sent = new File(directory, "sent");
+		final File received = new File(directory, "received");
+		assertTrue(sent.mkdirs());
+		List<File> files = Arrays.asList(
+				Fixtures.writeRandom(new File(sent, "large.bin"), sLargeSize, 3),
+				Fixtures.writeRandom(new File(sent, "small.txt"), 1000, 4),
+				Fixtures.writeRandom(new File(sent, "empty.txt"), 0, 5));
+		List<String> hashes = new ArrayList<String>();
+		List<byte[]> headers = new ArrayList<byte[]>();
+		for (File file : files)
+		{
+			ContentDigest digest = Fixtures.digest(file);
+			hashes.add(digest.getSha256());
+			headers.add(TransferEnvelope.encodeDetachedHeader("Piech", "Peter", file.getName(), null, digest));
+		}
+
+		final StreamTransfer.Offer offer = StreamTransfer.offer(new LoopbackTransport(), files, headers, 60000);
+		final List<StreamTransfer.ReceivedFile> result = new ArrayList<StreamTransfer.ReceivedFile>();
+		try
+		{
+			Jobs.run(new TransferEngine.TransferJob()
+			{
+				@Override
+				public File run(TransferEngine.TransferHandle handle) throws IOException
+				{
+					result.addAll(StreamTransfer.receive(new LoopbackTransport(), offer.getHandshake(), received, handle));
+					return received;
+				}
+			});
+		}
+		finally
+		{
+			offer.close();
+		}
+
+		assertEquals(files.size(), result.size());
+		for (int i = 0; i < files.size(); i++)
+		{
+			StreamTransfer.ReceivedFile file = result.get(i);
+			assertEquals("Piech_Peter_" + files.get(i).getName(), file.getName());
+			assertEquals(files.get(i).getName(), file.getHeader().getFileName());
+			assertEquals(ChunkedTransfer.getPartFile(new File(received, file.getName())), file.getFile());
+			assertEquals(hashes.get(i), file.getDigest().getSha256());
+			assertEquals(hashes.get(i), Fixtures.sha256(file.getFile()));
+		}
+	}
+
+	@Test
+	public void receivesAFileDescribedAfterItsContent() throws Exception
+	{
+		File directory = Fixtures.directory("stream-unhashed");
+		final File received = new File(directory, "received");
+		final File file = Fixtures.writeRandom(new File(directory, "VID_0001.mp4"), sLargeSize, 9);
+		byte[] header = TransferEnvelope.encodeUnhashedHeader("Piech", "Peter", file.getName(), "video/mp4", file.length());
+
+		final StreamTransfer.Offer offer = StreamTransfer.offer(new LoopbackTransport(), Arrays.asList(file), Arrays.asList(header), 60000);
+		Thread describer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					while (!offer.isTaken())
+					{
+						Thread.sleep(10); // hashed while the receiver is streaming, as by the send job
+					}
+					offer.describe(0, TransferEnvelope.encodeDetachedHeader("Piech", "Peter", file.getName(), "video/mp4", Fixtures.digest(file)));
+				}
+				catch (Exception e)
+				{
+					offer.close();
+				}
+			}
+		});
+		describer.start();
+		final List<StreamTransfer.ReceivedFile> result = new ArrayList<StreamTransfer.ReceivedFile>();
+		try
+		{
+			Jobs.run(new TransferEngine.TransferJob()
+			{
+				@Override
+				public File run(TransferEngine.TransferHandle handle) throws IOException
+				{
+					result.addAll(StreamTransfer.receive(new LoopbackTransport(), offer.getHandshake(), received, handle));
+					return received;
+				}
+			});
+		}
+		finally
+		{
+			offer.close();
+			describer.join();
+		}
+
+		assertEquals(1, result.size());
+		TransferEnvelope.Header described = result.get(0).getHeader();
+		assertFalse(described.isUnhashed());
+		assertTrue(described.matchesSha256(result.get(0).getDigest().getSha256Bytes()));
+		assertEquals("video/mp4", described.getMimeType());
+		assertEquals(Fixtures.sha256(file), Fixtures.sha256(result.get(0).getFile()));
+	}
+
+	@Test
+	public void resumesAnInterruptedReceive() throws IOException
+	{
+		File directory = Fixtures.directory("stream-resume");
+		final File received = new File(directory, "received");
+		List<File> files = Arrays.asList(
+				Fixtures.writeRandom(new File(directory, "large.bin"), sLargeSize, 10),
+				Fixtures.writeRandom(new File(directory, "small.txt"), 1000, 11));
+		List<byte[]> headers = new ArrayList<byte[]>();
+		for (File file : files)
+		{
+			headers.add(TransferEnvelope.encodeDetachedHeader("Piech", "Peter", file.getName(), null, Fixtures.digest(file)));
+		}
+
+		CutTransport cut = new CutTransport(30L * 1024 * 1024); // the link breaks after 30 of the 41 MiB
+		try
+		{
+			receive(StreamTransfer.offer(cut, files, headers, 60000), received);
+			fail("The interrupted receive succeeded");
+		}
+		catch (IOException e)
+		{
+			// the sender went away
+		}
+		File large = new File(received, "Piech_Peter_large.bin");
+		assertTrue(ChunkedTransfer.getPartFile(large).isFile());
+		assertTrue(ChunkedTransfer.getStateFile(large).isFile());
+
+		CutTransport resumed = new CutTransport(Long.MAX_VALUE);
+		List<StreamTransfer.ReceivedFile> result = receive(StreamTransfer.offer(resumed, files, headers, 60000), received); // i.e. after another tap
+		assertTrue(resumed.mWritten.get() + " bytes sent again", resumed.mWritten.get() < sLargeSize - 8L * 1024 * 1024);
+		for (int i = 0; i < files.size(); i++)
+		{
+			assertEquals(Fixtures.sha256(files.get(i)), result.get(i).getDigest().getSha256());
+			assertEquals(Fixtures.sha256(files.get(i)), Fixtures.sha256(result.get(i).getFile()));
+		}
+		assertFalse(ChunkedTransfer.getStateFile(large).exists());
+	}
+
+	@Test
+	public void rejectsAFileThatDoesNotMatchItsHeader() throws IOException
+	{
+		File directory = Fixtures.directory("stream-damaged");
+		final File received = new File(directory, "received");
+		File file = Fixtures.writeRandom(new File(directory, "notes.txt"), 100000, 7);
+		byte[] header = TransferEnvelope.encodeDetachedHeader("Piech", "Peter", file.getName(), "text/plain", Fixtures.digest(file));
+		Fixtures.writeRandom(file, 100000, 8); // changed after it was described
+
+		final StreamTransfer.Offer offer = StreamTransfer.offer(new LoopbackTransport(), Arrays.asList(file), Arrays.asList(header), 60000);
+		try
+		{
+			Jobs.run(new TransferEngine.TransferJob()
+			{
+				@Override
+				public File run(TransferEngine.TransferHandle handle) throws IOException
+				{
+					StreamTransfer.receive(new LoopbackTransport(), offer.getHandshake(), received, handle);
+					return received;
+				}
+			});
+			fail("The damaged file was received");
+		}
+		catch (IOException e)
+		{
+			assertEquals("Piech_Peter_notes.txt arrived damaged", e.getMessage());
+		}
+		finally
+		{
+			offer.close();
+		}
+		assertEquals(0, received.list().length); // the partial file was deleted
+	}
+
+	@Test
+	public void rejectsAListThatDoesNotDescribeItsFiles() throws Exception
+	{
+		File directory = Fixtures.directory("stream-list");
+		final File received = new File(directory, "received");
+		byte[] header = TransferEnvelope.encodeDetachedHeader("Piech", "Peter", "notes.txt", null, new ContentDigest());
+		receiveList(received, -1, 0, null, "The sender offered -1 files");
+		receiveList(received, Integer.MAX_VALUE, 0, null, "The sender offered " + Integer.MAX_VALUE + " files");
+		receiveList(received, 1, 1L << 40, header, "The sender announced a total size that does not match its files");
+	}
+
+	/**
+	 * Receives the files of an offer and withdraws it.
+	 *
+	 * @author Peter Piech
+	 */
+	private static List<StreamTransfer.ReceivedFile> receive(final StreamTransfer.Offer offer, final File received) throws IOException
+	{
+		final List<StreamTransfer.ReceivedFile> result = new ArrayList<StreamTransfer.ReceivedFile>();
+		try
+		{
+			Jobs.run(new TransferEngine.TransferJob()
+			{
+				@Override
+				public File run(TransferEngine.TransferHandle handle) throws IOException
+				{
+					result.addAll(StreamTransfer.receive(new LoopbackTransport(), offer.getHandshake(), received, handle));
+					return received;
+				}
+			});
+		}
+		finally
+		{
+			offer.close();
+		}
+		return result;
+	}
+
+	/**
+	 * A {@link LoopbackTransport} whose servers count the bytes they send and close every
+	 * connection once they sent a given number of them, as a link that breaks off.
+	 *
+	 * @author Peter Piech
+	 */
+	private static class CutTransport implements Transport
+	{
+		/** The transport carrying the data */
+		private final Transport mTransport = new LoopbackTransport();
+
+		/** The number of bytes after which every connection fails */
+		private final long mLimit;
+
+		/** The bytes sent by all connections */
+		final AtomicLong mWritten = new AtomicLong();
+
+		/**
+		 * Constructs a transport that breaks off after the given number of bytes.
+		 *
+		 * @author Peter Piech
+		 */
+		CutTransport(long limit)
+		{
+			mLimit = limit;
+		}
+
+		@Override
+		public Server listen() throws IOException
+		{
+			final Server server = mTransport.listen();
+			return new Server()
+			{
+				@Override
+				public String getEndpoint()
+				{
+					return server.getEndpoint();
+				}
+
+				@Override
+				public Connection accept(int timeoutMillis) throws IOException
+				{
+					final Connection connection = server.accept(timeoutMillis);
+					return new Connection()
+					{
+						@Override
+						public InputStream getInputStream() throws IOException
+						{
+							return connection.getInputStream();
+						}
+
+						@Override
+						public OutputStream getOutputStream() throws IOException
+						{
+							return new FilterOutputStream(connection.getOutputStream())
+							{
+								@Override
+								public void write(int b) throws IOException
+								{
+									write(new byte[] { (byte) b }, 0, 1);
+								}
+
+								@Override
+								public void write(byte[] bytes, int offset, int length) throws IOException
+								{
+									if (mWritten.addAndGet(length) > mLimit)
+									{
+										connection.close();
+										throw new IOException("The link broke off");
+									}
+									out.write(bytes, offset, length);
+								}
+							};
+						}
+
+						@Override
+						public void close() throws IOException
+						{
+							connection.close();
+						}
+					};
+				}
+
+				@Override
+				public void close() throws IOException
+				{
+					server.close();
+				}
+			};
+		}
+
+		@Override
+		public Connection connect(String endpoint, int timeoutMillis) throws IOException
+		{
+			return mTransport.connect(endpoint, timeoutMillis);
+		}
+	}
+
+	/**
+	 * Receives from a sender that answers with the given list of files, which must be rejected.
+	 *
+	 * @param header The detached header of the one file described after the count and total, or <code>null</code> for none
+	 * @param message The message of the failure
+	 * @author Peter Piech
+	 */
+	private static void receiveList(final File received, final int count, final long total, final byte[] header, String message) throws Exception
+	{
+		final Transport.Server server = new LoopbackTransport().listen();
+		Thread sender = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				Transport.Connection connection = null;
+				try
+				{
+					connection = server.accept(10000);
+					DataInputStream in = new DataInputStream(connection.getInputStream());
+					in.readFully(new byte[24]); // magic, version and token
+					DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+					out.writeInt(count);
+					out.writeLong(total);
+					if (header != null)
+					{
+						out.writeLong(0);
+						out.writeShort(header.length);
+						out.write(header);
+					}
+					out.flush();
+					in.read(); // until the receiver hangs up
+				}
+				catch (IOException e)
+				{
+					// the receiver hung up
+				}
+				finally
+				{
+					IOUtils.closeQuietly(connection);
+				}
+			}
+		});
+		sender.start();
+		final byte[] handshake = (server.getEndpoint() + "\n00000000000000000000000000000000").getBytes("UTF-8");
+		try
+		{
+			Jobs.run(new TransferEngine.TransferJob()
+			{
+				@Override
+				public File run(TransferEngine.TransferHandle handle) throws IOException
+				{
+					StreamTransfer.receive(new LoopbackTransport(), handshake, received, handle);
+					return received;
+				}
+			});
+			fail("The list was accepted: " + message);
+		}
+		catch (IOException e)
+		{
+			assertEquals(message, e.getCause().getMessage());
+		}
+		finally
+		{
+			server.close();
+			sender.join();
+		}
+	}
+}
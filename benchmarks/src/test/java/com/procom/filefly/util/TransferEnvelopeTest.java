@@ -0,0 +1,302 @@
+package com.procom.filefly.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.procom.filefly.bench.Jobs;
+
+/**
+ * Tests {@link com.procom.filefly.util.TransferEnvelope}: round trips of envelopes and detached
+ * headers, damaged payloads, and a seeded fuzz of the header parser.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+public class TransferEnvelopeTest
+{
+	/** The number of headers the fuzz parses; <code>-Denvelope.fuzzRounds=2000000</code> for a longer run */
+	private static final int sFuzzRounds = Integer.getInteger("envelope.fuzzRounds", 200000);
+
+	@Test
+	public void restoresACompressedAndAPlainPayload() throws IOException
+	{
+		File directory = Fixtures.directory("envelope");
+		File source = Fixtures.writeRandom(new File(directory, "report.pdf"), 300000, 1);
+		for (boolean compress : new boolean[] { true, false })
+		{
+			File envelope = new File(directory, "Piech_Peter_report.pdf" + TransferEnvelope.EXTENSION);
+			File restored = new File(directory, "restored");
+			ContentDigest wrapped = wrap(source, envelope, compress);
+			assertEquals(Fixtures.sha256(source), wrapped.getSha256());
+
+			TransferEnvelope.Header header = new TransferEnvelope.Header();
+			TransferEnvelope.readHeader(envelope, header);
+			assertEquals(compress ? TransferEnvelope.FLAG_GZIP : 0, header.getFlags());
+			assertEquals("Piech", header.getLastName());
+			assertEquals("Peter", header.getFirstName());
+			assertEquals("report.pdf", header.getFileName());
+			assertEquals("application/pdf", header.getMimeType());
+			assertEquals(source.length(), header.getContentSize());
+
+			ContentDigest unwrapped = unwrap(envelope, header, restored);
+			assertEquals(wrapped.getSha256(), unwrapped.getSha256());
+			assertEquals(wrapped.getSha256(), Fixtures.sha256(restored));
+		}
+	}
+
+	@Test
+	public void rejectsADamagedPayload() throws IOException
+	{
+		File directory = Fixtures.directory("envelope-damaged");
+		File source = Fixtures.writeRandom(new File(directory, "notes.txt"), 100000, 2);
+		File envelope = new File(directory, "Piech_Peter_notes.txt" + TransferEnvelope.EXTENSION);
+		File restored = new File(directory, "restored");
+		wrap(source, envelope, false);
+		TransferEnvelope.Header header = new TransferEnvelope.Header();
+		TransferEnvelope.readHeader(envelope, header);
+
+		RandomAccessFile file = new RandomAccessFile(envelope, "rw");
+		try
+		{
+			long position = header.getLength() + 5000;
+			file.seek(position);
+			int b = file.read();
+			file.seek(position);
+			file.write(b ^ 0x01);
+		}
+		finally
+		{
+			file.close();
+		}
+
+		try
+		{
+			unwrap(envelope, header, restored);
+			fail("The damaged payload was restored");
+		}
+		catch (IOException e)
+		{
+			assertEquals(envelope.getName() + " arrived damaged", e.getMessage());
+		}
+		assertFalse(restored.exists());
+	}
+
+	@Test
+	public void describesAFileWithADetachedHeader() throws IOException
+	{
+		File directory = Fixtures.directory("envelope-detached");
+		File source = Fixtures.writeRandom(new File(directory, "IMG_0001.jpg"), 70000, 3);
+		ContentDigest digest = Fixtures.digest(source);
+		byte[] bytes = TransferEnvelope.encodeDetachedHeader("Piech", "Peter", source.getName(), null, digest);
+
+		TransferEnvelope.Header header = new TransferEnvelope.Header();
+		assertTrue(header.parse(bytes, 0, bytes.length));
+		assertTrue(header.isDetached());
+		assertEquals(bytes.length, header.getLength());
+		assertEquals(source.length(), header.getContentSize());
+		assertTrue(header.matchesSha256(digest.getSha256Bytes()));
+		assertEquals("IMG_0001.jpg", header.getFileName());
+		assertNull(header.getMimeType());
+		assertEquals("IMG_0001.jpg", TransferEnvelope.getDescribedName("IMG_0001.jpg" + TransferEnvelope.EXTENSION));
+
+		try
+		{
+			unwrap(source, header, new File(directory, "restored"));
+			fail("A detached header was unwrapped");
+		}
+		catch (IOException e)
+		{
+			assertEquals(source.getName() + " describes a file sent on its own", e.getMessage());
+		}
+	}
+
+	@Test
+	public void describesAFileBeforeItWasHashed() throws IOException
+	{
+		byte[] bytes = TransferEnvelope.encodeUnhashedHeader("Piech", "Peter", "VID_0001.mp4", "video/mp4", 5000000000L);
+		TransferEnvelope.Header header = new TransferEnvelope.Header();
+		assertTrue(header.parse(bytes, 0, bytes.length));
+		assertTrue(header.isDetached());
+		assertTrue(header.isUnhashed());
+		assertEquals(5000000000L, header.getContentSize());
+		assertEquals("VID_0001.mp4", header.getFileName());
+		assertEquals("video/mp4", header.getMimeType());
+		assertFalse(header.matchesSha256(new byte[32])); // the zero hash matches nothing
+
+		bytes[5] = (byte) TransferEnvelope.FLAG_UNHASHED; // unhashed without being detached
+		assertFalse(header.parse(bytes, 0, bytes.length));
+	}
+
+	@Test
+	public void rejectsNamesThatEscapeTheReceivedFolder() throws IOException
+	{
+		ContentDigest digest = new ContentDigest();
+		TransferEnvelope.Header header = new TransferEnvelope.Header();
+		for (String name : new String[] { "", ".", "..", "../notes.txt", "a/b", "notes\0.txt" })
+		{
+			byte[] bytes = TransferEnvelope.encodeDetachedHeader("Piech", "Peter", name, null, digest);
+			assertFalse(name, header.parse(bytes, 0, bytes.length));
+		}
+		for (String sender : new String[] { ".", "..", "../x", "a/b" })
+		{
+			byte[] bytes = TransferEnvelope.encodeDetachedHeader(sender, "Peter", "notes.txt", null, digest);
+			assertFalse(sender, header.parse(bytes, 0, bytes.length));
+			bytes = TransferEnvelope.encodeDetachedHeader("Piech", sender, "notes.txt", null, digest);
+			assertFalse(sender, header.parse(bytes, 0, bytes.length));
+		}
+		byte[] bytes = TransferEnvelope.encodeDetachedHeader("Piech", "Peter", "...", null, digest);
+		assertTrue(header.parse(bytes, 0, bytes.length)); // an odd but harmless name
+	}
+
+	@Test
+	public void parsesMutatedTruncatedAndRandomHeadersSafely() throws IOException
+	{
+		Random random = new Random(25);
+		byte[][] valid = {
+				TransferEnvelope.encodeDetachedHeader("Piech", "Peter", "notes.txt", "text/plain", new ContentDigest()),
+				TransferEnvelope.encodeDetachedHeader("Sharma", "Saurabh", "logcat 2014-12-01.log", null, new ContentDigest()),
+				TransferEnvelope.encodeDetachedHeader("Doe", "", "übersicht.docx", "", new ContentDigest()),
+		};
+		TransferEnvelope.Header header = new TransferEnvelope.Header();
+		byte[] bytes = new byte[TransferEnvelope.MAX_HEADER_LENGTH + 16];
+		int accepted = 0;
+		for (int round = 0; round < sFuzzRounds; round++)
+		{
+			byte[] template = valid[round % valid.length];
+			int length;
+			switch (round % 4)
+			{
+			case 0: // a few flipped bytes
+				System.arraycopy(template, 0, bytes, 0, template.length);
+				length = template.length;
+				for (int i = 1 + random.nextInt(3); i > 0; i--)
+				{
+					bytes[random.nextInt(length)] ^= (byte) (1 + random.nextInt(255));
+				}
+				break;
+			case 1: // truncated
+				System.arraycopy(template, 0, bytes, 0, template.length);
+				length = random.nextInt(template.length + 1);
+				break;
+			case 2: // a valid prefix followed by noise
+				System.arraycopy(template, 0, bytes, 0, 8);
+				length = 8 + random.nextInt(bytes.length - 8);
+				for (int i = 8; i < length; i++)
+				{
+					bytes[i] = (byte) random.nextInt(256);
+				}
+				break;
+			default: // noise
+				length = random.nextInt(bytes.length);
+				for (int i = 0; i < length; i++)
+				{
+					bytes[i] = (byte) random.nextInt(256);
+				}
+				break;
+			}
+
+			if (header.parse(bytes, 0, length))
+			{
+				accepted++;
+				assertTrue(header.getLength() <= length);
+				assertTrue(header.getContentSize() >= 0);
+				assertSafe(header.getLastName());
+				assertSafe(header.getFirstName());
+				assertSafe(header.getFileName());
+				assertFalse(header.getFileName().isEmpty());
+				header.getMimeType();
+			}
+			else
+			{
+				assertEquals(0, header.getLength());
+			}
+		}
+		assertTrue(accepted > 0); // some mutations leave a valid header, e.g. those of the hash
+	}
+
+	@Test
+	public void parsingAllocatesNothing() throws IOException
+	{
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		byte[] bytes = TransferEnvelope.encodeDetachedHeader("Piech", "Peter", "notes.txt", "text/plain", new ContentDigest());
+		TransferEnvelope.Header header = new TransferEnvelope.Header();
+		for (int i = 0; i < 100000; i++) // compiled before measuring
+		{
+			header.parse(bytes, 0, bytes.length);
+		}
+
+		long thread = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		boolean parsed = true;
+		for (int i = 0; i < 1000000; i++)
+		{
+			parsed &= header.parse(bytes, 0, bytes.length);
+		}
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+		assertTrue(parsed);
+		assertTrue(allocated + " bytes allocated by a million parses", allocated < 1024);
+	}
+
+	/**
+	 * Fails unless the string can be part of a filename in the received folder.
+	 *
+	 * @author Peter Piech
+	 */
+	private static void assertSafe(String name)
+	{
+		assertFalse(name, name.indexOf('/') >= 0 || name.indexOf('\0') >= 0);
+		assertFalse(name, name.equals(".") || name.equals(".."));
+	}
+
+	/**
+	 * Wraps a file as Peter Piech's PDF within a job of the {@link TransferEngine}.
+	 *
+	 * @author Peter Piech
+	 */
+	private static ContentDigest wrap(final File source, final File envelope, final boolean compress) throws IOException
+	{
+		final ContentDigest[] digest = new ContentDigest[1];
+		Jobs.run(new TransferEngine.TransferJob()
+		{
+			@Override
+			public File run(TransferEngine.TransferHandle handle) throws IOException
+			{
+				digest[0] = TransferEnvelope.wrap(source, envelope, "Piech", "Peter", "report.pdf", "application/pdf", compress, handle);
+				return envelope;
+			}
+		});
+		return digest[0];
+	}
+
+	/**
+	 * Unwraps an envelope within a job of the {@link TransferEngine}.
+	 *
+	 * @author Peter Piech
+	 */
+	private static ContentDigest unwrap(final File envelope, final TransferEnvelope.Header header, final File dest) throws IOException
+	{
+		final ContentDigest[] digest = new ContentDigest[1];
+		Jobs.run(new TransferEngine.TransferJob()
+		{
+			@Override
+			public File run(TransferEngine.TransferHandle handle) throws IOException
+			{
+				digest[0] = TransferEnvelope.unwrap(envelope, header, dest, handle);
+				return dest;
+			}
+		});
+		return digest[0];
+	}
+}
@@ -1,20 +1,31 @@
 package com.procom.filefly;
 
-import java.io.File;
-import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.app.AlertDialog;
 import android.app.AlertDialog.Builder;
 import android.app.Dialog;
 import android.content.DialogInterface;
 import android.os.Bundle;
-import android.os.Environment;
 import android.support.annotation.NonNull;
+import android.util.SparseBooleanArray;
+import android.view.View;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
 import android.app.DialogFragment;
 
+import com.procom.filefly.util.FileIndex;
+import com.procom.filefly.util.TransferEngine;
+
 /**
- * Handles the user input of selecting a file and
+ * Handles the user input of selecting one or more files and
  * draws the user interface for this interaction.
+ * <p>
+ * The files are found by the {@link com.procom.filefly.util.FileIndex}, which searches the
+ * FileFly folder and its subfolders in the background; they are added to the list as they are
+ * found, so the dialog opens immediately however many files there are.
  * 
  * @author Peter Piech
  * @version 0.7b
@@ -22,14 +33,20 @@ import android.app.DialogFragment;
  */
 public class ChooseFileDialogFragment extends DialogFragment
 {
-	/** The {@link java.lang.reflect.Array} of filenames found in the FileFly directory on external storage */
-	private String[] mFileList;
+	/** The paths, relative to the FileFly directory on external storage, of the files found so far */
+	private final ArrayList<String> mFileList = new ArrayList<String>();
+	
+	/** The filenames (including extensions and any subfolders) of the files the user selected */
+	private String[] mChosenFiles;
+	
+	/** The {@link android.widget.ArrayAdapter} showing {@link #mFileList} */
+	private ArrayAdapter<String> mFileAdapter;
 	
-	/** The {@link java.io.File} representing the FileFly external storage directory */
-	private File mPath;
+	/** The {@link com.procom.filefly.util.TransferEngine.TransferHandle} of the search in progress, or <code>null</code> */
+	private TransferEngine.TransferHandle mScanHandle;
 	
-	/** The filename (including extension) of the file the user selected */
-	private String mChosenFile;
+	/** Applies the changes to the FileFly folder to the list while the dialog is shown, or <code>null</code> */
+	private FileIndex.ChangeListener mChangeListener;
 	
 	/** Instance of the abstract {@link com.procom.filefly.ChooseFileDialogFragment.ChooseFileDialogListener}
 	 * interface (which means it is an instance of a class that implements it.  This object listens for item
@@ -44,9 +61,7 @@ public class ChooseFileDialogFragment extends DialogFragment
 	 */
 	public ChooseFileDialogFragment()
 	{
-		mChosenFile = null; // initialize to null so it can be returned later
-		mPath = new File(Environment.getExternalStorageDirectory() + "/FileFly"); // gets the directory to the SD Card FileFly folder
-		loadFileList(); // initializes the array of strings with filenames
+		mChosenFiles = new String[0]; // initialize to an empty selection so it can be returned later
 	}
 
 	/**
@@ -71,9 +86,9 @@ public class ChooseFileDialogFragment extends DialogFragment
 	}
 
 	/**
-	 * Draws the dialog box and sets the content using an {@link android.app.AlertDialog.Builder}.
-	 * If no files exist in the FileFly directory, a message dialog window is shown to the user
-	 * to indicate this instead of a list of filenames.
+	 * Draws the dialog box and sets the content using an {@link android.app.AlertDialog.Builder},
+	 * then starts searching for files. If the search finds no files in the FileFly directory,
+	 * a message is shown to the user to indicate this instead of a list of filenames.
 	 * 
 	 * @author Peter Piech
 	 */
@@ -82,83 +97,178 @@ public class ChooseFileDialogFragment extends DialogFragment
 	public Dialog onCreateDialog(Bundle savedInstanceState)
 	{
 		AlertDialog.Builder builder = new Builder(getActivity()); // create a new dialog builder
+		View content = getActivity().getLayoutInflater().inflate(R.layout.choose_file_dialog, null);
+		final TextView status = (TextView) content.findViewById(R.id.choose_file_status);
+		final ListView fileListView = (ListView) content.findViewById(R.id.choose_file_list);
 		
-		if (mFileList.length < 1) // i.e. no files in FileFly folder
+		mFileList.clear(); // the search starts over whenever the dialog is created
+		mFileAdapter = new ArrayAdapter<String>(getActivity(), android.R.layout.simple_list_item_multiple_choice, mFileList);
+		fileListView.setAdapter(mFileAdapter);
+		
+		builder.setTitle(R.string.choose_file); // set the title of the dialog window
+		builder.setView(content);
+		builder.setPositiveButton(R.string.ok, new DialogInterface.OnClickListener()
 		{
-			builder.setTitle(R.string.no_files_title); // set the title of the dialog window
-			builder.setMessage(R.string.no_files_text); // set the dialog window to have a message instead of a list
-		}
-		else // i.e. one or more files (with extensions) are in the FileFly folder
+			/**
+			 * Marks the checked files for return later
+			 * @author Peter Piech
+			 */
+			@Override
+			public void onClick(DialogInterface dialog, int which)
+			{
+				List<String> chosenFiles = new ArrayList<String>();
+				SparseBooleanArray checked = fileListView.getCheckedItemPositions();
+				for (int i = 0; i < mFileList.size(); i++)
+				{
+					if (checked.get(i))
+					{
+						chosenFiles.add(mFileList.get(i));
+					}
+				}
+				if (chosenFiles.isEmpty()) // i.e. the user confirmed without checking anything
+				{
+					return;
+				}
+				mChosenFiles = chosenFiles.toArray(new String[chosenFiles.size()]); // set the chosen files to be the checked strings
+				mListener.onFileChosen(ChooseFileDialogFragment.this); // the actual callback to the target fragment with the result passed as a parameter
+			}
+		});
+		builder.setNegativeButton(R.string.cancel, null); // nothing to do except dismiss the dialog window
+		final AlertDialog dialog = builder.create();
+		
+		mChangeListener = new FileIndex.ChangeListener()
 		{
-			builder.setTitle(R.string.choose_file); // set the title of the dialog window
-			builder.setItems(mFileList, new DialogInterface.OnClickListener() // set the items the user chooses from
+			/**
+			 * Applies the files created, deleted or moved outside of the app while the dialog is
+			 * shown, keeping the check marks of the files that are still listed
+			 * @author Peter Piech
+			 */
+			@Override
+			public void onFilesChanged(List<FileIndex.Entry> added, List<String> removed)
 			{
-				/**
-				 * Marks the chosen file for return later
-				 * @author Peter Piech
-				 */
-				@Override
-				public void onClick(DialogInterface dialog, int which) // implement the onClick method to determine what happens when the user chooses an item
+				List<String> checkedFiles = new ArrayList<String>();
+				SparseBooleanArray checked = fileListView.getCheckedItemPositions();
+				for (int i = 0; i < mFileList.size(); i++)
+				{
+					if (checked.get(i))
+					{
+						checkedFiles.add(mFileList.get(i));
+					}
+				}
+				mFileList.removeAll(removed);
+				addFiles(added);
+				fileListView.clearChoices(); // the positions moved, so the check marks are set again by name
+				for (String path : checkedFiles)
 				{
-					mChosenFile = mFileList[which]; // set the chosen file to be the string at the index clicked on
-					mListener.onFileChosen(ChooseFileDialogFragment.this); // the actual callback to the target fragment with the result passed as a parameter
+					int position = mFileList.indexOf(path);
+					if (position != -1)
+					{
+						fileListView.setItemChecked(position, true);
 					}
-				});
+				}
+				if (mScanHandle == null) // i.e. the search finished, so the list is complete
+				{
+					showStatus(dialog, status);
+				}
+			}
+		};
+		FileIndex.getInstance(getActivity()).addChangeListener(mChangeListener); // before the search, so that nothing happens unseen in between
+		
+		mScanHandle = FileIndex.getInstance(getActivity()).scan(new FileIndex.Listener()
+		{
+			/**
+			 * Appends the files of one folder; entries already shown keep their position and check mark
+			 * @author Peter Piech
+			 */
+			@Override
+			public void onFilesFound(List<FileIndex.Entry> entries)
+			{
+				addFiles(entries);
+			}
+			
+			/**
+			 * Hides the progress message, or replaces it with the "no files" message
+			 * @author Peter Piech
+			 */
+			@Override
+			public void onScanFinished()
+			{
+				mScanHandle = null;
+				showStatus(dialog, status);
+			}
+		});
+		return dialog; // return the actual dialog
+	}
+	
+	/**
+	 * Appends files to the list unless they are listed already, e.g. because a change was
+	 * reported while the search was still running.
+	 * 
+	 * @author Peter Piech
+	 */
+	private void addFiles(List<FileIndex.Entry> entries)
+	{
+		for (FileIndex.Entry entry : entries)
+		{
+			if (!mFileList.contains(entry.getPath()))
+			{
+				mFileList.add(entry.getPath());
+			}
 		}
-		return builder.create(); // return the actual dialog
+		mFileAdapter.notifyDataSetChanged();
 	}
 	
 	/**
-	 * Retrieves the filename the user selected.
+	 * Once the search finished, hides the progress message, or replaces it with the "no files"
+	 * message if the FileFly folder holds no files.
 	 * 
 	 * @author Peter Piech
 	 */
-	public String getChosenFilename()
+	private void showStatus(AlertDialog dialog, TextView status)
 	{
-		return new String(mChosenFile); // return a copy of the string, not the reference itself
+		if (mFileList.isEmpty()) // i.e. no files in FileFly folder
+		{
+			dialog.setTitle(R.string.no_files_title);
+			status.setText(R.string.no_files_text);
+			status.setVisibility(View.VISIBLE);
+		}
+		else
+		{
+			dialog.setTitle(R.string.choose_file);
+			status.setVisibility(View.GONE);
+		}
 	}
 	
 	/**
-	 * Fetches the list of files in the app's folder on external storage.
+	 * Stops the search and stops following the changes to the FileFly folder when the dialog goes away.
 	 * 
 	 * @author Peter Piech
 	 */
-	private void loadFileList()
+	@Override
+	public void onDestroyView()
 	{
-	    if(mPath.exists()) // i.e. does the directory on the SD Card exist
-	    {
-	        FilenameFilter filter = new FilenameFilter() // filter all files we don't care about
-	        {
-
-	            /**
-	             * Accepts files with any extension at all.
-	             * <p>
-	             * The purpose for this is that the Android Beam API behaves badly when a file with no extension is provided.
-	             * 
-	             * @author Peter Piech
-	             */
-	            @Override
-	            public boolean accept(File dir, String filename)
-	            {
-	            	int extBeginIndex = filename.lastIndexOf("."); // find the index of the last period
-	            	if (extBeginIndex == -1) // if no period is in the file name
-	            	{
-	            		return false; // reject the file
-	            	}
-	                String extension = filename.substring(extBeginIndex + 1, filename.length()); // get the extension
-	                if (extension.equals("")) // i.e. the period is the last character in the filename
-	                {
-	                	return false; // reject the file
-	                }
-	                return true; // the file has an extension
-	            }
-	        };
-	        mFileList = mPath.list(filter); // actually perform the filtered search
-	    }
-	    else
-	    {
-	        mFileList= new String[0]; // no-elements array since no files are present
-	    }
+		if (mScanHandle != null)
+		{
+			mScanHandle.cancel();
+			mScanHandle = null;
+		}
+		if (mChangeListener != null)
+		{
+			FileIndex.getInstance(getActivity()).removeChangeListener(mChangeListener);
+			mChangeListener = null;
+		}
+		super.onDestroyView();
+	}
+	
+	/**
+	 * Retrieves the filenames the user selected.
+	 * 
+	 * @return A copy of the filenames relative to the FileFly folder, in the order they are listed in the dialog
+	 * @author Peter Piech
+	 */
+	public String[] getChosenFilenames()
+	{
+		return mChosenFiles.clone(); // return a copy of the array, not the reference itself
 	}
 	
 	/**
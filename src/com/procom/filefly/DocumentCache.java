@@ -0,0 +1,267 @@
+package com.procom.filefly;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.procom.filefly.model.Document;
+
+/**
+ * Holds the newest {@link com.procom.filefly.model.Document}s of the transfer history in memory,
+ * newest first, so that the received files list can be refreshed without querying SQLite.
+ * <p>
+ * The cache always holds a prefix of the history ordered by '_id': it is filled by the first
+ * read of the newest {@link com.procom.filefly.model.Document}s and then kept up to date
+ * write-through by {@link com.procom.filefly.SqliteController#insertData} and
+ * {@link com.procom.filefly.SqliteController#deleteDocuments}, which also notify the registered
+ * {@link Observer}s on the main thread. At most {@link #getCapacity} {@link com.procom.filefly.model.Document}s
+ * are held; older ones are evicted and read from SQLite when needed, after the held prefix
+ * (see {@link #getPrefix}).
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-11-30
+ */
+public class DocumentCache
+{
+	/** The number of {@link com.procom.filefly.model.Document}s held unless configured otherwise */
+	public static final int DEFAULT_CAPACITY = 4 * DocumentPager.PAGE_SIZE;
+
+	/**
+	 * Notified on the main thread whenever {@link com.procom.filefly.model.Document}s were inserted or deleted.
+	 *
+	 * @author Peter Piech
+	 */
+	public interface Observer
+	{
+		/**
+		 * Called after {@link com.procom.filefly.model.Document}s were inserted into or deleted from the history.
+		 *
+		 * @author Peter Piech
+		 */
+		void onDocumentsChanged();
+	}
+
+	/** The newest {@link com.procom.filefly.model.Document}s, newest first */
+	private final ArrayList<Document> mDocuments = new ArrayList<Document>();
+
+	/** The maximum number of {@link com.procom.filefly.model.Document}s held */
+	private int mCapacity = DEFAULT_CAPACITY;
+
+	/** Whether {@link #mDocuments} has been filled from SQLite */
+	private boolean mLoaded;
+
+	/** Whether {@link #mDocuments} holds the whole history, i.e. nothing was evicted */
+	private boolean mComplete;
+
+	/** Incremented by every write, so that a fill read before a write can be recognized as stale */
+	private long mVersion;
+
+	/** The registered {@link Observer}s */
+	private final List<Observer> mObservers = new CopyOnWriteArrayList<Observer>();
+
+	/** Delivers the change notifications on the main thread */
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+	/** Notifies every {@link Observer}; posted to the main thread once per write */
+	private final Runnable mNotifyObservers = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			for (Observer observer : mObservers)
+			{
+				observer.onDocumentsChanged();
+			}
+		}
+	};
+
+	/**
+	 * @return The maximum number of {@link com.procom.filefly.model.Document}s held
+	 * @author Peter Piech
+	 */
+	public synchronized int getCapacity()
+	{
+		return mCapacity;
+	}
+
+	/**
+	 * Changes the maximum number of {@link com.procom.filefly.model.Document}s held, evicting the
+	 * oldest ones if there are more.
+	 *
+	 * @param capacity The maximum number of {@link com.procom.filefly.model.Document}s held, at least 0
+	 * @author Peter Piech
+	 */
+	public synchronized void setCapacity(int capacity)
+	{
+		if (capacity < 0)
+		{
+			throw new IllegalArgumentException("Negative capacity: " + capacity);
+		}
+		mCapacity = capacity;
+		trim();
+	}
+
+	/**
+	 * Gets the newest {@link com.procom.filefly.model.Document}s if the cache holds enough of them.
+	 *
+	 * @param limit The maximum number of {@link com.procom.filefly.model.Document}s to return
+	 * @return A copy of the newest <code>limit</code> {@link com.procom.filefly.model.Document}s, or
+	 * <code>null</code> if they have to be read from SQLite
+	 * @author Peter Piech
+	 */
+	public synchronized List<Document> getNewest(int limit)
+	{
+		if (!mLoaded || (limit > mDocuments.size() && !mComplete))
+		{
+			return null;
+		}
+		return new ArrayList<Document>(mDocuments.subList(0, Math.min(limit, mDocuments.size())));
+	}
+
+	/**
+	 * Gets the newest {@link com.procom.filefly.model.Document}s held, even if there are fewer than
+	 * asked for, so that only the older ones have to be read from SQLite.
+	 *
+	 * @param limit The maximum number of {@link com.procom.filefly.model.Document}s to return
+	 * @return A copy of at most <code>limit</code> of the newest {@link com.procom.filefly.model.Document}s,
+	 * or <code>null</code> if the cache has not been filled yet
+	 * @author Peter Piech
+	 */
+	public synchronized List<Document> getPrefix(int limit)
+	{
+		if (!mLoaded)
+		{
+			return null;
+		}
+		return new ArrayList<Document>(mDocuments.subList(0, Math.min(limit, mDocuments.size())));
+	}
+
+	/**
+	 * @return The version to pass to {@link #fill} for a read of the newest {@link com.procom.filefly.model.Document}s
+	 * that is about to start
+	 * @author Peter Piech
+	 */
+	public synchronized long getVersion()
+	{
+		return mVersion;
+	}
+
+	/**
+	 * Fills the cache from a read of the newest {@link com.procom.filefly.model.Document}s, unless
+	 * the history was written to since the read started.
+	 *
+	 * @param version The result of {@link #getVersion} taken before the read
+	 * @param documents The newest {@link com.procom.filefly.model.Document}s, newest first
+	 * @param limit The number of {@link com.procom.filefly.model.Document}s that were asked for
+	 * @author Peter Piech
+	 */
+	public synchronized void fill(long version, List<Document> documents, int limit)
+	{
+		if (version != mVersion || (mLoaded && documents.size() <= mDocuments.size())) // i.e. stale, or no news
+		{
+			return;
+		}
+		mDocuments.clear();
+		mDocuments.addAll(documents);
+		mComplete = documents.size() < limit;
+		mLoaded = true;
+		trim();
+	}
+
+	/**
+	 * Records {@link com.procom.filefly.model.Document}s that were just inserted and notifies the {@link Observer}s.
+	 *
+	 * @param documents The inserted {@link com.procom.filefly.model.Document}s with their '_id's, in insertion order
+	 * @author Peter Piech
+	 */
+	public void onInserted(List<Document> documents)
+	{
+		synchronized (this)
+		{
+			mVersion++;
+			if (mLoaded)
+			{
+				for (Document document : documents) // each is newer than everything held
+				{
+					mDocuments.add(0, document);
+				}
+				trim();
+			}
+		}
+		notifyObservers();
+	}
+
+	/**
+	 * Drops the {@link com.procom.filefly.model.Document}s with the given names that were just deleted
+	 * and notifies the {@link Observer}s.
+	 *
+	 * @param fileNames The names of the deleted {@link com.procom.filefly.model.Document}s
+	 * @author Peter Piech
+	 */
+	public void onDeleted(List<String> fileNames)
+	{
+		synchronized (this)
+		{
+			mVersion++;
+			Iterator<Document> iterator = mDocuments.iterator();
+			while (iterator.hasNext())
+			{
+				if (fileNames.contains(iterator.next().getFilename()))
+				{
+					iterator.remove(); // the rest is still a prefix of the history
+				}
+			}
+		}
+		notifyObservers();
+	}
+
+	/**
+	 * Registers an {@link Observer} to be notified on the main thread after every write.
+	 *
+	 * @author Peter Piech
+	 */
+	public void registerObserver(Observer observer)
+	{
+		mObservers.add(observer);
+	}
+
+	/**
+	 * Unregisters an {@link Observer} registered with {@link #registerObserver}.
+	 *
+	 * @author Peter Piech
+	 */
+	public void unregisterObserver(Observer observer)
+	{
+		mObservers.remove(observer);
+	}
+
+	/**
+	 * Posts one notification of the {@link Observer}s, coalescing writes that happen before it runs.
+	 *
+	 * @author Peter Piech
+	 */
+	private void notifyObservers()
+	{
+		mMainHandler.removeCallbacks(mNotifyObservers);
+		mMainHandler.post(mNotifyObservers);
+	}
+
+	/**
+	 * Evicts the oldest {@link com.procom.filefly.model.Document}s beyond the capacity.
+	 *
+	 * @author Peter Piech
+	 */
+	private void trim()
+	{
+		if (mDocuments.size() > mCapacity)
+		{
+			mDocuments.subList(mCapacity, mDocuments.size()).clear();
+			mComplete = false;
+		}
+	}
+}
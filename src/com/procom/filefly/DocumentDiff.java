@@ -0,0 +1,174 @@
+package com.procom.filefly;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.procom.filefly.model.Document;
+
+/**
+ * The rows inserted into and removed from the received files list between two snapshots of the
+ * history, computed by a {@link com.procom.filefly.DocumentListLoader} on its background thread.
+ * <p>
+ * Both snapshots are ordered by '_id', newest first, and a {@link com.procom.filefly.model.Document}
+ * never changes once stored, so the diff is a single merge of the two '_id' sequences. Applying it
+ * with {@link com.procom.filefly.DocumentPager#applyDiff} keeps the surviving
+ * {@link com.procom.filefly.model.Document} instances, which lets the
+ * {@link com.procom.filefly.DocumentListAdapter} skip rebinding their rows.
+ * 
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-11-30
+ */
+public class DocumentDiff
+{
+	/** The '_id's of the old snapshot */
+	private final long[] mOldIds;
+	
+	/** The new snapshot */
+	private final List<Document> mNewDocuments;
+	
+	/** The positions in the old snapshot of the removed rows, ascending */
+	private final int[] mRemoved;
+	
+	/** The positions in the new snapshot of the inserted rows, ascending */
+	private final int[] mInserted;
+	
+	/**
+	 * Computes the diff between two snapshots.
+	 * 
+	 * @param oldIds The '_id's of the old snapshot, newest first
+	 * @param newDocuments The new snapshot, newest first
+	 * @author Peter Piech
+	 */
+	public DocumentDiff(long[] oldIds, List<Document> newDocuments)
+	{
+		mOldIds = oldIds;
+		mNewDocuments = newDocuments;
+		int[] removed = new int[oldIds.length];
+		int[] inserted = new int[newDocuments.size()];
+		int removedCount = 0, insertedCount = 0;
+		int i = 0, j = 0;
+		while (i < oldIds.length || j < newDocuments.size())
+		{
+			long oldId = i < oldIds.length ? oldIds[i] : Long.MIN_VALUE;
+			long newId = j < newDocuments.size() ? newDocuments.get(j).getId() : Long.MIN_VALUE;
+			if (oldId == newId) // i.e. the row survived
+			{
+				i++;
+				j++;
+			}
+			else if (oldId > newId) // i.e. the old row is gone
+			{
+				removed[removedCount++] = i++;
+			}
+			else // i.e. the new row was not there before
+			{
+				inserted[insertedCount++] = j++;
+			}
+		}
+		mRemoved = Arrays.copyOf(removed, removedCount);
+		mInserted = Arrays.copyOf(inserted, insertedCount);
+	}
+	
+	/**
+	 * Snapshots the '_id's of a {@link java.util.List} of {@link com.procom.filefly.model.Document}s
+	 * so that it can be diffed on another thread.
+	 * 
+	 * @author Peter Piech
+	 */
+	public static long[] getIds(List<Document> documents)
+	{
+		long[] ids = new long[documents.size()];
+		for (int i = 0; i < ids.length; i++)
+		{
+			ids[i] = documents.get(i).getId();
+		}
+		return ids;
+	}
+	
+	/**
+	 * @param documents The rows currently shown
+	 * @return Whether the diff was computed against exactly these rows and can be applied to them
+	 * @author Peter Piech
+	 */
+	public boolean appliesTo(List<Document> documents)
+	{
+		if (documents.size() != mOldIds.length)
+		{
+			return false;
+		}
+		for (int i = 0; i < mOldIds.length; i++)
+		{
+			if (documents.get(i).getId() != mOldIds[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return The new snapshot
+	 * @author Peter Piech
+	 */
+	public List<Document> getNewDocuments()
+	{
+		return mNewDocuments;
+	}
+	
+	/**
+	 * @return Whether both snapshots hold the same rows
+	 * @author Peter Piech
+	 */
+	public boolean isEmpty()
+	{
+		return mRemoved.length == 0 && mInserted.length == 0;
+	}
+	
+	/**
+	 * @return The positions in the old snapshot of the removed rows, ascending
+	 * @author Peter Piech
+	 */
+	public int[] getRemoved()
+	{
+		return mRemoved;
+	}
+	
+	/**
+	 * @return The positions in the new snapshot of the inserted rows, ascending
+	 * @author Peter Piech
+	 */
+	public int[] getInserted()
+	{
+		return mInserted;
+	}
+	
+	/**
+	 * Maps a position in the old snapshot to the position of the same row in the new snapshot,
+	 * e.g. to keep the first visible row in place when rows are inserted above it.
+	 * 
+	 * @param oldPosition A position in the old snapshot
+	 * @return The position in the new snapshot of the row at <code>oldPosition</code>, or of the row
+	 * that took its place if it was removed
+	 * @author Peter Piech
+	 */
+	public int getNewPosition(int oldPosition)
+	{
+		int position = oldPosition;
+		for (int removed : mRemoved)
+		{
+			if (removed < oldPosition)
+			{
+				position--;
+			}
+		}
+		for (int inserted : mInserted)
+		{
+			if (inserted <= position)
+			{
+				position++;
+			}
+		}
+		return position;
+	}
+}
@@ -1,5 +1,6 @@
 package com.procom.filefly;
 
+import java.io.File;
 import java.util.List;
 
 import android.content.Context;
@@ -8,23 +9,32 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.View.OnLongClickListener;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.BaseAdapter;
+import android.widget.ImageView;
 import android.widget.TextView;
  
 import com.procom.filefly.model.Document;
 import com.procom.filefly.util.FilesIntentHandler;
+import com.procom.filefly.util.ThumbnailLoader;
 
 /**
  * The {@link android.widget.BaseAdapter} used to back the ListView hosted
  * by the {@link DocumentListFragment} using {@link Document}s as the data
- * model.
+ * model. Row views are recycled and remember the {@link Document} they show,
+ * so a row is only rebound when a different {@link Document} scrolls into it.
+ * Item ids are the stable '_id's of the {@link Document}s.
+ * <p>
+ * Each row shows a preview of its file, loaded in the background by the
+ * {@link com.procom.filefly.util.ThumbnailLoader}; when a row is recycled, the
+ * preview it was waiting for is cancelled.
  * 
  * @author Peter Piech
  * @version 0.7b
  * @since 2014-10-12
  *
  */
-public class DocumentListAdapter extends BaseAdapter
+public class DocumentListAdapter extends BaseAdapter implements AbsListView.RecyclerListener
 {
 	/** 
 	 * The {@link android.app.Activity} which hosts the a {@link android.widget.ListView} directly or indirectly
@@ -40,6 +50,9 @@ public class DocumentListAdapter extends BaseAdapter
 	
 	/** The {@link com.procom.filefly.SqliteController} is used as an API for {@link android.database.sqlite.SQLiteDatabase} */
 	private SqliteController mSqliteController;
+	
+	/** Loads the previews of the files shown in the rows */
+	private ThumbnailLoader mThumbnailLoader;
 
 	
 	/**
@@ -56,6 +69,7 @@ public class DocumentListAdapter extends BaseAdapter
 		mContext = context;
 		mDocuments = documents;
 		mSqliteController = sqlcontroller;
+		mThumbnailLoader = ThumbnailLoader.getInstance(context, context.getResources().getDimensionPixelSize(R.dimen.thumbnail_size));
 	}
 
 	/**
@@ -88,75 +102,159 @@ public class DocumentListAdapter extends BaseAdapter
 	 * Returns the Id of the item in the {@link java.util.List}
 	 * 
 	 * @param index The index of the item in the {@link java.util.List} to return the Id of
-	 * @return The Id of the item at the given index in the {@link java.util.List}
+	 * @return The '_id' of the {@link com.procom.filefly.model.Document} at the given index in the {@link java.util.List}
 	 * that backs the {@link android.widget.ListView}
 	 * @author Peter Piech
 	 */
 	@Override
 	public long getItemId(int index)
 	{
-		return index;
+		return mDocuments.get(index).getId();
+	}
+	
+	/**
+	 * @return <code>true</code>, since item ids are the '_id's of the {@link com.procom.filefly.model.Document}s
+	 * and do not change when rows are inserted or removed
+	 * @author Peter Piech
+	 */
+	@Override
+	public boolean hasStableIds()
+	{
+		return true;
 	}
 
 	/**
-	 * Inflates the view for the {@link com.procom.filefly.model.Document} at the given index
-	 * in the {@link java.util.List} that backs the {@link android.widget.ListView}.
+	 * Binds the view for the {@link com.procom.filefly.model.Document} at the given index
+	 * in the {@link java.util.List} that backs the {@link android.widget.ListView}, inflating
+	 * one only if there is no view to recycle.
 	 * 
 	 * @param index The index of the {@link com.procom.filefly.model.Document} in the {@link java.util.List}
-	 * @param convertView
+	 * @param convertView A previously returned view to recycle, or <code>null</code>
 	 * @param parent
 	 * 
-	 * @return The inflated {@link android.widget.View}
+	 * @return The bound {@link android.widget.View}
 	 * @author Peter Piech, Andy Kakkaramadam
 	 * 
 	 */
 	@Override
-	public View getView(final int index, View convertView, ViewGroup parent)
+	public View getView(int index, View convertView, ViewGroup parent)
 	{
-		LayoutInflater inflater = (LayoutInflater) mContext.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-		View itemView = inflater.inflate(R.layout.document_list_item, parent, false);
-		
-		TextView fileName = (TextView) itemView.findViewById(R.id.filename);
-		TextView fullName = (TextView) itemView.findViewById(R.id.fullname);
-		TextView date = (TextView) itemView.findViewById(R.id.date);
-		fileName.setText(mDocuments.get(index).getFilename());
-		fullName.setText(mDocuments.get(index).getOwnerFirstName() + ' ' + mDocuments.get(index).getOwnerLastName());
-		date.setText(mDocuments.get(index).getDateTransferredString());
-		
-		itemView.setOnClickListener(new OnClickListener()
+		View itemView = convertView;
+		ViewHolder holder;
+		if (itemView == null)
 		{
-
-			@Override
-			public void onClick(View view)
-			{
-				mContext.startActivity(FilesIntentHandler.openFile(mContext, mDocuments.get(index).getFilename())); // Opens the file using FilesIntentHandler, the position inside the array mDocuments.
-			}
-		});
-		
-		itemView.setOnLongClickListener(new OnLongClickListener()
+			LayoutInflater inflater = (LayoutInflater) mContext.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+			itemView = inflater.inflate(R.layout.document_list_item, parent, false);
+			holder = new ViewHolder(itemView);
+			itemView.setTag(holder);
+			itemView.setOnClickListener(mOnClickListener);
+			itemView.setOnLongClickListener(mOnLongClickListener);
+		}
+		else
 		{
-
-			@Override
-			public boolean onLongClick(View view)
-			{
-				mSqliteController.deleteDocument(mDocuments.get(index).getFilename()); // Call SQLite statement to delete the document.
-				mDocuments.remove(index); // Remove the Document representation also
-				DocumentListAdapter.this.notifyDataSetChanged(); // Send notification that the data set has been altered.
-				return true;
-			}
-		});
+			holder = (ViewHolder) itemView.getTag();
+		}
 		
+		Document document = mDocuments.get(index);
+		if (holder.mDocument != document) // i.e. the row shows another Document, or nothing yet
+		{
+			holder.mFileName.setText(document.getFilename());
+			holder.mFullName.setText(document.getOwnerFirstName() + ' ' + document.getOwnerLastName());
+			holder.mDate.setText(document.getDateTransferredString());
+			mThumbnailLoader.load(getFile(document), document.getFileSize(), holder.mThumbnail); // only a cached preview is shown right away
+			holder.mDocument = document;
+		}
 		return itemView;
 	}
 	
 	/**
-	 * Updates the {@link #mDocuments} member field with the provided {@link java.util.List}
+	 * Stops loading the preview of a row that scrolled off-screen, unless the row is
+	 * rebound to the same {@link com.procom.filefly.model.Document} right away.
 	 * 
 	 * @author Peter Piech
 	 */
-	public void updateDocuments(List<Document> newDocs)
+	@Override
+	public void onMovedToScrapHeap(View view)
 	{
-		mDocuments = newDocs;
-		notifyDataSetChanged();
+		ViewHolder holder = (ViewHolder) view.getTag();
+		mThumbnailLoader.cancel(holder.mThumbnail);
+		holder.mDocument = null; // so that the next bind asks for the preview again
+	}
+	
+	/**
+	 * @return The file of a {@link com.procom.filefly.model.Document}
+	 * @author Peter Piech
+	 */
+	private static File getFile(Document document)
+	{
+		if (document.getStoredPath() != null) // i.e. the file is kept in the content-addressed store
+		{
+			return new File(document.getStoredPath());
+		}
+		return new File(FilesIntentHandler.getReceivedDirectory(), document.getFilename());
+	}
+	
+	/** Opens the file of the clicked row; shared by every row */
+	private final OnClickListener mOnClickListener = new OnClickListener()
+	{
+
+		@Override
+		public void onClick(View view)
+		{
+			Document document = ((ViewHolder) view.getTag()).mDocument;
+			mContext.startActivity(FilesIntentHandler.openFile(mContext, getFile(document))); // Opens the file using FilesIntentHandler
+		}
+	};
+	
+	/** Deletes the {@link com.procom.filefly.model.Document} of the long-clicked row; shared by every row */
+	private final OnLongClickListener mOnLongClickListener = new OnLongClickListener()
+	{
+
+		@Override
+		public boolean onLongClick(View view)
+		{
+			Document document = ((ViewHolder) view.getTag()).mDocument;
+			mSqliteController.deleteDocument(document.getFilename()); // Call SQLite statement to delete the document.
+			mDocuments.remove(document); // Remove the Document representation also
+			DocumentListAdapter.this.notifyDataSetChanged(); // Send notification that the data set has been altered.
+			return true;
+		}
+	};
+	
+	/**
+	 * The child views of a row, looked up once when the row is inflated, and the
+	 * {@link com.procom.filefly.model.Document} the row currently shows.
+	 * 
+	 * @author Peter Piech
+	 */
+	private static class ViewHolder
+	{
+		/** Shows the file name */
+		final TextView mFileName;
+		
+		/** Shows the sender's full name */
+		final TextView mFullName;
+		
+		/** Shows the date of reception */
+		final TextView mDate;
+		
+		/** Shows the preview of the file */
+		final ImageView mThumbnail;
+		
+		/** The {@link com.procom.filefly.model.Document} bound to the row, or <code>null</code> if none yet */
+		Document mDocument;
+		
+		/**
+		 * Looks up the child views of a freshly inflated row.
+		 * 
+		 * @author Peter Piech
+		 */
+		ViewHolder(View itemView)
+		{
+			mFileName = (TextView) itemView.findViewById(R.id.filename);
+			mFullName = (TextView) itemView.findViewById(R.id.fullname);
+			mDate = (TextView) itemView.findViewById(R.id.date);
+			mThumbnail = (ImageView) itemView.findViewById(R.id.thumbnail);
+		}
 	}
 }
\ No newline at end of file
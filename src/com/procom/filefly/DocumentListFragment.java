@@ -4,36 +4,78 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.List;
-
-import com.procom.filefly.model.Document;
-
 import android.app.Fragment;
+import android.app.LoaderManager;
+import android.content.Loader;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.Bundle;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ListView;
+import android.widget.SearchView;
 import android.widget.Toast;
 
+import com.procom.filefly.util.TransferMetrics;
+
 /**
  * The {@link android.app.Fragment} that establishes the user interface
  * for the {@link android.widget.ListView} by connecting to a SQLite
  * database in internal storage and constructing a {@link java.util.List}
  * of {@link com.procom.filefly.model.Document}s managed by a
- * {@link android.widget.BaseAdapter} from the queried data.
+ * {@link android.widget.BaseAdapter} from the queried data. The history is
+ * read one page at a time by {@link com.procom.filefly.DocumentListLoader}s
+ * on a background thread as the user scrolls towards the end of the loaded
+ * rows, and collected in a {@link com.procom.filefly.DocumentPager}. A
+ * {@link android.widget.SearchView} in the {@link android.app.ActionBar}
+ * narrows the list to the files whose file or sender name match as the
+ * user types. The list refreshes itself whenever the
+ * {@link com.procom.filefly.DocumentCache} reports that files were
+ * received or deleted.
  * 
  * @author Peter Piech
  * @version 0.7b
  * @since 2014-10-12
  *
  */
-public class DocumentListFragment extends Fragment
+public class DocumentListFragment extends Fragment implements DocumentCache.Observer
 {
-	/** The {@link java.util.List} of {@link com.procom.filefly.model.Document}s that back the {@link com.procom.filefly.DocumentListFragment}'s {@link android.widget.ListView} */
-	private List<Document> mDocuments;
+	/** The number of rows left below the visible ones at which the next page is read */
+	private static final int sPrefetchDistance = DocumentPager.PAGE_SIZE / 2;
+	
+	/** The id of the {@link com.procom.filefly.DocumentListLoader} reading the newest {@link com.procom.filefly.model.Document}s */
+	private static final int sRefreshLoader = 0;
+	
+	/** The id of the {@link com.procom.filefly.DocumentListLoader} reading the next page */
+	private static final int sPageLoader = 1;
+	
+	/** The key of the {@link android.os.Bundle} argument holding the key of the page to read */
+	private static final String sBeforeIdArg = "beforeId";
+	
+	/** The {@link com.procom.filefly.DocumentPager} collecting the {@link com.procom.filefly.model.Document}s backing the {@link com.procom.filefly.DocumentListFragment}'s {@link android.widget.ListView} */
+	private DocumentPager mPager = new DocumentPager();
+	
+	/** The text typed into the {@link android.widget.SearchView}, or <code>null</code> to list every {@link com.procom.filefly.model.Document} */
+	private String mQuery;
+	
+	/** The number of {@link com.procom.filefly.model.Document}s the next refresh reads */
+	private int mRefreshLimit = DocumentPager.PAGE_SIZE;
+	
+	/** Whether a page is being read, so that scrolling does not start another one */
+	private boolean mPageLoading;
+	
+	/** The last result of the refresh loader that was applied, so that a redelivery does not drop later pages */
+	private DocumentDiff mAppliedRefresh;
+	
+	/** The {@link java.lang.System#nanoTime} of the first refresh requested since the last one was applied, or 0 */
+	private long mRefreshStartTime;
+	
+	/** The {@link android.widget.ListView} showing the received files */
+	private ListView mListView;
 	
 	/** The {@link com.procom.filefly.DocumentListAdapter} that is used to back the {@link android.widget.ListView} */
 	private DocumentListAdapter mListAdapter;
@@ -58,13 +100,197 @@ public class DocumentListFragment extends Fragment
 	{
 		View rootView = inflater.inflate(R.layout.document_list_fragment, container, false);
 		setHasOptionsMenu(true);
-		ListView documentsList = (ListView) rootView.findViewById(R.id.documentlist);
-		mDocuments =  mSqliteController.getAllDocuments();
-		mListAdapter = new DocumentListAdapter(this.getActivity(), mSqliteController, mDocuments);
-		documentsList.setAdapter(mListAdapter);
+		mListView = (ListView) rootView.findViewById(R.id.documentlist);
+		mListAdapter = new DocumentListAdapter(this.getActivity(), mSqliteController, mPager.getDocuments());
+		mListView.setAdapter(mListAdapter);
+		mListView.setRecyclerListener(mListAdapter); // cancels the previews of rows that scroll off-screen
+		mSqliteController.getDocumentCache().registerObserver(this);
+		mListView.setOnScrollListener(new AbsListView.OnScrollListener()
+		{
+			@Override
+			public void onScrollStateChanged(AbsListView view, int scrollState) {}
+			
+			/**
+			 * Reads the next page once the user has scrolled close to the last loaded row.
+			 * 
+			 * @author Peter Piech
+			 */
+			@Override
+			public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount)
+			{
+				if (!mPageLoading && mPager.hasMore() && totalItemCount > 0 && firstVisibleItem + visibleItemCount >= totalItemCount - sPrefetchDistance)
+				{
+					mPageLoading = true;
+					Bundle args = new Bundle();
+					args.putLong(sBeforeIdArg, mPager.getLastId());
+					getLoaderManager().restartLoader(sPageLoader, args, mLoaderCallbacks);
+				}
+			}
+		});
 		return rootView;
 	}
 	
+	/**
+	 * Stops listening for changes once the list is gone.
+	 * 
+	 * @author Peter Piech
+	 */
+	@Override
+	public void onDestroyView()
+	{
+		super.onDestroyView();
+		mSqliteController.getDocumentCache().unregisterObserver(this);
+		mListAdapter = null;
+		mListView = null;
+	}
+	
+	/**
+	 * Refreshes the list after files were received or deleted; the newest rows come from the
+	 * {@link com.procom.filefly.DocumentCache} rather than another scan of the database.
+	 * 
+	 * @author Peter Piech
+	 */
+	@Override
+	public void onDocumentsChanged()
+	{
+		notifyDataBaseChanged();
+	}
+	
+	/**
+	 * Starts reading the newest {@link com.procom.filefly.model.Document}s, or reconnects to the
+	 * loader that already holds them.
+	 * 
+	 * @author Peter Piech
+	 */
+	@Override
+	public void onActivityCreated(Bundle savedInstanceState)
+	{
+		super.onActivityCreated(savedInstanceState);
+		getLoaderManager().initLoader(sRefreshLoader, null, mLoaderCallbacks);
+	}
+	
+	/** Creates the {@link com.procom.filefly.DocumentListLoader}s and applies their results to {@link #mPager} */
+	private final LoaderManager.LoaderCallbacks<DocumentDiff> mLoaderCallbacks = new LoaderManager.LoaderCallbacks<DocumentDiff>()
+	{
+		/**
+		 * Creates a loader of the newest {@link com.procom.filefly.model.Document}s or of the page after the given key.
+		 * 
+		 * @author Peter Piech
+		 */
+		@Override
+		public Loader<DocumentDiff> onCreateLoader(int id, Bundle args)
+		{
+			if (id == sPageLoader)
+			{
+				return new DocumentListLoader(getActivity(), mSqliteController, mQuery, new long[0], args.getLong(sBeforeIdArg), DocumentPager.PAGE_SIZE);
+			}
+			long[] previousIds = DocumentDiff.getIds(mPager.getDocuments()); // the loader diffs its result against these off the main thread
+			return new DocumentListLoader(getActivity(), mSqliteController, mQuery, previousIds, Long.MAX_VALUE, mRefreshLimit);
+		}
+		
+		/**
+		 * Applies a result on the main thread; the previous snapshot stays on screen until then.
+		 * 
+		 * @author Peter Piech
+		 */
+		@Override
+		public void onLoadFinished(Loader<DocumentDiff> loader, DocumentDiff diff)
+		{
+			DocumentListLoader documentLoader = (DocumentListLoader) loader;
+			if (loader.getId() == sPageLoader)
+			{
+				mPageLoading = false;
+				if (!mPager.appendPage(documentLoader.getBeforeId(), diff.getNewDocuments())) // i.e. read before the last refresh
+				{
+					return;
+				}
+				if (mListAdapter != null)
+				{
+					mListAdapter.notifyDataSetChanged();
+				}
+				return;
+			}
+			
+			if (diff == mAppliedRefresh) // i.e. redelivered when the fragment was started again
+			{
+				return;
+			}
+			mAppliedRefresh = diff;
+			if (mRefreshStartTime != 0)
+			{
+				TransferMetrics.recordStage(TransferMetrics.Stage.LIST_REFRESH, 0, System.nanoTime() - mRefreshStartTime);
+				mRefreshStartTime = 0;
+			}
+			if (mListAdapter == null)
+			{
+				mPager.setFirstPages(diff.getNewDocuments(), documentLoader.getLimit());
+				return;
+			}
+			int firstVisible = mListView.getFirstVisiblePosition();
+			View firstChild = mListView.getChildAt(0);
+			int firstTop = firstChild == null ? 0 : firstChild.getTop();
+			boolean incremental = mPager.applyDiff(diff, documentLoader.getLimit());
+			if (incremental && diff.isEmpty())
+			{
+				return; // nothing changed, so nothing is redrawn
+			}
+			mListAdapter.notifyDataSetChanged(); // rows whose Document survived are not rebound by the adapter
+			if (incremental && firstVisible > 0)
+			{
+				mListView.setSelectionFromTop(diff.getNewPosition(firstVisible), firstTop); // keep the rows the user is looking at in place
+			}
+		}
+		
+		@Override
+		public void onLoaderReset(Loader<DocumentDiff> loader)
+		{
+			if (loader.getId() == sPageLoader)
+			{
+				mPageLoading = false;
+			}
+		}
+	};
+	
+	/**
+	 * Adds the {@link android.widget.SearchView} to the {@link android.app.ActionBar} and searches
+	 * again whenever the text changes.
+	 * 
+	 * @author Peter Piech
+	 */
+	@Override
+	public void onCreateOptionsMenu(Menu menu, MenuInflater inflater)
+	{
+		inflater.inflate(R.menu.document_list, menu);
+		SearchView searchView = (SearchView) menu.findItem(R.id.action_search).getActionView();
+		searchView.setQueryHint(getString(R.string.search_hint));
+		searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener()
+		{
+			@Override
+			public boolean onQueryTextSubmit(String query)
+			{
+				return onQueryTextChange(query);
+			}
+			
+			/**
+			 * Restarts the refresh loader with the new text; a search still in flight is cancelled.
+			 * 
+			 * @author Peter Piech
+			 */
+			@Override
+			public boolean onQueryTextChange(String newText)
+			{
+				String query = newText.trim().length() == 0 ? null : newText;
+				if (query == null ? mQuery == null : query.equals(mQuery))
+				{
+					return true;
+				}
+				mQuery = query;
+				refresh(DocumentPager.PAGE_SIZE); // the loaded rows belong to the previous search, so start over with one page
+				return true;
+			}
+		});
+	}
+	
 	/**
 	 * This is called to notify the fragment that the SQLite database has been updated externally
 	 * 
@@ -72,7 +298,29 @@ public class DocumentListFragment extends Fragment
 	 */
 	public void notifyDataBaseChanged()
 	{
-		mDocuments = mSqliteController.getAllDocuments();
-		mListAdapter.updateDocuments(mDocuments);
+		if (mListAdapter == null) // i.e. the view has not been created yet; onActivityCreated will query the database
+		{
+			return;
+		}
+		refresh(Math.max(DocumentPager.PAGE_SIZE, mPager.getDocuments().size())); // as many as are shown, so the scroll position is kept
+	}
+	
+	/**
+	 * Reads the newest {@link com.procom.filefly.model.Document}s again; the current ones stay on
+	 * screen until the new ones arrive.
+	 * 
+	 * @param limit The number of {@link com.procom.filefly.model.Document}s to read
+	 * @author Peter Piech
+	 */
+	private void refresh(int limit)
+	{
+		mRefreshLimit = limit;
+		if (mRefreshStartTime == 0) // a refresh that cancels one in flight is timed from the first request
+		{
+			mRefreshStartTime = System.nanoTime();
+		}
+		getLoaderManager().destroyLoader(sPageLoader); // a page read before the refresh would be stale
+		mPageLoading = false;
+		getLoaderManager().restartLoader(sRefreshLoader, null, mLoaderCallbacks); // cancels a refresh still in flight
 	}
 }
\ No newline at end of file
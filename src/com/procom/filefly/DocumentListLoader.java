@@ -0,0 +1,155 @@
+package com.procom.filefly;
+
+import java.util.List;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+
+import com.procom.filefly.model.Document;
+
+/**
+ * The {@link android.content.AsyncTaskLoader} that reads a page of the transfer history on a
+ * background thread (see {@link com.procom.filefly.SqliteController#getDocumentsBefore}),
+ * optionally restricted to the {@link com.procom.filefly.model.Document}s matching a search, and
+ * diffs it against the rows shown when the loader was created, also on the background thread.
+ * <p>
+ * The last result is retained and delivered again when the loader is restarted, so the
+ * {@link com.procom.filefly.DocumentListFragment} keeps showing its previous snapshot while a
+ * refresh is in flight. Restarting the loader cancels a read that has not finished yet.
+ * 
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-11-29
+ */
+public class DocumentListLoader extends AsyncTaskLoader<DocumentDiff>
+{
+	/** The {@link com.procom.filefly.SqliteController} the history is read from */
+	private final SqliteController mSqliteController;
+	
+	/** The text to search for, or <code>null</code> to read every {@link com.procom.filefly.model.Document} */
+	private final String mQuery;
+	
+	/** The '_id's of the rows shown when the loader was created, newest first */
+	private final long[] mPreviousIds;
+	
+	/** The '_id' below which {@link com.procom.filefly.model.Document}s are read */
+	private final long mBeforeId;
+	
+	/** The maximum number of {@link com.procom.filefly.model.Document}s read */
+	private final int mLimit;
+	
+	/** The last result delivered, or <code>null</code> if nothing was read yet */
+	private DocumentDiff mDiff;
+	
+	/**
+	 * Constructs a loader of the {@link com.procom.filefly.model.Document}s with an '_id' below <code>beforeId</code>.
+	 * 
+	 * @param query The text to search for, or <code>null</code> to read every {@link com.procom.filefly.model.Document}
+	 * @param previousIds The '_id's of the rows the result replaces (see {@link com.procom.filefly.DocumentDiff#getIds}),
+	 * or an empty array if it is appended
+	 * @param beforeId The '_id' of the last {@link com.procom.filefly.model.Document} of the previous page,
+	 * or {@link java.lang.Long#MAX_VALUE} to read the newest {@link com.procom.filefly.model.Document}s
+	 * @param limit The maximum number of {@link com.procom.filefly.model.Document}s to read
+	 * @author Peter Piech
+	 */
+	public DocumentListLoader(Context context, SqliteController sqliteController, String query, long[] previousIds, long beforeId, int limit)
+	{
+		super(context);
+		mSqliteController = sqliteController;
+		mQuery = query;
+		mPreviousIds = previousIds;
+		mBeforeId = beforeId;
+		mLimit = limit;
+	}
+	
+	/**
+	 * @return The '_id' below which {@link com.procom.filefly.model.Document}s are read
+	 * @author Peter Piech
+	 */
+	public long getBeforeId()
+	{
+		return mBeforeId;
+	}
+	
+	/**
+	 * @return The maximum number of {@link com.procom.filefly.model.Document}s read
+	 * @author Peter Piech
+	 */
+	public int getLimit()
+	{
+		return mLimit;
+	}
+	
+	/**
+	 * Runs the query, builds the {@link com.procom.filefly.model.Document}s and diffs them on a background thread.
+	 * 
+	 * @author Peter Piech
+	 */
+	@Override
+	public DocumentDiff loadInBackground()
+	{
+		List<Document> documents = mSqliteController.getDocumentsBefore(mQuery, mBeforeId, mLimit);
+		return new DocumentDiff(mPreviousIds, documents);
+	}
+	
+	/**
+	 * Retains the result and delivers it if the loader is started.
+	 * 
+	 * @author Peter Piech
+	 */
+	@Override
+	public void deliverResult(DocumentDiff diff)
+	{
+		if (isReset())
+		{
+			return;
+		}
+		mDiff = diff;
+		if (isStarted())
+		{
+			super.deliverResult(diff);
+		}
+	}
+	
+	/**
+	 * Delivers the retained result immediately and reads again if nothing was read yet or the
+	 * content changed.
+	 * 
+	 * @author Peter Piech
+	 */
+	@Override
+	protected void onStartLoading()
+	{
+		if (mDiff != null)
+		{
+			deliverResult(mDiff);
+		}
+		if (takeContentChanged() || mDiff == null)
+		{
+			forceLoad();
+		}
+	}
+	
+	/**
+	 * Cancels a read in flight.
+	 * 
+	 * @author Peter Piech
+	 */
+	@Override
+	protected void onStopLoading()
+	{
+		cancelLoad();
+	}
+	
+	/**
+	 * Cancels a read in flight and drops the retained result.
+	 * 
+	 * @author Peter Piech
+	 */
+	@Override
+	protected void onReset()
+	{
+		onStopLoading();
+		mDiff = null;
+	}
+}
@@ -0,0 +1,145 @@
+package com.procom.filefly;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.procom.filefly.model.Document;
+
+/**
+ * Holds the pages of the transfer history read so far, newest first, so that the
+ * {@link com.procom.filefly.DocumentListFragment} only reads as many rows as the user has
+ * scrolled through.
+ * <p>
+ * Pages are read by a {@link com.procom.filefly.DocumentListLoader} using the '_id' of the last
+ * loaded {@link com.procom.filefly.model.Document} as the key (see
+ * {@link com.procom.filefly.SqliteController#getDocumentsBefore}), so removing a loaded
+ * {@link com.procom.filefly.model.Document} never shifts the next page.
+ * 
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-11-29
+ */
+public class DocumentPager
+{
+	/** The number of {@link com.procom.filefly.model.Document}s read per page */
+	public static final int PAGE_SIZE = 50;
+	
+	/** The {@link com.procom.filefly.model.Document}s of every page loaded so far */
+	private final List<Document> mDocuments = new ArrayList<Document>();
+	
+	/** The '_id' of the last {@link com.procom.filefly.model.Document} read */
+	private long mLastId = Long.MAX_VALUE;
+	
+	/** Whether the last page read was full, i.e. more {@link com.procom.filefly.model.Document}s may follow */
+	private boolean mHasMore = true;
+	
+	/**
+	 * @return The live {@link java.util.List} of the {@link com.procom.filefly.model.Document}s loaded so far
+	 * @author Peter Piech
+	 */
+	public List<Document> getDocuments()
+	{
+		return mDocuments;
+	}
+	
+	/**
+	 * @return Whether another page may hold more {@link com.procom.filefly.model.Document}s
+	 * @author Peter Piech
+	 */
+	public boolean hasMore()
+	{
+		return mHasMore;
+	}
+	
+	/**
+	 * @return The key of the next page, i.e. the '_id' of the last {@link com.procom.filefly.model.Document} read
+	 * @author Peter Piech
+	 */
+	public long getLastId()
+	{
+		return mLastId;
+	}
+	
+	/**
+	 * Replaces everything loaded so far with a fresh read of the newest {@link com.procom.filefly.model.Document}s,
+	 * e.g. after new files were received.
+	 * 
+	 * @param documents The newest {@link com.procom.filefly.model.Document}s
+	 * @param limit The number of {@link com.procom.filefly.model.Document}s that were asked for
+	 * @author Peter Piech
+	 */
+	public void setFirstPages(List<Document> documents, int limit)
+	{
+		mDocuments.clear();
+		mLastId = Long.MAX_VALUE;
+		mHasMore = true;
+		append(documents, limit);
+	}
+	
+	/**
+	 * Brings the loaded {@link com.procom.filefly.model.Document}s up to date with a fresh read of the
+	 * newest ones by inserting and removing only the rows that differ, so that the surviving rows
+	 * keep their {@link com.procom.filefly.model.Document} instances. If the diff was computed
+	 * against other rows than those loaded, everything is replaced instead.
+	 * 
+	 * @param diff The diff between the loaded {@link com.procom.filefly.model.Document}s and the fresh read
+	 * @param limit The number of {@link com.procom.filefly.model.Document}s that were asked for
+	 * @return Whether the diff was applied incrementally
+	 * @author Peter Piech
+	 */
+	public boolean applyDiff(DocumentDiff diff, int limit)
+	{
+		List<Document> documents = diff.getNewDocuments();
+		if (!diff.appliesTo(mDocuments))
+		{
+			setFirstPages(documents, limit);
+			return false;
+		}
+		int[] removed = diff.getRemoved();
+		for (int i = removed.length - 1; i >= 0; i--) // from the end so the remaining positions stay valid
+		{
+			mDocuments.remove(removed[i]);
+		}
+		for (int inserted : diff.getInserted()) // ascending, so each lands at its final position
+		{
+			mDocuments.add(inserted, documents.get(inserted));
+		}
+		mLastId = mDocuments.isEmpty() ? Long.MAX_VALUE : mDocuments.get(mDocuments.size() - 1).getId();
+		mHasMore = documents.size() == limit;
+		return true;
+	}
+	
+	/**
+	 * Appends a page unless it was read for a key that is no longer current, i.e. the history
+	 * was refreshed while the page was being read.
+	 * 
+	 * @param beforeId The key the page was read with
+	 * @param page The {@link com.procom.filefly.model.Document}s of the page
+	 * @return Whether the page was appended
+	 * @author Peter Piech
+	 */
+	public boolean appendPage(long beforeId, List<Document> page)
+	{
+		if (beforeId != mLastId) // i.e. a stale page
+		{
+			return false;
+		}
+		append(page, PAGE_SIZE);
+		return true;
+	}
+	
+	/**
+	 * Appends rows read with the given limit and advances the key.
+	 * 
+	 * @author Peter Piech
+	 */
+	private void append(List<Document> documents, int limit)
+	{
+		if (!documents.isEmpty())
+		{
+			mLastId = documents.get(documents.size() - 1).getId();
+			mDocuments.addAll(documents);
+		}
+		mHasMore = documents.size() == limit;
+	}
+}
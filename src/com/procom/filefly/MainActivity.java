@@ -1,7 +1,12 @@
 package com.procom.filefly;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import android.app.ActionBar;
 import android.app.Dialog;
@@ -10,17 +15,27 @@ import android.app.FragmentManager;
 import android.app.FragmentTransaction;
 import android.content.Context;
 import android.content.Intent;
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.nfc.NfcAdapter;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Parcelable;
 import android.support.v13.app.FragmentPagerAdapter;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.view.ViewPager;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.Toast;
 
+import com.procom.filefly.util.FileIndex;
 import com.procom.filefly.util.FilesIntentHandler;
+import com.procom.filefly.util.FolderWatcher;
+import com.procom.filefly.util.MetricsDumper;
+import com.procom.filefly.util.StreamTransfer;
+import com.procom.filefly.util.TransferEngine;
 
 /**
  * The {@link android.support.v4.app.FragmentActivity} responsible for handling the
@@ -54,16 +69,22 @@ public class MainActivity extends FragmentActivity implements ActionBar.TabListe
     private ViewPager mViewPager;
     
     /** Instance of {@link com.procom.filefly.SqliteController} to act as an interface with SQLite */
-    private SqliteController mSqliteController = new SqliteController(this);
+    private SqliteController mSqliteController;
     
     /** Instance of {@link com.procom.filefly.DocumentListFragment} to be managed by the ViewPager */
-    private DocumentListFragment mDocumentListFragment = new DocumentListFragment(mSqliteController);
+    private DocumentListFragment mDocumentListFragment;
     
     /**
      * Boolean used in conjunction with {@link com.procom.filefly.MainActivity#onNewIntent} to determine if
      * a file was received and if the "Received Files" tab should be opened
      */
     private boolean openReceivedFileAndTab;
+    
+    /** Whether the activity is currently between {@link #onResume} and {@link #onPause} */
+    private boolean mResumed;
+    
+    /** Drops the received files that are deleted or moved away outside of the app from the history while the activity is visible */
+    private FolderWatcher mReceivedWatcher;
 
     /**
      * Inflates the layout from XML, creates the {@link android.app.ActionBar} as
@@ -78,8 +99,28 @@ public class MainActivity extends FragmentActivity implements ActionBar.TabListe
     {
         super.onCreate(savedInstanceState);
         
+        mSqliteController = SqliteController.getInstance(this); // the shared connection needs the application context, which is only available from here on
+        mDocumentListFragment = new DocumentListFragment(mSqliteController);
+        
+        MetricsDumper.register(this); // debuggable builds only; lets "adb shell am broadcast" dump the transfer metrics
+        
         createDirectories(); // create the /FileFly and /FileFly/received directories on the SD Card (external storage)
         
+        mReceivedWatcher = new FolderWatcher(FilesIntentHandler.getReceivedDirectory(), new FolderWatcher.Callback()
+        {
+        	@Override
+        	public void onFolderChanged(Map<String, Set<String>> changes)
+        	{
+        		Set<String> names = changes.get(""); // only the received folder itself is watched
+        		List<String> paths = new ArrayList<String>(names.size());
+        		for (String name : names)
+        		{
+        			paths.add(new File(mReceivedWatcher.getRoot(), name).getAbsolutePath());
+        		}
+        		mSqliteController.deleteDocumentsWithMissingFiles(paths); // ignores the names that still exist
+        	}
+        });
+        
         openReceivedFileAndTab = false; // initialize to false
         
         onNewIntent(getIntent()); // handle the case where a file is being received and the app was not already open
@@ -155,6 +196,33 @@ public class MainActivity extends FragmentActivity implements ActionBar.TabListe
         }
     }
     
+    /**
+     * Starts watching the FileFly folder while the activity is visible, so that the file chooser
+     * and the "Received Files" tab reflect the changes made outside of the app without rescanning.
+     * 
+     * @author Peter Piech
+     */
+    @Override
+    protected void onStart()
+    {
+    	super.onStart();
+    	FileIndex.getInstance(this).startWatching();
+    	mReceivedWatcher.watch("");
+    }
+    
+    /**
+     * Stops watching the FileFly folder once the activity is no longer visible.
+     * 
+     * @author Peter Piech
+     */
+    @Override
+    protected void onStop()
+    {
+    	super.onStop();
+    	FileIndex.getInstance(this).stopWatching();
+    	mReceivedWatcher.unwatch("");
+    }
+    
     /**
      * Handles resumption from being paused.  This will check if a file was received and
      * open the "Received Files" tab if so. This method is called by the system
@@ -166,18 +234,35 @@ public class MainActivity extends FragmentActivity implements ActionBar.TabListe
     protected void onResume()
     {
     	super.onResume();
+    	mResumed = true;
     	if (openReceivedFileAndTab)
     	{
-    		openReceivedFileAndTab = false;
-    		mDocumentListFragment.notifyDataBaseChanged();
+    		openReceivedFileAndTab = false; // the list itself was refreshed through the DocumentCache
     		getActionBar().setSelectedNavigationItem(1); // open the "Received Files" tab
     	}
     }
     
+    /**
+     * Records that the activity is no longer in the foreground so that a receive completing
+     * in the background defers updating the "Received Files" tab to {@link #onResume}.
+     * 
+     * @author Peter Piech
+     */
+    @Override
+    protected void onPause()
+    {
+    	super.onPause();
+    	mResumed = false;
+    }
+    
     /**
      * Handles new, incoming {@link android.content.Intent}s. This method only performs actions
      * on the intent if it has the {@link android.content.Intent#ACTION_VIEW} schema
-     * indicating it is an incoming file.
+     * indicating it is an incoming file, or if it is an {@link android.nfc.NfcAdapter#ACTION_NDEF_DISCOVERED}
+     * carrying the handshake of files streamed over the local network.
+     * <p>
+     * The received file is saved by the {@link com.procom.filefly.util.TransferEngine} in the
+     * background and {@link #onFileReceived} is called once it is stored.
      * 
      * @author Peter Piech
      */
@@ -190,11 +275,111 @@ public class MainActivity extends FragmentActivity implements ActionBar.TabListe
 		if (intentAction.equals(Intent.ACTION_VIEW)) // i.e. an incoming file intent
     	{
     		FilesIntentHandler receive = new FilesIntentHandler(this);
-    		String filename = receive.handleViewIntent();
-    		openReceivedFileAndTab = true;
-    		startActivity(FilesIntentHandler.openFile(this, filename));
+    		receive.handleViewIntent(new ReceiveListener(receive));
     	}
+		else if (intentAction.equals(NfcAdapter.ACTION_NDEF_DISCOVERED)) // i.e. a tap delivered the handshake of a stream transfer
+		{
+			byte[] handshake = getHandshake(intent);
+			if (handshake != null)
+			{
+				FilesIntentHandler receive = new FilesIntentHandler(this);
+				receive.handleHandshake(handshake, new ReceiveListener(receive));
+			}
+		}
 	}
+    
+    /**
+     * Finds the handshake of a {@link com.procom.filefly.util.StreamTransfer} in the NDEF messages of an
+     * {@link android.nfc.NfcAdapter#ACTION_NDEF_DISCOVERED} {@link android.content.Intent}.
+     * 
+     * @return The payload of the handshake record or <code>null</code> if there is none
+     * @author Peter Piech
+     */
+    private static byte[] getHandshake(Intent intent)
+    {
+    	Parcelable[] messages = intent.getParcelableArrayExtra(NfcAdapter.EXTRA_NDEF_MESSAGES);
+    	if (messages == null)
+    	{
+    		return null;
+    	}
+    	for (Parcelable message : messages)
+    	{
+    		for (NdefRecord record : ((NdefMessage) message).getRecords())
+    		{
+    			if (StreamTransfer.HANDSHAKE_MIME_TYPE.equals(record.toMimeType()))
+    			{
+    				return record.getPayload();
+    			}
+    		}
+    	}
+    	return null;
+    }
+    
+    /**
+     * Reports the outcome of a receive started by {@link #onNewIntent}.
+     * 
+     * @author Peter Piech
+     */
+    private class ReceiveListener extends TransferEngine.TransferListener
+    {
+    	/** The handler performing the receive */
+    	private final FilesIntentHandler mReceive;
+    	
+    	/**
+    	 * Constructs a listener for the given receive.
+    	 * 
+    	 * @author Peter Piech
+    	 */
+    	ReceiveListener(FilesIntentHandler receive)
+    	{
+    		mReceive = receive;
+    	}
+    	
+    	@Override
+    	public void onSuccess(File result)
+    	{
+    		onFileReceived(mReceive.getReceivedFileNames(), result);
+    	}
+    	
+    	@Override
+    	public void onFailure(IOException e)
+    	{
+    		Toast.makeText(MainActivity.this, "Could not save the received file: " + e.getMessage(), Toast.LENGTH_LONG).show(); // show the user this message
+    	}
+    }
+    
+    /**
+     * Called on the main thread once the received files have been saved and recorded in the
+     * database. Shows the "Received Files" tab, right away if the activity is in the foreground
+     * or otherwise in {@link #onResume}, and opens the file if a single one was received.
+     * 
+     * @param filenames The names of the received files
+     * @param storedFile The stored file of the first received file
+     * @author Peter Piech
+     */
+    private void onFileReceived(List<String> filenames, File storedFile)
+    {
+    	if (filenames.size() == 1)
+    	{
+    		Toast.makeText(this, "File saved successfully!", Toast.LENGTH_LONG).show(); // show the user this message
+    	}
+    	else
+    	{
+    		Toast.makeText(this, filenames.size() + " files saved successfully!", Toast.LENGTH_LONG).show(); // show the user this message
+    	}
+    	if (mResumed) // the list itself is refreshed through the DocumentCache
+    	{
+    		getActionBar().setSelectedNavigationItem(1); // open the "Received Files" tab
+    	}
+    	else
+    	{
+    		openReceivedFileAndTab = true;
+    	}
+    	if (filenames.size() == 1) // a batch is browsed from the "Received Files" tab instead
+    	{
+    		startActivity(FilesIntentHandler.openFile(this, storedFile));
+    	}
+    }
 
     /**
 	 * Inflates the options menu in the {@link android.app.ActionBar} with the Settings menu item
@@ -206,6 +391,7 @@ public class MainActivity extends FragmentActivity implements ActionBar.TabListe
     {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.main, menu);
+        menu.findItem(R.id.action_dump_metrics).setVisible(MetricsDumper.isMenuShown(this)); // release builds only offer it once revealed from the About dialog
         return true;
     }
 
@@ -226,6 +412,17 @@ public class MainActivity extends FragmentActivity implements ActionBar.TabListe
         	dialog.setContentView(R.layout.about_dialog);
         	dialog.setTitle(R.string.action_about);
         	dialog.setCancelable(true);
+        	dialog.findViewById(R.id.about_paragraph).setOnLongClickListener(new View.OnLongClickListener() // a long press reveals the menu item dumping the metrics
+        	{
+				@Override
+				public boolean onLongClick(View v)
+				{
+					MetricsDumper.revealMenu();
+					invalidateOptionsMenu();
+					Toast.makeText(MainActivity.this, R.string.metrics_revealed, Toast.LENGTH_SHORT).show();
+					return true;
+				}
+			});
         	dialog.show();
         	return true;
         }
@@ -238,6 +435,12 @@ public class MainActivity extends FragmentActivity implements ActionBar.TabListe
         	dialog.show();
             return true;
         }
+        if (id == R.id.action_dump_metrics)
+        {
+        	MetricsDumper.dump(this);
+        	Toast.makeText(this, R.string.metrics_dumped, Toast.LENGTH_SHORT).show();
+        	return true;
+        }
         return super.onOptionsItemSelected(item);
     }
 
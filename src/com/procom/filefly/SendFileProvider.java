@@ -0,0 +1,282 @@
+package com.procom.filefly;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.webkit.MimeTypeMap;
+
+/**
+ * Read-only {@link android.content.ContentProvider} that publishes files in the
+ * FileFly directory on external storage under the sender-prefixed name expected by
+ * the receiving device.
+ * <p>
+ * A {@link android.net.Uri} of the form <code>content://com.procom.filefly.sendfiles/Last_First_/name.ext</code>
+ * is served straight from <code>/FileFly/name.ext</code> while reporting
+ * <code>Last_First_name.ext</code> as its {@link android.provider.OpenableColumns#DISPLAY_NAME},
+ * so the Android Beam API transmits the original file without a staging copy.
+ * <p>
+ * The provider is not exported. It only serves the files the user chose to send, each of which is
+ * published with {@link #publish}, which grants read access for its {@link android.net.Uri} to the
+ * system packages that carry out Android Beam. Every other {@link android.net.Uri}, including the
+ * files in FileFly/received, is refused.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-11-20
+ */
+public class SendFileProvider extends ContentProvider
+{
+	/** The authority of this {@link android.content.ContentProvider} as declared in the manifest */
+	public static final String AUTHORITY = "com.procom.filefly.sendfiles";
+
+	/** The columns returned by {@link #query} when the caller does not provide a projection */
+	private static final String[] sDefaultProjection = { OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE };
+
+	/** The packages that read the published files during Android Beam: the NFC service and the Bluetooth handover */
+	private static final String[] sBeamPackages = { "com.android.nfc", "com.android.bluetooth" };
+
+	/** The {@link android.net.Uri}s published by {@link #publish}, the only ones this provider serves */
+	private static final Set<Uri> sPublished = new HashSet<Uri>();
+
+	/**
+	 * Publishes a file in the FileFly directory under the given sender prefix and lets Android Beam read it.
+	 *
+	 * @param context The {@link android.content.Context} granting the access
+	 * @param senderPrefix The "Last_First_" prefix identifying the sender
+	 * @param filename The name of the file relative to the FileFly directory
+	 * @return The content {@link android.net.Uri} to hand to the Android Beam API
+	 * @author Peter Piech
+	 */
+	public static Uri publish(Context context, String senderPrefix, String filename)
+	{
+		Uri uri = new Uri.Builder()
+			.scheme("content")
+			.authority(AUTHORITY)
+			.appendPath(senderPrefix)
+			.appendPath(filename)
+			.build();
+		synchronized (sPublished)
+		{
+			sPublished.add(uri);
+		}
+		for (String packageName : sBeamPackages)
+		{
+			context.grantUriPermission(packageName, uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+		}
+		return uri;
+	}
+
+	/**
+	 * Stops serving every published file and revokes the access granted to Android Beam,
+	 * e.g. once the user chose other files.
+	 *
+	 * @param context The {@link android.content.Context} that granted the access
+	 * @author Peter Piech
+	 */
+	public static void withdrawAll(Context context)
+	{
+		List<Uri> published;
+		synchronized (sPublished)
+		{
+			published = new ArrayList<Uri>(sPublished);
+			sPublished.clear();
+		}
+		for (Uri uri : published)
+		{
+			context.revokeUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+		}
+	}
+
+	/**
+	 * Nothing to initialize since every {@link android.net.Uri} carries its own mapping.
+	 *
+	 * @author Peter Piech
+	 */
+	@Override
+	public boolean onCreate()
+	{
+		return true;
+	}
+
+	/**
+	 * Reports the sender-prefixed display name and the size of the source file.
+	 *
+	 * @author Peter Piech
+	 */
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder)
+	{
+		File source = getSourceFile(uri);
+		if (source == null || !source.isFile())
+		{
+			return null; // nothing is published under this Uri
+		}
+
+		if (projection == null)
+		{
+			projection = sDefaultProjection;
+		}
+
+		MatrixCursor cursor = new MatrixCursor(projection, 1);
+		Object[] row = new Object[projection.length];
+		for (int i = 0; i < projection.length; i++)
+		{
+			if (OpenableColumns.DISPLAY_NAME.equals(projection[i]))
+			{
+				row[i] = getDisplayName(uri);
+			}
+			else if (OpenableColumns.SIZE.equals(projection[i]))
+			{
+				row[i] = source.length();
+			}
+		}
+		cursor.addRow(row);
+		return cursor;
+	}
+
+	/**
+	 * Determines the MIME type from the extension of the source file.
+	 *
+	 * @author Peter Piech
+	 */
+	@Override
+	public String getType(Uri uri)
+	{
+		String filename = uri.getLastPathSegment();
+		if (filename == null)
+		{
+			return null;
+		}
+		int extBeginIndex = filename.lastIndexOf(".");
+		if (extBeginIndex == -1)
+		{
+			return "application/octet-stream";
+		}
+		String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(filename.substring(extBeginIndex + 1).toLowerCase());
+		return mimeType != null ? mimeType : "application/octet-stream";
+	}
+
+	/**
+	 * Opens the source file read-only. No data is copied; the caller reads the original file.
+	 *
+	 * @throws FileNotFoundException If the {@link android.net.Uri} does not map to a file in the
+	 * FileFly directory or write access was requested
+	 * @author Peter Piech
+	 */
+	@Override
+	public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException
+	{
+		if (!"r".equals(mode))
+		{
+			throw new FileNotFoundException("Files published by FileFly are read-only: " + uri);
+		}
+		File source = getSourceFile(uri);
+		if (source == null || !source.isFile())
+		{
+			throw new FileNotFoundException("No file published under " + uri);
+		}
+		return ParcelFileDescriptor.open(source, ParcelFileDescriptor.MODE_READ_ONLY);
+	}
+
+	/**
+	 * Not supported; the provider is read-only.
+	 *
+	 * @author Peter Piech
+	 */
+	@Override
+	public Uri insert(Uri uri, ContentValues values)
+	{
+		throw new UnsupportedOperationException("SendFileProvider is read-only");
+	}
+
+	/**
+	 * Not supported; the provider is read-only.
+	 *
+	 * @author Peter Piech
+	 */
+	@Override
+	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs)
+	{
+		throw new UnsupportedOperationException("SendFileProvider is read-only");
+	}
+
+	/**
+	 * Not supported; the provider is read-only.
+	 *
+	 * @author Peter Piech
+	 */
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs)
+	{
+		throw new UnsupportedOperationException("SendFileProvider is read-only");
+	}
+
+	/**
+	 * Builds the name the receiving device will see, i.e. the sender prefix followed by
+	 * the name of the source file.
+	 *
+	 * @author Peter Piech
+	 */
+	private static String getDisplayName(Uri uri)
+	{
+		List<String> segments = uri.getPathSegments();
+		return segments.get(0) + new File(segments.get(1)).getName();
+	}
+
+	/**
+	 * Maps a published {@link android.net.Uri} back onto the source file, refusing anything that
+	 * was not published or resolves outside of the FileFly directory or into FileFly/received.
+	 *
+	 * @return The source {@link java.io.File} or <code>null</code> if the {@link android.net.Uri} is not valid
+	 * @author Peter Piech
+	 */
+	private static File getSourceFile(Uri uri)
+	{
+		synchronized (sPublished)
+		{
+			if (!sPublished.contains(uri))
+			{
+				return null; // only the files the user chose to send are served
+			}
+		}
+		List<String> segments = uri.getPathSegments();
+		if (segments.size() != 2)
+		{
+			return null;
+		}
+		try
+		{
+			File root = new File(Environment.getExternalStorageDirectory(), "FileFly").getCanonicalFile();
+			File received = new File(root, "received").getCanonicalFile();
+			File source = new File(root, segments.get(1)).getCanonicalFile();
+			if (!source.getPath().startsWith(root.getPath() + File.separator))
+			{
+				return null; // e.g. "../" in the filename
+			}
+			if (source.getPath().startsWith(received.getPath() + File.separator))
+			{
+				return null; // received files are never sent on through this provider
+			}
+			return source;
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+}
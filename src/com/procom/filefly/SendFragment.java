@@ -1,17 +1,23 @@
 package com.procom.filefly;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
 
 import android.app.AlertDialog;
 import android.app.Fragment;
+import android.app.ProgressDialog;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
 import android.nfc.NfcAdapter;
 import android.nfc.NfcEvent;
 import android.os.Bundle;
@@ -20,6 +26,7 @@ import android.preference.PreferenceManager;
 import android.provider.Settings;
 import android.text.InputFilter;
 import android.text.Spanned;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -30,6 +37,15 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.procom.filefly.ChooseFileDialogFragment.ChooseFileDialogListener;
+import com.procom.filefly.util.ChunkedTransfer;
+import com.procom.filefly.util.ContentDigest;
+import com.procom.filefly.util.FilesIntentHandler;
+import com.procom.filefly.util.PayloadCompressor;
+import com.procom.filefly.util.StreamTransfer;
+import com.procom.filefly.util.TransferEngine;
+import com.procom.filefly.util.TransferEnvelope;
+import com.procom.filefly.util.TransferMetrics;
+import com.procom.filefly.util.WifiTransport;
 
 /**
  * Inflates the user interface for the "Sends" tab.
@@ -53,12 +69,33 @@ public class SendFragment extends Fragment implements OnClickListener, ChooseFil
 	private NfcAdapter mNfcAdapter;
 	
 	/**
-	 * The {@link java.lang.reflect.Array} of size 1 of {@link android.net.Uri}s that is returned 
+	 * The {@link java.lang.reflect.Array} of {@link android.net.Uri}s that is returned 
 	 * by the callback method, {@link com.procom.filefly.SendFragment.FileUriCallback#createBeamUris},
-	 * to the Android Beam API.  The single element of the array represents the file the user selected
-	 * to send via NFC.
+	 * to the Android Beam API.  Each element of the array represents one of the files the user selected
+	 * to send via NFC; all of them are carried by a single NFC handshake.
 	 */
-	private Uri[] mFileUris = new Uri[1];
+	private Uri[] mFileUris = new Uri[0];
+	
+	/** The original content of each prepared file, which a tap offers over the local network */
+	private File[] mSendFiles = new File[0];
+	
+	/** The detached {@link com.procom.filefly.util.TransferEnvelope} header describing each of {@link #mSendFiles} */
+	private byte[][] mSendHeaders = new byte[0][];
+	
+	/** The files offered over the local network by the last tap, if any */
+	private StreamTransfer.Offer mOffer;
+	
+	/** Hashes the prepared files that were published unread, see {@link #describeFiles}; <code>null</code> if there are none */
+	private TransferEngine.TransferHandle mDescribeHandle;
+	
+	/**
+	 * Set once a tap found the offer of the previous tap still waiting for the receiver, i.e. the
+	 * receiving device could not reach this one, after which the prepared files are only beamed
+	 */
+	private boolean mBeamOnly;
+	
+	/** The names of the files in the FileFly directory that the user selected */
+	private String[] mChosenFiles = new String[0];
 	
 	/**
 	 * The instance of {@link com.procom.filefly.SendFragment.FileUriCallback} used to
@@ -92,6 +129,34 @@ public class SendFragment extends Fragment implements OnClickListener, ChooseFil
 	 */
 	private static final String sAcceptedChars = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ"; // the allowed characters the user can input
 	
+	/**
+	 * The {@link android.content.SharedPreferences} key that, when <code>true</code>, sends a renamed copy
+	 * staged in the app's private data storage instead of publishing the original file through
+	 * {@link com.procom.filefly.SendFileProvider}.
+	 */
+	private static final String sStagedSendPref = "StagedSend";
+	
+	/**
+	 * The {@link android.content.SharedPreferences} key that, when <code>true</code> (the default), stages
+	 * compressible files as compressed payloads before they are sent.
+	 */
+	private static final String sCompressSendPref = "CompressSend";
+	
+	/** The number of milliseconds after which a staging copy is abandoned */
+	private static final long sStagingTimeout = 5 * 60 * 1000;
+	
+	/** The number of staging copies submitted to the {@link com.procom.filefly.util.TransferEngine} at a time, one per worker */
+	private static final int sMaxStagingJobs = 2;
+	
+	/**
+	 * The {@link android.content.SharedPreferences} key that, when <code>false</code>, always sends
+	 * through Android Beam instead of streaming over a shared Wi-Fi network.
+	 */
+	private static final String sStreamSendPref = "StreamSend";
+	
+	/** The number of milliseconds after which files offered over the local network are withdrawn */
+	private static final long sOfferTimeout = 2 * 60 * 1000;
+	
 	/**
 	 * Implements an array of {@link android.text.InputFilter}s that will be set on {@link android.widget.EditText}s to cleanse user input.
 	 * 
@@ -130,6 +195,7 @@ public class SendFragment extends Fragment implements OnClickListener, ChooseFil
 		{
 			mFileUriCallback = new FileUriCallback(); // Instantiate the Callback class used by the Android Beam API
 			mNfcAdapter.setBeamPushUrisCallback(mFileUriCallback, getActivity()); // actually set the callback instance for the Android Beam API
+			mNfcAdapter.setNdefPushMessageCallback(mFileUriCallback, getActivity()); // the same instance offers the files over the local network when possible
 		}
 		else // i.e. no physical NFC adapter is available
 		{
@@ -182,6 +248,18 @@ public class SendFragment extends Fragment implements OnClickListener, ChooseFil
 		super.onResume();
 		requireNfcEnabled(); // check to see if the user enabled NFC since the last time the app was in view
 	}
+	
+	/**
+	 * Withdraws the files offered over the local network.
+	 * 
+	 * @author Peter Piech
+	 */
+	@Override
+	public void onDestroy()
+	{
+		super.onDestroy();
+		setPrepared(new Uri[0], new File[0], new byte[0][]); // also stops hashing the published files
+	}
 
 	/**
 	 * This is the method that the {@link android.view.View.OnClickListener} interface requires.
@@ -344,73 +422,366 @@ public class SendFragment extends Fragment implements OnClickListener, ChooseFil
 			editor.commit();
 		}
 		
-		String transfer_file = mFilenameTextView.getText().toString(); // get the filename String from the TextView's contents
-		if (transfer_file.equals("<No File Selected>")) // i.e. the default value that means no file has been chosen yet
+		if (mChosenFiles.length == 0) // i.e. no file has been chosen yet
 		{
 			Toast.makeText(getActivity(), "Choose a file first.", Toast.LENGTH_LONG).show(); // show the user this message
 			return; // cancel any further processing of the button click
 		}
 		
-		/* full_name is the prefix of the file to be sent so that
-		 * the name of the person can be determined from the filename
-		 * itself on the receiving end. */
-		String full_name = mLNameEditText.getText().toString() + "_" + mFNameEditText.getText().toString() + "_";
-		
-		/* tmp_filename is the name of the file to be copied into the
-		 * app's private data storage from the root of the FileFly folder
-		 * located in the root of the sdcard.  It will then be transmitted
-		 * via NFC. */
-		String tmp_filename = full_name + transfer_file; // the name of the file to be transferred from the app's private data storage after 
-		
+		SendFileProvider.withdrawAll(getActivity()); // the files of an earlier send are no longer served
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getActivity());
+		boolean stageAll = prefs.getBoolean(sStagedSendPref, false); // i.e. the user opted back into staging renamed copies
+		boolean compress = prefs.getBoolean(sCompressSendPref, true); // i.e. compressible files are staged compressed
+		stageFiles(mLNameEditText.getText().toString(), mFNameEditText.getText().toString(), mChosenFiles.clone(), stageAll, compress); // the Uris are set once every file is described in the background
+	}
+
+	/**
+	 * Prepares the files the user selected in the background. Every file is described by the header
+	 * of a {@link com.procom.filefly.util.TransferEnvelope}, which tells the receiver the sender, the
+	 * original name, the size, the MIME type and the hash of the file. Files that are worth compressing
+	 * (see {@link com.procom.filefly.util.PayloadCompressor#shouldCompress}) are staged compressed in
+	 * an envelope. The other files are sent as they are together with a sidecar holding their detached
+	 * header: if <code>stageAll</code> is set as plain copies, which is the original send path, otherwise
+	 * published through {@link com.procom.filefly.SendFileProvider} without reading them at all, in which
+	 * case they are ready to send at once and hashed afterwards by {@link #describeFiles}. Envelopes and sidecars are named with the sender prefix plus
+	 * the {@link com.procom.filefly.util.TransferEnvelope#EXTENSION} suffix, so the receiver can group the
+	 * files of a batch. A stream over the local network sends the original content of every file with
+	 * its detached header instead.
+	 * <p>
+	 * One job per file is run by the {@link com.procom.filefly.util.TransferEngine}. At most
+	 * {@link #sMaxStagingJobs} of them are submitted at a time, and the next one is submitted as each
+	 * completes, so a batch of any size fits the bounded queue of the engine. A progress dialog shows the combined progress and
+	 * {@link #mFileUris} is only set once every file is ready.
+	 * 
+	 * @param lastName The last name of the sender
+	 * @param firstName The first name of the sender
+	 * @param transfer_files The names of the files in the FileFly folder
+	 * @param stageAll Whether files that are not compressed are staged as plain copies
+	 * @param compress Whether compressible files are staged compressed
+	 * @author Peter Piech
+	 */
+	private void stageFiles(final String lastName, final String firstName, String[] transfer_files, final boolean stageAll, final boolean compress)
+	{
+		final String full_name = lastName + "_" + firstName + "_"; // the "Last_First_" prefix identifying the sender
 		File appDir = Environment.getExternalStorageDirectory(); // returns the path to the sd card
         String appDirPath = appDir.getPath() +  "/FileFly"; // path to FileFly folder on sd card
-        File requestFile = new File(appDirPath, transfer_file); // file requested by user to be transmitted
-        requestFile.setReadable(true, false); // Android Beam API requires file to be set to readable
-        
 		File extDir = getActivity().getExternalFilesDir(null); // returns the path to the app's private data storage on the sdcard
-		File tmpExtFile = new File (extDir.getPath() + tmp_filename); // path to the temporary file to be transmitted via NFC
+		final Context context = getActivity().getApplicationContext(); // publishes the files even if the fragment was detached meanwhile
 		
-		FileChannel src = null; // source file stream (the file pointed to by requestFile)
-		FileChannel dest = null; // destination file stream (the file pointed to by tmpExtFile)
+		final int count = transfer_files.length;
+		final Uri[][] stagedUris = new Uri[count][]; // the Uris beamed for each file, filled in as the copies complete
+		final File[] sidecars = new File[count]; // the sidecar of each file sent as it is, null for an envelope
+		final File[] sendFiles = new File[count]; // the file holding the original content of each file, streamed instead of the Uris
+		final byte[][] sendHeaders = new byte[count][]; // the detached header describing each file
+		final boolean[] unhashed = new boolean[count]; // set for each file published unread, whose sidecar is written once it was hashed
+		final long[] bytesCopied = new long[count]; // progress of each copy
+		final long[] bytesTotal = new long[count]; // size of each file
+		final int[] remaining = { count }; // copies that have not completed yet
+		final boolean[] failed = { false }; // set once any copy fails or is cancelled
+		final Runnable[] starters = new Runnable[count]; // submits the copy of each file
+		final int[] next = { 0 }; // the index of the next copy to submit
+		final List<TransferEngine.TransferHandle> handles = new ArrayList<TransferEngine.TransferHandle>();
 		
-		try // attempt to write the destination file
+		final ProgressDialog progressDialog = new ProgressDialog(getActivity()); // shows the progress of the copies to the user
+		progressDialog.setMessage(getString(R.string.preparing_file));
+		progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+		progressDialog.setProgressNumberFormat(null); // the percentage is enough
+		progressDialog.setMax(100);
+		progressDialog.setCanceledOnTouchOutside(false);
+		
+		for (int i = 0; i < count; i++)
 		{
-			tmpExtFile.createNewFile(); // create the file if it doesn't exist
-			tmpExtFile.setReadable(true, false); // Android Beam API requires file to be set to readable
-			tmpExtFile.setWritable(true, false); // set the file to writable as an added precaution
-			src = new FileInputStream(requestFile).getChannel(); // retrieve the FileStream input for the requestFile
-			dest = new FileOutputStream(tmpExtFile).getChannel(); // retrieve the FileStream output for the tmpExtFile which will be truncated if it exists
-			dest.transferFrom(src, 0, src.size()); // transfer the data from src to dest
+			final int index = i;
+			
+			/* tmp_filename is the name of the file to be copied into the
+			 * app's private data storage from the root of the FileFly folder
+			 * located in the root of the sdcard.  It will then be transmitted
+			 * via NFC. */
+			final String transfer_file = transfer_files[i];
+			final String tmp_filename = full_name + new File(transfer_file).getName(); // the name the file is staged under in the app's private data storage, without the subfolder it was chosen from
+			final File requestFile = new File(appDirPath, transfer_file); // file requested by user to be transmitted
+			final File tmpExtFile = new File(extDir, tmp_filename); // path to the temporary file to be transmitted via NFC
+			final File tmpEnvelopeFile = new File(extDir, tmp_filename + TransferEnvelope.EXTENSION); // path to the temporary envelope or sidecar to be transmitted via NFC
+			
+			starters[i] = new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					handles.add(TransferEngine.getInstance().submit(new TransferEngine.TransferJob()
+					{
+						@Override
+						public File run(TransferEngine.TransferHandle handle) throws IOException
+						{
+							long startTime = System.nanoTime();
+							String mimeType = FilesIntentHandler.getMimeType(requestFile);
+							File staged; // the file beamed in place of requestFile, or null to publish requestFile itself
+							byte[] header; // describes the file to a stream and, in its sidecar, to Android Beam
+							if (compress && PayloadCompressor.shouldCompress(requestFile))
+							{
+								staged = tmpEnvelopeFile;
+								ContentDigest digest = TransferEnvelope.wrap(requestFile, staged, lastName, firstName, requestFile.getName(), mimeType, true, handle); // stream the data from requestFile through the compressor behind a header describing it
+								header = TransferEnvelope.encodeDetachedHeader(lastName, firstName, requestFile.getName(), mimeType, digest); // a compressed file is streamed uncompressed, so it is described like the others
+							}
+							else if (stageAll)
+							{
+								staged = tmpExtFile;
+								requestFile.setReadable(true, false); // Android Beam API requires file to be set to readable
+								ContentDigest digest = new ContentDigest();
+								ChunkedTransfer.copy(requestFile, staged, handle, digest); // transfer the data from requestFile to tmpExtFile, resuming an interrupted staging of the same file
+								header = TransferEnvelope.encodeDetachedHeader(lastName, firstName, requestFile.getName(), mimeType, digest);
+								FileUtils.writeByteArrayToFile(tmpEnvelopeFile, header); // the sidecar describing the file
+								tmpEnvelopeFile.setReadable(true, false); // Android Beam API requires file to be set to readable
+								sidecars[index] = tmpEnvelopeFile; // read on the main thread once the job reported its success
+							}
+							else
+							{
+								staged = null; // the original file is published as is, without reading it
+								header = TransferEnvelope.encodeUnhashedHeader(lastName, firstName, requestFile.getName(), mimeType, requestFile.length());
+								tmpEnvelopeFile.delete(); // the sidecar of an earlier send; the new one is written once the file was hashed
+								sidecars[index] = tmpEnvelopeFile;
+								unhashed[index] = true;
+								handle.publishProgress(requestFile.length(), requestFile.length());
+							}
+							if (staged != null)
+							{
+								staged.setReadable(true, false); // Android Beam API requires file to be set to readable
+								staged.setWritable(true, false); // set the file to writable as an added precaution
+							}
+							TransferMetrics.recordStage(TransferMetrics.Stage.STAGE, requestFile.length(), System.nanoTime() - startTime);
+							sendHeaders[index] = header;
+							return staged;
+						}
+					}, new TransferEngine.TransferListener()
+					{
+						@Override
+						public void onProgress(long bytes, long total)
+						{
+							bytesCopied[index] = bytes;
+							bytesTotal[index] = total;
+							long sumCopied = 0;
+							long sumTotal = 0;
+							for (int j = 0; j < count; j++)
+							{
+								sumCopied += bytesCopied[j];
+								sumTotal += bytesTotal[j];
+							}
+							progressDialog.setProgress(sumTotal > 0 ? (int) (sumCopied * 100 / sumTotal) : 100);
+						}
+				
+						@Override
+						public void onSuccess(File result)
+						{
+							Uri contentUri = result != null
+									? Uri.fromFile(result) // return a Uri for the file to be transferred by NFC as required for the Android Beam API callback
+									: SendFileProvider.publish(context, full_name, transfer_file); // publish the original file under the prefixed name; nothing is copied
+							stagedUris[index] = sidecars[index] != null && !unhashed[index] ? new Uri[] { contentUri, Uri.fromFile(sidecars[index]) } : new Uri[] { contentUri };
+							sendFiles[index] = result == tmpExtFile ? result : requestFile; // an envelope is only beamed; its original content is streamed
+							onFinished();
+						}
+				
+						@Override
+						public void onFailure(IOException e)
+						{
+							failed[0] = true; // the partial copy is kept so the next attempt resumes it
+							onFinished();
+						}
+				
+						@Override
+						public void onCancelled()
+						{
+							failed[0] = true; // the partial copy is kept so the next attempt resumes it
+							onFinished();
+						}
+				
+						/**
+						 * Publishes the batch once the last copy completed.
+						 * 
+						 * @author Peter Piech
+						 */
+						private void onFinished()
+						{
+							remaining[0]--;
+							if (failed[0])
+							{
+								remaining[0] -= count - next[0]; // the copies not submitted yet are dropped
+								next[0] = count;
+							}
+							else if (next[0] < count)
+							{
+								starters[next[0]++].run(); // this worker is free again
+							}
+							if (remaining[0] > 0)
+							{
+								return; // other copies are still running
+							}
+							if (progressDialog.isShowing())
+							{
+								progressDialog.dismiss();
+							}
+							if (!isAdded()) // i.e. the fragment is no longer attached to the activity
+							{
+								return;
+							}
+							if (failed[0])
+							{
+								Toast.makeText(getActivity(), "File error! Try again.", Toast.LENGTH_LONG).show(); // show the user this message
+							}
+							else
+							{
+								setPrepared(flatten(stagedUris), sendFiles, sendHeaders);
+								describeFiles(stagedUris, sendFiles, sendHeaders, sidecars, unhashed);
+								Toast.makeText(getActivity(), "Success! Now tap phones.", Toast.LENGTH_LONG).show(); // show the user this message
+							}
+						}
+					}, sStagingTimeout));
+				}
+			};
 		}
-		catch (IOException e) // catch and file input/output errors
+		
+		while (next[0] < Math.min(count, sMaxStagingJobs))
 		{
-			Toast.makeText(getActivity(), "File error! Try again.", Toast.LENGTH_LONG).show(); // show the user this message
-			return; // cancel any further processing of the button click
+			starters[next[0]++].run();
 		}
-		finally // be sure to close resources to avoid leaks
+		
+		progressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() // the back button cancels every copy
 		{
-			try // attempt to close src and dest
+			@Override
+			public void onCancel(DialogInterface dialog)
 			{
-				src.close(); // close src file stream
-				dest.close(); // close dest file stream
+				for (TransferEngine.TransferHandle handle : handles)
+				{
+					handle.cancel();
+				}
 			}
-			catch (IOException e) // catch errors while closing
+		});
+		progressDialog.show();
+	}
+	
+	/**
+	 * Hashes the prepared files that were published unread, one after the other in a single job of the
+	 * {@link com.procom.filefly.util.TransferEngine}, and describes each with its sidecar and its final
+	 * header as soon as it was hashed, so hashing never delays the moment a file is ready to send. Until
+	 * then a tap that streams the batch offers the file with its unhashed header and hands the final one
+	 * to the {@link com.procom.filefly.util.StreamTransfer.Offer}, whose receiver gets it after the content,
+	 * while Android Beam sends the file without a sidecar, so the receiver hashes it like any plain file.
+	 * <p>
+	 * The job is cancelled once another batch is prepared. If a file cannot be read or changed since it
+	 * was published, the batch is withdrawn and the user is asked to send it again.
+	 * 
+	 * @param stagedUris The {@link android.net.Uri}s beamed for each file, to which the sidecars are added
+	 * @param sendFiles The original content of each file
+	 * @param sendHeaders The headers of the prepared batch, as passed to {@link #setPrepared}
+	 * @param sidecars The sidecar of each file sent as it is
+	 * @param unhashed Whether each file was published unread
+	 * @author Peter Piech
+	 */
+	private void describeFiles(final Uri[][] stagedUris, final File[] sendFiles, final byte[][] sendHeaders, final File[] sidecars, final boolean[] unhashed)
+	{
+		boolean any = false;
+		for (boolean u : unhashed)
+		{
+			any |= u;
+		}
+		if (!any)
+		{
+			return; // every file was read while it was prepared
+		}
+		TransferEngine.TransferHandle handle = TransferEngine.getInstance().submit(new TransferEngine.TransferJob()
+		{
+			@Override
+			public File run(TransferEngine.TransferHandle handle) throws IOException
+			{
+				for (int i = 0; i < sendFiles.length; i++)
+				{
+					if (!unhashed[i])
+					{
+						continue;
+					}
+					TransferEnvelope.Header published = new TransferEnvelope.Header();
+					published.parse(sendHeaders[i], 0, sendHeaders[i].length); // written by this device, so it is valid
+					ContentDigest digest = ContentDigest.of(sendFiles[i], handle);
+					if (digest.getLength() != published.getContentSize())
+					{
+						throw new IOException(sendFiles[i] + " changed after it was published");
+					}
+					byte[] header = TransferEnvelope.encodeDetachedHeader(published.getLastName(), published.getFirstName(), published.getFileName(), published.getMimeType(), digest);
+					FileUtils.writeByteArrayToFile(sidecars[i], header); // the sidecar describing the file
+					sidecars[i].setReadable(true, false); // Android Beam API requires file to be set to readable
+					if (!describePrepared(sendHeaders, stagedUris, i, header, sidecars[i]))
+					{
+						return null; // another batch was prepared meanwhile
+					}
+				}
+				return null;
+			}
+		}, new TransferEngine.TransferListener()
+		{
+			@Override
+			public void onSuccess(File result) {}
+			
+			@Override
+			public void onFailure(IOException e)
 			{
+				synchronized (SendFragment.this)
+				{
+					if (mSendHeaders != sendHeaders || !isAdded()) // i.e. the batch was replaced or the fragment detached
+					{
+						return;
+					}
+				}
+				Log.w("SendFragment", "Could not describe the prepared files", e);
+				setPrepared(new Uri[0], new File[0], new byte[0][]); // the receiver could not verify the files
+				SendFileProvider.withdrawAll(getActivity());
 				Toast.makeText(getActivity(), "File error! Try again.", Toast.LENGTH_LONG).show(); // show the user this message
 			}
+		});
+		synchronized (this)
+		{
+			mDescribeHandle = handle;
 		}
-		
-		Uri fileUri = Uri.fromFile(tmpExtFile); // return a Uri for the file to be transferred by NFC as required for the Android Beam API callback
-		if (fileUri != null) // verify fileUri was created successfully
+	}
+	
+	/**
+	 * Replaces the unhashed header of a prepared file with its final one, adds its sidecar to the
+	 * {@link android.net.Uri}s that Android Beam sends and hands the header to the open offer, if any.
+	 * 
+	 * @param sendHeaders The headers of the batch the file belongs to
+	 * @param stagedUris The {@link android.net.Uri}s beamed for each file of the batch
+	 * @param index The index of the file in the batch
+	 * @param header The final detached header of the file
+	 * @param sidecar The sidecar holding <code>header</code>
+	 * @return Whether the batch is still the prepared one
+	 * @author Peter Piech
+	 */
+	private synchronized boolean describePrepared(byte[][] sendHeaders, Uri[][] stagedUris, int index, byte[] header, File sidecar)
+	{
+		if (mSendHeaders != sendHeaders)
 		{
-			mFileUris[0] = fileUri; // set the single position of the array to be Uri returned for the file
+			return false;
 		}
-		else // i.e. fileUri is null
+		sendHeaders[index] = header; // offered up front by the next tap
+		stagedUris[index] = new Uri[] { stagedUris[index][0], Uri.fromFile(sidecar) };
+		mFileUris = flatten(stagedUris);
+		if (mOffer != null)
 		{
-			Toast.makeText(getActivity(), "File error! Try again.", Toast.LENGTH_LONG).show(); // show the user this message
-			return; // cancel any further processing of the button click
+			mOffer.describe(index, header); // sent to a receiver after the content
+		}
+		return true;
+	}
+	
+	/**
+	 * @return The {@link android.net.Uri}s of every file in order, all carried by the same NFC handshake
+	 * @author Peter Piech
+	 */
+	private static Uri[] flatten(Uri[][] stagedUris)
+	{
+		List<Uri> fileUris = new ArrayList<Uri>();
+		for (Uri[] uris : stagedUris)
+		{
+			fileUris.addAll(Arrays.asList(uris));
 		}
-		Toast.makeText(getActivity(), "Success! Now tap phones.", Toast.LENGTH_LONG).show(); // show the user this message
+		return fileUris.toArray(new Uri[fileUris.size()]);
 	}
 	
 	/**
@@ -425,19 +796,75 @@ public class SendFragment extends Fragment implements OnClickListener, ChooseFil
 	@Override
 	public void onFileChosen(ChooseFileDialogFragment dialog)
 	{
-		mFilenameTextView.setText(dialog.getChosenFilename()); // set the TextView to be the resulting filename that the ChooseFileDialogFragment is storing
-		mFileUris[0] = null; // invalidate the previous choice
+		mChosenFiles = dialog.getChosenFilenames(); // the filenames that the ChooseFileDialogFragment is storing
+		if (mChosenFiles.length == 1)
+		{
+			mFilenameTextView.setText(mChosenFiles[0]); // set the TextView to be the resulting filename
+		}
+		else
+		{
+			mFilenameTextView.setText(getResources().getString(R.string.files_chosen, mChosenFiles.length)); // set the TextView to summarize the selection
+		}
+		setPrepared(new Uri[0], new File[0], new byte[0][]); // invalidate the previous choice
+		SendFileProvider.withdrawAll(getActivity());
+	}
+	
+	/**
+	 * Makes prepared files the ones that the next tap sends, withdrawing the files offered by an earlier tap
+	 * and no longer describing the files of the previous batch.
+	 * 
+	 * @param fileUris The {@link android.net.Uri}s handed to Android Beam
+	 * @param sendFiles The original content of each file, which is offered over the local network instead when possible
+	 * @param sendHeaders The detached header describing each of <code>sendFiles</code>, unhashed for a file published unread
+	 * @author Peter Piech
+	 */
+	private synchronized void setPrepared(Uri[] fileUris, File[] sendFiles, byte[][] sendHeaders)
+	{
+		closeOffer();
+		if (mDescribeHandle != null)
+		{
+			mDescribeHandle.cancel();
+			mDescribeHandle = null;
+		}
+		mBeamOnly = false;
+		mFileUris = fileUris;
+		mSendFiles = sendFiles;
+		mSendHeaders = sendHeaders;
+	}
+	
+	/**
+	 * Withdraws the files offered over the local network by the last tap, if any.
+	 * 
+	 * @author Peter Piech
+	 */
+	private synchronized void closeOffer()
+	{
+		if (mOffer != null)
+		{
+			mOffer.close();
+			mOffer = null;
+		}
 	}
 	
 	/**
 	 * Provides the necessary methods for the Callback used by the Android Beam API
 	 * for NFC file transfer using an array of {@link android.net.Uri}s corresponding
 	 * to the files being transferred.
+	 * <p>
+	 * When this device is on a local network, e.g. Wi-Fi, the tap instead pushes an NDEF message
+	 * holding the handshake of a {@link com.procom.filefly.util.StreamTransfer.Offer}, and the
+	 * receiving device fetches the files over that network. The system asks for the NDEF message
+	 * before the {@link android.net.Uri}s, and Android Beam only pushes the NDEF message if there are no
+	 * {@link android.net.Uri}s, so none are returned while an offer is open.
+	 * <p>
+	 * If the receiving device cannot reach this one, e.g. because it is on another network, it asks
+	 * the user to tap again. That tap finds the previous offer still waiting, so the offer is
+	 * withdrawn and the prepared files are sent through Android Beam from then on.
 	 * 
 	 * @author Peter Piech
 	 *
 	 */
-	private class FileUriCallback implements NfcAdapter.CreateBeamUrisCallback
+	private class FileUriCallback implements NfcAdapter.CreateBeamUrisCallback, NfcAdapter.CreateNdefMessageCallback
 	{
 		/**
 		 * Empty default constructor.
@@ -454,7 +881,55 @@ public class SendFragment extends Fragment implements OnClickListener, ChooseFil
 		@Override
 		public Uri[] createBeamUris(NfcEvent event)
 		{
-			return mFileUris; // Simply return the array of Uris. No dynamic generation is performed.
+			synchronized (SendFragment.this)
+			{
+				if (mOffer != null && !mOffer.isClosed())
+				{
+					return null; // the files are streamed instead
+				}
+				return mFileUris; // Simply return the array of Uris. No dynamic generation is performed.
+			}
+		}
+		
+		/**
+		 * Offers the prepared files over the local network, with a new one-time token for every tap.
+		 * 
+		 * @return The NDEF message holding the handshake, or <code>null</code> to send through Android Beam
+		 * @author Peter Piech
+		 */
+		@Override
+		public NdefMessage createNdefMessage(NfcEvent event)
+		{
+			synchronized (SendFragment.this)
+			{
+				if (mOffer != null && !mOffer.isClosed() && !mOffer.isTaken()) // i.e. the receiver of the previous tap could not connect
+				{
+					mBeamOnly = true;
+				}
+				closeOffer();
+				if (mBeamOnly || mSendFiles.length == 0 || getActivity() == null
+						|| !PreferenceManager.getDefaultSharedPreferences(getActivity()).getBoolean(sStreamSendPref, true))
+				{
+					return null;
+				}
+				WifiTransport transport = WifiTransport.forWifi(getActivity());
+				if (transport == null) // i.e. not on Wi-Fi, so the files can only be beamed
+				{
+					return null;
+				}
+				try
+				{
+					mOffer = StreamTransfer.offer(transport, Arrays.asList(mSendFiles), Arrays.asList(mSendHeaders), sOfferTimeout);
+				}
+				catch (IOException e)
+				{
+					Log.w("SendFragment", "Falling back to Android Beam", e);
+					return null;
+				}
+				return new NdefMessage(
+						NdefRecord.createMime(StreamTransfer.HANDSHAKE_MIME_TYPE, mOffer.getHandshake()),
+						NdefRecord.createApplicationRecord(getActivity().getPackageName())); // starts FileFly on the receiving device
+			}
 		}
 	}
 }
\ No newline at end of file
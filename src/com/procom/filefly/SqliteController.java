@@ -3,24 +3,39 @@
  */
 package com.procom.filefly;
 
+import java.io.File;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 
 import com.procom.filefly.model.Document;
+import com.procom.filefly.util.FilesIntentHandler;
+import com.procom.filefly.util.TransferMetrics;
 
 
 /**
  * The {@link android.database.sqlite.SQLiteOpenHelper} that  manages database 
  * creation and version management. 
+ * <p>
+ * A single instance, obtained from {@link #getInstance}, is shared by the whole process and keeps
+ * its connection open for the lifetime of the process. Frequently executed SQL is compiled once
+ * into {@link android.database.sqlite.SQLiteStatement}s that are reused with bound parameters;
+ * since compiled statements are not thread-safe, every method using them is synchronized.
+ * The newest documents are also held in a {@link com.procom.filefly.DocumentCache}, which is
+ * updated write-through and notifies its observers of every change.
  * Ref.: http://mrbool.com/how-to-insert-data-into-a-sqlite-database-in-android/28895
  * @author Saurabh Sharma
  * @version 0.7b
@@ -72,23 +87,89 @@ public class SqliteController extends SQLiteOpenHelper
 	 */
 	private static final String column_dateTransferred = "_dateTransferred";
 	
+	/**
+	 * A {@link java.lang.String} representing '_fileSize' column of table document, the size of
+	 * the received file in bytes as represented by '_fileSize' field of {@link com.procom.filefly.model.Document}      
+	 */
+	private static final String column_fileSize = "_fileSize";
+	
+	/**
+	 * A {@link java.lang.String} representing '_blobId' column of table document, referencing the
+	 * '_id' of the stored file in table blob_store      
+	 */
+	private static final String column_blobId = "_blobId";
+	
+	/**
+	 * A {@link java.lang.String} representing '_sha256' column of table document, the SHA-256 of the
+	 * received content as computed while it was written
+	 */
+	private static final String column_sha256 = "_sha256";
+	
+	/**
+	 * A {@link java.lang.String} representing a table in the SQlite database mapping content hashes
+	 * of received files to their stored path, as used by {@link com.procom.filefly.util.ContentStore}
+	 */
+	private static final String table_blob = "blob_store";
+	
+	/**
+	 * A {@link java.lang.String} representing '_hash' column of table blob_store, the SHA-256 of the content      
+	 */
+	private static final String column_hash = "_hash";
+	
+	/**
+	 * A {@link java.lang.String} representing '_path' column of table blob_store, the absolute path of the stored file      
+	 */
+	private static final String column_path = "_path";
+	
+	/**
+	 * A {@link java.lang.String} representing '_refCount' column of table blob_store, the number of
+	 * documents referencing the stored file      
+	 */
+	private static final String column_refCount = "_refCount";
+	
+	/**
+	 * A {@link java.lang.String} representing a full-text index of table document over the file and
+	 * sender names. Its 'docid' is the '_id' of the indexed document      
+	 */
+	private static final String table_fts = "document_fts";
+	
 	/**
 	 * A {@link java.lang.String} representing 'locale' column of the table android_metadata      
 	 */
 	private static final String column_locale = "locale";
 	
 	/**
-	 * A {@link java.lang.String} representing an SQL to create an empty database with three
-	 * tables: table1, table2 and android_metadata.      
+	 * A {@link java.lang.String} representing an SQL to create table document. '_dateTransferred'
+	 * holds milliseconds since the epoch so that it sorts and compares in SQL.      
 	 */
-	private static final String DATABASE_CREATE = 
+	private static final String DOCUMENT_CREATE = 
      "CREATE TABLE " + "'" + table1  + "'" + 
 		      "( " +   "'" + column_id  + "'" + " integer primary key autoincrement, " +  
 		      		   "'" + column_fileName + "'" + " text not null, " +
 		      		   "'" + column_ownerFName + "'" + " text, " + 
 		      		   "'" + column_ownerLName + "'" + " text, " + 
-		      		   "'" + column_dateTransferred + "'" + " text not null " +
-		        ");"+ 
+		      		   "'" + column_dateTransferred + "'" + " integer not null, " +
+		      		   "'" + column_fileSize + "'" + " integer, " +
+		      		   "'" + column_blobId + "'" + " integer, " +
+		      		   "'" + column_sha256 + "'" + " text " +
+		        ");";
+	
+	/**
+	 * {@link java.lang.String}s representing SQL to create the indexes of table document, so that
+	 * lookups by name, sender or date are index scans      
+	 */
+	private static final String[] DOCUMENT_INDEXES = {
+     "CREATE INDEX " + "'" + "document_fileName" + "'" + " ON " + "'" + table1 + "'" + "(" + column_fileName + ");",
+     "CREATE INDEX " + "'" + "document_owner" + "'" + " ON " + "'" + table1 + "'" + "(" + column_ownerLName + ", " + column_ownerFName + ");",
+     "CREATE INDEX " + "'" + "document_dateTransferred" + "'" + " ON " + "'" + table1 + "'" + "(" + column_dateTransferred + ");"
+	};
+	
+	/**
+	 * A {@link java.lang.String} representing an SQL to create an empty database with three
+	 * tables: table1, table2 and android_metadata.      
+	 */
+	private static final String DATABASE_CREATE = 
+     DOCUMENT_CREATE + 
      "CREATE TABLE " + "'" + "android_metadata" + "'" +
 	    	    "("  + "'" +  column_locale +   "Text default " + "\"" + "en_US" + "\" " +
 		        ");" + 
@@ -97,17 +178,185 @@ public class SqliteController extends SQLiteOpenHelper
 		        	   "'" + "seq" + "'" + " TEXT " +
 		        ");";
 	
-	/** The {@link java.text.SimpleDateFormat} used to store {@link java.util.Date}s as {@link java.lang.String}s */
+	/**
+	 * A {@link java.lang.String} representing an SQL to create table blob_store      
+	 */
+	private static final String BLOB_CREATE = 
+     "CREATE TABLE " + "'" + table_blob + "'" + 
+		      "( " +   "'" + column_id + "'" + " integer primary key autoincrement, " +
+		      		   "'" + column_hash + "'" + " text not null unique, " +
+		      		   "'" + column_path + "'" + " text not null, " +
+		      		   "'" + column_refCount + "'" + " integer not null default 0 " +
+		        ");";
+	
+	/**
+	 * A {@link java.lang.String} representing an SQL to create table document_fts      
+	 */
+	private static final String FTS_CREATE = 
+     "CREATE VIRTUAL TABLE " + "'" + table_fts + "'" + " USING fts4" +
+		      "( " + column_fileName + ", " + column_ownerFName + ", " + column_ownerLName + " );";
+	
+	/**
+	 * A {@link java.lang.String} representing an SQL to index every existing row of table document in table document_fts      
+	 */
+	private static final String FTS_POPULATE = 
+     "INSERT INTO " + table_fts + " (docid, " + column_fileName + ", " + column_ownerFName + ", " + column_ownerLName + ") " +
+		      "SELECT " + column_id + ", " + column_fileName + ", " + column_ownerFName + ", " + column_ownerLName + " FROM " + table1 + ";";
+	
+	/** The {@link java.text.SimpleDateFormat} that {@link java.util.Date}s were stored with before version 5 */
 	private static final SimpleDateFormat mSimpleDateFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss:SS zzz");
 	
+	/** The instance shared by the process, created by {@link #getInstance} */
+	private static SqliteController sInstance;
+	
+	/** The newest documents, kept up to date by every write */
+	private final DocumentCache mDocumentCache = new DocumentCache();
+	
+	/** Inserts a row into table document */
+	private SQLiteStatement mInsertDocumentStmt;
+	
+	/** Inserts a row into table document_fts */
+	private SQLiteStatement mInsertFtsStmt;
+	
+	/** Deletes the rows of table document_fts indexing the documents with a given file name */
+	private SQLiteStatement mDeleteFtsStmt;
+	
+	/** Increments the reference count of a row of table blob_store */
+	private SQLiteStatement mAddRefStmt;
+	
+	/** Decrements the reference count of a row of table blob_store */
+	private SQLiteStatement mReleaseRefStmt;
+	
+	/** Selects the path of a row of table blob_store that is no longer referenced */
+	private SQLiteStatement mOrphanPathStmt;
+	
+	/** Deletes a row of table blob_store */
+	private SQLiteStatement mDeleteBlobStmt;
+	
+	/** Deletes the rows of table document with a given file name */
+	private SQLiteStatement mDeleteDocumentStmt;
+	
+	/** Selects the '_id' of the row of table blob_store with a given hash */
+	private SQLiteStatement mBlobIdStmt;
+	
+	/** Selects the path of a row of table blob_store */
+	private SQLiteStatement mBlobPathStmt;
+	
+	/** Inserts a row into table blob_store */
+	private SQLiteStatement mInsertBlobStmt;
+	
+	/** Updates the path of a row of table blob_store */
+	private SQLiteStatement mUpdateBlobPathStmt;
+	
 	/**
 	 * Constructor for {@link com.procom.filefly.SqliteController}
 	 * 
 	 * @author Saurabh Sharma
 	 */
-	public SqliteController(Context applicationcontext) 
+	private SqliteController(Context applicationcontext) 
+	{
+		super(applicationcontext, "datastore.db", null, 7);
+	}
+	
+	/**
+	 * Gets the {@link com.procom.filefly.SqliteController} shared by the process, creating it on first use.
+	 * 
+	 * @param context Any {@link android.content.Context} of the app; only its application context is retained
+	 * @return The shared {@link com.procom.filefly.SqliteController}
+	 */
+	public static synchronized SqliteController getInstance(Context context)
+	{
+		if (sInstance == null)
+		{
+			sInstance = new SqliteController(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+	
+	/**
+	 * @return The {@link com.procom.filefly.DocumentCache} of the newest documents, which observers
+	 * register with to be notified of inserts and deletes
+	 */
+	public DocumentCache getDocumentCache()
+	{
+		return mDocumentCache;
+	}
+	
+	/**
+	 * Gets the shared connection, compiling the cached statements the first time it is opened.
+	 * The connection is never closed; it lives as long as the process.
+	 */
+	private synchronized SQLiteDatabase getDatabase()
 	{
-		super(applicationcontext, "datastore.db", null, 3);
+		SQLiteDatabase database = this.getWritableDatabase();
+		if (mInsertDocumentStmt == null)
+		{
+			mInsertDocumentStmt = database.compileStatement(
+					"INSERT INTO " + table1 + " (" + column_fileName + ", " + column_ownerFName + ", " + column_ownerLName + ", " +
+					column_dateTransferred + ", " + column_fileSize + ", " + column_blobId + ", " + column_sha256 + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+			mInsertFtsStmt = database.compileStatement(
+					"INSERT INTO " + table_fts + " (docid, " + column_fileName + ", " + column_ownerFName + ", " + column_ownerLName + ") VALUES (?, ?, ?, ?)");
+			mDeleteFtsStmt = database.compileStatement(
+					"DELETE FROM " + table_fts + " WHERE docid IN (SELECT " + column_id + " FROM " + table1 + " WHERE " + column_fileName + " = ?)");
+			mAddRefStmt = database.compileStatement(
+					"UPDATE " + table_blob + " SET " + column_refCount + " = " + column_refCount + " + 1 WHERE " + column_id + " = ?");
+			mReleaseRefStmt = database.compileStatement(
+					"UPDATE " + table_blob + " SET " + column_refCount + " = " + column_refCount + " - 1 WHERE " + column_id + " = ?");
+			mOrphanPathStmt = database.compileStatement(
+					"SELECT " + column_path + " FROM " + table_blob + " WHERE " + column_id + " = ? AND " + column_refCount + " <= 0");
+			mDeleteBlobStmt = database.compileStatement(
+					"DELETE FROM " + table_blob + " WHERE " + column_id + " = ?");
+			mDeleteDocumentStmt = database.compileStatement(
+					"DELETE FROM " + table1 + " WHERE " + column_fileName + " = ?");
+			mBlobIdStmt = database.compileStatement(
+					"SELECT " + column_id + " FROM " + table_blob + " WHERE " + column_hash + " = ?");
+			mBlobPathStmt = database.compileStatement(
+					"SELECT " + column_path + " FROM " + table_blob + " WHERE " + column_id + " = ?");
+			mInsertBlobStmt = database.compileStatement(
+					"INSERT INTO " + table_blob + " (" + column_hash + ", " + column_path + ", " + column_refCount + ") VALUES (?, ?, 1)");
+			mUpdateBlobPathStmt = database.compileStatement(
+					"UPDATE " + table_blob + " SET " + column_path + " = ? WHERE " + column_id + " = ?");
+			sweepBlobs(database); // before any reference is taken by this process
+		}
+		return database;
+	}
+	
+	/**
+	 * Recounts the references of every row of table blob_store from table document and deletes the
+	 * stored files that no document references, e.g. because the process died between storing a
+	 * received file and recording its document.
+	 */
+	private void sweepBlobs(SQLiteDatabase database)
+	{
+		List<String> orphanedPaths = new ArrayList<String>();
+		database.beginTransaction();
+		try
+		{
+			database.execSQL("UPDATE " + table_blob + " SET " + column_refCount + " = (SELECT COUNT(*) FROM " + table1 +
+					" WHERE " + table1 + "." + column_blobId + " = " + table_blob + "." + column_id + ")");
+			Cursor cursor = database.rawQuery("SELECT " + column_path + " FROM " + table_blob + " WHERE " + column_refCount + " <= 0", null);
+			try
+			{
+				while (cursor.moveToNext())
+				{
+					orphanedPaths.add(cursor.getString(0));
+				}
+			}
+			finally
+			{
+				cursor.close();
+			}
+			database.execSQL("DELETE FROM " + table_blob + " WHERE " + column_refCount + " <= 0");
+			database.setTransactionSuccessful();
+		}
+		finally
+		{
+			database.endTransaction();
+		}
+		for (String path : orphanedPaths) // only remove the files once the transaction committed
+		{
+			new File(path).delete();
+		}
 	}
 	
 
@@ -120,6 +369,13 @@ public class SqliteController extends SQLiteOpenHelper
 	{
 		SQLiteStatement stmt = database.compileStatement(DATABASE_CREATE);
 		stmt.execute();
+		stmt = database.compileStatement(BLOB_CREATE);
+		stmt.execute();
+		for (String index : DOCUMENT_INDEXES)
+		{
+			database.execSQL(index);
+		}
+		database.execSQL(FTS_CREATE);
 	}
 	
 	/**
@@ -138,25 +394,123 @@ public class SqliteController extends SQLiteOpenHelper
 	private static final String drop_sqliteSeq = "Drop table if exists sqlite_sequence";
 	
 	/**
-	 * Upgrades the version of {@link android.database.sqlite.SQLiteDatabase} by incrementing 
-	 * the old version till it becomes equal to the current version and then drops the tables 
-	 * and recreates the {@link android.database.sqlite.SQLiteDatabase}.
+	 * Upgrades the version of {@link android.database.sqlite.SQLiteDatabase} one version at a time
+	 * so that the transfer history is preserved. Databases older than version 3 are dropped
+	 * and recreated. {@link android.database.sqlite.SQLiteOpenHelper} runs the whole upgrade in
+	 * one transaction, so a failed migration leaves the old schema untouched.
 	 */
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int version_old, int current_version) 
 	{ 
-		int upgradeTo = version_old + 1;
-        while (upgradeTo <= current_version)
-        {     
-            upgradeTo++;
-        }
-        SQLiteStatement stmt = db.compileStatement(drop_andMetaData);
-        stmt.execute();
-        stmt = db.compileStatement(drop_document);
-        stmt.execute();
-        stmt = db.compileStatement(drop_sqliteSeq);
-        stmt.execute();
-        onCreate(db);
+		if (version_old < 3) // i.e. no migration exists for these versions
+		{
+	        SQLiteStatement stmt = db.compileStatement(drop_andMetaData);
+	        stmt.execute();
+	        stmt = db.compileStatement(drop_document);
+	        stmt.execute();
+	        stmt = db.compileStatement(drop_sqliteSeq);
+	        stmt.execute();
+	        onCreate(db);
+	        return;
+		}
+		if (version_old < 4)
+		{
+			/* Version 4 adds the content-addressed blob_store table; existing documents keep a null _blobId */
+			db.execSQL("ALTER TABLE " + table1 + " ADD COLUMN " + column_blobId + " integer");
+			db.execSQL(BLOB_CREATE);
+		}
+		if (version_old < 5)
+		{
+			migrateToVersion5(db);
+		}
+		if (version_old < 6)
+		{
+			/* Version 6 adds the full-text index of the file and sender names */
+			db.execSQL(FTS_CREATE);
+			db.execSQL(FTS_POPULATE);
+		}
+		if (version_old < 7)
+		{
+			/* Version 7 records the SHA-256 of every document; stored files already have it in blob_store */
+			if (version_old >= 5) // the table rebuilt for version 5 already has the column
+			{
+				db.execSQL("ALTER TABLE " + table1 + " ADD COLUMN " + column_sha256 + " text");
+			}
+			db.execSQL("UPDATE " + table1 + " SET " + column_sha256 + " = (SELECT " + column_hash + " FROM " + table_blob +
+					" WHERE " + table_blob + "." + column_id + " = " + table1 + "." + column_blobId + ")");
+		}
+	}
+	
+	/**
+	 * Rebuilds table document for version 5, which stores '_dateTransferred' as milliseconds since the
+	 * epoch instead of formatted text, records '_fileSize' and indexes the columns the list is
+	 * filtered and sorted by. SQLite cannot change the type of a column, so the rows are copied into
+	 * a new table, keeping their '_id'. The size is taken from the stored file when it still exists.
+	 */
+	private static void migrateToVersion5(SQLiteDatabase db)
+	{
+		String oldTable = table1 + "_v4";
+		db.execSQL("ALTER TABLE " + table1 + " RENAME TO " + oldTable);
+		db.execSQL(DOCUMENT_CREATE);
+		
+		SQLiteStatement insert = db.compileStatement(
+				"INSERT INTO " + table1 + " (" + column_id + ", " + column_fileName + ", " + column_ownerFName + ", " + column_ownerLName + ", " +
+				column_dateTransferred + ", " + column_fileSize + ", " + column_blobId + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+		Cursor cursor = db.rawQuery("SELECT d." + column_id + ", d." + column_fileName + ", d." + column_ownerFName + ", d." + column_ownerLName +
+				", d." + column_dateTransferred + ", d." + column_blobId + ", b." + column_path +
+				" FROM " + oldTable + " d LEFT JOIN " + table_blob + " b ON d." + column_blobId + " = b." + column_id, null);
+		File receivedDirectory = FilesIntentHandler.getReceivedDirectory();
+		try
+		{
+			while (cursor.moveToNext())
+			{
+				insert.clearBindings();
+				insert.bindLong(1, cursor.getLong(0));
+				insert.bindString(2, cursor.getString(1));
+				if (!cursor.isNull(2))
+				{
+					insert.bindString(3, cursor.getString(2));
+				}
+				if (!cursor.isNull(3))
+				{
+					insert.bindString(4, cursor.getString(3));
+				}
+				long dateTransferred = 0; // rows with a missing or unreadable date sort last rather than being lost
+				if (!cursor.isNull(4))
+				{
+					try
+					{
+						dateTransferred = mSimpleDateFormat.parse(cursor.getString(4)).getTime();
+					}
+					catch (ParseException p)
+					{
+						p.printStackTrace();
+					}
+				}
+				insert.bindLong(5, dateTransferred);
+				File file = cursor.isNull(6) ? new File(receivedDirectory, cursor.getString(1)) : new File(cursor.getString(6));
+				if (file.isFile())
+				{
+					insert.bindLong(6, file.length());
+				}
+				if (!cursor.isNull(5))
+				{
+					insert.bindLong(7, cursor.getLong(5));
+				}
+				insert.executeInsert();
+			}
+		}
+		finally
+		{
+			cursor.close();
+			insert.close();
+		}
+		
+		db.execSQL("DROP TABLE " + oldTable);
+		for (String index : DOCUMENT_INDEXES)
+		{
+			db.execSQL(index);
+		}
 	}
 	
 	/**
@@ -166,73 +520,450 @@ public class SqliteController extends SQLiteOpenHelper
 
 	public void insertData(Document doc) 
 	{ 
-		SQLiteDatabase database = this.getWritableDatabase();
-		SQLiteStatement stmt = database.compileStatement(
-		"insert into "+ table1 + "(_filename, _ownerFirstName, _ownerLastName, _dateTransferred)" +
-		" values " + "( " + "'" +
-						doc.getFilename() + "', '" +
-						doc.getOwnerFirstName() + "', '" +  
-						doc.getOwnerLastName() + "', '" +
-						mSimpleDateFormat.format(doc.getDateTransferred()) + "'" +
-						" );"
-		);
-		stmt.execute();
-		database.close();
+		insertData(Collections.singletonList(doc));
+	}
+	
+	/**
+	 * Inserts a batch of {@link com.procom.filefly.model.Document}s into the 
+	 * {@link android.database.sqlite.SQLiteDatabase} in a single transaction. Each document takes
+	 * over the reference to its stored file that was taken by {@link #acquireBlob} or {@link #insertBlob}.
+	 * 
+	 * @param docs The {@link com.procom.filefly.model.Document}s to record
+	 */
+	public synchronized void insertData(List<Document> docs)
+	{
+		long startTime = System.nanoTime();
+		SQLiteDatabase database = getDatabase();
+		List<Document> inserted = new ArrayList<Document>(docs.size());
+		database.beginTransaction();
+		try
+		{
+			for (Document doc : docs)
+			{
+				mInsertDocumentStmt.bindString(1, doc.getFilename());
+				mInsertDocumentStmt.bindString(2, doc.getOwnerFirstName());
+				mInsertDocumentStmt.bindString(3, doc.getOwnerLastName());
+				mInsertDocumentStmt.bindLong(4, doc.getDateTransferredMillis());
+				if (doc.getFileSize() != -1)
+				{
+					mInsertDocumentStmt.bindLong(5, doc.getFileSize());
+				}
+				else
+				{
+					mInsertDocumentStmt.bindNull(5);
+				}
+				if (doc.getBlobId() != -1)
+				{
+					mInsertDocumentStmt.bindLong(6, doc.getBlobId());
+				}
+				else
+				{
+					mInsertDocumentStmt.bindNull(6);
+				}
+				if (doc.getSha256() != null)
+				{
+					mInsertDocumentStmt.bindString(7, doc.getSha256());
+				}
+				else
+				{
+					mInsertDocumentStmt.bindNull(7);
+				}
+				long id = mInsertDocumentStmt.executeInsert();
+				mInsertFtsStmt.bindLong(1, id);
+				mInsertFtsStmt.bindString(2, doc.getFilename());
+				mInsertFtsStmt.bindString(3, doc.getOwnerFirstName());
+				mInsertFtsStmt.bindString(4, doc.getOwnerLastName());
+				mInsertFtsStmt.execute(); // keep the full-text index in step with table document
+				inserted.add(new Document(id, doc.getFilename(), doc.getOwnerFirstName(), doc.getOwnerLastName(),
+						doc.getDateTransferredMillis(), doc.getBlobId(), doc.getStoredPath(), doc.getFileSize(), doc.getSha256()));
+			}
+			database.setTransactionSuccessful();
+		}
+		finally
+		{
+			database.endTransaction();
+		}
+		TransferMetrics.recordStage(TransferMetrics.Stage.INSERT, 0, System.nanoTime() - startTime);
+		mDocumentCache.onInserted(inserted); // only reached once the transaction committed
 	}
 	
 	/**
 	 * Takes filename representing {@link com.procom.filefly.model.Document}'s name as input and 
-	 * deletes it from the {@link android.database.sqlite.SQLiteDatabase}.
+	 * deletes it from the {@link android.database.sqlite.SQLiteDatabase}. The reference count of
+	 * each stored file referenced by the deleted documents is decremented, and stored files that
+	 * are no longer referenced are deleted along with their blob_store row.
 	 * 
 	 * Reference: http://mrbool.com/how-to-insert-data-into-a-sqlite-database-in-android/28895
 	 */
 	public void deleteDocument(String fileName) 
 	{ 
-		SQLiteDatabase database = this.getWritableDatabase();
-		String deleteQuery = "DELETE FROM document where _fileName='"+ fileName +"'";
-		database.execSQL(deleteQuery); 
+		deleteDocuments(Collections.singletonList(fileName));
 	}
-
 	
 	/**
-	 * Retrieves information of all the stored {@link com.procom.filefly.model.Document}. 
+	 * Deletes a batch of {@link com.procom.filefly.model.Document}s by name in a single transaction,
+	 * releasing their stored files as {@link #deleteDocument} does.
 	 * 
-	 * @return {@link List} of {@link com.procom.filefly.model.Document} present
-	 * 
-	 * Reference: http://mrbool.com/how-to-insert-data-into-a-sqlite-database-in-android/28895
+	 * @param fileNames The names of the {@link com.procom.filefly.model.Document}s to delete
 	 */
-	public List<Document> getAllDocuments()
+	public synchronized void deleteDocuments(List<String> fileNames)
 	{
-		SQLiteDatabase database = this.getWritableDatabase();
-		List<Document> docList;
-		String filename, ownerFirstName, ownerLastName;
-		Date dateTransferred;
-		docList = new ArrayList<Document>();
-		String selectQuery = "SELECT  * FROM document";
-		Cursor cursor = database.rawQuery(selectQuery, null);
-		if (cursor.moveToFirst()) 
-		{ 
-			do 
-			{   
-				filename = cursor.getString(1);
-				ownerFirstName = cursor.getString(2);
-				ownerLastName = cursor.getString(3);
+		SQLiteDatabase database = getDatabase();
+		List<String> orphanedPaths = new ArrayList<String>();
+		database.beginTransaction();
+		try
+		{
+			for (String fileName : fileNames)
+			{
+				List<Long> blobIds = new ArrayList<Long>();
+				Cursor cursor = database.rawQuery("SELECT " + column_blobId + " FROM " + table1 + " WHERE " + column_fileName + " = ? AND " + column_blobId + " IS NOT NULL", new String[] { fileName });
 				try
 				{
-					/*
-					 * Formats the date as 11/04/2014 21:53:43 EST
-					 */
-					dateTransferred = mSimpleDateFormat.parse(cursor.getString(4));
-					Document d = new Document(filename, ownerFirstName, ownerLastName, dateTransferred);
-					docList.add(d);
+					while (cursor.moveToNext())
+					{
+						blobIds.add(cursor.getLong(0));
+					}
 				}
-				catch(ParseException p)
+				finally
 				{
-				  	p.printStackTrace();
+					cursor.close();
 				}
-			}while (cursor.moveToNext()); 
-		} 
-		// return contact list 
+				
+				mDeleteFtsStmt.bindString(1, fileName); // before the rows it looks up are gone
+				mDeleteFtsStmt.executeUpdateDelete();
+				mDeleteDocumentStmt.bindString(1, fileName);
+				mDeleteDocumentStmt.executeUpdateDelete();
+				
+				for (Long blobId : blobIds) // one decrement per deleted reference
+				{
+					releaseBlob(blobId, orphanedPaths);
+				}
+			}
+			database.setTransactionSuccessful();
+		}
+		finally
+		{
+			database.endTransaction();
+		}
+		mDocumentCache.onDeleted(fileNames);
+		for (String path : orphanedPaths) // only remove the files once the transaction committed
+		{
+			new File(path).delete();
+		}
+	}
+	
+	/**
+	 * Releases the references to stored files taken for {@link com.procom.filefly.model.Document}s that
+	 * will not be inserted, e.g. because the rest of their batch failed. Stored files that are no
+	 * longer referenced are deleted along with their blob_store row.
+	 * 
+	 * @param blobIds The '_id' of the blob of each {@link com.procom.filefly.model.Document} that was not inserted
+	 */
+	public synchronized void releaseBlobs(List<Long> blobIds)
+	{
+		SQLiteDatabase database = getDatabase();
+		List<String> orphanedPaths = new ArrayList<String>();
+		database.beginTransaction();
+		try
+		{
+			for (Long blobId : blobIds)
+			{
+				releaseBlob(blobId, orphanedPaths);
+			}
+			database.setTransactionSuccessful();
+		}
+		finally
+		{
+			database.endTransaction();
+		}
+		for (String path : orphanedPaths) // only remove the files once the transaction committed
+		{
+			new File(path).delete();
+		}
+	}
+	
+	/**
+	 * Decrements the reference count of a stored file and deletes its blob_store row if that was
+	 * the last reference. This must be called within a transaction.
+	 * 
+	 * @param blobId The '_id' of the blob
+	 * @param orphanedPaths Receives the path of the stored file if it is no longer referenced
+	 */
+	private void releaseBlob(long blobId, List<String> orphanedPaths)
+	{
+		mReleaseRefStmt.bindLong(1, blobId);
+		mReleaseRefStmt.executeUpdateDelete();
+		mOrphanPathStmt.bindLong(1, blobId);
+		try
+		{
+			orphanedPaths.add(mOrphanPathStmt.simpleQueryForString());
+			mDeleteBlobStmt.bindLong(1, blobId); // that was the last reference
+			mDeleteBlobStmt.executeUpdateDelete();
+		}
+		catch (SQLiteDoneException e)
+		{
+			// still referenced by other documents
+		}
+	}
+	
+	/**
+	 * Deletes the {@link com.procom.filefly.model.Document}s whose files were deleted or moved away
+	 * from FileFly/received outside of the app, so that the history only lists files that can be opened.
+	 * Since documents are deleted by name, a name is only deleted once none of the documents
+	 * with that name has a file left.
+	 *
+	 * @param paths The absolute paths of files that disappeared from FileFly/received
+	 */
+	public synchronized void deleteDocumentsWithMissingFiles(Collection<String> paths)
+	{
+		SQLiteDatabase database = getDatabase();
+		File receivedDirectory = FilesIntentHandler.getReceivedDirectory();
+		Set<String> candidates = new HashSet<String>();
+		for (String path : paths)
+		{
+			if (new File(path).exists()) // e.g. replaced within the same burst of changes
+			{
+				continue;
+			}
+			Cursor cursor = database.rawQuery("SELECT d." + column_fileName + " FROM " + table1 + " d LEFT JOIN " + table_blob + " b ON d." + column_blobId + " = b." + column_id +
+					" WHERE b." + column_path + " = ? OR (d." + column_blobId + " IS NULL AND d." + column_fileName + " = ?)",
+					new String[] { path, new File(path).getParentFile().equals(receivedDirectory) ? new File(path).getName() : "" });
+			try
+			{
+				while (cursor.moveToNext())
+				{
+					candidates.add(cursor.getString(0));
+				}
+			}
+			finally
+			{
+				cursor.close();
+			}
+		}
+
+		List<String> fileNames = new ArrayList<String>();
+		for (String fileName : candidates)
+		{
+			boolean missing = true;
+			Cursor cursor = database.rawQuery("SELECT b." + column_path + " FROM " + table1 + " d LEFT JOIN " + table_blob + " b ON d." + column_blobId + " = b." + column_id +
+					" WHERE d." + column_fileName + " = ?", new String[] { fileName });
+			try
+			{
+				while (missing && cursor.moveToNext())
+				{
+					File file = cursor.isNull(0) ? new File(receivedDirectory, fileName) : new File(cursor.getString(0)); // documents older than the content-addressed store are found by name
+					missing = !file.exists();
+				}
+			}
+			finally
+			{
+				cursor.close();
+			}
+			if (missing)
+			{
+				fileNames.add(fileName);
+			}
+		}
+		if (!fileNames.isEmpty())
+		{
+			deleteDocuments(fileNames);
+		}
+	}
+
+	/**
+	 * Looks up a stored file by the hash of its content and takes a reference to it, so it is not
+	 * deleted by a concurrent {@link #deleteDocument} before the document pointing at it is inserted.
+	 * The reference is handed to {@link #insertData} or returned with {@link #releaseBlobs}.
+	 * 
+	 * @param hash The SHA-256 of the content as a lowercase hexadecimal {@link java.lang.String}
+	 * @return The '_id' of the blob or -1 if no file with this content is stored
+	 */
+	public synchronized long acquireBlob(String hash)
+	{
+		getDatabase();
+		mBlobIdStmt.bindString(1, hash);
+		long blobId;
+		try
+		{
+			blobId = mBlobIdStmt.simpleQueryForLong();
+		}
+		catch (SQLiteDoneException e)
+		{
+			return -1; // no row
+		}
+		mAddRefStmt.bindLong(1, blobId);
+		mAddRefStmt.executeUpdateDelete();
+		return blobId;
+	}
+	
+	/**
+	 * Gets the path of a stored file.
+	 * 
+	 * @param blobId The '_id' of the blob
+	 * @return The absolute path of the stored file or <code>null</code> if the blob does not exist
+	 */
+	public synchronized String getBlobPath(long blobId)
+	{
+		getDatabase();
+		mBlobPathStmt.bindLong(1, blobId);
+		try
+		{
+			return mBlobPathStmt.simpleQueryForString();
+		}
+		catch (SQLiteDoneException e)
+		{
+			return null; // no row
+		}
+	}
+	
+	/**
+	 * Records a newly stored file. Its reference count starts at 1 for the document about to be
+	 * inserted by {@link #insertData}, or released with {@link #releaseBlobs}.
+	 * 
+	 * @param hash The SHA-256 of the content as a lowercase hexadecimal {@link java.lang.String}
+	 * @param path The absolute path of the stored file
+	 * @return The '_id' of the new blob
+	 */
+	public synchronized long insertBlob(String hash, String path)
+	{
+		getDatabase();
+		mInsertBlobStmt.bindString(1, hash);
+		mInsertBlobStmt.bindString(2, path);
+		return mInsertBlobStmt.executeInsert();
+	}
+	
+	/**
+	 * Moves the record of a stored file to a new path, e.g. after the file was deleted outside
+	 * of the app and stored again.
+	 * 
+	 * @param blobId The '_id' of the blob
+	 * @param path The new absolute path of the stored file
+	 */
+	public synchronized void updateBlobPath(long blobId, String path)
+	{
+		getDatabase();
+		mUpdateBlobPathStmt.bindString(1, path);
+		mUpdateBlobPathStmt.bindLong(2, blobId);
+		mUpdateBlobPathStmt.executeUpdateDelete();
+	}
+
+	
+	/**
+	 * Retrieves one page of the stored {@link com.procom.filefly.model.Document}s, newest first.
+	 * Pages are addressed by the '_id' of the last row of the previous page rather than by an
+	 * offset, so each page is a range scan of the primary key however deep into the history it is.
+	 * 
+	 * @param beforeId The '_id' of the last {@link com.procom.filefly.model.Document} of the previous page,
+	 * or {@link java.lang.Long#MAX_VALUE} for the first page
+	 * @param limit The maximum number of {@link com.procom.filefly.model.Document}s to return
+	 * @return {@link List} of the {@link com.procom.filefly.model.Document}s with an '_id' below <code>beforeId</code>
+	 */
+	public List<Document> getDocumentsBefore(long beforeId, int limit)
+	{
+		return getDocumentsBefore(null, beforeId, limit);
+	}
+	
+	/**
+	 * Retrieves one page of the stored {@link com.procom.filefly.model.Document}s whose file or sender
+	 * name contains words starting with every word of the query, newest first. The words are looked
+	 * up in the full-text index document_fts, so the search does not scan table document.
+	 * 
+	 * @param query The text typed by the user, or <code>null</code> to retrieve every {@link com.procom.filefly.model.Document}
+	 * @param beforeId The '_id' of the last {@link com.procom.filefly.model.Document} of the previous page,
+	 * or {@link java.lang.Long#MAX_VALUE} for the first page
+	 * @param limit The maximum number of {@link com.procom.filefly.model.Document}s to return
+	 * @return {@link List} of the matching {@link com.procom.filefly.model.Document}s with an '_id' below <code>beforeId</code>
+	 */
+	public List<Document> getDocumentsBefore(String query, long beforeId, int limit)
+	{
+		String match = query == null ? null : toMatchExpression(query);
+		if (match == null && beforeId == Long.MAX_VALUE) // i.e. the newest documents, which are cached
+		{
+			List<Document> cached = mDocumentCache.getNewest(limit);
+			if (cached != null)
+			{
+				return cached;
+			}
+			long version = mDocumentCache.getVersion();
+			List<Document> docList = mDocumentCache.getPrefix(limit);
+			if (docList == null || docList.isEmpty())
+			{
+				docList = queryDocumentsBefore(null, beforeId, limit);
+			}
+			else // i.e. more than the cache holds, so only the documents older than the held ones are read
+			{
+				docList.addAll(queryDocumentsBefore(null, docList.get(docList.size() - 1).getId(), limit - docList.size()));
+			}
+			mDocumentCache.fill(version, docList, limit);
+			return docList;
+		}
+		return queryDocumentsBefore(match, beforeId, limit);
+	}
+	
+	/**
+	 * Reads one page of documents from the database, bypassing the {@link com.procom.filefly.DocumentCache}.
+	 * 
+	 * @param match The FTS MATCH expression, or <code>null</code> to read every document
+	 * @see #getDocumentsBefore(String, long, int)
+	 */
+	private List<Document> queryDocumentsBefore(String match, long beforeId, int limit)
+	{
+		SQLiteDatabase database = getDatabase();
+		List<Document> docList = new ArrayList<Document>(limit);
+		String selectQuery = "SELECT d." + column_id + ", d." + column_fileName + ", d." + column_ownerFName + ", d." + column_ownerLName +
+				", d." + column_dateTransferred + ", d." + column_blobId + ", b." + column_path + ", d." + column_fileSize + ", d." + column_sha256 +
+				" FROM " + table1 + " d LEFT JOIN " + table_blob + " b ON d." + column_blobId + " = b." + column_id +
+				(match == null ? " WHERE d." + column_id + " < ?" : " WHERE d." + column_id + " IN (SELECT docid FROM " + table_fts + " WHERE " + table_fts +
+						" MATCH ? AND docid < " + beforeId + " ORDER BY docid DESC LIMIT " + limit + ")") + // paged in the index, which returns docids in order, so not every match is sorted
+				" ORDER BY d." + column_id + " DESC LIMIT " + limit;
+		String[] args = new String[] { match == null ? String.valueOf(beforeId) : match };
+		Cursor cursor = database.rawQuery(selectQuery, args);
+		try
+		{
+			while (cursor.moveToNext())
+			{
+				long blobId = cursor.isNull(5) ? -1 : cursor.getLong(5);
+				long fileSize = cursor.isNull(7) ? -1 : cursor.getLong(7);
+				docList.add(new Document(cursor.getLong(0), cursor.getString(1), cursor.getString(2), cursor.getString(3),
+						cursor.getLong(4), blobId, cursor.getString(6), fileSize, cursor.getString(8)));
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
 		return docList;
 	}
+	
+	/**
+	 * Turns the text typed by the user into an FTS prefix query: every run of letters and digits
+	 * becomes a term matching the words it starts, and all terms must match. Everything else is
+	 * dropped, so the user cannot type FTS syntax by accident.
+	 * 
+	 * @param query The text typed by the user
+	 * @return The MATCH expression, or <code>null</code> if the text holds no letters or digits
+	 */
+	private static String toMatchExpression(String query)
+	{
+		StringBuilder match = new StringBuilder();
+		int start = -1;
+		for (int i = 0; i <= query.length(); i++)
+		{
+			boolean wordChar = i < query.length() && Character.isLetterOrDigit(query.charAt(i));
+			if (wordChar && start == -1)
+			{
+				start = i;
+			}
+			else if (!wordChar && start != -1)
+			{
+				if (match.length() > 0)
+				{
+					match.append(' ');
+				}
+				match.append(query.substring(start, i).toLowerCase(Locale.US)).append('*');
+				start = -1;
+			}
+		}
+		return match.length() == 0 ? null : match.toString();
+	}
 }
\ No newline at end of file
@@ -1,33 +1,67 @@
 package com.procom.filefly.model;
 
+import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Models the properties of transmitted files/documents for the
  * purpose of storing the information in a Collection for easy
  * access by such classes as DocumentListFragment.
- * 
+ * <p>
+ * Instances are immutable and kept small, since the history may hold thousands of them: the date
+ * of transfer is held as milliseconds since the epoch, sender names are shared between all
+ * {@link Document}s from the same sender, and the getters return the fields without copying them.
+ *
  * @author Peter Piech
  * @version 0.7b
  * @since 2014-10-12
  */
 public class Document
 {
+	/** The '_id' of the {@link Document}'s row, or -1 if it has not been stored yet */
+	private final long mId;
+	
 	/** Name and extension of the file */
-	private String mFilename;
-
-	/** Sender's first name */
-	private String mOwnerFirstName;
+	private final String mFilename;
+	
+	/** Sender's first name, shared with the other {@link Document}s from the same sender */
+	private final String mOwnerFirstName;
+	
+	/** Sender's last name, shared with the other {@link Document}s from the same sender */
+	private final String mOwnerLastName;
+	
+	/** Date and time of transfer in milliseconds since the epoch */
+	private final long mDateTransferred;
+	
+	/** The '_id' of the stored file in the content-addressed store, or -1 if the file predates it */
+	private final long mBlobId;
 	
-	/** Sender's last name */
-	private String mOwnerLastName;
+	/** The absolute path of the stored file, or <code>null</code> if the file predates the content-addressed store */
+	private final String mStoredPath;
 	
-	/** Date and time of transfer */
-	private Date mDateTransferred;
+	/** The size of the file in bytes, or -1 if unknown */
+	private final long mFileSize;
 	
-	/** The {@link java.text.SimpleDateFormat} used to store {@link java.util.Date}s as {@link java.lang.String}s */
-	private static final SimpleDateFormat mSimpleDateFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss:SS zzz");
+	/** The SHA-256 hash of the file's content, or <code>null</code> if the file was received before it was recorded */
+	private final String mSha256;
+	
+	/** The formatted date of transfer, or <code>null</code> until {@link #getDateTransferredString} is first called */
+	private String mDateTransferredString;
+	
+	/** The canonical instance of every sender name seen, so that repeated names are stored once */
+	private static final ConcurrentHashMap<String, String> sSenderNames = new ConcurrentHashMap<String, String>();
+	
+	/** The {@link java.text.SimpleDateFormat} used to display dates; one per thread since it is not thread-safe */
+	private static final ThreadLocal<DateFormat> sDateFormat = new ThreadLocal<DateFormat>()
+	{
+		@Override
+		protected DateFormat initialValue()
+		{
+			return new SimpleDateFormat("MM/dd/yyyy HH:mm:ss:SS zzz");
+		}
+	};
 	
 	/**
 	 * Constructs an instance of {@link com.procom.filefly.model.Document}.  Additional constructor may be added
@@ -36,14 +70,106 @@ public class Document
 	 * @author Peter Piech
 	 */
 	public Document(String filename, String ownerFirstName, String ownerLastName, Date dateTransferred)
-	{	
+	{
+		this(filename, ownerFirstName, ownerLastName, dateTransferred, -1, null);
+	}
+	
+	/**
+	 * Constructs an instance of {@link com.procom.filefly.model.Document} whose file is kept
+	 * in the content-addressed store.
+	 * 
+	 * @param blobId The '_id' of the stored file, or -1 if the file predates the store
+	 * @param storedPath The absolute path of the stored file, or <code>null</code> if the file predates the store
+	 * @author Peter Piech
+	 */
+	public Document(String filename, String ownerFirstName, String ownerLastName, Date dateTransferred, long blobId, String storedPath)
+	{
+		this(filename, ownerFirstName, ownerLastName, dateTransferred, blobId, storedPath, -1);
+	}
+	
+	/**
+	 * Constructs an instance of {@link com.procom.filefly.model.Document} whose file is kept
+	 * in the content-addressed store and whose size is known.
+	 * 
+	 * @param blobId The '_id' of the stored file, or -1 if the file predates the store
+	 * @param storedPath The absolute path of the stored file, or <code>null</code> if the file predates the store
+	 * @param fileSize The size of the file in bytes, or -1 if unknown
+	 * @author Peter Piech
+	 */
+	public Document(String filename, String ownerFirstName, String ownerLastName, Date dateTransferred, long blobId, String storedPath, long fileSize)
+	{
+		this(filename, ownerFirstName, ownerLastName, dateTransferred, blobId, storedPath, fileSize, null);
+	}
+	
+	/**
+	 * Constructs an instance of {@link com.procom.filefly.model.Document} whose file is kept
+	 * in the content-addressed store and whose size and hash are known.
+	 * 
+	 * @param blobId The '_id' of the stored file, or -1 if the file predates the store
+	 * @param storedPath The absolute path of the stored file, or <code>null</code> if the file predates the store
+	 * @param fileSize The size of the file in bytes, or -1 if unknown
+	 * @param sha256 The SHA-256 hash of the file's content in hexadecimal, or <code>null</code> if unknown
+	 * @author Peter Piech
+	 */
+	public Document(String filename, String ownerFirstName, String ownerLastName, Date dateTransferred, long blobId, String storedPath, long fileSize, String sha256)
+	{
+		this(-1, filename, ownerFirstName, ownerLastName, dateTransferred.getTime(), blobId, storedPath, fileSize, sha256);
+	}
+	
+	/**
+	 * Constructs an instance of {@link com.procom.filefly.model.Document} as read from the database.
+	 * 
+	 * @param id The '_id' of the {@link Document}'s row
+	 * @param dateTransferred The date and time of transfer in milliseconds since the epoch
+	 * @param blobId The '_id' of the stored file, or -1 if the file predates the store
+	 * @param storedPath The absolute path of the stored file, or <code>null</code> if the file predates the store
+	 * @param fileSize The size of the file in bytes, or -1 if unknown
+	 * @param sha256 The SHA-256 hash of the file's content in hexadecimal, or <code>null</code> if unknown
+	 * @author Peter Piech
+	 */
+	public Document(long id, String filename, String ownerFirstName, String ownerLastName, long dateTransferred, long blobId, String storedPath, long fileSize, String sha256)
+	{
+		mId = id;
 		mFilename = filename;
-		mOwnerFirstName = ownerFirstName;
-		mOwnerLastName = ownerLastName;
+		mOwnerFirstName = internSenderName(ownerFirstName);
+		mOwnerLastName = internSenderName(ownerLastName);
 		mDateTransferred = dateTransferred;
+		mBlobId = blobId;
+		mStoredPath = storedPath;
+		mFileSize = fileSize;
+		mSha256 = sha256;
+	}
+	
+	/**
+	 * Gets the canonical instance of a sender name, so that the few senders that repeat across the
+	 * whole history are held in memory once.
+	 * 
+	 * @param name A sender name, or <code>null</code>
+	 * @return An equal {@link java.lang.String} shared by every {@link Document}, or <code>null</code>
+	 * @author Peter Piech
+	 */
+	private static String internSenderName(String name)
+	{
+		if (name == null)
+		{
+			return null;
+		}
+		String canonical = sSenderNames.putIfAbsent(name, name);
+		return canonical == null ? name : canonical;
 	}
 	
 	/* Getters for the various private fields of the Document class */
+	/**
+	 * Returns the value of the id field.
+	 * 
+	 * @return The '_id' of the {@link Document}'s row, or -1 if it has not been stored yet
+	 * @author Peter Piech
+	 */
+	public long getId()
+	{
+		return mId;
+	}
+	
 	/**
 	 * Returns the value of the filename field.
 	 * 
@@ -52,7 +178,7 @@ public class Document
 	 */
 	public String getFilename()
 	{
-		return new String(mFilename);
+		return mFilename;
 	}
 	
 	/**
@@ -63,7 +189,7 @@ public class Document
 	 */
 	public String getOwnerFirstName()
 	{
-		return new String(mOwnerFirstName);
+		return mOwnerFirstName;
 	}
 	
 	/**
@@ -74,28 +200,93 @@ public class Document
 	 */
 	public String getOwnerLastName()
 	{
-		return new String(mOwnerLastName);
+		return mOwnerLastName;
 	}
 	
 	/**
 	 * Returns the value of the date transferred field.
 	 * 
+	 * @return The {@link Document}'s date of reception in milliseconds since the epoch
+	 * @author Peter Piech
+	 */
+	public long getDateTransferredMillis()
+	{
+		return mDateTransferred;
+	}
+	
+	/**
+	 * Returns the value of the date transferred field as a new {@link java.util.Date}. Prefer
+	 * {@link #getDateTransferredMillis}, which does not allocate.
+	 * 
 	 * @return The {@link Document}'s date of reception
 	 * @author Peter Piech
 	 */
 	public Date getDateTransferred()
 	{
-		return new Date(mDateTransferred.getTime());
+		return new Date(mDateTransferred);
+	}
+	
+	/**
+	 * Returns the value of the blob id field.
+	 * 
+	 * @return The '_id' of the {@link Document}'s stored file, or -1 if the file predates the content-addressed store
+	 * @author Peter Piech
+	 */
+	public long getBlobId()
+	{
+		return mBlobId;
+	}
+	
+	/**
+	 * Returns the value of the stored path field.
+	 * 
+	 * @return The absolute path of the {@link Document}'s stored file, or <code>null</code> if the file
+	 * predates the content-addressed store and is found by its name in the received folder
+	 * @author Peter Piech
+	 */
+	public String getStoredPath()
+	{
+		return mStoredPath;
+	}
+	
+	/**
+	 * Returns the value of the file size field.
+	 * 
+	 * @return The size of the {@link Document}'s file in bytes, or -1 if unknown
+	 * @author Peter Piech
+	 */
+	public long getFileSize()
+	{
+		return mFileSize;
+	}
+	
+	/**
+	 * Returns the value of the SHA-256 field.
+	 * 
+	 * @return The SHA-256 hash of the {@link Document}'s content in lowercase hexadecimal, or <code>null</code>
+	 * if the file was received before hashes were recorded and is not in the content-addressed store
+	 * @author Peter Piech
+	 */
+	public String getSha256()
+	{
+		return mSha256;
 	}
 	
 	/**
-	 * Returns the string form of the date transferred field.
+	 * Returns the string form of the date transferred field. It is formatted on the first call
+	 * and cached, so binding the same {@link Document} again does not format it again.
 	 * 
 	 * @return The {@link Document}'s date of reception
 	 * @author Peter Piech
 	 */
 	public String getDateTransferredString()
 	{
-		return mSimpleDateFormat.format(mDateTransferred);
+		String dateTransferredString = mDateTransferredString;
+		if (dateTransferredString == null) // formatting twice from two threads is harmless, the result is the same
+		{
+			dateTransferredString = sDateFormat.get().format(new Date(mDateTransferred));
+			mDateTransferredString = dateTransferredString;
+		}
+		return dateTransferredString;
 	}
 }
\ No newline at end of file
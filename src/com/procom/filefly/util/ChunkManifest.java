@@ -0,0 +1,310 @@
+package com.procom.filefly.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Describes a file as a sequence of fixed-size chunks: the file size, the chunk size
+ * and a hash per chunk. A chunk whose hash is <code>null</code> has not been transferred
+ * yet, so a partially transferred file is described by the same structure. A manifest may also
+ * carry a stamp of the source it was made from, e.g. its modification time, so a later attempt can
+ * tell whether the source still holds the content the recorded chunks were copied from.
+ * <p>
+ * Manifests are persisted next to partial files by {@link com.procom.filefly.util.ChunkedTransfer},
+ * with the MD5 of every chunk, so that an interrupted transfer resumes from the first missing chunk,
+ * and by {@link com.procom.filefly.util.StreamTransfer}, with the CRC-32 of every range it received,
+ * so that a receive that broke off only requests the missing ranges.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-11-24
+ */
+public class ChunkManifest
+{
+	/** The chunk size used for new transfers */
+	public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+	/** The algorithm used to hash each chunk */
+	private static final String sHashAlgorithm = "MD5";
+
+	/** Identifies a serialized manifest ("FFMF") */
+	private static final int sMagic = 0x46464d46;
+
+	/** The version of the serialized format; version 1 had no source stamp */
+	private static final int sVersion = 2;
+
+	/** The size of the described file in bytes */
+	private final long mFileSize;
+
+	/** The size of every chunk but the last in bytes */
+	private final int mChunkSize;
+
+	/** The hash of each chunk, or <code>null</code> for chunks that are missing */
+	private final byte[][] mChunkHashes;
+
+	/** Identifies the content of the source, or 0 if unknown */
+	private long mSourceStamp;
+
+	/**
+	 * Constructs a manifest in which every chunk is missing.
+	 *
+	 * @param fileSize The size of the described file in bytes
+	 * @param chunkSize The size of every chunk but the last in bytes
+	 * @author Peter Piech
+	 */
+	public ChunkManifest(long fileSize, int chunkSize)
+	{
+		if (fileSize < 0 || chunkSize <= 0)
+		{
+			throw new IllegalArgumentException("Invalid manifest dimensions: " + fileSize + "/" + chunkSize);
+		}
+		mFileSize = fileSize;
+		mChunkSize = chunkSize;
+		mChunkHashes = new byte[(int) ((fileSize + chunkSize - 1) / chunkSize)][];
+	}
+
+	/**
+	 * @return The size of the described file in bytes
+	 * @author Peter Piech
+	 */
+	public long getFileSize()
+	{
+		return mFileSize;
+	}
+
+	/**
+	 * @return The size of every chunk but the last in bytes
+	 * @author Peter Piech
+	 */
+	public int getChunkSize()
+	{
+		return mChunkSize;
+	}
+
+	/**
+	 * @return The number of chunks of the described file
+	 * @author Peter Piech
+	 */
+	public int getChunkCount()
+	{
+		return mChunkHashes.length;
+	}
+
+	/**
+	 * @param index The index of a chunk
+	 * @return The offset of the chunk in the file
+	 * @author Peter Piech
+	 */
+	public long getChunkOffset(int index)
+	{
+		return (long) index * mChunkSize;
+	}
+
+	/**
+	 * @param index The index of a chunk
+	 * @return The length of the chunk in bytes, which is only smaller than the chunk size for the last chunk
+	 * @author Peter Piech
+	 */
+	public int getChunkLength(int index)
+	{
+		return (int) Math.min(mChunkSize, mFileSize - getChunkOffset(index));
+	}
+
+	/**
+	 * @return The stamp of the source the chunks were copied from, or 0 if unknown
+	 * @author Peter Piech
+	 */
+	public long getSourceStamp()
+	{
+		return mSourceStamp;
+	}
+
+	/**
+	 * Records the stamp of the source the chunks are copied from.
+	 *
+	 * @param sourceStamp E.g. the modification time of the source, or 0 if unknown
+	 * @author Peter Piech
+	 */
+	public void setSourceStamp(long sourceStamp)
+	{
+		mSourceStamp = sourceStamp;
+	}
+
+	/**
+	 * @param index The index of a chunk
+	 * @return The hash of the chunk or <code>null</code> if it is missing
+	 * @author Peter Piech
+	 */
+	public byte[] getChunkHash(int index)
+	{
+		return mChunkHashes[index];
+	}
+
+	/**
+	 * Records the hash of a chunk, marking it as present.
+	 *
+	 * @param index The index of a chunk
+	 * @param hash The hash of the chunk or <code>null</code> to mark it as missing
+	 * @author Peter Piech
+	 */
+	public void setChunkHash(int index, byte[] hash)
+	{
+		mChunkHashes[index] = hash;
+	}
+
+	/**
+	 * @return The index of the first missing chunk or {@link #getChunkCount} if the manifest is complete
+	 * @author Peter Piech
+	 */
+	public int getFirstMissingChunk()
+	{
+		for (int i = 0; i < mChunkHashes.length; i++)
+		{
+			if (mChunkHashes[i] == null)
+			{
+				return i;
+			}
+		}
+		return mChunkHashes.length;
+	}
+
+	/**
+	 * @return Whether every chunk is present
+	 * @author Peter Piech
+	 */
+	public boolean isComplete()
+	{
+		return getFirstMissingChunk() == mChunkHashes.length;
+	}
+
+	/**
+	 * Creates a {@link java.security.MessageDigest} for the chunk hashes.
+	 *
+	 * @return A new digest; digests are not thread-safe
+	 * @author Peter Piech
+	 */
+	public static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance(sHashAlgorithm);
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(sHashAlgorithm + " is not available", e);
+		}
+	}
+
+	/**
+	 * Writes the manifest to a file, replacing it atomically so that a crash never leaves a
+	 * truncated manifest behind.
+	 *
+	 * @param file The file to write
+	 * @throws IOException If the file could not be written
+	 * @author Peter Piech
+	 */
+	public void write(File file) throws IOException
+	{
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(sMagic);
+			out.writeInt(sVersion);
+			out.writeLong(mFileSize);
+			out.writeInt(mChunkSize);
+			out.writeLong(mSourceStamp);
+			out.writeInt(mChunkHashes.length);
+			for (byte[] hash : mChunkHashes)
+			{
+				if (hash == null)
+				{
+					out.writeByte(0);
+				}
+				else
+				{
+					out.writeByte(hash.length);
+					out.write(hash);
+				}
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file))
+			{
+				throw new IOException("Could not replace " + file);
+			}
+		}
+		finally
+		{
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	/**
+	 * Reads a manifest written by {@link #write}.
+	 *
+	 * @param file The file to read
+	 * @return The manifest or <code>null</code> if the file does not exist or is not a valid manifest of the current version
+	 * @author Peter Piech
+	 */
+	public static ChunkManifest read(File file)
+	{
+		if (!file.isFile())
+		{
+			return null;
+		}
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != sMagic || in.readInt() != sVersion)
+			{
+				return null;
+			}
+			long fileSize = in.readLong();
+			int chunkSize = in.readInt();
+			long sourceStamp = in.readLong();
+			int chunkCount = in.readInt();
+			ChunkManifest manifest = new ChunkManifest(fileSize, chunkSize);
+			manifest.setSourceStamp(sourceStamp);
+			if (manifest.getChunkCount() != chunkCount)
+			{
+				return null;
+			}
+			for (int i = 0; i < chunkCount; i++)
+			{
+				int length = in.readUnsignedByte();
+				if (length > 0)
+				{
+					byte[] hash = new byte[length];
+					in.readFully(hash);
+					manifest.setChunkHash(i, hash);
+				}
+			}
+			return manifest;
+		}
+		catch (IOException e)
+		{
+			return null; // treat a damaged manifest like a missing one
+		}
+		catch (IllegalArgumentException e)
+		{
+			return null;
+		}
+		finally
+		{
+			IOUtils.closeQuietly(in);
+		}
+	}
+}
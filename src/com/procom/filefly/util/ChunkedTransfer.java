@@ -0,0 +1,221 @@
+package com.procom.filefly.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Copies files chunk by chunk so that an interrupted copy can be resumed.
+ * <p>
+ * While a copy is in progress the data is written to a hidden <code>.name.part</code>
+ * file and a {@link com.procom.filefly.util.ChunkManifest} of the chunks written so far
+ * is kept in a hidden <code>.name.state</code> file next to the destination, together with the
+ * size and modification time of the source. When the same source is copied to the same destination
+ * again and neither changed, chunks of the partial file that still match their recorded hash are
+ * kept without reading the source, so only missing or damaged chunks are read and written.
+ * The partial file replaces the destination once every chunk is present.
+ * <p>
+ * A resume thus trusts the size and modification time of the source: a source rewritten in place
+ * with the same size within the resolution of its modification time would go unnoticed. Reading and
+ * hashing the source again on every resume would rule that out at the cost of a full read of it,
+ * which is what resuming is meant to avoid.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-11-24
+ */
+public class ChunkedTransfer
+{
+	/** The number of chunks written between two saves of the partial state */
+	private static final int sStateInterval = 8;
+
+	/**
+	 * Not instantiable; all methods are static.
+	 *
+	 * @author Peter Piech
+	 */
+	private ChunkedTransfer() {}
+
+	/**
+	 * Gets the hidden partial file used while copying to the given destination.
+	 *
+	 * @author Peter Piech
+	 */
+	public static File getPartFile(File dest)
+	{
+		return new File(dest.getParentFile(), "." + dest.getName() + ".part");
+	}
+
+	/**
+	 * Gets the hidden {@link com.procom.filefly.util.ChunkManifest} file recording the
+	 * chunks of {@link #getPartFile} that have been written.
+	 *
+	 * @author Peter Piech
+	 */
+	public static File getStateFile(File dest)
+	{
+		return new File(dest.getParentFile(), "." + dest.getName() + ".state");
+	}
+
+	/**
+	 * Copies a file, resuming a previous interrupted copy of the same content to the same
+	 * destination. This must be called from within a
+	 * {@link com.procom.filefly.util.TransferEngine.TransferJob}. If the copy fails or is cancelled
+	 * the partial state is kept for the next attempt.
+	 *
+	 * @param source The file to copy
+	 * @param dest The file to create or replace
+	 * @param handle The {@link com.procom.filefly.util.TransferEngine.TransferHandle} of the running job
+	 * @param digest Receives every byte of the copy in order; the chunks an earlier attempt already wrote
+	 * are fed from the partial file as they are verified, so the source is not read for them;
+	 * <code>null</code> if not needed
+	 * @return The number of bytes actually written, which is less than the size of the file when resuming
+	 * @throws IOException If either file could not be accessed or the job was cancelled
+	 * @author Peter Piech
+	 */
+	public static long copy(File source, File dest, TransferEngine.TransferHandle handle, ContentDigest digest) throws IOException
+	{
+		File parent = dest.getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+		{
+			throw new IOException("Could not create " + parent);
+		}
+		File partFile = getPartFile(dest);
+		File stateFile = getStateFile(dest);
+
+		long size = source.length();
+		long stamp = source.lastModified();
+		ChunkManifest state = ChunkManifest.read(stateFile);
+		if (state == null || state.getFileSize() != size || stamp == 0 || state.getSourceStamp() != stamp || !partFile.isFile())
+		{
+			state = new ChunkManifest(size, ChunkManifest.DEFAULT_CHUNK_SIZE); // nothing to resume from
+			state.setSourceStamp(stamp);
+		}
+
+		RandomAccessFile in = null;
+		RandomAccessFile out = null;
+		long written = 0;
+		try
+		{
+			in = new RandomAccessFile(source, "r");
+			out = new RandomAccessFile(partFile, "rw");
+			out.setLength(size); // preallocate so chunks can be written at their offset
+			FileChannel src = in.getChannel();
+			FileChannel dst = out.getChannel();
+			MessageDigest chunkDigest = ChunkManifest.newDigest();
+			ByteBuffer buffer = ByteBuffer.allocate(state.getChunkSize()); // reused for every chunk
+			int dirtyChunks = 0;
+
+			handle.publishProgress(0, size);
+			for (int i = 0; i < state.getChunkCount(); i++)
+			{
+				handle.checkCancelled();
+				long offset = state.getChunkOffset(i);
+				int length = state.getChunkLength(i);
+
+				byte[] recorded = state.getChunkHash(i);
+				if (recorded != null) // i.e. this chunk was written by an earlier attempt
+				{
+					readFully(dst, buffer, offset, length);
+					if (Arrays.equals(hash(chunkDigest, buffer), recorded))
+					{
+						if (digest != null)
+						{
+							digest.update(buffer);
+						}
+						handle.publishProgress(offset + length, size);
+						continue; // the partial file already holds this chunk
+					}
+					state.setChunkHash(i, null); // damaged, e.g. the earlier attempt died while writing it
+				}
+
+				readFully(src, buffer, offset, length);
+				if (digest != null)
+				{
+					digest.update(buffer);
+				}
+				byte[] hash = hash(chunkDigest, buffer);
+
+				buffer.rewind();
+				while (buffer.hasRemaining())
+				{
+					dst.write(buffer, offset + buffer.position());
+				}
+				state.setChunkHash(i, hash);
+				written += length;
+				if (++dirtyChunks >= sStateInterval)
+				{
+					state.write(stateFile);
+					dirtyChunks = 0;
+				}
+				handle.publishProgress(offset + length, size);
+			}
+		}
+		catch (IOException e)
+		{
+			IOUtils.closeQuietly(out);
+			out = null;
+			if (partFile.isFile())
+			{
+				state.write(stateFile); // keep what was written for the next attempt
+			}
+			throw e;
+		}
+		finally
+		{
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(out);
+		}
+
+		if (dest.exists() && !dest.delete())
+		{
+			throw new IOException("Could not replace " + dest);
+		}
+		if (!partFile.renameTo(dest))
+		{
+			throw new IOException("Could not move " + partFile + " to " + dest);
+		}
+		stateFile.delete();
+		return written;
+	}
+
+	/**
+	 * Reads exactly <code>length</code> bytes at the given position into the start of the buffer
+	 * and flips it for reading.
+	 *
+	 * @throws EOFException If the channel ends before <code>length</code> bytes were read
+	 * @author Peter Piech
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int length) throws IOException
+	{
+		buffer.clear();
+		buffer.limit(length);
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, position + buffer.position()) < 0)
+			{
+				throw new EOFException("File was truncated during the copy");
+			}
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Hashes the remaining bytes of the buffer without consuming them.
+	 *
+	 * @author Peter Piech
+	 */
+	private static byte[] hash(MessageDigest digest, ByteBuffer buffer)
+	{
+		digest.reset();
+		digest.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		return digest.digest();
+	}
+}
@@ -0,0 +1,242 @@
+package com.procom.filefly.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The SHA-256 hash and the CRC-32 checksum of the content of a file, computed from the buffers
+ * that a copy passes through anyway, so that checking the integrity of a transfer does not read
+ * the file again.
+ * <p>
+ * The SHA-256 identifies the content in the {@link com.procom.filefly.util.ContentStore} and is
+ * recorded with every received {@link com.procom.filefly.model.Document}. The CRC-32 costs a
+ * fraction of it and is enough to catch data damaged on the way, e.g. for each range of a
+ * {@link com.procom.filefly.util.StreamTransfer}.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-07
+ */
+public class ContentDigest
+{
+	/** The size of the buffer used by {@link #of} */
+	private static final int sBufferSize = 64 * 1024;
+
+	/** The running SHA-256 hash */
+	private final MessageDigest mSha256;
+
+	/** The running CRC-32 checksum */
+	private final CRC32 mCrc32 = new CRC32();
+
+	/** The number of bytes digested */
+	private long mLength;
+
+	/** The SHA-256 hash, once it was computed */
+	private byte[] mSha256Bytes;
+
+	/** The SHA-256 hash in hexadecimal, once it was computed */
+	private String mSha256Hex;
+
+	/**
+	 * Constructs the digest of empty content.
+	 *
+	 * @author Peter Piech
+	 */
+	public ContentDigest()
+	{
+		mSha256 = newSha256();
+	}
+
+	/**
+	 * Digests a whole file, for content whose bytes did not pass through FileFly, e.g. a file
+	 * written by the Android Beam API. This must be called from within a
+	 * {@link com.procom.filefly.util.TransferEngine.TransferJob}.
+	 *
+	 * @throws IOException If the file could not be read or the job was cancelled
+	 * @author Peter Piech
+	 */
+	public static ContentDigest of(File file, TransferEngine.TransferHandle handle) throws IOException
+	{
+		ContentDigest digest = new ContentDigest();
+		InputStream in = null;
+		try
+		{
+			in = new FileInputStream(file);
+			byte[] buffer = new byte[sBufferSize];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+			{
+				handle.checkCancelled();
+				digest.update(buffer, 0, read);
+			}
+		}
+		finally
+		{
+			IOUtils.closeQuietly(in);
+		}
+		return digest;
+	}
+
+	/**
+	 * @return A new {@link java.security.MessageDigest} computing SHA-256
+	 * @author Peter Piech
+	 */
+	public static MessageDigest newSha256()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * Adds bytes to the digest.
+	 *
+	 * @author Peter Piech
+	 */
+	public void update(byte[] bytes, int offset, int length)
+	{
+		checkOpen();
+		mSha256.update(bytes, offset, length);
+		mCrc32.update(bytes, offset, length);
+		mLength += length;
+	}
+
+	/**
+	 * Adds the remaining bytes of a buffer to the digest without consuming them.
+	 *
+	 * @author Peter Piech
+	 */
+	public void update(ByteBuffer buffer)
+	{
+		if (buffer.hasArray())
+		{
+			update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			return;
+		}
+		checkOpen();
+		ByteBuffer view = buffer.duplicate(); // direct buffers are digested through a view, leaving the position alone
+		byte[] chunk = new byte[Math.min(view.remaining(), sBufferSize)];
+		while (view.hasRemaining())
+		{
+			int length = Math.min(view.remaining(), chunk.length);
+			view.get(chunk, 0, length);
+			update(chunk, 0, length);
+		}
+	}
+
+	/**
+	 * Wraps a stream so that every byte written through it is added to this digest.
+	 *
+	 * @author Peter Piech
+	 */
+	public OutputStream wrap(OutputStream out)
+	{
+		return new FilterOutputStream(out)
+		{
+			@Override
+			public void write(int b) throws IOException
+			{
+				out.write(b);
+				update(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] bytes, int offset, int length) throws IOException
+			{
+				out.write(bytes, offset, length); // FilterOutputStream would write byte by byte
+				update(bytes, offset, length);
+			}
+		};
+	}
+
+	/**
+	 * Completes the digest; no more bytes may be added afterwards.
+	 *
+	 * @return The SHA-256 hash as a lowercase hexadecimal {@link java.lang.String}
+	 * @author Peter Piech
+	 */
+	public String getSha256()
+	{
+		if (mSha256Hex == null)
+		{
+			mSha256Hex = toHex(getSha256Bytes());
+		}
+		return mSha256Hex;
+	}
+
+	/**
+	 * Completes the digest; no more bytes may be added afterwards.
+	 *
+	 * @return The 32 bytes of the SHA-256 hash
+	 * @author Peter Piech
+	 */
+	public byte[] getSha256Bytes()
+	{
+		if (mSha256Bytes == null)
+		{
+			mSha256Bytes = mSha256.digest();
+		}
+		return mSha256Bytes.clone();
+	}
+
+	/**
+	 * @return The CRC-32 checksum of the bytes digested so far
+	 * @author Peter Piech
+	 */
+	public long getCrc32()
+	{
+		return mCrc32.getValue();
+	}
+
+	/**
+	 * @return The number of bytes digested
+	 * @author Peter Piech
+	 */
+	public long getLength()
+	{
+		return mLength;
+	}
+
+	/**
+	 * @throws IllegalStateException If {@link #getSha256} already completed the digest
+	 * @author Peter Piech
+	 */
+	private void checkOpen()
+	{
+		if (mSha256Bytes != null)
+		{
+			throw new IllegalStateException("The digest is already complete");
+		}
+	}
+
+	/**
+	 * @return The bytes as a lowercase hexadecimal {@link java.lang.String}
+	 * @author Peter Piech
+	 */
+	public static String toHex(byte[] bytes)
+	{
+		char[] digits = "0123456789abcdef".toCharArray();
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			hex[2 * i] = digits[(bytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = digits[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+}
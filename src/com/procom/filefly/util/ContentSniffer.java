@@ -0,0 +1,282 @@
+package com.procom.filefly.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Determines the MIME type of a file from the first bytes of its content, for files whose
+ * extension is missing or does not match what they hold.
+ * <p>
+ * Only the first {@link #sHeaderSize} bytes are read. The results are cached by path and
+ * remembered together with the size and modification time of the file, so that a file that
+ * is opened again is not read again unless it changed.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-03
+ */
+public class ContentSniffer
+{
+	/** The number of bytes read from the start of a file */
+	private static final int sHeaderSize = 16;
+
+	/** The number of files whose result is cached */
+	private static final int sCacheSize = 64;
+
+	/** The result cached for a path that has no recognizable content */
+	private static final String sUnknown = "";
+
+	/** The MIME type of ZIP archives, which are also the container of e.g. APKs and the new Office formats */
+	private static final String sZip = "application/zip";
+
+	/** The MIME type reported for OLE2 compound files, which are also the container of the old Excel and PowerPoint formats */
+	private static final String sOle2 = "application/msword";
+
+	/** The cached results by absolute path, least recently used first */
+	private static final Map<String, Sniffed> sCache = new LinkedHashMap<String, Sniffed>(sCacheSize, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Sniffed> eldest)
+		{
+			return size() > sCacheSize;
+		}
+	};
+
+	/**
+	 * Not instantiable; all methods are static.
+	 *
+	 * @author Peter Piech
+	 */
+	private ContentSniffer() {}
+
+	/**
+	 * Determines the MIME type of a file from its content.
+	 *
+	 * @param file The file to look at
+	 * @return The MIME type, or <code>null</code> if the content is not recognized or cannot be read
+	 * @author Peter Piech
+	 */
+	public static String sniff(File file)
+	{
+		String path = file.getAbsolutePath();
+		long size = file.length();
+		long lastModified = file.lastModified();
+		synchronized (sCache)
+		{
+			Sniffed sniffed = sCache.get(path);
+			if (sniffed != null && sniffed.mSize == size && sniffed.mLastModified == lastModified)
+			{
+				return sniffed.mMimeType == sUnknown ? null : sniffed.mMimeType;
+			}
+		}
+
+		String mimeType = sniff(readHeader(file));
+		synchronized (sCache)
+		{
+			sCache.put(path, new Sniffed(size, lastModified, mimeType == null ? sUnknown : mimeType));
+		}
+		return mimeType;
+	}
+
+	/**
+	 * Determines whether a sniffed MIME type is a container that holds several formats, in which
+	 * case a more specific MIME type from the extension of the file should be preferred.
+	 *
+	 * @param mimeType A MIME type returned by {@link #sniff(File)}
+	 * @author Peter Piech
+	 */
+	public static boolean isContainer(String mimeType)
+	{
+		return sZip.equals(mimeType) || sOle2.equals(mimeType);
+	}
+
+	/**
+	 * Matches the first bytes of a file against the signatures of the common formats.
+	 *
+	 * @param header The first bytes of the file, possibly fewer than {@link #sHeaderSize}
+	 * @return The MIME type, or <code>null</code> if no signature matches
+	 * @author Peter Piech
+	 */
+	static String sniff(byte[] header)
+	{
+		if (startsWith(header, 0, "%PDF-"))
+		{
+			return "application/pdf";
+		}
+		if (startsWith(header, 0, 0x89, 'P', 'N', 'G', 0x0d, 0x0a, 0x1a, 0x0a))
+		{
+			return "image/png";
+		}
+		if (startsWith(header, 0, 0xff, 0xd8, 0xff))
+		{
+			return "image/jpeg";
+		}
+		if (startsWith(header, 0, "GIF87a") || startsWith(header, 0, "GIF89a"))
+		{
+			return "image/gif";
+		}
+		if (startsWith(header, 0, "BM") && header.length > 14 && (header[14] == 12 || header[14] == 40 || header[14] == 108 || header[14] == 124)) // "BM" alone is too likely at the start of a text file, so the size of the DIB header is checked too
+		{
+			return "image/bmp";
+		}
+		if (startsWith(header, 0, "RIFF") && startsWith(header, 8, "WEBP"))
+		{
+			return "image/webp";
+		}
+		if (startsWith(header, 0, "RIFF") && startsWith(header, 8, "WAVE"))
+		{
+			return "audio/x-wav";
+		}
+		if (startsWith(header, 0, "ID3") || startsWith(header, 0, 0xff, 0xfb))
+		{
+			return "audio/mpeg";
+		}
+		if (startsWith(header, 0, "OggS"))
+		{
+			return "audio/ogg";
+		}
+		if (startsWith(header, 0, "fLaC"))
+		{
+			return "audio/flac";
+		}
+		if (startsWith(header, 4, "ftyp"))
+		{
+			return startsWith(header, 8, "M4A") ? "audio/mp4" : startsWith(header, 8, "3gp") ? "video/3gpp" : "video/mp4";
+		}
+		if (startsWith(header, 0, 0x1a, 0x45, 0xdf, 0xa3))
+		{
+			return "video/x-matroska";
+		}
+		if (startsWith(header, 0, 'P', 'K', 0x03, 0x04))
+		{
+			return sZip;
+		}
+		if (startsWith(header, 0, 0x1f, 0x8b))
+		{
+			return "application/x-gzip";
+		}
+		if (startsWith(header, 0, "Rar!"))
+		{
+			return "application/x-rar-compressed";
+		}
+		if (startsWith(header, 0, '7', 'z', 0xbc, 0xaf, 0x27, 0x1c))
+		{
+			return "application/x-7z-compressed";
+		}
+		if (startsWith(header, 0, 0xd0, 0xcf, 0x11, 0xe0, 0xa1, 0xb1, 0x1a, 0xe1)) // OLE2, the container of the old Office formats
+		{
+			return sOle2;
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the first bytes of a file.
+	 *
+	 * @return Up to {@link #sHeaderSize} bytes, empty if the file cannot be read
+	 * @author Peter Piech
+	 */
+	private static byte[] readHeader(File file)
+	{
+		InputStream in = null;
+		try
+		{
+			in = new FileInputStream(file);
+			byte[] buffer = new byte[sHeaderSize];
+			int length = 0;
+			int read;
+			while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) != -1)
+			{
+				length += read;
+			}
+			byte[] header = new byte[length];
+			System.arraycopy(buffer, 0, header, 0, length);
+			return header;
+		}
+		catch (IOException e)
+		{
+			return new byte[0];
+		}
+		finally
+		{
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * @return Whether <code>header</code> holds the ASCII characters of <code>signature</code> at <code>offset</code>
+	 * @author Peter Piech
+	 */
+	private static boolean startsWith(byte[] header, int offset, String signature)
+	{
+		if (header.length < offset + signature.length())
+		{
+			return false;
+		}
+		for (int i = 0; i < signature.length(); i++)
+		{
+			if (header[offset + i] != (byte) signature.charAt(i))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Whether <code>header</code> holds the given unsigned bytes at <code>offset</code>
+	 * @author Peter Piech
+	 */
+	private static boolean startsWith(byte[] header, int offset, int... signature)
+	{
+		if (header.length < offset + signature.length)
+		{
+			return false;
+		}
+		for (int i = 0; i < signature.length; i++)
+		{
+			if (header[offset + i] != (byte) signature[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The cached result for one file.
+	 *
+	 * @author Peter Piech
+	 */
+	private static class Sniffed
+	{
+		/** The size of the file when it was read */
+		final long mSize;
+
+		/** The modification time of the file when it was read */
+		final long mLastModified;
+
+		/** The MIME type, or {@link ContentSniffer#sUnknown} */
+		final String mMimeType;
+
+		/**
+		 * Constructs a cached result.
+		 *
+		 * @author Peter Piech
+		 */
+		Sniffed(long size, long lastModified, String mimeType)
+		{
+			mSize = size;
+			mLastModified = lastModified;
+			mMimeType = mimeType;
+		}
+	}
+}
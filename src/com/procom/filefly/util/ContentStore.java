@@ -0,0 +1,258 @@
+package com.procom.filefly.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import android.os.Environment;
+
+import com.procom.filefly.SqliteController;
+
+/**
+ * Stores received files by content so that the same content is only kept once.
+ * <p>
+ * Every stored file is a blob identified by the SHA-256 hash of its content. The
+ * <code>blob_store</code> table of the {@link com.procom.filefly.SqliteController} maps each hash to
+ * the path of the file in FileFly/received and counts the <code>document</code> rows that
+ * reference it. A file whose content is already stored is not written again; the new
+ * <code>document</code> row simply references the existing blob.
+ * <p>
+ * New content delivered by the Android Beam API is moved into place with an atomic rename when
+ * it lives on the same volume, and only copied in one pass by {@link com.procom.filefly.util.FileCopy} when the rename fails.
+ * The strategy picked for each file is recorded in {@link com.procom.filefly.util.TransferMetrics}.
+ * <p>
+ * The hash is taken from the {@link com.procom.filefly.util.ContentDigest} of the copy that
+ * produced the content whenever there is one. Content that has to be copied into the store is
+ * hashed by that copy, so every file is read once: by the copy, or after it was moved into place
+ * when FileFly has not seen its bytes.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-11-27
+ */
+public class ContentStore
+{
+	/** The {@link com.procom.filefly.SqliteController} holding the hash-to-path index */
+	private final SqliteController mSqliteController;
+
+	/** The directory the blobs are stored in */
+	private final File mDirectory;
+
+	/**
+	 * Constructs a store of blobs in the given directory.
+	 *
+	 * @param sqliteController The {@link com.procom.filefly.SqliteController} holding the hash-to-path index
+	 * @param directory The directory the blobs are stored in, i.e. FileFly/received
+	 * @author Peter Piech
+	 */
+	public ContentStore(SqliteController sqliteController, File directory)
+	{
+		mSqliteController = sqliteController;
+		mDirectory = directory;
+	}
+
+	/**
+	 * Stores the content of a file unless the same content is already stored. This must be called
+	 * from within a {@link com.procom.filefly.util.TransferEngine.TransferJob}.
+	 * <p>
+	 * A reference to the returned blob is taken before this returns, so a concurrent delete cannot
+	 * remove the stored file. The {@link com.procom.filefly.model.Document} pointing at the blob takes
+	 * the reference over when it is inserted; if it is never inserted, the reference must be returned
+	 * with {@link com.procom.filefly.SqliteController#releaseBlobs}.
+	 *
+	 * @param content The file holding the content to store
+	 * @param name The preferred name of the stored file; a suffix is added if another file already has this name
+	 * @param temporary Whether <code>content</code> is a temporary file in the store's directory that
+	 * may be moved into place or deleted. Other files are only moved if they are in a
+	 * download directory of the Android Beam API.
+	 * @param digest The {@link com.procom.filefly.util.ContentDigest} computed while <code>content</code>
+	 * was written, or <code>null</code> if its bytes did not pass through FileFly
+	 * @param handle The {@link com.procom.filefly.util.TransferEngine.TransferHandle} of the running job
+	 * @return The {@link Blob} holding the content
+	 * @throws IOException If the content could not be read or stored, or the job was cancelled
+	 * @author Peter Piech
+	 */
+	public Blob store(File content, String name, boolean temporary, ContentDigest digest, TransferEngine.TransferHandle handle) throws IOException
+	{
+		long startTime = System.nanoTime();
+		long size = content.length();
+		File delivered = content; // the file as it was handed in
+		File incoming = null; // the content brought into the store's directory to be hashed, if it was
+		TransferMetrics.ReceiveStrategy strategy = TransferMetrics.ReceiveStrategy.MOVE;
+		long blobId = -1;
+		boolean stored = false;
+		try
+		{
+			String hash;
+			if (digest != null)
+			{
+				hash = digest.getSha256();
+			}
+			else if (temporary)
+			{
+				hash = ContentDigest.of(content, handle).getSha256(); // the file is moved, so this is the only read of its bytes
+			}
+			else
+			{
+				// brought into the store's directory first, so content that has to be copied is hashed by the copy instead of being read twice
+				incoming = new File(mDirectory, "." + name + ".incoming");
+				if (isBeamDownload(content) && content.renameTo(incoming)) // an atomic rename only succeeds on the same volume
+				{
+					hash = ContentDigest.of(incoming, handle).getSha256(); // moved, so this is the only read of its bytes
+				}
+				else
+				{
+					ContentDigest copyDigest = new ContentDigest();
+					FileCopy.copy(content, incoming, handle, copyDigest);
+					hash = copyDigest.getSha256();
+					strategy = TransferMetrics.ReceiveStrategy.COPY;
+				}
+				content = incoming;
+				temporary = true;
+			}
+
+			blobId = mSqliteController.acquireBlob(hash); // the blob is kept from here on
+			if (blobId != -1)
+			{
+				File existing = new File(mSqliteController.getBlobPath(blobId));
+				if (existing.isFile() && existing.length() == content.length()) // i.e. the same content is already stored
+				{
+					if (temporary)
+					{
+						content.delete();
+					}
+					TransferMetrics.recordReceive(TransferMetrics.ReceiveStrategy.DEDUPLICATED, size, System.nanoTime() - startTime);
+					stored = true;
+					return new Blob(blobId, hash, existing);
+				}
+			}
+
+			File dest = getUniqueFile(name);
+			if (!(temporary || isBeamDownload(content)) || !content.renameTo(dest))
+			{
+				if (temporary)
+				{
+					throw new IOException("Could not move " + content + " to " + dest);
+				}
+				FileCopy.copy(content, dest, handle, null); // a Beam download on another volume, already hashed
+				strategy = TransferMetrics.ReceiveStrategy.COPY;
+			}
+
+			if (blobId != -1) // i.e. the blob's file was deleted outside of the app
+			{
+				mSqliteController.updateBlobPath(blobId, dest.getAbsolutePath());
+			}
+			else
+			{
+				blobId = mSqliteController.insertBlob(hash, dest.getAbsolutePath());
+			}
+			TransferMetrics.recordReceive(strategy, size, System.nanoTime() - startTime);
+			stored = true;
+			return new Blob(blobId, hash, dest);
+		}
+		finally
+		{
+			if (!stored)
+			{
+				if (blobId != -1)
+				{
+					mSqliteController.releaseBlobs(Collections.singletonList(blobId)); // no document will take the reference over
+				}
+				if (incoming != null && incoming.isFile())
+				{
+					if (strategy == TransferMetrics.ReceiveStrategy.MOVE)
+					{
+						incoming.renameTo(delivered); // the download is left where it was delivered, so the receive can be retried
+					}
+					else
+					{
+						incoming.delete();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Determines whether a file was delivered into a download directory of the Android Beam API,
+	 * in which case FileFly may take it over instead of copying it. Files opened with FileFly
+	 * from anywhere else are never moved.
+	 *
+	 * @author Peter Piech
+	 */
+	static boolean isBeamDownload(File file)
+	{
+		File parent = file.getAbsoluteFile().getParentFile();
+		return parent != null && parent.getName().equals("beam")
+				&& parent.getParentFile() != null
+				&& parent.getParentFile().getAbsolutePath().equals(Environment.getExternalStorageDirectory().getAbsolutePath());
+	}
+
+	/**
+	 * Finds a name in the store's directory that is not taken yet, so that a blob never
+	 * overwrites another blob with different content.
+	 *
+	 * @param name The preferred name
+	 * @return <code>name</code> or, if taken, <code>name (n).ext</code> for the smallest free n
+	 * @author Peter Piech
+	 */
+	private File getUniqueFile(String name)
+	{
+		File file = new File(mDirectory, name);
+		int extBeginIndex = name.lastIndexOf(".");
+		String base = extBeginIndex > 0 ? name.substring(0, extBeginIndex) : name;
+		String extension = extBeginIndex > 0 ? name.substring(extBeginIndex) : "";
+		for (int n = 1; file.exists(); n++)
+		{
+			file = new File(mDirectory, base + " (" + n + ")" + extension);
+		}
+		return file;
+	}
+
+	/**
+	 * A stored file as recorded in the <code>blob_store</code> table.
+	 *
+	 * @author Peter Piech
+	 */
+	public static class Blob
+	{
+		/** The <code>_id</code> of the blob */
+		private final long mId;
+
+		/** The SHA-256 hash of the content */
+		private final String mHash;
+
+		/** The stored file */
+		private final File mFile;
+
+		/**
+		 * Constructs a description of a stored blob.
+		 *
+		 * @author Peter Piech
+		 */
+		private Blob(long id, String hash, File file)
+		{
+			mId = id;
+			mHash = hash;
+			mFile = file;
+		}
+
+		/** @return The <code>_id</code> of the blob */
+		public long getId()
+		{
+			return mId;
+		}
+
+		/** @return The SHA-256 hash of the content as a lowercase hexadecimal {@link java.lang.String} */
+		public String getHash()
+		{
+			return mHash;
+		}
+
+		/** @return The stored file */
+		public File getFile()
+		{
+			return mFile;
+		}
+	}
+}
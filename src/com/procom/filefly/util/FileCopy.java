@@ -0,0 +1,110 @@
+package com.procom.filefly.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Copies a file in one pass, for content that is received into the
+ * {@link com.procom.filefly.util.ContentStore} rather than staged for sending.
+ * <p>
+ * Unlike {@link com.procom.filefly.util.ChunkedTransfer} a copy keeps no partial state and cannot
+ * be resumed, so it neither hashes chunks nor writes a state file: a received file is on the same
+ * device as its copy and is simply copied again. Without a digest the bytes are moved by
+ * {@link java.nio.channels.FileChannel#transferTo}, which lets the kernel copy them; with one they
+ * are read into a single reused buffer, hashed from it and written out, so the source is read once.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+public class FileCopy
+{
+	/** The number of bytes copied at a time */
+	private static final int sBufferSize = 256 * 1024;
+
+	/**
+	 * Not instantiable; all methods are static.
+	 *
+	 * @author Peter Piech
+	 */
+	private FileCopy() {}
+
+	/**
+	 * Copies a file. A copy that fails or is cancelled is deleted. This must be called from within a
+	 * {@link com.procom.filefly.util.TransferEngine.TransferJob}.
+	 *
+	 * @param source The file to copy
+	 * @param dest The file to create or truncate
+	 * @param handle The {@link com.procom.filefly.util.TransferEngine.TransferHandle} of the running job
+	 * @param digest Receives the copied bytes in order; <code>null</code> if not needed
+	 * @throws IOException If either file could not be accessed, the source was truncated or the job was cancelled
+	 * @author Peter Piech
+	 */
+	public static void copy(File source, File dest, TransferEngine.TransferHandle handle, ContentDigest digest) throws IOException
+	{
+		FileInputStream in = null;
+		FileOutputStream out = null;
+		boolean copied = false;
+		try
+		{
+			in = new FileInputStream(source);
+			out = new FileOutputStream(dest);
+			FileChannel src = in.getChannel();
+			FileChannel dst = out.getChannel();
+			long size = src.size();
+			long position = 0;
+			ByteBuffer buffer = digest != null ? ByteBuffer.allocate(sBufferSize) : null; // reused for every read
+			handle.publishProgress(0, size);
+			while (position < size)
+			{
+				handle.checkCancelled();
+				long length = Math.min(sBufferSize, size - position);
+				if (buffer == null)
+				{
+					long transferred = src.transferTo(position, length, dst);
+					if (transferred <= 0)
+					{
+						throw new EOFException(source + " was truncated during the copy");
+					}
+					position += transferred;
+				}
+				else
+				{
+					buffer.clear();
+					buffer.limit((int) length);
+					if (src.read(buffer) < 0)
+					{
+						throw new EOFException(source + " was truncated during the copy");
+					}
+					buffer.flip();
+					digest.update(buffer);
+					position += buffer.remaining();
+					while (buffer.hasRemaining())
+					{
+						dst.write(buffer);
+					}
+				}
+				handle.publishProgress(position, size);
+			}
+			out.close();
+			out = null;
+			copied = true;
+		}
+		finally
+		{
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(out);
+			if (!copied)
+			{
+				dest.delete();
+			}
+		}
+	}
+}
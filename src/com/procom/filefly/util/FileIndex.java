@@ -0,0 +1,780 @@
+package com.procom.filefly.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.io.IOUtils;
+
+import android.content.Context;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * A persistent index of the files that can be sent, i.e. every file with an extension in the
+ * FileFly folder on the SD card and its subfolders, except for FileFly/received and hidden files.
+ * <p>
+ * {@link #scan} walks the folder tree on a {@link com.procom.filefly.util.TransferEngine} worker
+ * and streams the files of each folder to a {@link Listener} on the main thread as soon as the
+ * folder is visited. The name, size and modification time of every file is kept, along with the
+ * modification time of every folder, in a file in the app's private storage; a later scan only
+ * lists the folders whose modification time changed and takes the others from the index.
+ * <p>
+ * Between {@link #startWatching} and {@link #stopWatching} every indexed folder is watched by a
+ * {@link com.procom.filefly.util.FolderWatcher}, and the files created, deleted or moved outside
+ * of the app are applied to the index as they happen and reported to the {@link ChangeListener}s.
+ * Once the index has been verified against the file system, scans are answered from memory
+ * without looking at the file system at all.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-01
+ */
+public class FileIndex
+{
+	/** The name of the file holding the index in the app's private storage */
+	private static final String sIndexFileName = "file_index";
+
+	/** Identifies a serialized index ("FFIX") */
+	private static final int sMagic = 0x46464958;
+
+	/** The version of the serialized format */
+	private static final int sVersion = 1;
+
+	/** The process-wide instance */
+	private static FileIndex sInstance;
+
+	/** The FileFly folder */
+	private final File mRoot;
+
+	/** The file holding the index */
+	private final File mIndexFile;
+
+	/** Delivers the files found to the {@link Listener} on the main thread */
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+	/** The indexed folders by path relative to {@link #mRoot}, or <code>null</code> until read from {@link #mIndexFile} */
+	private Map<String, Folder> mFolders;
+
+	/** Guards {@link #mWatcher} and {@link #mHot} without waiting for a scan in progress */
+	private final Object mWatchLock = new Object();
+
+	/** Applies the changes to the FileFly folder to the index, or <code>null</code> if not watching */
+	private FolderWatcher mWatcher;
+
+	/** Whether every indexed folder was verified since {@link #mWatcher} started, so that {@link #mFolders} matches the file system */
+	private boolean mHot;
+
+	/** Notified on the main thread of every change applied by {@link #mWatcher} */
+	private final List<ChangeListener> mChangeListeners = new CopyOnWriteArrayList<ChangeListener>();
+
+	/**
+	 * Constructs the index of the FileFly folder.
+	 *
+	 * @author Peter Piech
+	 */
+	private FileIndex(Context context)
+	{
+		mRoot = new File(Environment.getExternalStorageDirectory(), "FileFly");
+		mIndexFile = new File(context.getFilesDir(), sIndexFileName);
+	}
+
+	/**
+	 * @param context Any {@link android.content.Context} of the app
+	 * @return The process-wide {@link FileIndex}
+	 * @author Peter Piech
+	 */
+	public static synchronized FileIndex getInstance(Context context)
+	{
+		if (sInstance == null)
+		{
+			sInstance = new FileIndex(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Walks the FileFly folder in the background, bringing the index up to date and reporting
+	 * every file that can be sent.
+	 *
+	 * @param listener Receives the files folder by folder on the main thread, or <code>null</code>
+	 * to only update the index; nothing is delivered after the returned handle is cancelled
+	 * @return The {@link com.procom.filefly.util.TransferEngine.TransferHandle} to cancel the scan with
+	 * @author Peter Piech
+	 */
+	public TransferEngine.TransferHandle scan(final Listener listener)
+	{
+		return TransferEngine.getInstance().submit(new TransferEngine.TransferJob()
+		{
+			@Override
+			public File run(TransferEngine.TransferHandle handle) throws IOException
+			{
+				walk(listener, handle);
+				return null;
+			}
+		}, new TransferEngine.TransferListener()
+		{
+			@Override
+			public void onSuccess(File result)
+			{
+				if (listener != null)
+				{
+					listener.onScanFinished();
+				}
+			}
+
+			@Override
+			public void onFailure(IOException e)
+			{
+				if (listener != null)
+				{
+					listener.onScanFinished(); // whatever was found is still listed
+				}
+			}
+		});
+	}
+
+	/**
+	 * Starts applying the changes to the FileFly folder to the index as they happen, and verifies
+	 * the index in the background so that later scans can be answered from memory. Call this when
+	 * the app comes to the foreground.
+	 *
+	 * @author Peter Piech
+	 */
+	public void startWatching()
+	{
+		synchronized (mWatchLock)
+		{
+			if (mWatcher != null)
+			{
+				return;
+			}
+			mWatcher = new FolderWatcher(mRoot, new FolderWatcher.Callback()
+			{
+				@Override
+				public void onFolderChanged(Map<String, Set<String>> changes)
+				{
+					applyChanges(changes);
+				}
+			});
+		}
+		scan(null); // watches every folder as it is verified
+	}
+
+	/**
+	 * Stops watching the FileFly folder; the next scan verifies the index against the file system
+	 * again. Call this when the app leaves the foreground.
+	 *
+	 * @author Peter Piech
+	 */
+	public void stopWatching()
+	{
+		synchronized (mWatchLock)
+		{
+			if (mWatcher != null)
+			{
+				mWatcher.stop();
+				mWatcher = null;
+			}
+			mHot = false;
+		}
+	}
+
+	/**
+	 * Registers a {@link ChangeListener} to be notified of the changes applied while watching.
+	 *
+	 * @author Peter Piech
+	 */
+	public void addChangeListener(ChangeListener listener)
+	{
+		mChangeListeners.add(listener);
+	}
+
+	/**
+	 * Unregisters a {@link ChangeListener} registered with {@link #addChangeListener}.
+	 *
+	 * @author Peter Piech
+	 */
+	public void removeChangeListener(ChangeListener listener)
+	{
+		mChangeListeners.remove(listener);
+	}
+
+	/**
+	 * Visits every folder below the FileFly folder, listing only the folders whose modification
+	 * time differs from the index, and saves the index if anything changed. Once the index is kept
+	 * up to date by a {@link FolderWatcher}, the folders are taken from memory as they are.
+	 *
+	 * @author Peter Piech
+	 */
+	private synchronized void walk(Listener listener, TransferEngine.TransferHandle handle) throws IOException
+	{
+		if (mFolders == null)
+		{
+			mFolders = read(mIndexFile);
+		}
+		FolderWatcher watcher;
+		boolean hot;
+		synchronized (mWatchLock)
+		{
+			watcher = mWatcher;
+			hot = mHot;
+		}
+		Map<String, Folder> folders = new HashMap<String, Folder>();
+		boolean changed = false;
+
+		Deque<String> pending = new ArrayDeque<String>();
+		pending.push(""); // the FileFly folder itself
+		while (!pending.isEmpty())
+		{
+			handle.checkCancelled();
+			String path = pending.pop();
+			Folder folder = mFolders.get(path);
+			if (!hot)
+			{
+				if (watcher != null)
+				{
+					watcher.watch(path); // before the folder is looked at, so that no change is missed
+				}
+				File directory = getDirectory(path);
+				long lastModified = directory.lastModified();
+				if (folder == null || folder.mLastModified != lastModified) // i.e. entries were added, removed or renamed
+				{
+					folder = list(directory, path, lastModified);
+					changed = true;
+				}
+			}
+			if (folder == null) // i.e. the folder is gone or cannot be read
+			{
+				continue;
+			}
+			folders.put(path, folder);
+			publish(listener, handle, folder.mFiles);
+			for (int i = folder.mSubfolders.size() - 1; i >= 0; i--) // reversed so they are visited in order
+			{
+				pending.push(join(path, folder.mSubfolders.get(i)));
+			}
+		}
+
+		if (changed || folders.size() != mFolders.size()) // i.e. a folder was listed or removed
+		{
+			if (watcher != null)
+			{
+				for (String path : mFolders.keySet())
+				{
+					if (!folders.containsKey(path))
+					{
+						watcher.unwatch(path);
+					}
+				}
+			}
+			mFolders = folders;
+			write(mIndexFile, folders);
+		}
+		synchronized (mWatchLock)
+		{
+			if (watcher != null && watcher == mWatcher) // i.e. still watching, so nothing was missed since the folders were verified
+			{
+				mHot = true;
+			}
+		}
+	}
+
+	/**
+	 * Applies a burst of changes seen by the {@link FolderWatcher} to the index: every changed name
+	 * is looked up once, files are added or dropped, and new subfolders are indexed and watched.
+	 *
+	 * @param changes The changed names by path of their folder
+	 * @author Peter Piech
+	 */
+	private synchronized void applyChanges(Map<String, Set<String>> changes)
+	{
+		FolderWatcher watcher;
+		synchronized (mWatchLock)
+		{
+			watcher = mWatcher;
+		}
+		if (mFolders == null || watcher == null) // i.e. the first scan lists everything anyway, or watching stopped
+		{
+			return;
+		}
+		List<Entry> added = new ArrayList<Entry>();
+		List<String> removed = new ArrayList<String>();
+		for (Map.Entry<String, Set<String>> change : changes.entrySet())
+		{
+			String path = change.getKey();
+			Folder folder = mFolders.get(path);
+			if (folder == null) // e.g. a folder dropped earlier in the same burst
+			{
+				continue;
+			}
+			File directory = getDirectory(path);
+			for (String name : change.getValue())
+			{
+				if (!isIndexed(path, name))
+				{
+					continue;
+				}
+				String childPath = join(path, name);
+				File child = new File(directory, name);
+				if (removeFile(folder, childPath))
+				{
+					removed.add(childPath);
+				}
+				if (folder.mSubfolders.remove(name)) // indexed again below if it still exists
+				{
+					dropFolder(childPath, watcher, removed);
+				}
+				if (child.isDirectory())
+				{
+					folder.mSubfolders.add(name);
+					index(childPath, watcher, added);
+				}
+				else if (child.isFile() && hasExtension(name))
+				{
+					Entry entry = new Entry(childPath, child.length(), child.lastModified());
+					folder.mFiles.add(entry);
+					added.add(entry);
+				}
+			}
+			folder.mLastModified = directory.lastModified();
+		}
+
+		try
+		{
+			write(mIndexFile, mFolders);
+		}
+		catch (IOException e)
+		{
+			// the index on disk is older than the folders, so the next scan after a restart lists them again
+		}
+		if (!added.isEmpty() || !removed.isEmpty())
+		{
+			notifyChanged(added, removed);
+		}
+	}
+
+	/**
+	 * Indexes and watches a new folder and all of its subfolders.
+	 *
+	 * @param added Receives the files found
+	 * @author Peter Piech
+	 */
+	private void index(String path, FolderWatcher watcher, List<Entry> added)
+	{
+		Deque<String> pending = new ArrayDeque<String>();
+		pending.push(path);
+		while (!pending.isEmpty())
+		{
+			String folderPath = pending.pop();
+			watcher.watch(folderPath);
+			File directory = getDirectory(folderPath);
+			Folder folder = list(directory, folderPath, directory.lastModified());
+			if (folder == null)
+			{
+				continue;
+			}
+			mFolders.put(folderPath, folder);
+			added.addAll(folder.mFiles);
+			for (String subfolder : folder.mSubfolders)
+			{
+				pending.push(join(folderPath, subfolder));
+			}
+		}
+	}
+
+	/**
+	 * Drops a folder and all of its subfolders from the index and stops watching them.
+	 *
+	 * @param removed Receives the paths of the files dropped
+	 * @author Peter Piech
+	 */
+	private void dropFolder(String path, FolderWatcher watcher, List<String> removed)
+	{
+		Iterator<Map.Entry<String, Folder>> iterator = mFolders.entrySet().iterator();
+		while (iterator.hasNext())
+		{
+			Map.Entry<String, Folder> mapEntry = iterator.next();
+			if (mapEntry.getKey().equals(path) || mapEntry.getKey().startsWith(path + "/"))
+			{
+				for (Entry entry : mapEntry.getValue().mFiles)
+				{
+					removed.add(entry.mPath);
+				}
+				iterator.remove();
+			}
+		}
+		watcher.unwatch(path);
+	}
+
+	/**
+	 * Drops a file from a folder of the index.
+	 *
+	 * @return Whether the file was indexed
+	 * @author Peter Piech
+	 */
+	private static boolean removeFile(Folder folder, String path)
+	{
+		Iterator<Entry> iterator = folder.mFiles.iterator();
+		while (iterator.hasNext())
+		{
+			if (iterator.next().mPath.equals(path))
+			{
+				iterator.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Hands a burst of changes to every {@link ChangeListener} on the main thread.
+	 *
+	 * @author Peter Piech
+	 */
+	private void notifyChanged(final List<Entry> added, final List<String> removed)
+	{
+		mMainHandler.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (ChangeListener listener : mChangeListeners)
+				{
+					listener.onFilesChanged(added, removed);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Lists a folder, keeping the files that can be sent and the subfolders that are searched.
+	 *
+	 * @return The listed {@link Folder} or <code>null</code> if it is not a readable folder
+	 * @author Peter Piech
+	 */
+	private static Folder list(File directory, String path, long lastModified)
+	{
+		File[] children = directory.listFiles();
+		if (children == null)
+		{
+			return null;
+		}
+		Folder folder = new Folder(lastModified);
+		for (File child : children)
+		{
+			String name = child.getName();
+			if (!isIndexed(path, name))
+			{
+				continue;
+			}
+			if (child.isDirectory())
+			{
+				folder.mSubfolders.add(name);
+			}
+			else if (hasExtension(name))
+			{
+				folder.mFiles.add(new Entry(join(path, name), child.length(), child.lastModified()));
+			}
+		}
+		return folder;
+	}
+
+	/**
+	 * Determines whether an entry of a folder belongs in the index at all.
+	 *
+	 * @param path The path of the folder relative to the FileFly folder
+	 * @param name The name of the entry
+	 * @author Peter Piech
+	 */
+	private static boolean isIndexed(String path, String name)
+	{
+		if (name.startsWith(".")) // hidden, e.g. partial copies
+		{
+			return false;
+		}
+		return path.length() > 0 || !name.equals("received"); // received files are not offered for sending
+	}
+
+	/**
+	 * @return The path of an entry of a folder, relative to the FileFly folder
+	 * @author Peter Piech
+	 */
+	private static String join(String path, String name)
+	{
+		return path.length() == 0 ? name : path + "/" + name;
+	}
+
+	/**
+	 * @return The folder at a path relative to the FileFly folder
+	 * @author Peter Piech
+	 */
+	private File getDirectory(String path)
+	{
+		return path.length() == 0 ? mRoot : new File(mRoot, path);
+	}
+
+	/**
+	 * Accepts files with any extension at all.
+	 * <p>
+	 * The purpose for this is that the Android Beam API behaves badly when a file with no extension is provided.
+	 *
+	 * @author Peter Piech
+	 */
+	private static boolean hasExtension(String filename)
+	{
+		int extBeginIndex = filename.lastIndexOf("."); // find the index of the last period
+		return extBeginIndex != -1 && extBeginIndex < filename.length() - 1; // i.e. a period that is not the last character
+	}
+
+	/**
+	 * Hands the files of one folder to the {@link Listener} on the main thread.
+	 *
+	 * @author Peter Piech
+	 */
+	private void publish(final Listener listener, final TransferEngine.TransferHandle handle, final List<Entry> entries)
+	{
+		if (listener == null || entries.isEmpty())
+		{
+			return;
+		}
+		final List<Entry> copy = new ArrayList<Entry>(entries); // the folder may change while the copy is queued
+		mMainHandler.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (!handle.isCancelled())
+				{
+					listener.onFilesFound(copy);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reads an index written by {@link #write}.
+	 *
+	 * @return The indexed folders, empty if the file does not exist or is damaged
+	 * @author Peter Piech
+	 */
+	private static Map<String, Folder> read(File file)
+	{
+		Map<String, Folder> folders = new HashMap<String, Folder>();
+		if (!file.isFile())
+		{
+			return folders;
+		}
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != sMagic || in.readInt() != sVersion)
+			{
+				return folders;
+			}
+			int folderCount = in.readInt();
+			for (int i = 0; i < folderCount; i++)
+			{
+				String path = in.readUTF();
+				Folder folder = new Folder(in.readLong());
+				int fileCount = in.readInt();
+				for (int j = 0; j < fileCount; j++)
+				{
+					folder.mFiles.add(new Entry(in.readUTF(), in.readLong(), in.readLong()));
+				}
+				int subfolderCount = in.readInt();
+				for (int j = 0; j < subfolderCount; j++)
+				{
+					folder.mSubfolders.add(in.readUTF());
+				}
+				folders.put(path, folder);
+			}
+			return folders;
+		}
+		catch (IOException e)
+		{
+			return new HashMap<String, Folder>(); // treat a damaged index like a missing one
+		}
+		finally
+		{
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Writes the index, replacing the file atomically so that a crash never leaves a truncated index behind.
+	 *
+	 * @author Peter Piech
+	 */
+	private static void write(File file, Map<String, Folder> folders) throws IOException
+	{
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(sMagic);
+			out.writeInt(sVersion);
+			out.writeInt(folders.size());
+			for (Map.Entry<String, Folder> mapEntry : folders.entrySet())
+			{
+				Folder folder = mapEntry.getValue();
+				out.writeUTF(mapEntry.getKey());
+				out.writeLong(folder.mLastModified);
+				out.writeInt(folder.mFiles.size());
+				for (Entry entry : folder.mFiles)
+				{
+					out.writeUTF(entry.mPath);
+					out.writeLong(entry.mSize);
+					out.writeLong(entry.mLastModified);
+				}
+				out.writeInt(folder.mSubfolders.size());
+				for (String subfolder : folder.mSubfolders)
+				{
+					out.writeUTF(subfolder);
+				}
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file))
+			{
+				throw new IOException("Could not replace " + file);
+			}
+		}
+		finally
+		{
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	/**
+	 * Receives the results of {@link FileIndex#scan} on the main thread.
+	 *
+	 * @author Peter Piech
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called once per folder that holds files that can be sent.
+		 *
+		 * @param entries The files of the folder
+		 * @author Peter Piech
+		 */
+		void onFilesFound(List<Entry> entries);
+
+		/**
+		 * Called once every folder was visited, or the scan failed.
+		 *
+		 * @author Peter Piech
+		 */
+		void onScanFinished();
+	}
+
+	/**
+	 * Receives the changes applied to the index while watching, on the main thread.
+	 *
+	 * @author Peter Piech
+	 */
+	public interface ChangeListener
+	{
+		/**
+		 * Called once per burst of changes to the FileFly folder. A file that was rewritten is
+		 * reported as removed and added again.
+		 *
+		 * @param added The files that appeared or changed
+		 * @param removed The paths of the files that disappeared or changed
+		 * @author Peter Piech
+		 */
+		void onFilesChanged(List<Entry> added, List<String> removed);
+	}
+
+	/**
+	 * A file that can be sent, as recorded in the index.
+	 *
+	 * @author Peter Piech
+	 */
+	public static class Entry
+	{
+		/** The path of the file relative to the FileFly folder, with "/" separating folders */
+		private final String mPath;
+
+		/** The size of the file in bytes */
+		private final long mSize;
+
+		/** The modification time of the file in milliseconds since the epoch */
+		private final long mLastModified;
+
+		/**
+		 * Constructs an indexed file.
+		 *
+		 * @author Peter Piech
+		 */
+		private Entry(String path, long size, long lastModified)
+		{
+			mPath = path;
+			mSize = size;
+			mLastModified = lastModified;
+		}
+
+		/** @return The path of the file relative to the FileFly folder, with "/" separating folders */
+		public String getPath()
+		{
+			return mPath;
+		}
+
+		/** @return The size of the file in bytes */
+		public long getSize()
+		{
+			return mSize;
+		}
+
+		/** @return The modification time of the file in milliseconds since the epoch */
+		public long getLastModified()
+		{
+			return mLastModified;
+		}
+	}
+
+	/**
+	 * An indexed folder: its modification time when it was listed, its files and the names of its subfolders.
+	 *
+	 * @author Peter Piech
+	 */
+	private static class Folder
+	{
+		/** The modification time of the folder when it was listed or last changed */
+		long mLastModified;
+
+		/** The files that can be sent */
+		final List<Entry> mFiles = new ArrayList<Entry>();
+
+		/** The names of the subfolders that are searched */
+		final List<String> mSubfolders = new ArrayList<String>();
+
+		/**
+		 * Constructs an empty folder listed at the given modification time.
+		 *
+		 * @author Peter Piech
+		 */
+		Folder(long lastModified)
+		{
+			mLastModified = lastModified;
+		}
+	}
+}
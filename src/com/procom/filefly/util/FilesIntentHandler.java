@@ -1,24 +1,24 @@
 package com.procom.filefly.util;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
-import org.apache.commons.io.FileExistsException;
-import org.apache.commons.io.FileUtils;
-
-import com.procom.filefly.DocumentListFragment;
 import com.procom.filefly.MainActivity;
+import com.procom.filefly.SqliteController;
 import com.procom.filefly.model.Document;
 
 import android.app.Activity;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Environment;
@@ -26,7 +26,6 @@ import android.os.Parcelable;
 import android.provider.MediaStore;
 import android.text.TextUtils;
 import android.webkit.MimeTypeMap;
-import android.widget.Toast;
 
 /**
  * Set of methods used to handle and issue new
@@ -60,6 +59,18 @@ public class FilesIntentHandler
     /** The attached {@link android.app.Activity} that received the ACTION_VIEW intent */
     private MainActivity mActivity;
     
+    /** The names of every file saved by the receive, starting with {@link #mOriginalFileName} */
+    private List<String> mReceivedFileNames;
+    
+    /** The header of the last envelope received, reused for every file of a batch */
+    private final TransferEnvelope.Header mEnvelopeHeader = new TransferEnvelope.Header();
+    
+    /** The number of milliseconds after which a receive is abandoned */
+    private static final long sReceiveTimeout = 5 * 60 * 1000;
+    
+    /** The maximum difference in milliseconds between the modification times of files delivered by the same handshake */
+    private static final long sBatchWindow = 60 * 1000;
+    
     /**
      * Constructs a new {@link com.procom.filefly.util.FilesIntentHandler} object
      * and initializes member fields.
@@ -72,54 +83,237 @@ public class FilesIntentHandler
     	mFirstName = new String();
     	mLastName = new String();
     	mOriginalFileName = new String();
+    	mReceivedFileNames = new ArrayList<String>();
     	mActivity = activity;
     }
 	
 	/**
 	 * Gets the incoming {@link android.content.Intent} with a {@link android.content.Intent#ACTION_VIEW} schema
 	 * and hands off the {@link android.net.Uri} to appropriate functions.
+	 * <p>
+	 * Resolving the {@link android.net.Uri}, saving the file and recording the transfer in the database
+	 * are submitted as one job to the {@link com.procom.filefly.util.TransferEngine}, so none of it runs
+	 * on the UI thread. The listener receives the saved file on the main thread.
+	 * <p>
+	 * The Android Beam API only points the {@link android.content.Intent} at the first file of a batch,
+	 * so the other files delivered by the same handshake are found with {@link #findBatch} and ingested
+	 * by the same job. Once they are recorded, the downloads that were not moved into the
+	 * {@link com.procom.filefly.util.ContentStore} are deleted from the Android Beam directory.
+	 * <p>
+	 * A file sent as it is arrives with a sidecar holding the detached header of a
+	 * {@link com.procom.filefly.util.TransferEnvelope}; the two are ingested together, see {@link #saveDescribedFile}.
 	 * 
-	 * @return The filename of the received file as a {@link java.lang.String}
+	 * @param listener Receives the progress and the outcome of the receive on the main thread
+	 * @return The {@link com.procom.filefly.util.TransferEngine.TransferHandle} of the receive or
+	 * <code>null</code> if the {@link android.content.Intent} is not an {@link android.content.Intent#ACTION_VIEW}
 	 * 
-	 * @author Saurabh Sharma
+	 * @author Saurabh Sharma, Peter Piech
 	 * 
 	 */
-	public String handleViewIntent() 
+	public TransferEngine.TransferHandle handleViewIntent(TransferEngine.TransferListener listener) 
     {
 		// Get the Intent action
-        Intent intent = getIntent();
+        final Intent intent = getIntent();
         String action = intent.getAction();
         mFileSource = null;
         /*
          * For ACTION_VIEW, the Activity is being asked to display data.
          * Get the URI.
          */
-        if (action.equals(Intent.ACTION_VIEW))
+        if (!action.equals(Intent.ACTION_VIEW))
         {
-        	// Get the URI from the Intent
-            Uri beamUri = intent.getData();
-            
-            // Test for the type of URI, by getting its scheme value
-            if (TextUtils.equals(beamUri.getScheme(), "file"))
-            {
-            	mFileSource = handleFileUri(beamUri);
-            }
-            else if (TextUtils.equals(beamUri.getScheme(), "content"))
-            {
-            	mFileSource = handleContentUri(beamUri);
-            }
-            else
-            {
-            	// re-dispatch the intent to the system
-            	mActivity.startActivity(intent);
-            }
-
-            // call function to save file to FileFly/received folder
-            saveFile();
-            mActivity.getSqliteController().insertData(new Document(mOriginalFileName, mFirstName, mLastName, mDateTransferred)); // insert the record of transfer into the database
+        	return null;
         }
-        return mOriginalFileName;
+        
+        // Get the URI from the Intent
+        final Uri beamUri = intent.getData();
+        
+        // Test for the type of URI, by getting its scheme value
+        if (!TextUtils.equals(beamUri.getScheme(), "file") && !TextUtils.equals(beamUri.getScheme(), "content"))
+        {
+        	// re-dispatch the intent to the system
+        	mActivity.startActivity(intent);
+        	return null;
+        }
+        
+        final SqliteController sqliteController = mActivity.getSqliteController();
+        return TransferEngine.getInstance().submit(new TransferEngine.TransferJob()
+        {
+			@Override
+			public File run(TransferEngine.TransferHandle handle) throws IOException
+			{
+				long startTime = System.nanoTime();
+				if (TextUtils.equals(beamUri.getScheme(), "file"))
+				{
+					mFileSource = handleFileUri(beamUri);
+				}
+				else
+				{
+					mFileSource = handleContentUri(beamUri);
+				}
+				TransferMetrics.recordStage(TransferMetrics.Stage.RESOLVE_URI, 0, System.nanoTime() - startTime);
+				if (mFileSource == null || mOriginalFileName == null)
+				{
+					throw new FileNotFoundException("Could not resolve the received file from " + beamUri);
+				}
+				
+				List<Document> documents = new ArrayList<Document>(); // the records of every file in this batch
+				List<File> sources = new ArrayList<File>(); // the delivered files that were ingested
+				ContentStore contentStore = new ContentStore(sqliteController, getReceivedDirectory());
+				boolean recorded = false;
+				try
+				{
+					List<File> batch = findBatch(mFileSource);
+					Set<File> described = new HashSet<File>(); // the files that are ingested with their sidecar
+					for (File source : batch)
+					{
+						if (TransferEnvelope.isEnvelope(source.getName()))
+						{
+							described.add(new File(source.getParentFile(), TransferEnvelope.getDescribedName(source.getName())));
+						}
+					}
+					described.retainAll(batch); // i.e. the envelopes of compressed files describe nothing else
+					for (File source : batch)
+					{
+						handle.checkCancelled();
+						if (described.contains(source))
+						{
+							continue; // ingested with its sidecar
+						}
+						String fileName = (source == mFileSource) ? mOriginalFileName : grabNameFile(source.getPath());
+						if (fileName == null)
+						{
+							continue; // not sent by FileFly
+						}
+						
+						// call function to save file to FileFly/received folder
+						startTime = System.nanoTime();
+						File content = TransferEnvelope.isEnvelope(fileName) ? new File(source.getParentFile(), TransferEnvelope.getDescribedName(source.getName())) : null;
+						Document document;
+						if (content != null && described.contains(content))
+						{
+							document = saveDescribedFile(source, content, contentStore, handle);
+							sources.add(content);
+						}
+						else
+						{
+							document = saveFile(source, fileName, false, null, contentStore, handle); // written by Android Beam, so not hashed yet
+						}
+						documents.add(document);
+						sources.add(source);
+						TransferMetrics.recordStage(TransferMetrics.Stage.SAVE_FILE, document.getFileSize(), System.nanoTime() - startTime);
+						if (source == mFileSource || (content != null && content.equals(mFileSource)))
+						{
+							mFileDest = new File(document.getStoredPath());
+							mOriginalFileName = document.getFilename();
+						}
+						mReceivedFileNames.add(document.getFilename());
+					}
+					sqliteController.insertData(documents); // insert the records of transfer into the database in a single transaction
+					recorded = true;
+				}
+				finally
+				{
+					if (!recorded)
+					{
+						releaseBlobs(sqliteController, documents); // the files stored so far are not referenced by any document
+					}
+				}
+				for (File source : sources)
+				{
+					if (ContentStore.isBeamDownload(source))
+					{
+						source.delete(); // a download that was not moved into the store, so a later batch of the same sender does not ingest it again
+					}
+				}
+				return mFileDest;
+			}
+		}, listener, sReceiveTimeout);
     }
+	
+	/**
+	 * Receives the files offered by a sender through a {@link com.procom.filefly.util.StreamTransfer},
+	 * given the handshake delivered by the NFC tap. The files are streamed over the local network
+	 * straight into FileFly/received and recorded in the database exactly like files delivered by
+	 * Android Beam, in one job of the {@link com.procom.filefly.util.TransferEngine}. The sender and
+	 * the name of each file are taken from the header the sender described it with.
+	 * 
+	 * @param handshake The payload of the NDEF record of type {@link com.procom.filefly.util.StreamTransfer#HANDSHAKE_MIME_TYPE}
+	 * @param listener Receives the progress and the outcome of the receive on the main thread
+	 * @return The {@link com.procom.filefly.util.TransferEngine.TransferHandle} of the receive
+	 * 
+	 * @author Peter Piech
+	 */
+	public TransferEngine.TransferHandle handleHandshake(final byte[] handshake, TransferEngine.TransferListener listener)
+	{
+		final SqliteController sqliteController = mActivity.getSqliteController();
+		return TransferEngine.getInstance().submit(new TransferEngine.TransferJob()
+		{
+			@Override
+			public File run(TransferEngine.TransferHandle handle) throws IOException
+			{
+				if (!Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED))
+				{
+					throw new IOException("External storage failure: do not use app.");
+				}
+				Transport transport = WifiTransport.forWifi(mActivity);
+				if (transport == null)
+				{
+					throw new IOException("Connect to the same Wi-Fi network as the sender, or tap again to receive over Android Beam.");
+				}
+				
+				File receivedDirectory = getReceivedDirectory();
+				long startTime = System.nanoTime();
+				List<StreamTransfer.ReceivedFile> receivedFiles = StreamTransfer.receive(transport, handshake, receivedDirectory, handle);
+				long size = 0;
+				for (StreamTransfer.ReceivedFile receivedFile : receivedFiles)
+				{
+					size += receivedFile.getDigest().getLength();
+				}
+				TransferMetrics.recordStage(TransferMetrics.Stage.STREAM, size, System.nanoTime() - startTime);
+				
+				List<Document> documents = new ArrayList<Document>(); // the records of every file in this batch
+				ContentStore contentStore = new ContentStore(sqliteController, receivedDirectory);
+				boolean recorded = false;
+				try
+				{
+					for (int i = 0; i < receivedFiles.size(); i++)
+					{
+						handle.checkCancelled();
+						StreamTransfer.ReceivedFile receivedFile = receivedFiles.get(i);
+						String fileName = receivedFile.getName(); // i.e. "Last_First_name" after the header
+						mFirstName = receivedFile.getHeader().getFirstName();
+						mLastName = receivedFile.getHeader().getLastName();
+						
+						startTime = System.nanoTime();
+						Document document = saveFile(receivedFile.getFile(), fileName, true, receivedFile.getDigest(), contentStore, handle); // the partial file is moved into place
+						documents.add(document);
+						TransferMetrics.recordStage(TransferMetrics.Stage.SAVE_FILE, document.getFileSize(), System.nanoTime() - startTime);
+						if (i == 0)
+						{
+							mFileDest = new File(document.getStoredPath());
+							mOriginalFileName = document.getFilename();
+						}
+						mReceivedFileNames.add(document.getFilename());
+					}
+					sqliteController.insertData(documents); // insert the records of transfer into the database in a single transaction
+					recorded = true;
+				}
+				finally
+				{
+					for (StreamTransfer.ReceivedFile receivedFile : receivedFiles)
+					{
+						receivedFile.getFile().delete(); // left over if the receive failed
+					}
+					if (!recorded)
+					{
+						releaseBlobs(sqliteController, documents); // the files stored so far are not referenced by any document
+					}
+				}
+				return mFileDest;
+			}
+		}, listener, sReceiveTimeout);
+	}
 
 	/**
 	 * To get the directory path, get the path part of the URI, which contains all of the URI 
@@ -200,70 +394,191 @@ public class FilesIntentHandler
      */
     private String grabNameFile(String absPath)
     {
-    	
-    	// parse filename from absolute path
-    	String[] delimSlashes = absPath.split("/");
-    	String fn = delimSlashes[delimSlashes.length - 1];
-    	if (fn.substring(0, 5).equals("files"))
+    	ReceivedName name = ReceivedName.parse(absPath);
+    	if (name == null)
     	{
-    		fn = fn.substring(5); // removes "files" from the beginning which is prepended by the Android Beam API
+    		//error, this means first/last name wasn't appended
+    		return null;
     	}
     	
-    	// split string based on underscores
-    	String[] result = fn.split("_");
+    	mFirstName = name.getFirstName();
+    	mLastName = name.getLastName();
     	
-    	if (result.length < 3)
+    	return name.getFileName();
+    }
+    
+    /**
+     * Returns the references to stored files taken for documents of a batch that failed before
+     * it was recorded.
+     * 
+     * @param sqliteController The {@link com.procom.filefly.SqliteController} holding the references
+     * @param documents The {@link com.procom.filefly.model.Document}s that were not inserted
+     * @author Peter Piech
+     */
+    private static void releaseBlobs(SqliteController sqliteController, List<Document> documents)
+    {
+    	List<Long> blobIds = new ArrayList<Long>(documents.size());
+    	for (Document document : documents)
     	{
-    		//error, this means first/last name wasn't appended
-    		return null;
+    		if (document.getBlobId() != -1)
+    		{
+    			blobIds.add(document.getBlobId());
+    		}
     	}
+    	if (!blobIds.isEmpty())
+    	{
+    		sqliteController.releaseBlobs(blobIds);
+    	}
+    }
+    
+    /**
+     * Finds the files delivered by the same Android Beam handshake as the given file: the files
+     * next to it that carry the same sender prefix and were written within {@link #sBatchWindow}
+     * milliseconds of it. Every download is consumed once it is ingested, so a sibling still there
+     * has not been recorded yet.
+     * 
+     * @param delivered The file the incoming {@link android.content.Intent} points at
+     * @return The files of the batch, starting with <code>delivered</code>
+     * @author Peter Piech
+     */
+    private List<File> findBatch(File delivered)
+    {
+    	List<File> batch = new ArrayList<File>();
+    	batch.add(delivered);
     	
-    	// the order of the names is (last,first) when sent by the sender:
-    	mFirstName = result[1];
-    	mLastName = result[0];
-    	
-    	return fn;
+    	String prefix = ReceivedName.getSenderPrefix(delivered.getName());
+    	File[] siblings = delivered.getParentFile() != null ? delivered.getParentFile().listFiles() : null;
+    	if (prefix == null || siblings == null)
+    	{
+    		return batch; // nothing else can be attributed to this sender
+    	}
+    	Arrays.sort(siblings); // ingest in a stable order
+    	for (File sibling : siblings)
+    	{
+    		if (sibling.isFile() && !sibling.equals(delivered)
+    				&& prefix.equals(ReceivedName.getSenderPrefix(sibling.getName()))
+    				&& Math.abs(sibling.lastModified() - delivered.lastModified()) <= sBatchWindow)
+    		{
+    			batch.add(sibling);
+    		}
+    	}
+    	return batch;
     }
     
     /**
-	 * Saves the received file to local storage in FileFly/received
-	 * on the SD card.
-	 * @param fileSrc The {@link java.io.File} representing the file to be moved
-	 * @return The {@link java.io.File} representing the file saved in the received folder
-	 * @author Jacob Abramson
+	 * Saves a received file to local storage in FileFly/received
+	 * on the SD card. The file is kept in the {@link com.procom.filefly.util.ContentStore},
+	 * so content that was received before is not written again. This must be called
+	 * from within a {@link com.procom.filefly.util.TransferEngine.TransferJob}.
+	 * 
+	 * @param source The {@link java.io.File} delivered by the Android Beam API
+	 * @param fileName The name the file was sent under; envelopes are restored under their original name
+	 * @param temporary Whether <code>source</code> is a temporary file in FileFly/received that is consumed by the save
+	 * @param digest The {@link com.procom.filefly.util.ContentDigest} computed while <code>source</code> was received, or <code>null</code>
+	 * @param contentStore The {@link com.procom.filefly.util.ContentStore} of the received folder
+	 * @param handle The {@link com.procom.filefly.util.TransferEngine.TransferHandle} of the running receive
+	 * @return The {@link com.procom.filefly.model.Document} recording the transfer, referencing the stored file
+	 * @throws IOException If external storage is unavailable or the copy failed
+	 * @author Jacob Abramson, Peter Piech
 	 */
-	private void saveFile()
+	private Document saveFile(File source, String fileName, boolean temporary, ContentDigest digest, ContentStore contentStore, TransferEngine.TransferHandle handle) throws IOException
 	{
 		// check if external storage is writable
-		if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED))
+		if (!Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED))
 		{
-			
-			// grab destination folder for transferred file
-            String fileDestPath = Environment.getExternalStorageDirectory().getAbsolutePath() + "/FileFly/received/" + mOriginalFileName; // path to FileFly/received folder PLUS filename
-            mFileDest = new File(fileDestPath);
-            
-            try
-            {
-            	FileUtils.copyFile(mFileSource, mFileDest);
-            }
-            catch (FileExistsException e)
-            {
-            	mFileDest = null;
-            	e.printStackTrace();
-            }
-            catch (IOException e)
-            {
-            	mFileDest = null;
-            	e.printStackTrace();
-            }
-            
-            Toast.makeText(mActivity, "File saved successfully!", Toast.LENGTH_LONG).show(); // show the user this message
+			throw new IOException("External storage failure: do not use app.");
 		}
 		
+		ContentStore.Blob blob;
+		if (TransferEnvelope.isEnvelope(fileName)) // i.e. the sender staged the file with a header describing it
+		{
+			TransferEnvelope.readHeader(source, mEnvelopeHeader);
+			if (mEnvelopeHeader.isDetached())
+			{
+				throw new IOException(mEnvelopeHeader.getFileName() + " arrived without its content");
+			}
+			mFirstName = mEnvelopeHeader.getFirstName(); // the header is authoritative over the name the file was delivered under
+			mLastName = mEnvelopeHeader.getLastName();
+			fileName = mLastName + "_" + mFirstName + "_" + mEnvelopeHeader.getFileName(); // stored like every other received file
+			if (getReceivedDirectory().getUsableSpace() < mEnvelopeHeader.getContentSize())
+			{
+				throw new IOException("Not enough space to receive " + mEnvelopeHeader.getFileName());
+			}
+			File partFile = ChunkedTransfer.getPartFile(new File(getReceivedDirectory(), fileName));
+			ContentDigest restoredDigest = TransferEnvelope.unwrap(source, mEnvelopeHeader, partFile, handle); // verified against the size and hash in the header
+			if (temporary)
+			{
+				source.delete();
+			}
+			blob = contentStore.store(partFile, fileName, true, restoredDigest, handle);
+		}
 		else
 		{
-			Toast.makeText(mActivity, "External storage failure: do not use app.", Toast.LENGTH_LONG).show(); // show the user this message
+			blob = contentStore.store(source, fileName, temporary, digest, handle);
 		}
+		return new Document(fileName, mFirstName, mLastName, mDateTransferred, blob.getId(), blob.getFile().getAbsolutePath(), blob.getFile().length(), blob.getHash());
+	}
+	
+	/**
+	 * Saves a file that was sent as it is, together with the sidecar describing it.
+	 * The sender and the name are taken from the detached header in the sidecar, and the content is
+	 * checked against the size and the hash in it. Android Beam wrote the content without FileFly
+	 * seeing its bytes, so it is hashed once here and the {@link com.procom.filefly.util.ContentStore}
+	 * reuses that hash. This must be called from within a {@link com.procom.filefly.util.TransferEngine.TransferJob}.
+	 * 
+	 * @param sidecar The sidecar delivered by the Android Beam API, see {@link com.procom.filefly.util.TransferEnvelope#getDescribedName}
+	 * @param content The file the sidecar describes, delivered next to it
+	 * @param contentStore The {@link com.procom.filefly.util.ContentStore} of the received folder
+	 * @param handle The {@link com.procom.filefly.util.TransferEngine.TransferHandle} of the running receive
+	 * @return The {@link com.procom.filefly.model.Document} recording the transfer, referencing the stored file
+	 * @throws IOException If external storage is unavailable, the sidecar is not valid or the content arrived damaged
+	 * @author Peter Piech
+	 */
+	private Document saveDescribedFile(File sidecar, File content, ContentStore contentStore, TransferEngine.TransferHandle handle) throws IOException
+	{
+		// check if external storage is writable
+		if (!Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED))
+		{
+			throw new IOException("External storage failure: do not use app.");
+		}
+		
+		TransferEnvelope.readHeader(sidecar, mEnvelopeHeader);
+		if (!mEnvelopeHeader.isDetached() || sidecar.length() != mEnvelopeHeader.getLength())
+		{
+			throw new IOException(sidecar.getName() + " is not a valid sidecar");
+		}
+		mFirstName = mEnvelopeHeader.getFirstName(); // the header is authoritative over the name the file was delivered under
+		mLastName = mEnvelopeHeader.getLastName();
+		String fileName = mLastName + "_" + mFirstName + "_" + mEnvelopeHeader.getFileName(); // stored like every other received file
+		ContentDigest digest = ContentDigest.of(content, handle);
+		if (digest.getLength() != mEnvelopeHeader.getContentSize() || !mEnvelopeHeader.matchesSha256(digest.getSha256Bytes()))
+		{
+			throw new IOException(mEnvelopeHeader.getFileName() + " arrived damaged");
+		}
+		ContentStore.Blob blob = contentStore.store(content, fileName, false, digest, handle);
+		return new Document(fileName, mFirstName, mLastName, mDateTransferred, blob.getId(), blob.getFile().getAbsolutePath(), blob.getFile().length(), blob.getHash());
+	}
+	
+	/**
+	 * @return The FileFly/received folder on the SD card
+	 * @author Peter Piech
+	 */
+	public static File getReceivedDirectory()
+	{
+		return new File(Environment.getExternalStorageDirectory().getAbsolutePath() + "/FileFly/received");
+	}
+	
+	/**
+	 * Gets the names of every file saved by {@link #handleViewIntent}, including
+	 * the other files of a batch. This method should be called after the receive
+	 * completed or the behavior will be undefined.
+	 * 
+	 * @return A copy of the names of the received files
+	 * @author Peter Piech
+	 */
+	public List<String> getReceivedFileNames()
+	{
+		return new ArrayList<String>(mReceivedFileNames);
 	}
 	
 	/**
@@ -325,33 +640,36 @@ public class FilesIntentHandler
 	 */
 	public static Intent openFile(Context context, String filename)
 	{
-		// Create File object
-		String openFilePath = Environment.getExternalStorageDirectory().getAbsolutePath() + "/FileFly/received/" + filename; // path to FileFly/received folder PLUS filename
-		File openFile = new File(openFilePath);
+		return openFile(context, new File(getReceivedDirectory(), filename));
+	}
+	
+	/**
+	 * Creates an {@link android.content.Intent} to start an Android application
+	 * on the user's device capable of opening the provided file.
+	 * 
+	 * @param openFile The file to open, e.g. the stored file of a {@link com.procom.filefly.model.Document}
+	 * @return An {@link android.content.Intent} that will open the file provided
+	 * @author Jacob Abramson, Peter Piech
+	 */
+	public static Intent openFile(Context context, File openFile)
+	{
 		// create URI
 		Uri uri = Uri.fromFile(openFile);
 		// create intent
 		Intent intent = new Intent(Intent.ACTION_VIEW);
+		intent.setDataAndTypeAndNormalize(uri, getMimeType(openFile)); // set the data Uri and MIME type String on the Intent
+		if (intent.getType() == null) // i.e. nothing to pick a viewer by, so leave it to the system
+		{
+			return intent;
+		}
 		
-		String extension = openFile.getName().substring(openFile.getName().indexOf(".")+1); // get the extension from the filename
-		String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension); // figure out the MIME type by the extension
-		
-		intent.setDataAndTypeAndNormalize(uri, mimeType); // set the data Uri and MIME type String on the Intent
-		
-		PackageManager packageManager = context.getPackageManager();
-		List<ResolveInfo> activities = packageManager.queryIntentActivities(intent, 0);
-		String packageNameOfAppToHide = "com.procom.filefly";
-		List<Intent> targetIntents = new ArrayList<Intent>();
-		for (ResolveInfo currentInfo : activities)
+		List<ComponentName> viewers = ViewerResolver.getInstance(context).getViewers(intent.getType()); // usually cached since the last tap on a file of the same type
+		List<Intent> targetIntents = new ArrayList<Intent>(viewers.size());
+		for (ComponentName viewer : viewers)
 		{
-			String packageName = currentInfo.activityInfo.packageName;
-			if (!packageNameOfAppToHide.equals(packageName))
-			{
-				Intent targetIntent = new Intent(Intent.ACTION_VIEW);
-	            targetIntent.setDataAndTypeAndNormalize(uri, mimeType);
-	            targetIntent.setComponent(new ComponentName(packageName, currentInfo.activityInfo.name));
-	            targetIntents.add(targetIntent);
-			}
+			Intent targetIntent = new Intent(intent);
+			targetIntent.setComponent(viewer);
+			targetIntents.add(targetIntent);
 		}
 		if (targetIntents.size() > 0)
 		{
@@ -362,6 +680,43 @@ public class FilesIntentHandler
 		return intent;
 	}
 	
+	/**
+	 * Determines the MIME type of a file from its extension, i.e. everything after the last period,
+	 * and from the first bytes of its content. The content wins when the extension is missing or
+	 * names a different kind of file, unless the content is only recognized as a container such as
+	 * a ZIP archive, which the extension describes more precisely.
+	 * 
+	 * @return The MIME type, or <code>null</code> if neither the extension nor the content is recognized
+	 * @author Peter Piech
+	 */
+	public static String getMimeType(File file)
+	{
+		String filename = file.getName();
+		int extBeginIndex = filename.lastIndexOf("."); // so that "report.v2.pdf" has the extension "pdf"
+		String extensionMimeType = extBeginIndex == -1 ? null
+				: MimeTypeMap.getSingleton().getMimeTypeFromExtension(filename.substring(extBeginIndex + 1).toLowerCase(Locale.US));
+		String sniffedMimeType = ContentSniffer.sniff(file);
+		if (sniffedMimeType == null || extensionMimeType == null)
+		{
+			return sniffedMimeType == null ? extensionMimeType : sniffedMimeType;
+		}
+		if (ContentSniffer.isContainer(sniffedMimeType) || getTopLevelType(sniffedMimeType).equals(getTopLevelType(extensionMimeType)))
+		{
+			return extensionMimeType; // e.g. a .docx is a ZIP archive and a .m4a may be sniffed as any MPEG-4 audio
+		}
+		return sniffedMimeType; // the extension is misleading
+	}
+	
+	/**
+	 * @return The part of a MIME type before the slash, e.g. "image" for "image/png"
+	 * @author Peter Piech
+	 */
+	private static String getTopLevelType(String mimeType)
+	{
+		int slashIndex = mimeType.indexOf('/');
+		return slashIndex == -1 ? mimeType : mimeType.substring(0, slashIndex);
+	}
+	
 	/**
 	 * Retrieves the attached {@link android.app.Activity}'s intent
 	 * 
@@ -0,0 +1,230 @@
+package com.procom.filefly.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * Watches a folder and any number of its subfolders for entries being created, deleted,
+ * moved or rewritten outside of the app.
+ * <p>
+ * The events of the kernel arrive one by one, often hundreds at a time when a folder is copied
+ * over. They are collected and handed to the {@link Callback} at most once every
+ * {@link #sCoalesceMillis} milliseconds, grouped by folder and with repeated names merged, on a
+ * background thread shared by every {@link FolderWatcher}. Since several events for the same
+ * name may be merged, the {@link Callback} looks at the file system to find what became of each name.
+ * <p>
+ * A {@link android.os.FileObserver} only sees the direct children of its folder, so every
+ * subfolder of interest is watched with {@link #watch}.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-02
+ */
+public class FolderWatcher
+{
+	/** The events that change the entries of a folder or the content of a file */
+	private static final int sEventMask = FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_FROM
+			| FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE;
+
+	/** The number of milliseconds events are collected before the {@link Callback} is called */
+	private static final long sCoalesceMillis = 250;
+
+	/** The thread every {@link Callback} is called on, started with the first {@link FolderWatcher} */
+	private static Handler sHandler;
+
+	/** The watched folder; the paths passed to {@link #watch} are relative to it */
+	private final File mRoot;
+
+	/** Receives the coalesced changes */
+	private final Callback mCallback;
+
+	/** The {@link android.os.FileObserver}s by path relative to {@link #mRoot}; they must be referenced to keep delivering events */
+	private final Map<String, FileObserver> mObservers = new HashMap<String, FileObserver>();
+
+	/** Whether {@link #stop} was called, after which nothing is watched again */
+	private boolean mStopped;
+
+	/** The names that changed since the {@link Callback} was last called, by folder path relative to {@link #mRoot} */
+	private Map<String, Set<String>> mPending = new HashMap<String, Set<String>>();
+
+	/** Hands {@link #mPending} to the {@link Callback}; posted once per burst of events */
+	private final Runnable mDeliver = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			Map<String, Set<String>> changes;
+			synchronized (FolderWatcher.this)
+			{
+				changes = mPending;
+				mPending = new HashMap<String, Set<String>>();
+			}
+			if (!changes.isEmpty())
+			{
+				mCallback.onFolderChanged(changes);
+			}
+		}
+	};
+
+	/**
+	 * Constructs a watcher of a folder; nothing is watched until {@link #watch} is called.
+	 *
+	 * @param root The watched folder
+	 * @param callback Receives the coalesced changes on a background thread
+	 * @author Peter Piech
+	 */
+	public FolderWatcher(File root, Callback callback)
+	{
+		mRoot = root;
+		mCallback = callback;
+		synchronized (FolderWatcher.class)
+		{
+			if (sHandler == null)
+			{
+				HandlerThread thread = new HandlerThread("FolderWatcher", Process.THREAD_PRIORITY_BACKGROUND);
+				thread.start();
+				sHandler = new Handler(thread.getLooper());
+			}
+		}
+	}
+
+	/**
+	 * @return The watched folder
+	 * @author Peter Piech
+	 */
+	public File getRoot()
+	{
+		return mRoot;
+	}
+
+	/**
+	 * Starts watching a folder, unless it is already watched or the watcher was stopped.
+	 *
+	 * @param path The path of the folder relative to the root, with "/" separating folders, or "" for the root itself
+	 * @author Peter Piech
+	 */
+	public synchronized void watch(final String path)
+	{
+		if (mStopped || mObservers.containsKey(path))
+		{
+			return;
+		}
+		FileObserver observer = new FileObserver(path.length() == 0 ? mRoot.getPath() : new File(mRoot, path).getPath(), sEventMask)
+		{
+			@Override
+			public void onEvent(int event, String name)
+			{
+				if (name != null && (event & sEventMask) != 0) // the mask does not filter the events the kernel always sends, e.g. IN_IGNORED
+				{
+					onChanged(path, name);
+				}
+			}
+		};
+		mObservers.put(path, observer);
+		observer.startWatching();
+	}
+
+	/**
+	 * Stops watching a folder and all of its subfolders.
+	 *
+	 * @param path The path of the folder as passed to {@link #watch}
+	 * @author Peter Piech
+	 */
+	public synchronized void unwatch(String path)
+	{
+		Iterator<Map.Entry<String, FileObserver>> iterator = mObservers.entrySet().iterator();
+		while (iterator.hasNext())
+		{
+			Map.Entry<String, FileObserver> entry = iterator.next();
+			String watched = entry.getKey();
+			if (watched.equals(path) || path.length() == 0 || watched.startsWith(path + "/"))
+			{
+				entry.getValue().stopWatching();
+				iterator.remove();
+			}
+		}
+		mPending.keySet().removeAll(getUnwatched(mPending.keySet()));
+	}
+
+	/**
+	 * Stops watching every folder for good and drops the changes not delivered yet.
+	 *
+	 * @author Peter Piech
+	 */
+	public synchronized void stop()
+	{
+		mStopped = true;
+		unwatch("");
+		sHandler.removeCallbacks(mDeliver);
+	}
+
+	/**
+	 * Records a changed name and schedules the delivery of the current burst, unless it is already scheduled.
+	 *
+	 * @author Peter Piech
+	 */
+	private synchronized void onChanged(String path, String name)
+	{
+		if (!mObservers.containsKey(path)) // i.e. an event that raced with unwatch
+		{
+			return;
+		}
+		boolean scheduled = !mPending.isEmpty();
+		Set<String> names = mPending.get(path);
+		if (names == null)
+		{
+			names = new HashSet<String>();
+			mPending.put(path, names);
+		}
+		names.add(name);
+		if (!scheduled)
+		{
+			sHandler.postDelayed(mDeliver, sCoalesceMillis);
+		}
+	}
+
+	/**
+	 * @return The paths among <code>paths</code> that are no longer watched
+	 * @author Peter Piech
+	 */
+	private List<String> getUnwatched(Set<String> paths)
+	{
+		List<String> unwatched = new ArrayList<String>();
+		for (String path : paths)
+		{
+			if (!mObservers.containsKey(path))
+			{
+				unwatched.add(path);
+			}
+		}
+		return unwatched;
+	}
+
+	/**
+	 * Receives the changes seen by a {@link FolderWatcher}.
+	 *
+	 * @author Peter Piech
+	 */
+	public interface Callback
+	{
+		/**
+		 * Called on a background thread with the names that were created, deleted, moved or
+		 * rewritten during the last burst of events.
+		 *
+		 * @param changes The changed names by path of their folder relative to the root
+		 * @author Peter Piech
+		 */
+		void onFolderChanged(Map<String, Set<String>> changes);
+	}
+}
@@ -0,0 +1,42 @@
+package com.procom.filefly.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A {@link com.procom.filefly.util.TcpTransport} on the loopback interface, which lets the sending
+ * and the receiving side of {@link com.procom.filefly.util.StreamTransfer} run in the same process
+ * or on the same machine, e.g. to measure the throughput of the pipeline without the network.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-06
+ */
+public class LoopbackTransport extends TcpTransport
+{
+	/**
+	 * Constructs a transport listening on 127.0.0.1.
+	 *
+	 * @author Peter Piech
+	 */
+	public LoopbackTransport()
+	{
+		super(getLoopbackAddress());
+	}
+
+	/**
+	 * @return The IPv4 loopback address
+	 * @author Peter Piech
+	 */
+	private static InetAddress getLoopbackAddress()
+	{
+		try
+		{
+			return InetAddress.getByAddress("localhost", new byte[] { 127, 0, 0, 1 }); // a literal address is never looked up
+		}
+		catch (UnknownHostException e)
+		{
+			throw new IllegalStateException(e); // only thrown for an address of the wrong length
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package com.procom.filefly.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.json.JSONException;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.util.Log;
+
+/**
+ * Exports the {@link com.procom.filefly.util.TransferMetrics} as JSON, from the hidden menu item of
+ * {@link com.procom.filefly.MainActivity} or, in debuggable builds only, from a broadcast:
+ * <pre>
+ * adb shell am broadcast -a com.procom.filefly.DUMP_METRICS
+ * </pre>
+ * The broadcast returns the JSON as its result data, which <code>am</code> prints. Either way the
+ * JSON is also written to the app's folder on external storage and to the log.
+ * <p>
+ * Debuggable builds always show the menu item. Release builds show it once {@link #revealMenu} was
+ * called, so the metrics of devices in the field can still be exported. The broadcast is never
+ * registered in release builds, since any app could send it.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-05
+ */
+public class MetricsDumper
+{
+	/** The action of the broadcast that dumps the metrics */
+	public static final String ACTION_DUMP_METRICS = "com.procom.filefly.DUMP_METRICS";
+
+	/** The tag of the log messages */
+	private static final String sTag = "FileFlyMetrics";
+
+	/** Whether the receiver of {@link #ACTION_DUMP_METRICS} is registered */
+	private static boolean sRegistered;
+
+	/** Whether the menu item was revealed for the lifetime of the process */
+	private static volatile boolean sMenuRevealed;
+
+	/**
+	 * Not instantiable; all methods are static.
+	 *
+	 * @author Peter Piech
+	 */
+	private MetricsDumper() {}
+
+	/**
+	 * @return Whether the app is a debuggable build, the only kind that listens for {@link #ACTION_DUMP_METRICS}
+	 * @author Peter Piech
+	 */
+	public static boolean isDebuggable(Context context)
+	{
+		return (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+	}
+
+	/**
+	 * @return Whether the menu item dumping the metrics is shown
+	 * @author Peter Piech
+	 */
+	public static boolean isMenuShown(Context context)
+	{
+		return sMenuRevealed || isDebuggable(context);
+	}
+
+	/**
+	 * Shows the menu item dumping the metrics, even in release builds, until the process ends.
+	 *
+	 * @author Peter Piech
+	 */
+	public static void revealMenu()
+	{
+		sMenuRevealed = true;
+	}
+
+	/**
+	 * Starts listening for {@link #ACTION_DUMP_METRICS} for the lifetime of the process, if the app is debuggable.
+	 *
+	 * @author Peter Piech
+	 */
+	public static synchronized void register(Context context)
+	{
+		if (sRegistered || !isDebuggable(context))
+		{
+			return;
+		}
+		context.getApplicationContext().registerReceiver(new BroadcastReceiver()
+		{
+			@Override
+			public void onReceive(Context context, Intent intent)
+			{
+				String json = dump(context);
+				if (isOrderedBroadcast())
+				{
+					setResultData(json);
+				}
+			}
+		}, new IntentFilter(ACTION_DUMP_METRICS));
+		sRegistered = true;
+	}
+
+	/**
+	 * Writes the metrics to the log and to a timestamped file in the app's folder on external storage.
+	 *
+	 * @return The metrics as JSON
+	 * @author Peter Piech
+	 */
+	public static String dump(Context context)
+	{
+		String json;
+		try
+		{
+			json = TransferMetrics.toJson().toString(2);
+		}
+		catch (JSONException e)
+		{
+			json = TransferMetrics.toJson().toString();
+		}
+		Log.i(sTag, json);
+
+		File directory = context.getExternalFilesDir(null);
+		if (directory == null) // i.e. external storage is not mounted
+		{
+			return json;
+		}
+		File file = new File(directory, "metrics-" + System.currentTimeMillis() + ".json");
+		OutputStream out = null;
+		try
+		{
+			out = new FileOutputStream(file);
+			out.write(json.getBytes("UTF-8"));
+			Log.i(sTag, "Metrics written to " + file);
+		}
+		catch (IOException e)
+		{
+			Log.w(sTag, "Could not write " + file, e);
+		}
+		finally
+		{
+			IOUtils.closeQuietly(out);
+		}
+		return json;
+	}
+}
@@ -0,0 +1,165 @@
+package com.procom.filefly.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Compresses files before they are beamed and restores them on the receiving end.
+ * <p>
+ * Compressed payloads are gzip streams written at the fastest deflate level and embedded in a
+ * {@link com.procom.filefly.util.TransferEnvelope}, whose header names the original file.
+ * Files whose extension denotes an already compressed format, or whose sampled contents have
+ * a byte entropy close to random data, are sent as they are. The streams buffer a fixed number
+ * of bytes and never hold a whole file in memory.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-11-25
+ */
+public class PayloadCompressor
+{
+	/** Extensions of formats that are already compressed */
+	private static final Set<String> sCompressedExtensions = new HashSet<String>(Arrays.asList(
+			"jpg", "jpeg", "png", "gif", "webp", "heic",
+			"mp3", "m4a", "aac", "ogg", "oga", "opus", "flac", "amr",
+			"mp4", "m4v", "mkv", "webm", "avi", "mov", "3gp", "3g2", "wmv",
+			"zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "apk", "jar",
+			"docx", "xlsx", "pptx", "odt", "ods", "odp", "epub"));
+
+	/** Files smaller than this many bytes are not worth compressing */
+	private static final long sMinimumSize = 4 * 1024;
+
+	/** The number of bytes read from each sampled region of a file */
+	private static final int sSampleSize = 4 * 1024;
+
+	/** The entropy in bits per byte above which sampled data is considered incompressible */
+	private static final double sMaximumEntropy = 7.5;
+
+	/** The size of the buffer used to stream data */
+	private static final int sBufferSize = 64 * 1024;
+
+	/**
+	 * Not instantiable; all methods are static.
+	 *
+	 * @author Peter Piech
+	 */
+	private PayloadCompressor() {}
+
+	/**
+	 * Decides whether a file is worth compressing, first by its extension and then by the byte
+	 * entropy of samples taken from its start, middle and end.
+	 *
+	 * @param file The file to be sent
+	 * @return Whether {@link #newCompressingStream} is expected to shrink the file
+	 * @throws IOException If the file could not be sampled
+	 * @author Peter Piech
+	 */
+	public static boolean shouldCompress(File file) throws IOException
+	{
+		String name = file.getName();
+		int extBeginIndex = name.lastIndexOf(".");
+		if (extBeginIndex != -1 && sCompressedExtensions.contains(name.substring(extBeginIndex + 1).toLowerCase(Locale.US)))
+		{
+			return false; // already compressed by its format
+		}
+		long size = file.length();
+		if (size < sMinimumSize)
+		{
+			return false;
+		}
+
+		int[] counts = new int[256];
+		int sampled = 0;
+		byte[] sample = new byte[sSampleSize];
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try
+		{
+			long[] offsets = { 0, (size - sSampleSize) / 2, size - sSampleSize };
+			for (long offset : offsets)
+			{
+				in.seek(Math.max(0, offset));
+				int read = in.read(sample);
+				for (int i = 0; i < read; i++)
+				{
+					counts[sample[i] & 0xff]++;
+				}
+				sampled += Math.max(0, read);
+			}
+		}
+		finally
+		{
+			IOUtils.closeQuietly(in);
+		}
+		return entropy(counts, sampled) <= sMaximumEntropy;
+	}
+
+	/**
+	 * Computes the Shannon entropy of a byte histogram.
+	 *
+	 * @param counts The number of occurrences of each byte value
+	 * @param total The number of bytes counted
+	 * @return The entropy in bits per byte, from 0 to 8
+	 * @author Peter Piech
+	 */
+	private static double entropy(int[] counts, int total)
+	{
+		if (total == 0)
+		{
+			return 0;
+		}
+		double entropy = 0;
+		for (int count : counts)
+		{
+			if (count > 0)
+			{
+				double p = (double) count / total;
+				entropy -= p * Math.log(p);
+			}
+		}
+		return entropy / Math.log(2);
+	}
+
+	/**
+	 * Opens a gzip stream for payloads that are embedded in another file such as a
+	 * {@link com.procom.filefly.util.TransferEnvelope}.
+	 *
+	 * @param out The stream receiving the compressed bytes, closed with the returned stream
+	 * @return A stream compressing at the fastest deflate level
+	 * @author Peter Piech
+	 */
+	static OutputStream newCompressingStream(OutputStream out) throws IOException
+	{
+		return new GZIPOutputStream(new BufferedOutputStream(out, sBufferSize), sBufferSize)
+		{
+			{
+				def.setLevel(Deflater.BEST_SPEED); // bytes on the wire are expensive, but so is the CPU of the sender
+			}
+		};
+	}
+
+	/**
+	 * Opens a stream restoring the bytes written by {@link #newCompressingStream}.
+	 *
+	 * @param in The stream of compressed bytes, closed with the returned stream
+	 * @return A stream of the original bytes
+	 * @author Peter Piech
+	 */
+	static InputStream newDecompressingStream(InputStream in) throws IOException
+	{
+		return new GZIPInputStream(new BufferedInputStream(in, sBufferSize), sBufferSize);
+	}
+}
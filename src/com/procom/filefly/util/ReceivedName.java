@@ -0,0 +1,128 @@
+package com.procom.filefly.util;
+
+/**
+ * The sender and filename parsed from the name of a received file, which the sender
+ * prefixes with "Last_First_" and the Android Beam API may further prefix with "files".
+ * <p>
+ * This runs for every received file and every sibling looked at when grouping a batch, so
+ * the name is scanned with {@link java.lang.String#indexOf} rather than split with regular
+ * expressions. It only depends on <code>java.lang</code>, so it can be measured and checked
+ * on a plain JVM.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-06
+ */
+public final class ReceivedName
+{
+	/** The prefix that the Android Beam API prepends to the names of received files */
+	private static final String sBeamPrefix = "files";
+
+	/** The name of the file without the directories and the Android Beam prefix, but with the sender prefix */
+	private final String mFileName;
+
+	/** The first name of the sender */
+	private final String mFirstName;
+
+	/** The last name of the sender */
+	private final String mLastName;
+
+	/**
+	 * Constructs a parsed name.
+	 *
+	 * @author Peter Piech
+	 */
+	private ReceivedName(String fileName, String firstName, String lastName)
+	{
+		mFileName = fileName;
+		mFirstName = firstName;
+		mLastName = lastName;
+	}
+
+	/**
+	 * Parses the name of a received file.
+	 *
+	 * @param path The absolute path or the name of a received file
+	 * @return The parsed name, or <code>null</code> if the sender did not prefix the name with "Last_First_"
+	 * @author Peter Piech
+	 */
+	public static ReceivedName parse(String path)
+	{
+		String fn = stripBeamPrefix(path.substring(path.lastIndexOf('/') + 1));
+		int first = fn.indexOf('_');
+		int second = first == -1 ? -1 : fn.indexOf('_', first + 1);
+		if (second == -1 || !hasNameAfter(fn, second + 1))
+		{
+			return null; // the first/last name wasn't prepended
+		}
+		// the order of the names is (last,first) when sent by the sender:
+		return new ReceivedName(fn, fn.substring(first + 1, second), fn.substring(0, first));
+	}
+
+	/**
+	 * Gets the "Last_First_" prefix of a received filename.
+	 *
+	 * @param filename The name of a received file, optionally starting with the "files" prefix prepended by the Android Beam API
+	 * @return The sender prefix or <code>null</code> if the filename has none
+	 * @author Peter Piech
+	 */
+	public static String getSenderPrefix(String filename)
+	{
+		String fn = stripBeamPrefix(filename);
+		int first = fn.indexOf('_');
+		int second = first == -1 ? -1 : fn.indexOf('_', first + 1);
+		return second == -1 ? null : fn.substring(0, second + 1);
+	}
+
+	/**
+	 * @return The name without the "files" prefix that the Android Beam API prepends
+	 * @author Peter Piech
+	 */
+	private static String stripBeamPrefix(String filename)
+	{
+		return filename.startsWith(sBeamPrefix) ? filename.substring(sBeamPrefix.length()) : filename;
+	}
+
+	/**
+	 * @return Whether anything but underscores follows <code>start</code>, i.e. whether a filename follows the sender prefix
+	 * @author Peter Piech
+	 */
+	private static boolean hasNameAfter(String fn, int start)
+	{
+		for (int i = start; i < fn.length(); i++)
+		{
+			if (fn.charAt(i) != '_')
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The name of the file including the sender prefix, without the "files" prefix prepended by the Android Beam API
+	 * @author Peter Piech
+	 */
+	public String getFileName()
+	{
+		return mFileName;
+	}
+
+	/**
+	 * @return The first name of the sender
+	 * @author Peter Piech
+	 */
+	public String getFirstName()
+	{
+		return mFirstName;
+	}
+
+	/**
+	 * @return The last name of the sender
+	 * @author Peter Piech
+	 */
+	public String getLastName()
+	{
+		return mLastName;
+	}
+}
@@ -0,0 +1,1677 @@
+package com.procom.filefly.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+
+import android.util.Log;
+
+/**
+ * Moves a batch of files over a {@link com.procom.filefly.util.Transport} after an NFC tap
+ * exchanged a handshake, so that the tap only carries a few bytes and the payload streams
+ * over a fast link.
+ * <p>
+ * The sending device creates an {@link Offer}, whose handshake holds the endpoint of its
+ * {@link com.procom.filefly.util.Transport.Server} and a random one-time token. The receiving
+ * device connects, proves that it got the handshake by sending the token, reads the list of
+ * files and then requests ranges of the files by their index:
+ * <pre>
+ * receiver: magic, version, token
+ * sender:   count, total size, then size, header length and detached header of each file
+ * receiver: index, offset, length     sender: the requested bytes, then their CRC-32
+ * ...
+ * receiver: {@link #sHeaders}         sender: header length and final detached header of each file
+ * receiver: {@link #sDone} or {@link #sFinished}
+ * </pre>
+ * All numbers are big-endian as written by {@link java.io.DataOutputStream}. Each file is described
+ * by the detached header of a {@link com.procom.filefly.util.TransferEnvelope}: the sender, the name,
+ * the size, the MIME type and the SHA-256 of its content. The content itself is streamed as it is,
+ * also for a file staged compressed for Android Beam, so the receiver writes every byte once.
+ * <p>
+ * A file that the sending device published without reading it is offered with an unhashed header,
+ * see {@link com.procom.filefly.util.TransferEnvelope#encodeUnhashedHeader}, so it is ready to send
+ * before it was hashed. The sender hashes it in the background and hands the final header to
+ * {@link Offer#describe}; the receiver asks for the final headers on its first connection once it has
+ * every range, and the sender answers as soon as every file was described.
+ * <p>
+ * The receiver splits the files into ranges of {@link #sRangeSize} bytes and may open up to
+ * {@link #sMaxStreams} connections with the same token, each fetching ranges from a shared queue
+ * and writing them straight into the preallocated destination at their offset. It starts with
+ * one connection and adds another as long as the last one raised the throughput, so a link that
+ * a single stream already saturates is not split up.
+ * <p>
+ * Every range is checked against its CRC-32 as it arrives, and every file is hashed in order
+ * while its ranges are written: a range that continues the hashed prefix of its file is hashed
+ * from the network buffer. The others are copied into one of {@link #sMaxHeldRanges} range-sized
+ * buffers as they arrive and hashed from there once the prefix reaches them; only when more ranges
+ * are ahead of the prefix than there are buffers is a range read back from the partial file. The
+ * SHA-256 is compared with the one the sender announced, so a damaged file is never recorded,
+ * and it is handed on so the {@link com.procom.filefly.util.ContentStore} does not read the file again.
+ * <p>
+ * A receive that breaks off keeps its partial files together with a
+ * {@link com.procom.filefly.util.ChunkManifest} of the CRC-32 of every range they hold, see
+ * {@link com.procom.filefly.util.ChunkedTransfer#getStateFile}. The next receive of the same files,
+ * e.g. after the user tapped again, checks the recorded ranges against their CRC-32 and hashes them
+ * from the partial file, and only requests the ranges that are missing or damaged. As the receiver
+ * chooses every range it requests, the ranges it leaves out are all the sender needs to know of what
+ * it already has. A file that changed on the sending device in between fails the SHA-256 check and
+ * is received from the start by the next attempt.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-06
+ */
+public class StreamTransfer
+{
+	/** The MIME type of the NDEF record carrying the handshake */
+	public static final String HANDSHAKE_MIME_TYPE = "application/vnd.com.procom.filefly.handshake";
+
+	/** The first four bytes sent by the receiver, "FFLY" */
+	private static final int sMagic = 0x46464c59;
+
+	/**
+	 * The version of the protocol; version 3 announced names and hashes instead of headers and
+	 * version 4 announced only final headers, before the content
+	 */
+	private static final int sVersion = 5;
+
+	/** The largest number of files one offer may hold, so a receiver never sizes its tables from an absurd count */
+	private static final int sMaxFiles = 0xffff;
+
+	/** The number of random bytes in a token */
+	private static final int sTokenLength = 16;
+
+	/** The index requested by the receiver on a connection it no longer needs */
+	private static final int sDone = -1;
+
+	/** The index requested by the receiver once it has every file, which withdraws the offer */
+	private static final int sFinished = -2;
+
+	/** The index requested by the receiver once it has every range, which the sender answers with the final headers */
+	private static final int sHeaders = -3;
+
+	/** The number of bytes requested at a time; smaller files are requested whole */
+	private static final long sRangeSize = 4 * 1024 * 1024;
+
+	/** The maximum number of connections of one receive */
+	private static final int sMaxStreams = 4;
+
+	/** The number of milliseconds between two throughput measurements of the receiver */
+	private static final long sSampleInterval = 500;
+
+	/** The factor by which a new connection must raise the throughput to be worth another one */
+	private static final double sMinimumGain = 1.1;
+
+	/** The number of milliseconds the sender waits for another connection of a receiver that has no connection open */
+	private static final int sIdleTimeout = 10 * 1000;
+
+	/** The number of milliseconds the receiver waits for the connection */
+	private static final int sConnectTimeout = 10 * 1000;
+
+	/** The size of the buffer used to stream data */
+	private static final int sBufferSize = 64 * 1024;
+
+	/**
+	 * The maximum number of ranges ahead of the hashed prefix that are held in memory until it reaches
+	 * them, i.e. one per connection besides the one extending the prefix
+	 */
+	private static final int sMaxHeldRanges = sMaxStreams - 1;
+
+	/** The tag of the log messages */
+	private static final String sTag = "StreamTransfer";
+
+	/** The source of the tokens */
+	private static final SecureRandom sRandom = new SecureRandom();
+
+	/**
+	 * Not instantiable; all methods are static.
+	 *
+	 * @author Peter Piech
+	 */
+	private StreamTransfer() {}
+
+	/**
+	 * Starts offering files to the device that receives the handshake of the returned {@link Offer}.
+	 *
+	 * @param transport The {@link com.procom.filefly.util.Transport} to listen on
+	 * @param files The files to send, with their original content
+	 * @param headers The detached header describing each file, see
+	 * {@link com.procom.filefly.util.TransferEnvelope#encodeDetachedHeader}, or an unhashed one
+	 * to be replaced through {@link Offer#describe}
+	 * @param timeoutMillis The number of milliseconds after which the offer is withdrawn if it was not taken
+	 * @return The running {@link Offer}
+	 * @throws IOException If the transport could not listen
+	 * @throws IllegalArgumentException If there are no files, more than {@link #sMaxFiles} or not one header per file
+	 * @author Peter Piech
+	 */
+	public static Offer offer(Transport transport, List<File> files, List<byte[]> headers, long timeoutMillis) throws IOException
+	{
+		if (files.isEmpty() || files.size() > sMaxFiles || files.size() != headers.size())
+		{
+			throw new IllegalArgumentException("Cannot offer " + files.size() + " files with " + headers.size() + " headers");
+		}
+		byte[] token = new byte[sTokenLength];
+		sRandom.nextBytes(token);
+		Offer offer = new Offer(transport.listen(), token, new ArrayList<File>(files), new ArrayList<byte[]>(headers), timeoutMillis);
+		offer.start();
+		return offer;
+	}
+
+	/**
+	 * Receives the files of an {@link Offer}. This must be called from within a
+	 * {@link com.procom.filefly.util.TransferEngine.TransferJob}.
+	 * <p>
+	 * Each file is written to the hidden partial file of its destination, named "Last_First_name"
+	 * after its header, see {@link com.procom.filefly.util.ChunkedTransfer#getPartFile}, so it can be
+	 * moved into place by the {@link com.procom.filefly.util.ContentStore}. If the receive fails the
+	 * partial files are kept with the state of their ranges, so that receiving the same files again
+	 * resumes them; a file that does not match the size and hash in its header is deleted.
+	 *
+	 * @param transport The {@link com.procom.filefly.util.Transport} to connect with
+	 * @param handshake The handshake of the {@link Offer}, as delivered by the NFC tap
+	 * @param directory The directory the files are stored in, i.e. FileFly/received
+	 * @param handle The {@link com.procom.filefly.util.TransferEngine.TransferHandle} of the running job
+	 * @return The {@link ReceivedFile}s, in the order of the offer
+	 * @throws IOException If the handshake or a header is malformed, the connection failed, a file arrived damaged or the job was cancelled
+	 * @author Peter Piech
+	 */
+	public static List<ReceivedFile> receive(Transport transport, byte[] handshake, File directory, TransferEngine.TransferHandle handle) throws IOException
+	{
+		String[] parts = new String(handshake, "UTF-8").split("\n");
+		if (parts.length != 2)
+		{
+			throw new IOException("Malformed handshake");
+		}
+		byte[] token = fromHex(parts[1]);
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Could not create " + directory);
+		}
+		return new Receive(transport, parts[0], token, directory).run(handle);
+	}
+
+	/**
+	 * @return The four bytes of a CRC-32, as recorded for a range in a {@link com.procom.filefly.util.ChunkManifest}
+	 * @author Peter Piech
+	 */
+	private static byte[] toBytes(long crc)
+	{
+		return new byte[] { (byte) (crc >>> 24), (byte) (crc >>> 16), (byte) (crc >>> 8), (byte) crc };
+	}
+
+	/**
+	 * Rejects the names that would place a received file outside its directory.
+	 *
+	 * @return The name
+	 * @throws IOException If the name is not a plain filename
+	 * @author Peter Piech
+	 */
+	private static String checkName(String name) throws IOException
+	{
+		if (name.length() == 0 || name.indexOf('/') != -1 || name.equals(".") || name.equals(".."))
+		{
+			throw new IOException("Invalid filename: " + name);
+		}
+		return name;
+	}
+
+	/**
+	 * @return The hexadecimal digits of the bytes
+	 * @author Peter Piech
+	 */
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+		{
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * @return The bytes of a token written by {@link #toHex}
+	 * @throws IOException If the string is not a token
+	 * @author Peter Piech
+	 */
+	private static byte[] fromHex(String hex) throws IOException
+	{
+		if (hex.length() != sTokenLength * 2)
+		{
+			throw new IOException("Malformed token");
+		}
+		byte[] bytes = new byte[sTokenLength];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			int high = Character.digit(hex.charAt(2 * i), 16);
+			int low = Character.digit(hex.charAt(2 * i + 1), 16);
+			if (high == -1 || low == -1)
+			{
+				throw new IOException("Malformed token");
+			}
+			bytes[i] = (byte) ((high << 4) | low);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Files offered by the sending device until one receiver took them, the offer timed out
+	 * or it was closed.
+	 *
+	 * @author Peter Piech
+	 */
+	public static class Offer implements Closeable
+	{
+		/** The server accepting the receiver */
+		private final Transport.Server mServer;
+
+		/** The token the receiver must send */
+		private final byte[] mToken;
+
+		/** The offered files */
+		private final List<File> mFiles;
+
+		/** The detached header describing each file, as sent before the content */
+		private final List<byte[]> mHeaders;
+
+		/**
+		 * The final detached header of each file, sent after the content; <code>null</code> while a
+		 * file is only described by an unhashed header. Guarded by and notified on itself.
+		 */
+		private final byte[][] mFinalHeaders;
+
+		/** The {@link java.lang.System#currentTimeMillis} after which the offer is withdrawn */
+		private final long mDeadline;
+
+		/** Accepts the connections of the receiver */
+		private final Thread mThread;
+
+		/** The connections being served, each by its own thread */
+		private final Set<Transport.Connection> mConnections = new HashSet<Transport.Connection>();
+
+		/** Set once a receiver presented the token, after which the deadline no longer applies */
+		private volatile boolean mTaken;
+
+		/** Set once the offer is withdrawn */
+		private volatile boolean mClosed;
+
+		/**
+		 * Constructs an offer.
+		 *
+		 * @author Peter Piech
+		 */
+		private Offer(Transport.Server server, byte[] token, List<File> files, List<byte[]> headers, long timeoutMillis)
+		{
+			mServer = server;
+			mToken = token;
+			mFiles = files;
+			mHeaders = headers;
+			mFinalHeaders = new byte[headers.size()][];
+			for (int i = 0; i < headers.size(); i++)
+			{
+				TransferEnvelope.Header header = new TransferEnvelope.Header();
+				if (!header.parse(headers.get(i), 0, headers.get(i).length) || !header.isUnhashed())
+				{
+					mFinalHeaders[i] = headers.get(i);
+				}
+			}
+			mDeadline = System.currentTimeMillis() + timeoutMillis;
+			mThread = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					serve();
+				}
+			}, "FileFly offer");
+		}
+
+		/**
+		 * Starts accepting the receiver in the background.
+		 *
+		 * @author Peter Piech
+		 */
+		private void start()
+		{
+			mThread.start();
+		}
+
+		/**
+		 * @return The bytes the NFC tap delivers to the receiving device: the endpoint and the token, separated by a newline
+		 * @author Peter Piech
+		 */
+		public byte[] getHandshake()
+		{
+			try
+			{
+				return (mServer.getEndpoint() + "\n" + toHex(mToken)).getBytes("UTF-8");
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				throw new IllegalStateException(e); // every platform supports UTF-8
+			}
+		}
+
+		/**
+		 * @return Whether a receiver presented the token, i.e. the receiving device reached this one
+		 * @author Peter Piech
+		 */
+		public boolean isTaken()
+		{
+			return mTaken;
+		}
+
+		/**
+		 * @return Whether the offer was taken, timed out or was closed
+		 * @author Peter Piech
+		 */
+		public boolean isClosed()
+		{
+			return mClosed;
+		}
+
+		/**
+		 * Replaces the unhashed header of a file with its final one once the file was hashed. The
+		 * receiver gets the final headers after the content, so this may be called while it is streaming.
+		 *
+		 * @param index The index of the file in the offer
+		 * @param header The final detached header of the file, see
+		 * {@link com.procom.filefly.util.TransferEnvelope#encodeDetachedHeader}
+		 * @throws IllegalArgumentException If the header is not a hashed, detached header of the offered size
+		 * @author Peter Piech
+		 */
+		public void describe(int index, byte[] header)
+		{
+			TransferEnvelope.Header parsed = new TransferEnvelope.Header();
+			if (!parsed.parse(header, 0, header.length) || !parsed.isDetached() || parsed.isUnhashed()
+					|| parsed.getContentSize() != mFiles.get(index).length())
+			{
+				throw new IllegalArgumentException("Not a final header of file " + index);
+			}
+			synchronized (mFinalHeaders)
+			{
+				mFinalHeaders[index] = header;
+				mFinalHeaders.notifyAll();
+			}
+		}
+
+		/**
+		 * Withdraws the offer, aborting a transfer in progress.
+		 *
+		 * @author Peter Piech
+		 */
+		@Override
+		public void close()
+		{
+			mClosed = true;
+			synchronized (mFinalHeaders)
+			{
+				mFinalHeaders.notifyAll(); // wakes up a thread waiting for a file to be described
+			}
+			IOUtils.closeQuietly(mServer); // wakes up the thread blocked in accept
+			synchronized (mConnections)
+			{
+				for (Transport.Connection connection : mConnections)
+				{
+					IOUtils.closeQuietly(connection); // wakes up the threads blocked on the network
+				}
+			}
+		}
+
+		/**
+		 * Accepts connections until the receiver got every file, nobody took the offer before the
+		 * deadline or the receiver went away.
+		 *
+		 * @author Peter Piech
+		 */
+		private void serve()
+		{
+			try
+			{
+				while (!mClosed)
+				{
+					int timeout = sIdleTimeout;
+					if (!mTaken)
+					{
+						long remaining = mDeadline - System.currentTimeMillis();
+						if (remaining <= 0)
+						{
+							break; // nobody took the offer
+						}
+						timeout = (int) Math.min(remaining, Integer.MAX_VALUE);
+					}
+					Transport.Connection connection;
+					try
+					{
+						connection = mServer.accept(timeout);
+					}
+					catch (InterruptedIOException e)
+					{
+						if (mTaken && getConnectionCount() > 0)
+						{
+							continue; // the receiver is still fetching ranges
+						}
+						throw e;
+					}
+					startConnection(connection);
+				}
+			}
+			catch (IOException e)
+			{
+				if (!mClosed)
+				{
+					Log.i(sTag, "Offer withdrawn: " + e.getMessage()); // e.g. the timeout expired
+				}
+			}
+			finally
+			{
+				close();
+			}
+		}
+
+		/**
+		 * @return The number of connections being served
+		 * @author Peter Piech
+		 */
+		private int getConnectionCount()
+		{
+			synchronized (mConnections)
+			{
+				return mConnections.size();
+			}
+		}
+
+		/**
+		 * Serves a connection on its own thread, unless the receiver already has {@link StreamTransfer#sMaxStreams} of them.
+		 *
+		 * @author Peter Piech
+		 */
+		private void startConnection(final Transport.Connection connection)
+		{
+			synchronized (mConnections)
+			{
+				if (mClosed || mConnections.size() >= sMaxStreams)
+				{
+					IOUtils.closeQuietly(connection);
+					return;
+				}
+				mConnections.add(connection);
+			}
+			new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						if (serve(connection))
+						{
+							close(); // the token is only good for one receive
+						}
+					}
+					catch (IOException e)
+					{
+						if (!mClosed)
+						{
+							Log.w(sTag, "Transfer failed", e);
+						}
+					}
+					finally
+					{
+						synchronized (mConnections)
+						{
+							mConnections.remove(connection);
+						}
+						IOUtils.closeQuietly(connection);
+					}
+				}
+			}, "FileFly offer stream").start();
+		}
+
+		/**
+		 * Serves one connection.
+		 *
+		 * @return Whether the receiver presented the token and reported that it got every file
+		 * @author Peter Piech
+		 */
+		private boolean serve(Transport.Connection connection) throws IOException
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream(), sBufferSize));
+			byte[] token = new byte[sTokenLength];
+			if (in.readInt() != sMagic || in.readInt() != sVersion)
+			{
+				return false; // not a FileFly receiver
+			}
+			in.readFully(token);
+			if (!isEqual(token, mToken))
+			{
+				return false;
+			}
+			mTaken = true;
+
+			long total = 0;
+			for (File file : mFiles)
+			{
+				total += file.length();
+			}
+			out.writeInt(mFiles.size());
+			out.writeLong(total);
+			for (int i = 0; i < mFiles.size(); i++)
+			{
+				out.writeLong(mFiles.get(i).length());
+				out.writeShort(mHeaders.get(i).length);
+				out.write(mHeaders.get(i));
+			}
+			out.flush();
+
+			byte[] buffer = new byte[sBufferSize];
+			CRC32 crc = new CRC32();
+			int index;
+			while ((index = in.readInt()) != sDone && index != sFinished)
+			{
+				if (index == sHeaders)
+				{
+					sendFinalHeaders(out);
+					out.flush();
+					continue;
+				}
+				long offset = in.readLong();
+				long length = in.readLong();
+				if (index < 0 || index >= mFiles.size() || offset < 0 || length < 0)
+				{
+					throw new IOException("Invalid request for file " + index);
+				}
+				crc.reset();
+				sendRange(mFiles.get(index), offset, length, out, buffer, crc);
+				out.writeLong(crc.getValue());
+				out.flush();
+			}
+			return index == sFinished;
+		}
+
+		/**
+		 * Writes the final header of every file to the receiver, waiting until each was described.
+		 *
+		 * @throws InterruptedIOException If the offer was withdrawn before every file was described
+		 * @author Peter Piech
+		 */
+		private void sendFinalHeaders(DataOutputStream out) throws IOException
+		{
+			byte[][] headers;
+			synchronized (mFinalHeaders)
+			{
+				while (Arrays.asList(mFinalHeaders).contains(null))
+				{
+					if (mClosed)
+					{
+						throw new InterruptedIOException("Offer withdrawn");
+					}
+					try
+					{
+						mFinalHeaders.wait();
+					}
+					catch (InterruptedException e)
+					{
+						throw new InterruptedIOException("Offer withdrawn");
+					}
+				}
+				headers = mFinalHeaders.clone();
+			}
+			for (byte[] header : headers)
+			{
+				out.writeShort(header.length);
+				out.write(header);
+			}
+		}
+
+		/**
+		 * Writes a range of a file to the receiver, adding the bytes to its checksum.
+		 *
+		 * @author Peter Piech
+		 */
+		private void sendRange(File file, long offset, long length, OutputStream out, byte[] buffer, CRC32 crc) throws IOException
+		{
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try
+			{
+				in.seek(offset);
+				long remaining = length;
+				while (remaining > 0)
+				{
+					if (mClosed)
+					{
+						throw new InterruptedIOException("Offer withdrawn");
+					}
+					int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+					if (read == -1)
+					{
+						throw new EOFException(file + " was truncated during the transfer");
+					}
+					out.write(buffer, 0, read);
+					crc.update(buffer, 0, read);
+					remaining -= read;
+				}
+			}
+			finally
+			{
+				IOUtils.closeQuietly(in);
+			}
+		}
+
+		/**
+		 * Compares two tokens in constant time, so the time taken does not reveal how much of a guess was right.
+		 *
+		 * @author Peter Piech
+		 */
+		private static boolean isEqual(byte[] a, byte[] b)
+		{
+			if (a.length != b.length)
+			{
+				return false;
+			}
+			int difference = 0;
+			for (int i = 0; i < a.length; i++)
+			{
+				difference |= a[i] ^ b[i];
+			}
+			return difference == 0;
+		}
+	}
+
+	/**
+	 * One receive of the files of an {@link Offer} over up to {@link StreamTransfer#sMaxStreams}
+	 * connections. The thread calling {@link #run} measures the throughput and opens the
+	 * connections; every connection is served by its own thread, which takes ranges from
+	 * {@link #mRanges} until none are left.
+	 *
+	 * @author Peter Piech
+	 */
+	private static class Receive
+	{
+		/** The {@link com.procom.filefly.util.Transport} to connect with */
+		private final Transport mTransport;
+
+		/** The endpoint of the {@link Offer} */
+		private final String mEndpoint;
+
+		/** The token of the {@link Offer} */
+		private final byte[] mToken;
+
+		/** The directory the files are stored in */
+		private final File mDirectory;
+
+		/** The names the files are stored under, i.e. "Last_First_name" after their headers */
+		private final List<String> mNames = new ArrayList<String>();
+
+		/** The sizes of the files */
+		private long[] mSizes;
+
+		/** The header describing each file, as sent by the sender before the content */
+		private byte[][] mHeaderBytes;
+
+		/** The parsed {@link #mHeaderBytes} */
+		private TransferEnvelope.Header[] mHeaders;
+
+		/** The in-order hash of each file */
+		private FileDigest[] mDigests;
+
+		/** The CRC-32 of every range of each file that was written to its partial file, kept if the receive fails */
+		private ChunkManifest[] mManifests;
+
+		/** The preallocated partial files, written at the offsets of the ranges */
+		private FileChannel[] mChannels;
+
+		/** The ranges that no connection has requested yet, each as the index of its file, its offset and its length */
+		private final Deque<long[]> mRanges = new ArrayDeque<long[]>();
+
+		/** The number of bytes received by all connections */
+		private final AtomicLong mReceived = new AtomicLong();
+
+		/** The threads serving the connections */
+		private final List<Thread> mThreads = new ArrayList<Thread>();
+
+		/** The number of {@link #mThreads} that have not finished; guarded by and notified on {@link #mThreads} */
+		private int mRunning;
+
+		/** The connections that are open, the first of which is kept to report the end of the receive */
+		private final List<Transport.Connection> mConnections = new ArrayList<Transport.Connection>();
+
+		/** The first failure of a connection, which aborts the receive */
+		private volatile IOException mError;
+
+		/** Set once the receive is aborted */
+		private volatile boolean mAborted;
+
+		/** Set once the sender refused another connection */
+		private volatile boolean mRefused;
+
+		/** The number of connections that should be closed because they lowered the throughput */
+		private final AtomicInteger mRetirements = new AtomicInteger();
+
+		/** The range-sized buffers that are not holding a range, see {@link #takeHeldBuffer} */
+		private final Deque<byte[]> mHeldBuffers = new ArrayDeque<byte[]>();
+
+		/** The number of range-sized buffers allocated */
+		private int mHeldBufferCount;
+
+		/**
+		 * Constructs a receive.
+		 *
+		 * @author Peter Piech
+		 */
+		Receive(Transport transport, String endpoint, byte[] token, File directory)
+		{
+			mTransport = transport;
+			mEndpoint = endpoint;
+			mToken = token;
+			mDirectory = directory;
+		}
+
+		/**
+		 * Receives every file, adding connections while they raise the throughput.
+		 *
+		 * @return The {@link ReceivedFile}s
+		 * @author Peter Piech
+		 */
+		List<ReceivedFile> run(TransferEngine.TransferHandle handle) throws IOException
+		{
+			boolean received = false;
+			int damaged = -1; // the index of the file that did not match its header, whose partial file cannot be resumed
+			RandomAccessFile[] files = new RandomAccessFile[0];
+			try
+			{
+				Stream first;
+				try
+				{
+					first = connect();
+				}
+				catch (IOException e)
+				{
+					handle.checkCancelled();
+					IOException unreachable = new IOException("Could not reach the sender. Tap again to receive over Android Beam.");
+					unreachable.initCause(e); // e.g. the devices are on different networks, or the network isolates its clients
+					throw unreachable;
+				}
+				long total = first.mTotal;
+				files = new RandomAccessFile[mSizes.length];
+				mChannels = new FileChannel[mSizes.length];
+				mDigests = new FileDigest[mSizes.length];
+				mManifests = new ChunkManifest[mSizes.length];
+				byte[] buffer = new byte[sBufferSize]; // reads back kept ranges that are ahead of the hashed prefix
+				for (int i = 0; i < mSizes.length; i++)
+				{
+					File dest = new File(mDirectory, mNames.get(i));
+					File partFile = ChunkedTransfer.getPartFile(dest);
+					ChunkManifest kept = ChunkManifest.read(ChunkedTransfer.getStateFile(dest));
+					long stamp = getStamp(i);
+					if (kept == null || kept.getFileSize() != mSizes[i] || kept.getChunkSize() != sRangeSize
+							|| kept.getSourceStamp() != 0 && stamp != 0 && kept.getSourceStamp() != stamp || partFile.length() != mSizes[i])
+					{
+						kept = null; // nothing to resume from
+					}
+					mDigests[i] = new FileDigest();
+					mManifests[i] = new ChunkManifest(mSizes[i], (int) sRangeSize);
+					mManifests[i].setSourceStamp(stamp);
+					files[i] = new RandomAccessFile(partFile, "rw");
+					files[i].setLength(mSizes[i]); // reserve the space up front so the ranges can be written in any order
+					mChannels[i] = files[i].getChannel();
+					for (int range = 0; range < mManifests[i].getChunkCount(); range++)
+					{
+						long offset = mManifests[i].getChunkOffset(range);
+						int length = mManifests[i].getChunkLength(range);
+						if (kept != null && kept.getChunkHash(range) != null && resumeRange(i, offset, length, kept.getChunkHash(range), buffer))
+						{
+							mManifests[i].setChunkHash(range, kept.getChunkHash(range));
+							mReceived.addAndGet(length);
+						}
+						else
+						{
+							mRanges.add(new long[] { i, offset, length });
+						}
+					}
+				}
+				start(first);
+
+				long lastBytes = mReceived.get(); // i.e. the ranges kept from an earlier receive
+				double bestThroughput = 0;
+				boolean growing = true;
+				handle.publishProgress(lastBytes, total);
+				while (isAlive())
+				{
+					try
+					{
+						awaitStreams(System.currentTimeMillis() + sSampleInterval); // returns early once every connection finished
+					}
+					catch (InterruptedException e)
+					{
+						handle.cancel();
+					}
+					if (handle.isCancelled() || mError != null)
+					{
+						abort();
+						break;
+					}
+					if (!isAlive())
+					{
+						break; // every connection finished before the end of the sample
+					}
+					long bytes = mReceived.get();
+					handle.publishProgress(bytes, total);
+					double throughput = (bytes - lastBytes) / (double) sSampleInterval;
+					lastBytes = bytes;
+					if (growing)
+					{
+						if (throughput >= bestThroughput * sMinimumGain) // i.e. the connection opened last paid off
+						{
+							bestThroughput = throughput;
+							growing = !mRefused && hasRanges() && getStreamCount() < sMaxStreams;
+							if (growing)
+							{
+								start(null);
+							}
+						}
+						else
+						{
+							growing = false; // the link or the storage is saturated
+							if (throughput * sMinimumGain < bestThroughput)
+							{
+								mRetirements.incrementAndGet(); // the connection opened last only added contention
+							}
+						}
+					}
+				}
+				join();
+				handle.checkCancelled();
+				if (mError != null)
+				{
+					throw mError;
+				}
+				if (hasRanges())
+				{
+					throw new IOException("The transfer was interrupted");
+				}
+				TransferEnvelope.Header[] headers = first.receiveFinalHeaders(); // the sender may still be hashing a file it published unread
+				List<ReceivedFile> receivedFiles = new ArrayList<ReceivedFile>(mNames.size());
+				for (int i = 0; i < mNames.size(); i++)
+				{
+					ContentDigest digest = mDigests[i].mDigest;
+					if (digest.getLength() != mSizes[i] || !headers[i].matchesSha256(digest.getSha256Bytes()))
+					{
+						damaged = i;
+						throw new IOException(mNames.get(i) + " arrived damaged");
+					}
+					receivedFiles.add(new ReceivedFile(mNames.get(i), headers[i], ChunkedTransfer.getPartFile(new File(mDirectory, mNames.get(i))), digest));
+				}
+				handle.publishProgress(total, total);
+				first.finish();
+				received = true;
+				return receivedFiles;
+			}
+			finally
+			{
+				abort();
+				join();
+				for (RandomAccessFile file : files)
+				{
+					IOUtils.closeQuietly(file);
+				}
+				for (int i = 0; i < mNames.size(); i++)
+				{
+					File dest = new File(mDirectory, mNames.get(i));
+					if (received)
+					{
+						ChunkedTransfer.getStateFile(dest).delete(); // the partial file is moved into place by the caller
+					}
+					else if (i == damaged || mManifests == null || mManifests[i] == null || !keepState(i, dest))
+					{
+						ChunkedTransfer.getPartFile(dest).delete();
+						ChunkedTransfer.getStateFile(dest).delete();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Keeps a range of a partial file written by an earlier receive if it still matches its
+		 * CRC-32, adding it to the hash of its file.
+		 *
+		 * @param crc The CRC-32 recorded for the range
+		 * @param buffer A buffer for reading back the kept ranges that this one joins to the hashed prefix
+		 * @return Whether the range is kept and need not be requested
+		 * @author Peter Piech
+		 */
+		private boolean resumeRange(int index, long offset, int length, byte[] crc, byte[] buffer) throws IOException
+		{
+			byte[] bytes = takeHeldBuffer();
+			if (bytes == null)
+			{
+				return false; // no memory to check it in, so it is simply received again
+			}
+			try
+			{
+				ByteBuffer data = ByteBuffer.wrap(bytes, 0, length);
+				while (data.hasRemaining())
+				{
+					if (mChannels[index].read(data, offset + data.position()) < 0)
+					{
+						return false;
+					}
+				}
+				CRC32 check = new CRC32();
+				check.update(bytes, 0, length);
+				if (!Arrays.equals(toBytes(check.getValue()), crc))
+				{
+					return false; // e.g. the earlier receive died while writing it
+				}
+				FileDigest fileDigest = mDigests[index];
+				boolean inOrder = fileDigest.isNext(offset);
+				if (inOrder)
+				{
+					fileDigest.mDigest.update(bytes, 0, length);
+				}
+				fileDigest.complete(offset, length, inOrder, null, mChannels[index], buffer, new ArrayList<byte[]>()); // read back once the prefix reaches it
+				return true;
+			}
+			finally
+			{
+				giveHeldBuffer(bytes);
+			}
+		}
+
+		/**
+		 * Records the ranges of a partial file after a failed receive, so the next receive resumes it.
+		 *
+		 * @return Whether the state was written
+		 * @author Peter Piech
+		 */
+		private boolean keepState(int index, File dest)
+		{
+			try
+			{
+				mManifests[index].write(ChunkedTransfer.getStateFile(dest));
+				return true;
+			}
+			catch (IOException e)
+			{
+				Log.w(sTag, "Could not keep " + mNames.get(index), e);
+				return false;
+			}
+		}
+
+		/**
+		 * @return The stamp of the content of a file recorded with its ranges: derived from its header,
+		 * which holds its hash, or 0 if the header is unhashed and the content cannot be told apart yet
+		 * @author Peter Piech
+		 */
+		private long getStamp(int index)
+		{
+			if (mHeaders[index].isUnhashed())
+			{
+				return 0;
+			}
+			CRC32 crc = new CRC32();
+			crc.update(mHeaderBytes[index]);
+			return crc.getValue() | 1L << 32; // never 0
+		}
+
+		/**
+		 * Opens a connection and reads the list of files. The first connection fills in
+		 * {@link #mNames}, {@link #mSizes} and {@link #mHeaders}; the others must get the same list.
+		 *
+		 * @author Peter Piech
+		 */
+		private Stream connect() throws IOException
+		{
+			Transport.Connection connection = mTransport.connect(mEndpoint, sConnectTimeout);
+			synchronized (mConnections)
+			{
+				mConnections.add(connection);
+				if (mAborted)
+				{
+					IOUtils.closeQuietly(connection);
+					throw new InterruptedIOException("Transfer aborted");
+				}
+			}
+			Stream stream = new Stream(connection);
+			DataOutputStream out = stream.mOut;
+			out.writeInt(sMagic);
+			out.writeInt(sVersion);
+			out.write(mToken);
+			out.flush();
+
+			DataInputStream in = stream.mIn;
+			int count = in.readInt();
+			if (count <= 0 || count > sMaxFiles)
+			{
+				throw new IOException("The sender offered " + count + " files");
+			}
+			stream.mTotal = in.readLong();
+			long total = 0;
+			List<String> names = new ArrayList<String>(count);
+			long[] sizes = new long[count];
+			byte[][] headerBytes = new byte[count][];
+			TransferEnvelope.Header[] headers = new TransferEnvelope.Header[count];
+			for (int i = 0; i < count; i++)
+			{
+				sizes[i] = in.readLong();
+				int length = in.readUnsignedShort();
+				if (length > TransferEnvelope.MAX_HEADER_LENGTH)
+				{
+					throw new IOException("The sender described a file with an oversized header");
+				}
+				headerBytes[i] = new byte[length];
+				in.readFully(headerBytes[i]);
+				headers[i] = new TransferEnvelope.Header();
+				if (!headers[i].parse(headerBytes[i], 0, length) || headers[i].getLength() != length
+						|| !headers[i].isDetached() || headers[i].getContentSize() != sizes[i])
+				{
+					throw new IOException("The sender described a file with an invalid header");
+				}
+				names.add(checkName(headers[i].getLastName() + "_" + headers[i].getFirstName() + "_" + headers[i].getFileName())); // stored like every other received file
+				total += sizes[i];
+				if (total < 0)
+				{
+					throw new IOException("The sender described files larger than can be stored");
+				}
+			}
+			if (total != stream.mTotal)
+			{
+				throw new IOException("The sender announced a total size that does not match its files");
+			}
+			synchronized (mNames)
+			{
+				if (mSizes == null)
+				{
+					if (new HashSet<String>(names).size() != names.size())
+					{
+						throw new IOException("The sender offered two files with the same name");
+					}
+					mNames.addAll(names);
+					mSizes = sizes;
+					mHeaderBytes = headerBytes;
+					mHeaders = headers;
+				}
+				else if (!mNames.equals(names) || !Arrays.equals(mSizes, sizes) || !Arrays.deepEquals(mHeaderBytes, headerBytes))
+				{
+					throw new IOException("The sender changed the files during the transfer");
+				}
+			}
+			return stream;
+		}
+
+		/**
+		 * Serves a connection on a new thread; <code>null</code> to open a new one on that thread.
+		 *
+		 * @author Peter Piech
+		 */
+		private void start(final Stream opened)
+		{
+			Thread thread = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					Stream stream = opened;
+					try
+					{
+						if (stream == null)
+						{
+							try
+							{
+								stream = connect();
+							}
+							catch (IOException e)
+							{
+								Log.i(sTag, "No further stream: " + e.getMessage()); // the receive continues over the open ones
+								mRefused = true;
+								return;
+							}
+						}
+						stream.receiveRanges(stream != opened);
+						if (stream != opened)
+						{
+							stream.done(); // the first connection reports the end of the receive
+						}
+					}
+					catch (IOException e)
+					{
+						if (mError == null && !mAborted)
+						{
+							mError = e;
+						}
+					}
+					finally
+					{
+						synchronized (mThreads)
+						{
+							mRunning--;
+							mThreads.notifyAll();
+						}
+					}
+				}
+			}, "FileFly receive stream");
+			synchronized (mThreads)
+			{
+				mThreads.add(thread);
+				mRunning++;
+			}
+			thread.start();
+		}
+
+		/**
+		 * Waits until the given time or until no connection is served or opened any more, whichever comes first.
+		 *
+		 * @param deadline The {@link java.lang.System#currentTimeMillis} to wait until
+		 * @throws InterruptedException If the calling thread was interrupted
+		 * @author Peter Piech
+		 */
+		private void awaitStreams(long deadline) throws InterruptedException
+		{
+			synchronized (mThreads)
+			{
+				long remaining;
+				while (mRunning > 0 && (remaining = deadline - System.currentTimeMillis()) > 0)
+				{
+					mThreads.wait(remaining);
+				}
+			}
+		}
+
+		/**
+		 * Claims one of the requested {@link #mRetirements}.
+		 *
+		 * @return Whether the calling connection should close
+		 * @author Peter Piech
+		 */
+		private boolean retire()
+		{
+			int retirements;
+			while ((retirements = mRetirements.get()) > 0)
+			{
+				if (mRetirements.compareAndSet(retirements, retirements - 1))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return Whether any connection is still being served or opened
+		 * @author Peter Piech
+		 */
+		private boolean isAlive()
+		{
+			synchronized (mThreads)
+			{
+				return mRunning > 0;
+			}
+		}
+
+		/**
+		 * @return The number of connections being served or opened
+		 * @author Peter Piech
+		 */
+		private int getStreamCount()
+		{
+			synchronized (mThreads)
+			{
+				return mRunning;
+			}
+		}
+
+		/**
+		 * @return Whether any range has not been requested yet
+		 * @author Peter Piech
+		 */
+		private boolean hasRanges()
+		{
+			synchronized (mRanges)
+			{
+				return !mRanges.isEmpty();
+			}
+		}
+
+		/**
+		 * @return The next range to request, or <code>null</code> if there is none or the receive was aborted
+		 * @author Peter Piech
+		 */
+		private long[] nextRange()
+		{
+			synchronized (mRanges)
+			{
+				return mAborted ? null : mRanges.poll();
+			}
+		}
+
+		/**
+		 * Stops every connection, waking up the threads blocked on the network.
+		 *
+		 * @author Peter Piech
+		 */
+		private void abort()
+		{
+			mAborted = true;
+			synchronized (mConnections)
+			{
+				for (Transport.Connection connection : mConnections)
+				{
+					IOUtils.closeQuietly(connection);
+				}
+			}
+		}
+
+		/**
+		 * Waits for the threads serving the connections.
+		 *
+		 * @author Peter Piech
+		 */
+		private void join()
+		{
+			List<Thread> threads;
+			synchronized (mThreads)
+			{
+				threads = new ArrayList<Thread>(mThreads);
+			}
+			for (Thread thread : threads)
+			{
+				try
+				{
+					thread.join();
+				}
+				catch (InterruptedException e)
+				{
+					abort(); // the threads stop at their next read
+				}
+			}
+		}
+
+		/**
+		 * Takes a buffer that holds a range ahead of the hashed prefix of its file, allocating one
+		 * if fewer than {@link StreamTransfer#sMaxHeldRanges} exist.
+		 *
+		 * @return A buffer of {@link StreamTransfer#sRangeSize} bytes, or <code>null</code> if none is free,
+		 * in which case the range is read back from its partial file
+		 * @author Peter Piech
+		 */
+		private byte[] takeHeldBuffer()
+		{
+			synchronized (mHeldBuffers)
+			{
+				if (!mHeldBuffers.isEmpty())
+				{
+					return mHeldBuffers.pop();
+				}
+				if (mHeldBufferCount == sMaxHeldRanges)
+				{
+					return null;
+				}
+				try
+				{
+					byte[] buffer = new byte[(int) sRangeSize];
+					mHeldBufferCount++;
+					return buffer;
+				}
+				catch (OutOfMemoryError e)
+				{
+					return null; // e.g. a small heap; reading back is slower but needs no memory
+				}
+			}
+		}
+
+		/**
+		 * Returns a buffer taken with {@link #takeHeldBuffer} once its range was hashed.
+		 *
+		 * @author Peter Piech
+		 */
+		private void giveHeldBuffer(byte[] buffer)
+		{
+			synchronized (mHeldBuffers)
+			{
+				mHeldBuffers.push(buffer);
+			}
+		}
+
+		/**
+		 * The hash of one file, which grows over the prefix of the file whose ranges are complete.
+		 *
+		 * @author Peter Piech
+		 */
+		private static class FileDigest
+		{
+			/** The hash of the bytes before {@link #mPosition} */
+			final ContentDigest mDigest = new ContentDigest();
+
+			/** The end of the hashed prefix */
+			private long mPosition;
+
+			/** The completed ranges after the hashed prefix, each as its offset and length */
+			private final Map<Long, Long> mCompleted = new TreeMap<Long, Long>();
+
+			/** The bytes of the completed ranges that were held in memory, by offset */
+			private final Map<Long, byte[]> mHeld = new TreeMap<Long, byte[]>();
+
+			/**
+			 * @return Whether the range starting at the offset continues the hashed prefix, so that
+			 * the connection receiving it may hash it from its buffer
+			 * @author Peter Piech
+			 */
+			synchronized boolean isNext(long offset)
+			{
+				return offset == mPosition;
+			}
+
+			/**
+			 * Records a range that was written and hashes every completed range that now continues the prefix.
+			 *
+			 * @param hashed Whether the connection already hashed the range from its buffer
+			 * @param held The bytes of the range if they were held in memory, otherwise <code>null</code>
+			 * @param channel The partial file, from which the ranges not hashed or held are read back
+			 * @param buffer A buffer for reading back
+			 * @param freed Receives the held buffers that were hashed and may be reused
+			 * @author Peter Piech
+			 */
+			synchronized void complete(long offset, long length, boolean hashed, byte[] held, FileChannel channel, byte[] buffer, List<byte[]> freed) throws IOException
+			{
+				if (hashed)
+				{
+					mPosition += length;
+				}
+				else
+				{
+					mCompleted.put(offset, length);
+					if (held != null)
+					{
+						mHeld.put(offset, held);
+					}
+				}
+				Long next;
+				while ((next = mCompleted.remove(mPosition)) != null)
+				{
+					long end = mPosition + next;
+					byte[] bytes = mHeld.remove(mPosition);
+					if (bytes != null)
+					{
+						mDigest.update(bytes, 0, next.intValue());
+						mPosition = end;
+						freed.add(bytes);
+					}
+					while (mPosition < end) // i.e. no buffer was free while the range arrived
+					{
+						ByteBuffer data = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, end - mPosition));
+						while (data.hasRemaining())
+						{
+							if (channel.read(data, mPosition + data.position()) < 0)
+							{
+								throw new EOFException("Partial file was truncated");
+							}
+						}
+						mDigest.update(buffer, 0, data.position());
+						mPosition += data.position();
+					}
+				}
+			}
+		}
+
+		/**
+		 * One connection of a {@link Receive}.
+		 *
+		 * @author Peter Piech
+		 */
+		private class Stream
+		{
+			/** The connection */
+			final Transport.Connection mConnection;
+
+			/** The bytes sent by the sender */
+			final DataInputStream mIn;
+
+			/** The requests sent to the sender */
+			final DataOutputStream mOut;
+
+			/** The total size of the files, as announced by the sender */
+			long mTotal;
+
+			/**
+			 * Constructs a stream over an open connection.
+			 *
+			 * @author Peter Piech
+			 */
+			Stream(Transport.Connection connection) throws IOException
+			{
+				mConnection = connection;
+				mIn = new DataInputStream(new BufferedInputStream(connection.getInputStream(), sBufferSize));
+				mOut = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+			}
+
+			/**
+			 * Requests ranges until none are left and writes each at its offset in its partial file,
+			 * checking each against its CRC-32 and adding it to the hash of its file.
+			 *
+			 * @param retirable Whether this connection may stop early if it lowered the throughput
+			 * @author Peter Piech
+			 */
+			void receiveRanges(boolean retirable) throws IOException
+			{
+				byte[] buffer = new byte[sBufferSize];
+				CRC32 crc = new CRC32();
+				List<byte[]> freed = new ArrayList<byte[]>();
+				long[] range;
+				while (!(retirable && retire()) && (range = nextRange()) != null)
+				{
+					int index = (int) range[0];
+					long offset = range[1];
+					long length = range[2];
+					FileDigest fileDigest = mDigests[index];
+					boolean inOrder = fileDigest.isNext(offset); // nothing else can advance the hash past this range before it completes
+					byte[] held = inOrder ? null : takeHeldBuffer(); // hashed from memory once the prefix reaches it
+					mOut.writeInt(index);
+					mOut.writeLong(offset);
+					mOut.writeLong(length);
+					mOut.flush();
+					crc.reset();
+					long position = offset;
+					long remaining = length;
+					while (remaining > 0)
+					{
+						int read = mIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+						if (read == -1)
+						{
+							throw new EOFException("The sender closed the connection");
+						}
+						crc.update(buffer, 0, read);
+						if (inOrder)
+						{
+							fileDigest.mDigest.update(buffer, 0, read);
+						}
+						else if (held != null)
+						{
+							System.arraycopy(buffer, 0, held, (int) (length - remaining), read);
+						}
+						ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+						while (data.hasRemaining())
+						{
+							position += mChannels[index].write(data, position); // positional writes of several threads to one channel do not interfere
+						}
+						remaining -= read;
+						mReceived.addAndGet(read);
+					}
+					if (mIn.readLong() != crc.getValue())
+					{
+						throw new IOException("A range of " + mNames.get(index) + " arrived damaged");
+					}
+					mManifests[index].setChunkHash((int) (offset / sRangeSize), toBytes(crc.getValue())); // read after the threads were joined
+					fileDigest.complete(offset, length, inOrder, held, mChannels[index], buffer, freed);
+					for (byte[] data : freed)
+					{
+						giveHeldBuffer(data);
+					}
+					freed.clear();
+				}
+			}
+
+			/**
+			 * Requests the final header of every file, which must describe the same file as the header
+			 * sent before the content and, unless that one was unhashed, be identical to it.
+			 *
+			 * @return The parsed final headers, in the order of the offer
+			 * @author Peter Piech
+			 */
+			TransferEnvelope.Header[] receiveFinalHeaders() throws IOException
+			{
+				mOut.writeInt(sHeaders);
+				mOut.flush();
+				TransferEnvelope.Header[] headers = new TransferEnvelope.Header[mSizes.length];
+				for (int i = 0; i < headers.length; i++)
+				{
+					int length = mIn.readUnsignedShort();
+					if (length > TransferEnvelope.MAX_HEADER_LENGTH)
+					{
+						throw new IOException("The sender described a file with an oversized header");
+					}
+					byte[] bytes = new byte[length];
+					mIn.readFully(bytes);
+					if (!mHeaders[i].isUnhashed())
+					{
+						if (!Arrays.equals(bytes, mHeaderBytes[i]))
+						{
+							throw new IOException("The sender changed the description of " + mNames.get(i));
+						}
+						headers[i] = mHeaders[i];
+						continue;
+					}
+					headers[i] = new TransferEnvelope.Header();
+					if (!headers[i].parse(bytes, 0, length) || headers[i].getLength() != length || !headers[i].isDetached()
+							|| headers[i].isUnhashed() || headers[i].getContentSize() != mSizes[i]
+							|| !mNames.get(i).equals(headers[i].getLastName() + "_" + headers[i].getFirstName() + "_" + headers[i].getFileName()))
+					{
+						throw new IOException("The sender changed the description of " + mNames.get(i));
+					}
+				}
+				return headers;
+			}
+
+			/**
+			 * Tells the sender that this connection is no longer needed and closes it.
+			 *
+			 * @author Peter Piech
+			 */
+			void done() throws IOException
+			{
+				end(sDone);
+			}
+
+			/**
+			 * Tells the sender that every file was received, which withdraws the offer, and closes the connection.
+			 *
+			 * @author Peter Piech
+			 */
+			void finish() throws IOException
+			{
+				end(sFinished);
+			}
+
+			/**
+			 * Sends the last request of this connection and closes it.
+			 *
+			 * @author Peter Piech
+			 */
+			private void end(int request) throws IOException
+			{
+				try
+				{
+					mOut.writeInt(request);
+					mOut.flush();
+				}
+				finally
+				{
+					IOUtils.closeQuietly(mConnection);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A file received by {@link StreamTransfer#receive}.
+	 *
+	 * @author Peter Piech
+	 */
+	public static class ReceivedFile
+	{
+		/** The name the file was sent under */
+		private final String mName;
+
+		/** The detached header describing the file */
+		private final TransferEnvelope.Header mHeader;
+
+		/** The partial file holding the content */
+		private final File mFile;
+
+		/** The digest of the content, computed while it was received */
+		private final ContentDigest mDigest;
+
+		/**
+		 * Constructs a description of a received file.
+		 *
+		 * @author Peter Piech
+		 */
+		private ReceivedFile(String name, TransferEnvelope.Header header, File file, ContentDigest digest)
+		{
+			mName = name;
+			mHeader = header;
+			mFile = file;
+			mDigest = digest;
+		}
+
+		/** @return The name the file is stored under, i.e. the name in its header prefixed with "Last_First_" */
+		public String getName()
+		{
+			return mName;
+		}
+
+		/** @return The detached {@link com.procom.filefly.util.TransferEnvelope.Header} describing the file, verified against its content */
+		public TransferEnvelope.Header getHeader()
+		{
+			return mHeader;
+		}
+
+		/** @return The partial file holding the content, to be moved into place by the {@link com.procom.filefly.util.ContentStore} */
+		public File getFile()
+		{
+			return mFile;
+		}
+
+		/** @return The {@link com.procom.filefly.util.ContentDigest} of the content */
+		public ContentDigest getDigest()
+		{
+			return mDigest;
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package com.procom.filefly.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * A {@link com.procom.filefly.util.Transport} over a direct TCP connection on the local network,
+ * typically both devices being on the same Wi-Fi network, which is one to two orders of magnitude
+ * faster than the Bluetooth handover of Android Beam.
+ * <p>
+ * Endpoints have the form <code>tcp://host:port</code>. The server listens on an ephemeral port
+ * of a single address, so it is only reachable from the network of that address; see
+ * {@link com.procom.filefly.util.WifiTransport}.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-06
+ */
+public class TcpTransport implements Transport
+{
+	/** The prefix of the endpoints of this transport */
+	private static final String sScheme = "tcp://";
+
+	/** The size of the socket buffers requested from the kernel, large enough to keep a fast link busy */
+	private static final int sSocketBufferSize = 256 * 1024;
+
+	/** The number of milliseconds a read may block before the other device is considered gone */
+	private static final int sReadTimeout = 30 * 1000;
+
+	/** The address the server listens on */
+	private final InetAddress mAddress;
+
+	/**
+	 * Constructs a transport listening on the given address.
+	 *
+	 * @param address The address of this device on the network shared with the other device
+	 * @author Peter Piech
+	 */
+	public TcpTransport(InetAddress address)
+	{
+		mAddress = address;
+	}
+
+	@Override
+	public Server listen() throws IOException
+	{
+		ServerSocket serverSocket = new ServerSocket();
+		try
+		{
+			serverSocket.setReceiveBufferSize(sSocketBufferSize); // inherited by the accepted sockets; must be set before binding
+			serverSocket.bind(new InetSocketAddress(mAddress, 0));
+			return new TcpServer(serverSocket);
+		}
+		catch (IOException e)
+		{
+			serverSocket.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public Connection connect(String endpoint, int timeoutMillis) throws IOException
+	{
+		int portIndex = endpoint.lastIndexOf(':');
+		if (!endpoint.startsWith(sScheme) || portIndex < sScheme.length())
+		{
+			throw new IOException("Not a TCP endpoint: " + endpoint);
+		}
+		int port;
+		try
+		{
+			port = Integer.parseInt(endpoint.substring(portIndex + 1));
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IOException("Not a TCP endpoint: " + endpoint);
+		}
+		Socket socket = new Socket();
+		try
+		{
+			configure(socket);
+			socket.connect(new InetSocketAddress(endpoint.substring(sScheme.length(), portIndex), port), timeoutMillis);
+			return new TcpConnection(socket);
+		}
+		catch (IOException e)
+		{
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Sets the buffer sizes and timeouts of a socket.
+	 *
+	 * @author Peter Piech
+	 */
+	private static void configure(Socket socket) throws SocketException
+	{
+		socket.setSendBufferSize(sSocketBufferSize);
+		socket.setReceiveBufferSize(sSocketBufferSize);
+		socket.setSoTimeout(sReadTimeout);
+	}
+
+	/**
+	 * The {@link com.procom.filefly.util.Transport.Server} of a {@link TcpTransport}.
+	 *
+	 * @author Peter Piech
+	 */
+	private static class TcpServer implements Server
+	{
+		/** The bound server socket */
+		private final ServerSocket mServerSocket;
+
+		/**
+		 * Constructs a server around a bound server socket.
+		 *
+		 * @author Peter Piech
+		 */
+		TcpServer(ServerSocket serverSocket)
+		{
+			mServerSocket = serverSocket;
+		}
+
+		@Override
+		public String getEndpoint()
+		{
+			return sScheme + mServerSocket.getInetAddress().getHostAddress() + ":" + mServerSocket.getLocalPort();
+		}
+
+		@Override
+		public Connection accept(int timeoutMillis) throws IOException
+		{
+			mServerSocket.setSoTimeout(timeoutMillis);
+			Socket socket = mServerSocket.accept();
+			try
+			{
+				configure(socket);
+				return new TcpConnection(socket);
+			}
+			catch (IOException e)
+			{
+				socket.close();
+				throw e;
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			mServerSocket.close();
+		}
+	}
+
+	/**
+	 * The {@link com.procom.filefly.util.Transport.Connection} of a {@link TcpTransport}.
+	 *
+	 * @author Peter Piech
+	 */
+	private static class TcpConnection implements Connection
+	{
+		/** The connected socket */
+		private final Socket mSocket;
+
+		/**
+		 * Constructs a connection around a connected socket.
+		 *
+		 * @author Peter Piech
+		 */
+		TcpConnection(Socket socket)
+		{
+			mSocket = socket;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException
+		{
+			return mSocket.getInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException
+		{
+			return mSocket.getOutputStream();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			mSocket.close();
+		}
+	}
+}
@@ -0,0 +1,494 @@
+package com.procom.filefly.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.media.ThumbnailUtils;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.provider.MediaStore;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+/**
+ * Loads small previews of received files into the rows of the received files list: the picture
+ * itself for images, a frame for videos and the first page for PDFs.
+ * <p>
+ * Previews are cached at two levels. Decoded {@link android.graphics.Bitmap}s are kept in memory
+ * up to a number of bytes, and every generated preview is also written as a PNG to the app's
+ * cache directory, which is bounded by bytes as well and evicts the least recently used files.
+ * A preview is keyed by the path and size of its file as recorded in the history, so that binding
+ * a row does not even look at the file; received files are never rewritten in place.
+ * <p>
+ * Only a memory cache hit is served on the main thread; everything else runs on two background
+ * threads. Rows asking for the same file share one request, and a request is cancelled once no
+ * row asks for its file any more, e.g. because the rows scrolled off-screen and were recycled.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-04
+ */
+public class ThumbnailLoader
+{
+	/** The number of previews generated at the same time */
+	private static final int sWorkerCount = 2;
+
+	/** The name of the folder holding the previews in the app's cache directory */
+	private static final String sDiskCacheName = "thumbnails";
+
+	/** The number of bytes of PNGs kept in the disk cache */
+	private static final long sDiskCacheBytes = 16 * 1024 * 1024;
+
+	/** The fraction of the heap the memory cache may use */
+	private static final int sMemoryCacheDivisor = 16;
+
+	/** The number of files remembered to have no preview */
+	private static final int sNoPreviewCacheSize = 256;
+
+	/** {@link android.graphics.pdf.PdfRenderer.Page#RENDER_MODE_FOR_DISPLAY} */
+	private static final int sPdfRenderModeForDisplay = 1;
+
+	/** The process-wide instance */
+	private static ThumbnailLoader sInstance;
+
+	/** The width and height of a preview in pixels */
+	private final int mSize;
+
+	/** The folder holding the previews as PNGs */
+	private final File mDiskCache;
+
+	/** The decoded previews by key, bounded by their size in bytes */
+	private final LruCache<String, Bitmap> mMemoryCache;
+
+	/** The keys of the files that are not images, videos or PDFs, so that they are not looked at again */
+	private final LruCache<String, Boolean> mNoPreview = new LruCache<String, Boolean>(sNoPreviewCacheSize);
+
+	/** Generates the previews */
+	private final ThreadPoolExecutor mExecutor;
+
+	/** Delivers the previews on the main thread */
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+	/** The key of the preview each {@link android.widget.ImageView} waits for; only used on the main thread */
+	private final Map<ImageView, String> mTargets = new WeakHashMap<ImageView, String>();
+
+	/** The running or queued requests by key; only used on the main thread */
+	private final Map<String, Future<?>> mRequests = new HashMap<String, Future<?>>();
+
+	/**
+	 * Constructs the loader and its worker threads.
+	 *
+	 * @author Peter Piech
+	 */
+	private ThumbnailLoader(Context context, int size)
+	{
+		mSize = size;
+		mDiskCache = new File(context.getCacheDir(), sDiskCacheName);
+		mDiskCache.mkdirs();
+		mMemoryCache = new LruCache<String, Bitmap>((int) (Runtime.getRuntime().maxMemory() / sMemoryCacheDivisor))
+		{
+			@Override
+			protected int sizeOf(String key, Bitmap bitmap)
+			{
+				return bitmap.getRowBytes() * bitmap.getHeight();
+			}
+		};
+		mExecutor = new ThreadPoolExecutor(sWorkerCount, sWorkerCount, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				return new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND); // never compete with the list scrolling
+						runnable.run();
+					}
+				}, "ThumbnailLoader");
+			}
+		});
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @param context Any {@link android.content.Context} of the app
+	 * @param size The width and height of a preview in pixels; only the value of the first call is used
+	 * @return The process-wide {@link ThumbnailLoader}
+	 * @author Peter Piech
+	 */
+	public static synchronized ThumbnailLoader getInstance(Context context, int size)
+	{
+		if (sInstance == null)
+		{
+			sInstance = new ThumbnailLoader(context.getApplicationContext(), size);
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Shows the preview of a file in an {@link android.widget.ImageView}. A cached preview is shown
+	 * at once; otherwise the view is cleared and the preview is shown once it is generated, unless
+	 * the view was asked to show another file in between. Must be called on the main thread.
+	 *
+	 * @param file The file to preview
+	 * @param fileSize The size of the file in bytes as recorded in the history, or -1 if unknown
+	 * @param view The {@link android.widget.ImageView} of the row showing the file
+	 * @author Peter Piech
+	 */
+	public void load(File file, long fileSize, ImageView view)
+	{
+		final String key = file.getAbsolutePath() + ':' + fileSize;
+		Bitmap bitmap = mMemoryCache.get(key);
+		if (bitmap != null || mNoPreview.get(key) != null)
+		{
+			cancel(view);
+			view.setImageBitmap(bitmap);
+			return;
+		}
+		if (key.equals(mTargets.get(view)))
+		{
+			return; // still on its way
+		}
+		cancel(view);
+		view.setImageDrawable(null);
+		mTargets.put(view, key);
+		if (mRequests.containsKey(key)) // i.e. another row asked for the same file
+		{
+			return;
+		}
+
+		final File source = file;
+		mRequests.put(key, mExecutor.submit(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final Bitmap bitmap = getThumbnail(key, source);
+				mMainHandler.post(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						deliver(key, bitmap);
+					}
+				});
+			}
+		}));
+	}
+
+	/**
+	 * Stops waiting for the preview an {@link android.widget.ImageView} asked for, e.g. because its
+	 * row scrolled off-screen, and cancels the request if no other view waits for it. Must be called
+	 * on the main thread.
+	 *
+	 * @author Peter Piech
+	 */
+	public void cancel(ImageView view)
+	{
+		String key = mTargets.remove(view);
+		if (key == null || mTargets.containsValue(key))
+		{
+			return;
+		}
+		Future<?> request = mRequests.remove(key);
+		if (request != null)
+		{
+			request.cancel(false); // a preview that is already being generated is finished and cached
+		}
+	}
+
+	/**
+	 * Caches a generated preview and shows it in every {@link android.widget.ImageView} still waiting for it.
+	 *
+	 * @param bitmap The preview, or <code>null</code> if the file cannot be previewed
+	 * @author Peter Piech
+	 */
+	private void deliver(String key, Bitmap bitmap)
+	{
+		mRequests.remove(key);
+		if (bitmap != null)
+		{
+			mMemoryCache.put(key, bitmap);
+		}
+		else
+		{
+			mNoPreview.put(key, Boolean.TRUE);
+		}
+		List<ImageView> views = new ArrayList<ImageView>();
+		for (Map.Entry<ImageView, String> target : mTargets.entrySet())
+		{
+			if (key.equals(target.getValue()))
+			{
+				views.add(target.getKey());
+			}
+		}
+		for (ImageView view : views)
+		{
+			view.setImageBitmap(bitmap);
+			mTargets.remove(view);
+		}
+	}
+
+	/**
+	 * Reads a preview from the disk cache, or generates it and writes it to the disk cache.
+	 * Runs on a worker thread.
+	 *
+	 * @return The preview, or <code>null</code> if the file cannot be previewed
+	 * @author Peter Piech
+	 */
+	private Bitmap getThumbnail(String key, File file)
+	{
+		File cached = new File(mDiskCache, toFileName(key));
+		if (cached.isFile())
+		{
+			Bitmap bitmap = BitmapFactory.decodeFile(cached.getPath());
+			if (bitmap != null)
+			{
+				cached.setLastModified(System.currentTimeMillis()); // the disk cache evicts the least recently used previews
+				return bitmap;
+			}
+		}
+
+		Bitmap bitmap = generate(file);
+		if (bitmap != null)
+		{
+			write(bitmap, cached);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Generates the preview of a file by its type.
+	 *
+	 * @return The preview scaled and cropped to {@link #mSize}, or <code>null</code> if the file
+	 * is not an image, video or PDF or cannot be decoded
+	 * @author Peter Piech
+	 */
+	private Bitmap generate(File file)
+	{
+		String mimeType = FilesIntentHandler.getMimeType(file);
+		if (mimeType == null)
+		{
+			return null;
+		}
+		Bitmap bitmap = null;
+		if (mimeType.startsWith("image/"))
+		{
+			bitmap = decodeImage(file);
+		}
+		else if (mimeType.startsWith("video/"))
+		{
+			bitmap = ThumbnailUtils.createVideoThumbnail(file.getPath(), MediaStore.Images.Thumbnails.MINI_KIND);
+		}
+		else if (mimeType.equals("application/pdf") && Build.VERSION.SDK_INT >= 21)
+		{
+			bitmap = renderFirstPage(file);
+		}
+		return bitmap == null ? null : ThumbnailUtils.extractThumbnail(bitmap, mSize, mSize, ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+	}
+
+	/**
+	 * Decodes an image subsampled to about the size of a preview, so that large photos are never
+	 * decoded at full resolution.
+	 *
+	 * @author Peter Piech
+	 */
+	private Bitmap decodeImage(File file)
+	{
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(file.getPath(), options);
+		if (options.outWidth <= 0 || options.outHeight <= 0)
+		{
+			return null;
+		}
+		options.inSampleSize = 1;
+		while (options.outWidth / (options.inSampleSize * 2) >= mSize && options.outHeight / (options.inSampleSize * 2) >= mSize)
+		{
+			options.inSampleSize *= 2;
+		}
+		options.inJustDecodeBounds = false;
+		return BitmapFactory.decodeFile(file.getPath(), options);
+	}
+
+	/**
+	 * Renders the first page of a PDF with {@link android.graphics.pdf.PdfRenderer}. The app is
+	 * built against an SDK that predates it, so it is called by reflection on the devices that have it.
+	 *
+	 * @return The page on a white background, or <code>null</code> if it cannot be rendered
+	 * @author Peter Piech
+	 */
+	private Bitmap renderFirstPage(File file)
+	{
+		ParcelFileDescriptor descriptor = null;
+		Object renderer = null;
+		try
+		{
+			descriptor = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+			Class<?> rendererClass = Class.forName("android.graphics.pdf.PdfRenderer");
+			renderer = rendererClass.getConstructor(ParcelFileDescriptor.class).newInstance(descriptor);
+			if ((Integer) rendererClass.getMethod("getPageCount").invoke(renderer) == 0)
+			{
+				return null;
+			}
+			Object page = rendererClass.getMethod("openPage", int.class).invoke(renderer, 0);
+			Class<?> pageClass = page.getClass();
+			try
+			{
+				int width = (Integer) pageClass.getMethod("getWidth").invoke(page);
+				int height = (Integer) pageClass.getMethod("getHeight").invoke(page);
+				float scale = (float) mSize / Math.min(width, height); // the preview is cropped to a square, so the shorter side fills it
+				Bitmap bitmap = Bitmap.createBitmap(Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)), Bitmap.Config.ARGB_8888);
+				bitmap.eraseColor(Color.WHITE); // pages are transparent where nothing is drawn
+				pageClass.getMethod("render", Bitmap.class, Rect.class, Matrix.class, int.class).invoke(page, bitmap, null, null, sPdfRenderModeForDisplay);
+				return bitmap;
+			}
+			finally
+			{
+				pageClass.getMethod("close").invoke(page);
+			}
+		}
+		catch (Exception e)
+		{
+			return null; // e.g. a damaged or encrypted PDF
+		}
+		finally
+		{
+			if (renderer != null)
+			{
+				try
+				{
+					renderer.getClass().getMethod("close").invoke(renderer);
+				}
+				catch (Exception e)
+				{
+					// nothing left to release
+				}
+			}
+			IOUtils.closeQuietly(descriptor);
+		}
+	}
+
+	/**
+	 * Writes a preview to the disk cache and evicts the least recently used previews beyond its size.
+	 *
+	 * @author Peter Piech
+	 */
+	private void write(Bitmap bitmap, File cached)
+	{
+		File tmp = new File(cached.getPath() + ".tmp");
+		OutputStream out = null;
+		try
+		{
+			out = new FileOutputStream(tmp);
+			bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(cached))
+			{
+				tmp.delete();
+			}
+		}
+		catch (IOException e)
+		{
+			tmp.delete(); // the preview is generated again next time
+		}
+		finally
+		{
+			IOUtils.closeQuietly(out);
+		}
+		trimDiskCache();
+	}
+
+	/**
+	 * Deletes the least recently used previews until the disk cache fits {@link #sDiskCacheBytes}.
+	 *
+	 * @author Peter Piech
+	 */
+	private synchronized void trimDiskCache()
+	{
+		File[] files = mDiskCache.listFiles();
+		if (files == null)
+		{
+			return;
+		}
+		long total = 0;
+		for (File file : files)
+		{
+			total += file.length();
+		}
+		if (total <= sDiskCacheBytes)
+		{
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>()
+		{
+			@Override
+			public int compare(File lhs, File rhs)
+			{
+				long difference = lhs.lastModified() - rhs.lastModified();
+				return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+			}
+		});
+		for (int i = 0; i < files.length && total > sDiskCacheBytes; i++)
+		{
+			total -= files[i].length();
+			files[i].delete();
+		}
+	}
+
+	/**
+	 * @return The name of the PNG holding the preview with the given key
+	 * @author Peter Piech
+	 */
+	private static String toFileName(String key)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder(digest.length * 2 + 4);
+			for (byte b : digest)
+			{
+				name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return name.append(".png").toString();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("UTF-8 is not available", e);
+		}
+	}
+}
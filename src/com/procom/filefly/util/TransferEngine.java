@@ -0,0 +1,423 @@
+package com.procom.filefly.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Runs every staging and receive copy of the app on a small, bounded pool of
+ * background threads so that no file input/output is performed on the UI thread.
+ * <p>
+ * Work is submitted as a {@link com.procom.filefly.util.TransferEngine.TransferJob} and its
+ * outcome is delivered to a {@link com.procom.filefly.util.TransferEngine.TransferListener}
+ * on the main thread. Jobs report byte-level progress and can be cancelled or timed out
+ * through the {@link com.procom.filefly.util.TransferEngine.TransferHandle} returned by {@link #submit}.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-11-22
+ */
+public class TransferEngine
+{
+	/** The number of transfers that may run at the same time */
+	private static final int sWorkerCount = 2;
+
+	/** The number of transfers that may wait for a free worker before new submissions are rejected */
+	private static final int sQueueCapacity = 32;
+
+	/** The minimum number of milliseconds between two progress callbacks of the same transfer */
+	private static final long sProgressInterval = 100;
+
+	/** The process-wide instance */
+	private static TransferEngine sInstance;
+
+	/** The bounded pool running the transfers */
+	private final ThreadPoolExecutor mExecutor;
+
+	/** Cancels transfers that exceed their timeout */
+	private final ScheduledExecutorService mWatchdog;
+
+	/** Delivers callbacks on the main thread */
+	private final Handler mMainHandler;
+
+	/**
+	 * Constructs the engine and its worker threads.
+	 *
+	 * @author Peter Piech
+	 */
+	private TransferEngine()
+	{
+		final AtomicInteger threadCount = new AtomicInteger();
+		ThreadFactory threadFactory = new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				return new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND); // keep the UI thread responsive
+						runnable.run();
+					}
+				}, "FileFly-transfer-" + threadCount.incrementAndGet());
+			}
+		};
+		mExecutor = new ThreadPoolExecutor(sWorkerCount, sWorkerCount, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(sQueueCapacity), threadFactory);
+		mExecutor.allowCoreThreadTimeOut(true); // release the threads while the app is idle
+		mWatchdog = new ScheduledThreadPoolExecutor(1);
+		mMainHandler = new Handler(Looper.getMainLooper());
+	}
+
+	/**
+	 * Gets the process-wide {@link com.procom.filefly.util.TransferEngine}.
+	 *
+	 * @return The shared instance
+	 * @author Peter Piech
+	 */
+	public static synchronized TransferEngine getInstance()
+	{
+		if (sInstance == null)
+		{
+			sInstance = new TransferEngine();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Queues a job without a timeout.
+	 *
+	 * @see #submit(TransferJob, TransferListener, long)
+	 * @author Peter Piech
+	 */
+	public TransferHandle submit(TransferJob job, TransferListener listener)
+	{
+		return submit(job, listener, 0);
+	}
+
+	/**
+	 * Queues a job on the bounded pool. Exactly one of the listener's
+	 * {@link TransferListener#onSuccess}, {@link TransferListener#onFailure} or
+	 * {@link TransferListener#onCancelled} methods is eventually called on the main thread.
+	 *
+	 * @param job The work to perform off the UI thread
+	 * @param listener Receives progress and the outcome on the main thread
+	 * @param timeoutMillis The number of milliseconds the job may run, counted from when a worker
+	 * starts it, after which it is cancelled and reported as failed, or 0 for no timeout
+	 * @return The {@link TransferHandle} used to cancel the job
+	 * @author Peter Piech
+	 */
+	public TransferHandle submit(final TransferJob job, TransferListener listener, long timeoutMillis)
+	{
+		final TransferHandle handle = new TransferHandle(listener, timeoutMillis);
+		try
+		{
+			mExecutor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					handle.execute(job);
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			handle.deliverFailure(new IOException("Too many transfers in progress"));
+		}
+		return handle;
+	}
+
+	/**
+	 * The unit of work executed by the {@link com.procom.filefly.util.TransferEngine}.
+	 *
+	 * @author Peter Piech
+	 */
+	public interface TransferJob
+	{
+		/**
+		 * Performs the transfer on a background thread. Implementations should report progress
+		 * and call {@link TransferHandle#checkCancelled} regularly.
+		 *
+		 * @param handle The {@link TransferHandle} of this job
+		 * @return The resulting {@link java.io.File}
+		 * @throws IOException If the transfer failed or was cancelled
+		 */
+		public File run(TransferHandle handle) throws IOException;
+	}
+
+	/**
+	 * Receives the progress and outcome of a {@link TransferJob} on the main thread.
+	 * Only {@link #onSuccess} and {@link #onFailure} must be implemented.
+	 *
+	 * @author Peter Piech
+	 */
+	public static abstract class TransferListener
+	{
+		/**
+		 * Called periodically while bytes are moved.
+		 *
+		 * @param bytes The number of bytes transferred so far
+		 * @param total The total number of bytes to transfer
+		 */
+		public void onProgress(long bytes, long total) {}
+
+		/**
+		 * Called once the job completed.
+		 *
+		 * @param result The {@link java.io.File} returned by the job
+		 */
+		public abstract void onSuccess(File result);
+
+		/**
+		 * Called if the job threw or timed out.
+		 *
+		 * @param e The cause of the failure
+		 */
+		public abstract void onFailure(IOException e);
+
+		/** Called if the job was cancelled through {@link TransferHandle#cancel}. */
+		public void onCancelled() {}
+	}
+
+	/**
+	 * Controls a submitted {@link TransferJob}: used by the caller to cancel it and by
+	 * the job itself to report progress and check for cancellation.
+	 *
+	 * @author Peter Piech
+	 */
+	public class TransferHandle
+	{
+		/** Receives the callbacks of the job */
+		private final TransferListener mListener;
+
+		/** Guarantees that only one outcome is delivered */
+		private final AtomicBoolean mFinished = new AtomicBoolean();
+
+		/** Set once the job should stop at its next check */
+		private volatile boolean mCancelled;
+
+		/** Set if the cancellation was caused by the timeout */
+		private volatile boolean mTimedOut;
+
+		/** The number of milliseconds the job may run, or 0 for no timeout */
+		private final long mTimeoutMillis;
+
+		/** The scheduled timeout, if any */
+		private volatile Future<?> mTimeout;
+
+		/** The {@link android.os.SystemClock#uptimeMillis} of the last progress callback */
+		private long mLastProgressTime;
+
+		/**
+		 * Constructs a handle for a newly submitted job.
+		 *
+		 * @author Peter Piech
+		 */
+		private TransferHandle(TransferListener listener, long timeoutMillis)
+		{
+			mListener = listener;
+			mTimeoutMillis = timeoutMillis;
+		}
+
+		/**
+		 * Requests the job to stop. A job that has not started yet will not be run.
+		 *
+		 * @author Peter Piech
+		 */
+		public void cancel()
+		{
+			mCancelled = true;
+		}
+
+		/**
+		 * @return Whether {@link #cancel} was called or the timeout expired
+		 * @author Peter Piech
+		 */
+		public boolean isCancelled()
+		{
+			return mCancelled;
+		}
+
+		/**
+		 * Aborts the job if it was cancelled.
+		 *
+		 * @throws InterruptedIOException If {@link #cancel} was called or the timeout expired
+		 * @author Peter Piech
+		 */
+		public void checkCancelled() throws InterruptedIOException
+		{
+			if (mCancelled)
+			{
+				throw new InterruptedIOException(mTimedOut ? "Transfer timed out" : "Transfer cancelled");
+			}
+		}
+
+		/**
+		 * Forwards progress to the listener on the main thread, at most once every
+		 * {@link TransferEngine#sProgressInterval} milliseconds except for the final update.
+		 *
+		 * @param bytes The number of bytes transferred so far
+		 * @param total The total number of bytes to transfer
+		 * @author Peter Piech
+		 */
+		public void publishProgress(final long bytes, final long total)
+		{
+			long now = SystemClock.uptimeMillis();
+			if (bytes < total && now - mLastProgressTime < sProgressInterval)
+			{
+				return;
+			}
+			mLastProgressTime = now;
+			mMainHandler.post(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if (!mFinished.get())
+					{
+						mListener.onProgress(bytes, total);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Runs the job on the calling worker thread and delivers its outcome.
+		 *
+		 * @author Peter Piech
+		 */
+		private void execute(TransferJob job)
+		{
+			if (mCancelled)
+			{
+				deliverCancelled();
+				return;
+			}
+			if (mTimeoutMillis > 0)
+			{
+				mTimeout = mWatchdog.schedule(new Runnable() // the time spent waiting in the queue does not count
+				{
+					@Override
+					public void run()
+					{
+						mTimedOut = true;
+						cancel();
+						deliverFailure(new InterruptedIOException("Transfer timed out")); // reported right away, even if the job is stuck in a blocking call
+					}
+				}, mTimeoutMillis, TimeUnit.MILLISECONDS);
+			}
+			try
+			{
+				File result = job.run(this);
+				checkCancelled();
+				deliverSuccess(result);
+			}
+			catch (IOException e)
+			{
+				if (mCancelled && !mTimedOut)
+				{
+					deliverCancelled();
+				}
+				else
+				{
+					deliverFailure(e);
+				}
+			}
+			catch (RuntimeException e)
+			{
+				deliverFailure(toFailure(e));
+			}
+			catch (Error e)
+			{
+				deliverFailure(toFailure(e)); // the caller still hears of the job before the worker dies
+				throw e;
+			}
+			finally
+			{
+				Future<?> timeout = mTimeout;
+				if (timeout != null)
+				{
+					timeout.cancel(false);
+				}
+			}
+		}
+
+		/**
+		 * Wraps what a job threw other than an {@link java.io.IOException}, keeping it as the cause.
+		 *
+		 * @author Peter Piech
+		 */
+		private IOException toFailure(Throwable t)
+		{
+			IOException failure = new IOException(t.toString());
+			failure.initCause(t);
+			return failure;
+		}
+
+		/** Posts {@link TransferListener#onSuccess} to the main thread. */
+		private void deliverSuccess(final File result)
+		{
+			if (mFinished.compareAndSet(false, true))
+			{
+				mMainHandler.post(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						mListener.onSuccess(result);
+					}
+				});
+			}
+		}
+
+		/** Posts {@link TransferListener#onFailure} to the main thread. */
+		private void deliverFailure(final IOException e)
+		{
+			if (mFinished.compareAndSet(false, true))
+			{
+				mMainHandler.post(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						mListener.onFailure(e);
+					}
+				});
+			}
+		}
+
+		/** Posts {@link TransferListener#onCancelled} to the main thread. */
+		private void deliverCancelled()
+		{
+			if (mFinished.compareAndSet(false, true))
+			{
+				mMainHandler.post(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						mListener.onCancelled();
+					}
+				});
+			}
+		}
+	}
+}
@@ -0,0 +1,620 @@
+package com.procom.filefly.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A staged file that carries its own description: a binary header followed by the payload,
+ * so the receiver learns the sender, the original name, the size, the MIME type and the hash
+ * of the content without parsing the name the file was delivered under.
+ * <p>
+ * The header is laid out as follows, all numbers big-endian:
+ * <pre>
+ *  0  int     magic, "FFLY"
+ *  4  byte    version
+ *  5  byte    flags, {@link #FLAG_GZIP} if the payload is a gzip stream, {@link #FLAG_DETACHED} if there is none,
+ *             {@link #FLAG_UNHASHED} if the hash of a detached header is not known yet and left zero
+ *  6  short   length of the header, i.e. the offset of the payload
+ *  8  long    size of the content
+ * 16  byte[32] SHA-256 of the content
+ * 48  last name, first name, file name, MIME type, each as an unsigned short length and UTF-8 bytes
+ * </pre>
+ * The size and the hash describe the original content, not the payload, and are filled in once
+ * the payload was written, so staging reads the source only once.
+ * <p>
+ * A file that is not worth compressing is sent as it is, and a detached header, i.e. a header
+ * without payload, describes it: through Android Beam as a sidecar file named like the file plus
+ * {@link #EXTENSION}, see {@link #getDescribedName}, and over the local network as part of the list
+ * of files of a {@link com.procom.filefly.util.StreamTransfer}. A file published without being read is
+ * offered to a stream with an unhashed header, see {@link #encodeUnhashedHeader}, until it was hashed.
+ * <p>
+ * A {@link Header} is parsed in place without allocating, so one instance can be reused for every
+ * file of a batch; its strings are only decoded when asked for. This class only depends on the
+ * Java runtime and Commons IO, so it can be checked and measured on a plain JVM.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-08
+ */
+public class TransferEnvelope
+{
+	/** The suffix of the name of a staged envelope */
+	public static final String EXTENSION = ".ffly";
+
+	/** The flag of a payload compressed by {@link com.procom.filefly.util.PayloadCompressor} */
+	public static final int FLAG_GZIP = 0x01;
+
+	/** The flag of a detached header, which describes a file sent on its own and has no payload */
+	public static final int FLAG_DETACHED = 0x02;
+
+	/**
+	 * The flag of a detached header whose hash is not known yet, which a
+	 * {@link com.procom.filefly.util.StreamTransfer} offers before the content and replaces after it
+	 */
+	public static final int FLAG_UNHASHED = 0x04;
+
+	/** The largest header that is accepted */
+	public static final int MAX_HEADER_LENGTH = 4096;
+
+	/** The first four bytes of an envelope, "FFLY" */
+	private static final int sMagic = 0x46464c59;
+
+	/** The version of the layout */
+	private static final int sVersion = 1;
+
+	/** The offset of the content size */
+	private static final int sSizeOffset = 8;
+
+	/** The offset of the SHA-256 */
+	private static final int sHashOffset = 16;
+
+	/** The length of the SHA-256 */
+	private static final int sHashLength = 32;
+
+	/** The offset of the first string */
+	private static final int sStringsOffset = sHashOffset + sHashLength;
+
+	/** The number of strings in the header */
+	private static final int sStringCount = 4;
+
+	/** The largest number of bytes of one string */
+	private static final int sMaxStringLength = 1000;
+
+	/** The size of the buffer used to stream the payload */
+	private static final int sBufferSize = 64 * 1024;
+
+	/** The encoding of the strings */
+	private static final Charset sUtf8 = Charset.forName("UTF-8");
+
+	/**
+	 * Not instantiable; all methods are static.
+	 *
+	 * @author Peter Piech
+	 */
+	private TransferEnvelope() {}
+
+	/**
+	 * @param filename The name a file was delivered under
+	 * @return Whether the file is an envelope written by {@link #wrap} or a sidecar holding a detached header
+	 * @author Peter Piech
+	 */
+	public static boolean isEnvelope(String filename)
+	{
+		return filename.endsWith(EXTENSION) && filename.length() > EXTENSION.length();
+	}
+
+	/**
+	 * @param sidecarName The name of a sidecar, i.e. a file holding a detached header
+	 * @return The name of the file the sidecar describes, which is delivered next to it
+	 * @author Peter Piech
+	 */
+	public static String getDescribedName(String sidecarName)
+	{
+		return sidecarName.substring(0, sidecarName.length() - EXTENSION.length());
+	}
+
+	/**
+	 * Encodes a detached header, which describes a file that is sent as it is.
+	 *
+	 * @param lastName The last name of the sender
+	 * @param firstName The first name of the sender
+	 * @param fileName The name of the file on the receiving device, without any sender prefix
+	 * @param mimeType The MIME type of the file, or <code>null</code> if it is not known
+	 * @param digest The completed {@link com.procom.filefly.util.ContentDigest} of the file
+	 * @return The bytes of the header
+	 * @throws IOException If a string is too long
+	 * @author Peter Piech
+	 */
+	public static byte[] encodeDetachedHeader(String lastName, String firstName, String fileName, String mimeType, ContentDigest digest) throws IOException
+	{
+		byte[] header = encodeHeader(lastName, firstName, fileName, mimeType != null ? mimeType : "", FLAG_DETACHED);
+		long size = digest.getLength();
+		for (int i = 0; i < 8; i++)
+		{
+			header[sSizeOffset + i] = (byte) (size >>> (56 - 8 * i));
+		}
+		System.arraycopy(digest.getSha256Bytes(), 0, header, sHashOffset, sHashLength);
+		return header;
+	}
+
+	/**
+	 * Encodes a detached header whose hash is not known yet, so a file can be offered before it was read.
+	 *
+	 * @param lastName The last name of the sender
+	 * @param firstName The first name of the sender
+	 * @param fileName The name of the file on the receiving device, without any sender prefix
+	 * @param mimeType The MIME type of the file, or <code>null</code> if it is not known
+	 * @param size The size of the file
+	 * @return The bytes of the header, which carry {@link #FLAG_UNHASHED} and a zero hash
+	 * @throws IOException If a string is too long
+	 * @author Peter Piech
+	 */
+	public static byte[] encodeUnhashedHeader(String lastName, String firstName, String fileName, String mimeType, long size) throws IOException
+	{
+		byte[] header = encodeHeader(lastName, firstName, fileName, mimeType != null ? mimeType : "", FLAG_DETACHED | FLAG_UNHASHED);
+		for (int i = 0; i < 8; i++)
+		{
+			header[sSizeOffset + i] = (byte) (size >>> (56 - 8 * i));
+		}
+		return header;
+	}
+
+	/**
+	 * Writes a file into an envelope. This must be called from within a
+	 * {@link com.procom.filefly.util.TransferEngine.TransferJob}.
+	 *
+	 * @param source The file to send
+	 * @param dest The envelope to create or truncate
+	 * @param lastName The last name of the sender
+	 * @param firstName The first name of the sender
+	 * @param fileName The name of the file on the receiving device, without any sender prefix
+	 * @param mimeType The MIME type of the file, or <code>null</code> if it is not known
+	 * @param compress Whether the payload is compressed with {@link com.procom.filefly.util.PayloadCompressor}
+	 * @param handle The {@link com.procom.filefly.util.TransferEngine.TransferHandle} of the running job
+	 * @return The {@link com.procom.filefly.util.ContentDigest} of the content, i.e. of <code>source</code>
+	 * @throws IOException If either file could not be accessed, a string is too long or the job was cancelled
+	 * @author Peter Piech
+	 */
+	public static ContentDigest wrap(File source, File dest, String lastName, String firstName, String fileName, String mimeType,
+			boolean compress, TransferEngine.TransferHandle handle) throws IOException
+	{
+		byte[] header = encodeHeader(lastName, firstName, fileName, mimeType != null ? mimeType : "", compress ? FLAG_GZIP : 0);
+		ContentDigest digest = new ContentDigest();
+		long total = source.length();
+		InputStream in = null;
+		OutputStream out = null;
+		try
+		{
+			in = new FileInputStream(source);
+			OutputStream fileOut = new FileOutputStream(dest);
+			out = fileOut;
+			fileOut.write(header);
+			if (compress)
+			{
+				out = PayloadCompressor.newCompressingStream(fileOut);
+			}
+			byte[] buffer = new byte[sBufferSize];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+			{
+				handle.checkCancelled();
+				digest.update(buffer, 0, read);
+				out.write(buffer, 0, read);
+				handle.publishProgress(digest.getLength(), total);
+			}
+			out.close();
+			out = null;
+		}
+		finally
+		{
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(out);
+		}
+
+		RandomAccessFile file = new RandomAccessFile(dest, "rw");
+		try
+		{
+			file.seek(sSizeOffset); // the size and the hash are only known now
+			file.writeLong(digest.getLength());
+			file.write(digest.getSha256Bytes());
+		}
+		finally
+		{
+			IOUtils.closeQuietly(file);
+		}
+		return digest;
+	}
+
+	/**
+	 * Reads the header of an envelope.
+	 *
+	 * @param source The envelope
+	 * @param header The {@link Header} to fill in, which may be reused
+	 * @throws IOException If the file could not be read or does not start with a valid header
+	 * @author Peter Piech
+	 */
+	public static void readHeader(File source, Header header) throws IOException
+	{
+		InputStream in = new FileInputStream(source);
+		try
+		{
+			int length = IOUtils.read(in, header.mBytes); // the header is at most as long as the buffer
+			if (!header.parse(length))
+			{
+				throw new IOException(source.getName() + " is not a valid envelope");
+			}
+		}
+		finally
+		{
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Restores the content of an envelope and checks it against the size and the hash in its
+	 * header. This must be called from within a {@link com.procom.filefly.util.TransferEngine.TransferJob}.
+	 *
+	 * @param source The envelope
+	 * @param header The {@link Header} read from <code>source</code> by {@link #readHeader}
+	 * @param dest The file to create or truncate; deleted if the content does not match the header
+	 * @param handle The {@link com.procom.filefly.util.TransferEngine.TransferHandle} of the running job
+	 * @return The {@link com.procom.filefly.util.ContentDigest} of the content
+	 * @throws IOException If either file could not be accessed, the content arrived damaged or the job was cancelled
+	 * @author Peter Piech
+	 */
+	public static ContentDigest unwrap(File source, Header header, File dest, TransferEngine.TransferHandle handle) throws IOException
+	{
+		if (header.isDetached())
+		{
+			throw new IOException(source.getName() + " describes a file sent on its own");
+		}
+		ContentDigest digest = new ContentDigest();
+		long total = header.getContentSize();
+		boolean verified = false;
+		InputStream in = null;
+		OutputStream out = null;
+		try
+		{
+			InputStream fileIn = new FileInputStream(source);
+			in = fileIn;
+			IOUtils.skipFully(fileIn, header.getLength());
+			if ((header.getFlags() & FLAG_GZIP) != 0)
+			{
+				in = PayloadCompressor.newDecompressingStream(fileIn);
+			}
+			out = new FileOutputStream(dest);
+			byte[] buffer = new byte[sBufferSize];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+			{
+				handle.checkCancelled();
+				if (digest.getLength() + read > total)
+				{
+					throw new IOException(source.getName() + " holds more than its header announced");
+				}
+				digest.update(buffer, 0, read);
+				out.write(buffer, 0, read);
+				handle.publishProgress(digest.getLength(), total);
+			}
+			out.close();
+			out = null;
+			if (digest.getLength() != total || !header.matchesSha256(digest.getSha256Bytes()))
+			{
+				throw new IOException(source.getName() + " arrived damaged");
+			}
+			verified = true;
+		}
+		finally
+		{
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(out);
+			if (!verified)
+			{
+				dest.delete();
+			}
+		}
+		return digest;
+	}
+
+	/**
+	 * Encodes a header whose size and hash are still zero.
+	 *
+	 * @throws IOException If a string is longer than {@link #sMaxStringLength} bytes
+	 * @author Peter Piech
+	 */
+	private static byte[] encodeHeader(String lastName, String firstName, String fileName, String mimeType, int flags) throws IOException
+	{
+		String[] strings = { lastName, firstName, fileName, mimeType };
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(sStringsOffset + 128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(sMagic);
+		out.writeByte(sVersion);
+		out.writeByte(flags);
+		out.writeShort(0); // the length, filled in below
+		out.writeLong(0);
+		out.write(new byte[sHashLength]);
+		for (String string : strings)
+		{
+			byte[] encoded = string.getBytes(sUtf8);
+			if (encoded.length > sMaxStringLength)
+			{
+				throw new IOException("Too long for an envelope: " + string);
+			}
+			out.writeShort(encoded.length);
+			out.write(encoded);
+		}
+		out.flush();
+		byte[] header = bytes.toByteArray();
+		header[6] = (byte) (header.length >> 8);
+		header[7] = (byte) header.length;
+		return header;
+	}
+
+	/**
+	 * The header of an envelope, parsed in place from its own buffer. Parsing validates every
+	 * length and rejects names that could escape the received folder, but allocates nothing;
+	 * the strings are decoded by their getters.
+	 *
+	 * @author Peter Piech
+	 */
+	public static final class Header
+	{
+		/** The bytes of the header */
+		private final byte[] mBytes = new byte[MAX_HEADER_LENGTH];
+
+		/** The offset of each string in {@link #mBytes} */
+		private final int[] mStringOffsets = new int[sStringCount];
+
+		/** The number of bytes of each string */
+		private final int[] mStringLengths = new int[sStringCount];
+
+		/** The length of the header */
+		private int mLength;
+
+		/** The flags */
+		private int mFlags;
+
+		/** The size of the content */
+		private long mContentSize;
+
+		/**
+		 * Parses a header from the start of the given bytes.
+		 *
+		 * @param bytes The bytes of an envelope, at least its header
+		 * @param offset The offset of the envelope in <code>bytes</code>
+		 * @param length The number of bytes available, which may be more than the header
+		 * @return Whether the bytes start with a valid header
+		 * @author Peter Piech
+		 */
+		public boolean parse(byte[] bytes, int offset, int length)
+		{
+			int count = Math.min(Math.max(length, 0), MAX_HEADER_LENGTH);
+			System.arraycopy(bytes, offset, mBytes, 0, count);
+			return parse(count);
+		}
+
+		/**
+		 * Parses the header at the start of {@link #mBytes}.
+		 *
+		 * @param available The number of bytes of {@link #mBytes} that were filled in
+		 * @return Whether the bytes hold a valid header
+		 * @author Peter Piech
+		 */
+		private boolean parse(int available)
+		{
+			mLength = 0;
+			if (available < sStringsOffset || readInt(0) != sMagic || mBytes[4] != sVersion)
+			{
+				return false;
+			}
+			int flags = mBytes[5] & 0xff;
+			int length = readUnsignedShort(6);
+			long contentSize = readLong(sSizeOffset);
+			if ((flags & ~(FLAG_GZIP | FLAG_DETACHED | FLAG_UNHASHED)) != 0 || (flags & FLAG_DETACHED) != 0 && (flags & FLAG_GZIP) != 0
+					|| (flags & FLAG_UNHASHED) != 0 && (flags & FLAG_DETACHED) == 0 || length > available || contentSize < 0)
+			{
+				return false; // unknown flags are a later version
+			}
+			int position = sStringsOffset;
+			for (int i = 0; i < sStringCount; i++)
+			{
+				if (position + 2 > length)
+				{
+					return false;
+				}
+				int stringLength = readUnsignedShort(position);
+				position += 2;
+				if (stringLength > sMaxStringLength || position + stringLength > length)
+				{
+					return false;
+				}
+				mStringOffsets[i] = position;
+				mStringLengths[i] = stringLength;
+				position += stringLength;
+			}
+			if (position != length || !isPlainName(0, false) || !isPlainName(1, false) || !isPlainName(2, true))
+			{
+				return false;
+			}
+			mFlags = flags;
+			mContentSize = contentSize;
+			mLength = length;
+			return true;
+		}
+
+		/**
+		 * Checks that a string can be part of a filename in the received folder.
+		 *
+		 * @param index The index of the string
+		 * @param required Whether the string may not be empty
+		 * @return Whether the string contains no slash or NUL and is not "." or ".."
+		 * @author Peter Piech
+		 */
+		private boolean isPlainName(int index, boolean required)
+		{
+			int offset = mStringOffsets[index];
+			int length = mStringLengths[index];
+			if (length == 0)
+			{
+				return !required;
+			}
+			boolean dots = true;
+			for (int i = offset; i < offset + length; i++)
+			{
+				byte b = mBytes[i];
+				if (b == '/' || b == 0)
+				{
+					return false;
+				}
+				dots &= b == '.';
+			}
+			return !(dots && length <= 2);
+		}
+
+		/**
+		 * @param hash The 32 bytes of a SHA-256 hash
+		 * @return Whether the header announced this hash; never for an unhashed header
+		 * @author Peter Piech
+		 */
+		public boolean matchesSha256(byte[] hash)
+		{
+			if (hash.length != sHashLength || isUnhashed())
+			{
+				return false;
+			}
+			int difference = 0;
+			for (int i = 0; i < sHashLength; i++)
+			{
+				difference |= hash[i] ^ mBytes[sHashOffset + i];
+			}
+			return difference == 0;
+		}
+
+		/**
+		 * @return The length of the header, i.e. the offset of the payload, or 0 if the last parse failed
+		 * @author Peter Piech
+		 */
+		public int getLength()
+		{
+			return mLength;
+		}
+
+		/**
+		 * @return The flags, e.g. {@link TransferEnvelope#FLAG_GZIP}
+		 * @author Peter Piech
+		 */
+		public int getFlags()
+		{
+			return mFlags;
+		}
+
+		/**
+		 * @return Whether this is a detached header, i.e. the file it describes is sent on its own
+		 * @author Peter Piech
+		 */
+		public boolean isDetached()
+		{
+			return (mFlags & FLAG_DETACHED) != 0;
+		}
+
+		/**
+		 * @return Whether the hash of the file is not known yet, see {@link TransferEnvelope#encodeUnhashedHeader}
+		 * @author Peter Piech
+		 */
+		public boolean isUnhashed()
+		{
+			return (mFlags & FLAG_UNHASHED) != 0;
+		}
+
+		/**
+		 * @return The size of the content, which the receiver can reserve before restoring it
+		 * @author Peter Piech
+		 */
+		public long getContentSize()
+		{
+			return mContentSize;
+		}
+
+		/**
+		 * @return The last name of the sender
+		 * @author Peter Piech
+		 */
+		public String getLastName()
+		{
+			return getString(0);
+		}
+
+		/**
+		 * @return The first name of the sender
+		 * @author Peter Piech
+		 */
+		public String getFirstName()
+		{
+			return getString(1);
+		}
+
+		/**
+		 * @return The name of the file, without any sender prefix
+		 * @author Peter Piech
+		 */
+		public String getFileName()
+		{
+			return getString(2);
+		}
+
+		/**
+		 * @return The MIME type of the file, or <code>null</code> if the sender did not know it
+		 * @author Peter Piech
+		 */
+		public String getMimeType()
+		{
+			return mStringLengths[3] > 0 ? getString(3) : null;
+		}
+
+		/**
+		 * @return The string at the given index, decoded from UTF-8
+		 * @author Peter Piech
+		 */
+		private String getString(int index)
+		{
+			return new String(mBytes, mStringOffsets[index], mStringLengths[index], sUtf8);
+		}
+
+		/**
+		 * @return The unsigned big-endian short at the offset
+		 * @author Peter Piech
+		 */
+		private int readUnsignedShort(int offset)
+		{
+			return ((mBytes[offset] & 0xff) << 8) | (mBytes[offset + 1] & 0xff);
+		}
+
+		/**
+		 * @return The big-endian int at the offset
+		 * @author Peter Piech
+		 */
+		private int readInt(int offset)
+		{
+			return (readUnsignedShort(offset) << 16) | readUnsignedShort(offset + 2);
+		}
+
+		/**
+		 * @return The big-endian long at the offset
+		 * @author Peter Piech
+		 */
+		private long readLong(int offset)
+		{
+			return ((long) readInt(offset) << 32) | (readInt(offset + 4) & 0xffffffffL);
+		}
+	}
+}
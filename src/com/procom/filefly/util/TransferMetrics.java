@@ -0,0 +1,278 @@
+package com.procom.filefly.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Build;
+import android.os.SystemClock;
+
+/**
+ * Process-wide counters describing how received files were stored and where the time of a
+ * transfer goes.
+ * <p>
+ * Every file handed to {@link com.procom.filefly.util.ContentStore#store} is recorded under the
+ * {@link ReceiveStrategy} that was picked for it, together with its size and the time spent storing it.
+ * <p>
+ * Every {@link Stage} of the send and receive paths records its duration and the number of bytes
+ * it handled into two histograms with power-of-two buckets. Recording is a handful of atomic
+ * increments without allocation or locking, so it stays enabled in release builds, and
+ * {@link #toJson} exports everything to compare devices in the field.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-11-28
+ */
+public class TransferMetrics
+{
+	/**
+	 * The ways a received file can end up in FileFly/received.
+	 *
+	 * @author Peter Piech
+	 */
+	public enum ReceiveStrategy
+	{
+		/** The file was renamed into place because it was on the same volume */
+		MOVE,
+
+		/** The file was copied chunk by chunk because it could not be moved */
+		COPY,
+
+		/** Nothing was written because the same content was already stored */
+		DEDUPLICATED
+	}
+
+	/**
+	 * The timed stages between tapping Send and the receiver seeing the file.
+	 *
+	 * @author Peter Piech
+	 */
+	public enum Stage
+	{
+		/** Staging a chosen file for Android Beam on the sending device, i.e. compressing or copying it */
+		STAGE,
+
+		/** Resolving the Uri delivered by Android Beam to a file on the receiving device */
+		RESOLVE_URI,
+
+		/** Streaming a batch of files over a {@link com.procom.filefly.util.Transport} on the receiving device */
+		STREAM,
+
+		/** Storing one received file in FileFly/received */
+		SAVE_FILE,
+
+		/** Recording a batch of received files in the database */
+		INSERT,
+
+		/** Refreshing the received files list after the history changed */
+		LIST_REFRESH
+	}
+
+	/** The number of buckets of each histogram; bucket i counts the values below 2^i, the last one everything above */
+	private static final int sBucketCount = 40;
+
+	/** The number of times each {@link Stage} ran, indexed by ordinal */
+	private static final AtomicLongArray sStageCounts = new AtomicLongArray(Stage.values().length);
+
+	/** The number of bytes handled by each {@link Stage}, indexed by ordinal */
+	private static final AtomicLongArray sStageBytes = new AtomicLongArray(Stage.values().length);
+
+	/** The number of nanoseconds spent in each {@link Stage}, indexed by ordinal */
+	private static final AtomicLongArray sStageNanos = new AtomicLongArray(Stage.values().length);
+
+	/** The longest run of each {@link Stage} in nanoseconds, indexed by ordinal */
+	private static final AtomicLongArray sStageMaxNanos = new AtomicLongArray(Stage.values().length);
+
+	/** The histogram of the durations of each {@link Stage} in microseconds, indexed by ordinal * {@link #sBucketCount} + bucket */
+	private static final AtomicLongArray sDurationBuckets = new AtomicLongArray(Stage.values().length * sBucketCount);
+
+	/** The histogram of the bytes handled by each run of each {@link Stage}, indexed by ordinal * {@link #sBucketCount} + bucket */
+	private static final AtomicLongArray sSizeBuckets = new AtomicLongArray(Stage.values().length * sBucketCount);
+
+	/** The number of files stored with each {@link ReceiveStrategy}, indexed by ordinal */
+	private static final AtomicLongArray sReceiveCounts = new AtomicLongArray(ReceiveStrategy.values().length);
+
+	/** The number of bytes stored with each {@link ReceiveStrategy}, indexed by ordinal */
+	private static final AtomicLongArray sReceiveBytes = new AtomicLongArray(ReceiveStrategy.values().length);
+
+	/** The number of nanoseconds spent storing with each {@link ReceiveStrategy}, indexed by ordinal */
+	private static final AtomicLongArray sReceiveNanos = new AtomicLongArray(ReceiveStrategy.values().length);
+
+	/**
+	 * Not instantiable; all methods are static.
+	 *
+	 * @author Peter Piech
+	 */
+	private TransferMetrics() {}
+
+	/**
+	 * Records a stored file.
+	 *
+	 * @param strategy The {@link ReceiveStrategy} picked for the file
+	 * @param bytes The size of the file
+	 * @param nanos The time spent storing the file, in nanoseconds
+	 * @author Peter Piech
+	 */
+	public static void recordReceive(ReceiveStrategy strategy, long bytes, long nanos)
+	{
+		sReceiveCounts.incrementAndGet(strategy.ordinal());
+		sReceiveBytes.addAndGet(strategy.ordinal(), bytes);
+		sReceiveNanos.addAndGet(strategy.ordinal(), nanos);
+	}
+
+	/**
+	 * Records one run of a {@link Stage}.
+	 *
+	 * @param stage The {@link Stage} that ran
+	 * @param bytes The number of bytes it handled, or 0 if it does not handle file data
+	 * @param nanos The time it took, in nanoseconds, e.g. the difference of two {@link java.lang.System#nanoTime} calls
+	 * @author Peter Piech
+	 */
+	public static void recordStage(Stage stage, long bytes, long nanos)
+	{
+		int ordinal = stage.ordinal();
+		sStageCounts.incrementAndGet(ordinal);
+		sStageBytes.addAndGet(ordinal, bytes);
+		sStageNanos.addAndGet(ordinal, nanos);
+		long max;
+		while (nanos > (max = sStageMaxNanos.get(ordinal)) && !sStageMaxNanos.compareAndSet(ordinal, max, nanos))
+		{
+			// another thread recorded a run at the same time; try again
+		}
+		sDurationBuckets.incrementAndGet(ordinal * sBucketCount + getBucket(nanos / 1000));
+		sSizeBuckets.incrementAndGet(ordinal * sBucketCount + getBucket(bytes));
+	}
+
+	/**
+	 * @return The number of times the given {@link Stage} ran
+	 * @author Peter Piech
+	 */
+	public static long getStageCount(Stage stage)
+	{
+		return sStageCounts.get(stage.ordinal());
+	}
+
+	/**
+	 * @return The number of nanoseconds spent in the given {@link Stage}
+	 * @author Peter Piech
+	 */
+	public static long getStageNanos(Stage stage)
+	{
+		return sStageNanos.get(stage.ordinal());
+	}
+
+	/**
+	 * Exports every counter and histogram, along with the device they were recorded on.
+	 * Histograms are lists of the non-empty buckets, each with the exclusive upper bound "lt"
+	 * of its values (absent for the last bucket) and its "count".
+	 *
+	 * @return The metrics as a {@link org.json.JSONObject}
+	 * @author Peter Piech
+	 */
+	public static JSONObject toJson()
+	{
+		try
+		{
+			JSONObject json = new JSONObject();
+			JSONObject device = new JSONObject();
+			device.put("manufacturer", Build.MANUFACTURER);
+			device.put("model", Build.MODEL);
+			device.put("sdk", Build.VERSION.SDK_INT);
+			json.put("device", device);
+			json.put("uptimeMillis", SystemClock.elapsedRealtime());
+
+			JSONObject stages = new JSONObject();
+			for (Stage stage : Stage.values())
+			{
+				int ordinal = stage.ordinal();
+				JSONObject entry = new JSONObject();
+				entry.put("count", sStageCounts.get(ordinal));
+				entry.put("bytes", sStageBytes.get(ordinal));
+				entry.put("totalMicros", sStageNanos.get(ordinal) / 1000);
+				entry.put("maxMicros", sStageMaxNanos.get(ordinal) / 1000);
+				entry.put("durationMicros", toJson(sDurationBuckets, ordinal));
+				entry.put("sizeBytes", toJson(sSizeBuckets, ordinal));
+				stages.put(stage.name(), entry);
+			}
+			json.put("stages", stages);
+
+			JSONObject receive = new JSONObject();
+			for (ReceiveStrategy strategy : ReceiveStrategy.values())
+			{
+				JSONObject entry = new JSONObject();
+				entry.put("count", getReceiveCount(strategy));
+				entry.put("bytes", getReceiveBytes(strategy));
+				entry.put("totalMicros", getReceiveNanos(strategy) / 1000);
+				receive.put(strategy.name(), entry);
+			}
+			json.put("receive", receive);
+			return json;
+		}
+		catch (JSONException e)
+		{
+			throw new IllegalStateException(e); // only thrown for non-finite numbers, and every value is a long
+		}
+	}
+
+	/**
+	 * @return The non-empty buckets of one histogram
+	 * @author Peter Piech
+	 */
+	private static JSONArray toJson(AtomicLongArray buckets, int ordinal) throws JSONException
+	{
+		JSONArray histogram = new JSONArray();
+		for (int i = 0; i < sBucketCount; i++)
+		{
+			long count = buckets.get(ordinal * sBucketCount + i);
+			if (count > 0)
+			{
+				JSONObject bucket = new JSONObject();
+				if (i < sBucketCount - 1)
+				{
+					bucket.put("lt", 1L << i);
+				}
+				bucket.put("count", count);
+				histogram.put(bucket);
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * @return The histogram bucket of a value: 0 for 0, i for values in [2^(i-1), 2^i), the last bucket for the largest values
+	 * @author Peter Piech
+	 */
+	private static int getBucket(long value)
+	{
+		return value <= 0 ? 0 : Math.min(sBucketCount - 1, 64 - Long.numberOfLeadingZeros(value));
+	}
+
+	/**
+	 * @return The number of files stored with the given {@link ReceiveStrategy}
+	 * @author Peter Piech
+	 */
+	public static long getReceiveCount(ReceiveStrategy strategy)
+	{
+		return sReceiveCounts.get(strategy.ordinal());
+	}
+
+	/**
+	 * @return The number of bytes stored with the given {@link ReceiveStrategy}
+	 * @author Peter Piech
+	 */
+	public static long getReceiveBytes(ReceiveStrategy strategy)
+	{
+		return sReceiveBytes.get(strategy.ordinal());
+	}
+
+	/**
+	 * @return The number of nanoseconds spent storing with the given {@link ReceiveStrategy}
+	 * @author Peter Piech
+	 */
+	public static long getReceiveNanos(ReceiveStrategy strategy)
+	{
+		return sReceiveNanos.get(strategy.ordinal());
+	}
+}
@@ -0,0 +1,85 @@
+package com.procom.filefly.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A byte stream link between two devices over which {@link com.procom.filefly.util.StreamTransfer}
+ * moves the payload once an NFC tap exchanged the endpoint of the sender.
+ * <p>
+ * Android Beam is not a {@link Transport}: its Bluetooth handover is carried out by the system,
+ * so it stays the fallback path of {@link com.procom.filefly.SendFragment} when no other link is
+ * available.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-06
+ */
+public interface Transport
+{
+	/**
+	 * Starts accepting connections on the sending device.
+	 *
+	 * @return The {@link Server}, which must be closed by the caller
+	 * @throws IOException If no endpoint could be opened
+	 * @author Peter Piech
+	 */
+	public Server listen() throws IOException;
+
+	/**
+	 * Connects the receiving device to the endpoint of a {@link Server}.
+	 *
+	 * @param endpoint The endpoint returned by {@link Server#getEndpoint}
+	 * @param timeoutMillis The number of milliseconds to wait for the connection
+	 * @return The {@link Connection}, which must be closed by the caller
+	 * @throws IOException If the endpoint is malformed, belongs to another transport or cannot be reached
+	 * @author Peter Piech
+	 */
+	public Connection connect(String endpoint, int timeoutMillis) throws IOException;
+
+	/**
+	 * The accepting side of a {@link Transport}.
+	 *
+	 * @author Peter Piech
+	 */
+	public interface Server extends Closeable
+	{
+		/**
+		 * @return The endpoint that the receiving device connects to, e.g. <code>tcp://192.168.1.5:41234</code>
+		 * @author Peter Piech
+		 */
+		public String getEndpoint();
+
+		/**
+		 * Waits for the next connection.
+		 *
+		 * @param timeoutMillis The number of milliseconds to wait
+		 * @return The accepted {@link Connection}, which must be closed by the caller
+		 * @throws IOException If the timeout expired or the server was closed
+		 * @author Peter Piech
+		 */
+		public Connection accept(int timeoutMillis) throws IOException;
+	}
+
+	/**
+	 * One bidirectional stream between the devices.
+	 *
+	 * @author Peter Piech
+	 */
+	public interface Connection extends Closeable
+	{
+		/**
+		 * @return The stream of the bytes sent by the other device
+		 * @author Peter Piech
+		 */
+		public InputStream getInputStream() throws IOException;
+
+		/**
+		 * @return The stream of the bytes sent to the other device
+		 * @author Peter Piech
+		 */
+		public OutputStream getOutputStream() throws IOException;
+	}
+}
@@ -0,0 +1,142 @@
+package com.procom.filefly.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+
+/**
+ * Finds the activities of other apps that can view a file of a given MIME type.
+ * <p>
+ * Asking the {@link android.content.pm.PackageManager} is a call into the system process, so
+ * the viewers found for each MIME type are cached. Since the answer only changes when apps are
+ * installed, updated, enabled, disabled or removed, the whole cache is dropped on the
+ * corresponding broadcasts.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-03
+ */
+public class ViewerResolver
+{
+	/** The process-wide instance */
+	private static ViewerResolver sInstance;
+
+	/** The {@link android.content.pm.PackageManager} asked on a cache miss */
+	private final PackageManager mPackageManager;
+
+	/** The package of this app, whose activities are never offered as viewers */
+	private final String mOwnPackageName;
+
+	/** The viewers by MIME type */
+	private final Map<String, List<ComponentName>> mViewers = new HashMap<String, List<ComponentName>>();
+
+	/** Incremented by {@link #invalidate}, so that an answer obtained before a change of the installed apps is not cached */
+	private long mGeneration;
+
+	/**
+	 * Constructs the resolver and starts listening for changes to the installed apps.
+	 *
+	 * @author Peter Piech
+	 */
+	private ViewerResolver(Context context)
+	{
+		mPackageManager = context.getPackageManager();
+		mOwnPackageName = context.getPackageName();
+
+		IntentFilter filter = new IntentFilter();
+		filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+		filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+		filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+		filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+		filter.addDataScheme("package"); // these broadcasts carry the package as their data and are not delivered without it
+		context.registerReceiver(new BroadcastReceiver()
+		{
+			@Override
+			public void onReceive(Context context, Intent intent)
+			{
+				invalidate();
+			}
+		}, filter);
+	}
+
+	/**
+	 * @param context Any {@link android.content.Context} of the app
+	 * @return The process-wide {@link ViewerResolver}
+	 * @author Peter Piech
+	 */
+	public static synchronized ViewerResolver getInstance(Context context)
+	{
+		if (sInstance == null)
+		{
+			sInstance = new ViewerResolver(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Finds the activities of other apps that can view a file of the given MIME type.
+	 *
+	 * @param mimeType A normalized MIME type, see {@link android.content.Intent#normalizeMimeType}
+	 * @return The viewers, in the order the {@link android.content.pm.PackageManager} returned them; unmodifiable
+	 * @author Peter Piech
+	 */
+	public List<ComponentName> getViewers(String mimeType)
+	{
+		long generation;
+		synchronized (mViewers)
+		{
+			List<ComponentName> viewers = mViewers.get(mimeType);
+			if (viewers != null)
+			{
+				return viewers;
+			}
+			generation = mGeneration;
+		}
+
+		Intent intent = new Intent(Intent.ACTION_VIEW);
+		intent.setDataAndType(Uri.parse("file:///"), mimeType); // viewers of received files match on the file scheme and the MIME type
+		List<ResolveInfo> activities = mPackageManager.queryIntentActivities(intent, 0);
+		List<ComponentName> viewers = new ArrayList<ComponentName>(activities.size());
+		for (ResolveInfo currentInfo : activities)
+		{
+			if (!mOwnPackageName.equals(currentInfo.activityInfo.packageName))
+			{
+				viewers.add(new ComponentName(currentInfo.activityInfo.packageName, currentInfo.activityInfo.name));
+			}
+		}
+		viewers = Collections.unmodifiableList(viewers);
+		synchronized (mViewers)
+		{
+			if (generation == mGeneration)
+			{
+				mViewers.put(mimeType, viewers);
+			}
+		}
+		return viewers;
+	}
+
+	/**
+	 * Drops every cached answer, e.g. because an app was installed or removed.
+	 *
+	 * @author Peter Piech
+	 */
+	public void invalidate()
+	{
+		synchronized (mViewers)
+		{
+			mViewers.clear();
+			mGeneration++;
+		}
+	}
+}
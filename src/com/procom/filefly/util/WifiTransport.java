@@ -0,0 +1,64 @@
+package com.procom.filefly.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiManager;
+
+/**
+ * A {@link com.procom.filefly.util.TcpTransport} on the Wi-Fi network this device is connected to.
+ * <p>
+ * The address is taken from the {@link android.net.wifi.WifiManager} rather than from the network
+ * interfaces, because a mobile data connection may also have a private address, e.g. behind the
+ * carrier-grade NAT of the operator, where the other device can never reach it.
+ *
+ * @author Peter Piech
+ * @version 0.7b
+ * @since 2014-12-06
+ */
+public class WifiTransport extends TcpTransport
+{
+	/**
+	 * Constructs a transport listening on the given Wi-Fi address.
+	 *
+	 * @author Peter Piech
+	 */
+	private WifiTransport(InetAddress address)
+	{
+		super(address);
+	}
+
+	/**
+	 * Finds the address of this device on the Wi-Fi network it is connected to.
+	 *
+	 * @return A transport listening on that address, or <code>null</code> if this device is not connected to Wi-Fi
+	 * @author Peter Piech
+	 */
+	public static WifiTransport forWifi(Context context)
+	{
+		ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo networkInfo = connectivityManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
+		if (networkInfo == null || !networkInfo.isConnected())
+		{
+			return null;
+		}
+		WifiManager wifiManager = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+		int ipAddress = wifiManager.getConnectionInfo().getIpAddress(); // the first octet in the lowest byte
+		if (ipAddress == 0) // i.e. no address assigned yet
+		{
+			return null;
+		}
+		byte[] octets = { (byte) ipAddress, (byte) (ipAddress >> 8), (byte) (ipAddress >> 16), (byte) (ipAddress >> 24) };
+		try
+		{
+			return new WifiTransport(InetAddress.getByAddress(octets)); // a literal address is never looked up
+		}
+		catch (UnknownHostException e)
+		{
+			throw new IllegalStateException(e); // only thrown for an address of the wrong length
+		}
+	}
+}